@@ -9,8 +9,10 @@ import android.widget.ToggleButton;
 
 import com.kimbr.privacytools.internal.LocalVpnService;
 import com.kimbr.privacytools.internal.Preferences;
+import com.kimbr.privacytools.internal.vpn.DomainIndex;
 import com.kimbr.privacytools.internal.vpn.LoggingCallback;
-import com.kimbr.privacytools.internal.vpn.network.Packet;
+import com.kimbr.privacytools.internal.vpn.TrafficLog;
+import com.kimbr.privacytools.internal.vpn.network.headers.IP4Header;
 
 public class MainActivity extends Activity {
 
@@ -52,14 +54,18 @@ public class MainActivity extends Activity {
                 loggingButton.setEnabled(false);
                 if (isChecked) LocalVpnService.Handler.setLoggingCallback(new LoggingCallback() {
                     @Override
-                    public void log(Packet packet, Boolean filterResult) {
-                        if (filterResult == null)
-                            Log.d("LoggingCallback", packet.ip4Header.destinationAddress.getHostName());
-                        else {
-                            if (filterResult)
-                                Log.d("LoggingCallback", "Whitelisted: " + packet.ip4Header.destinationAddress.getHostName());
+                    public void log(TrafficLog.Batch events) {
+                        for (int i = 0; i < events.size(); i++) {
+                            String hostName = events.getHostName(i);
+                            if (hostName == null) hostName = IP4Header.toHostAddress(events.getDestinationAddress(i));
+
+                            final int verdict = events.getVerdict(i);
+                            if (verdict == DomainIndex.ALLOWED)
+                                Log.d("LoggingCallback", "Whitelisted: " + hostName);
+                            else if (verdict == DomainIndex.BLOCKED)
+                                Log.d("LoggingCallback", "Blacklisted: " + hostName);
                             else
-                                Log.d("LoggingCallback", "Blacklisted: " + packet.ip4Header.destinationAddress.getHostName());
+                                Log.d("LoggingCallback", hostName);
                         }
                     }
                 });
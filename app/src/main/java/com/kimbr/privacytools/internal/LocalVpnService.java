@@ -1,6 +1,7 @@
 package com.kimbr.privacytools.internal;
 
 import android.app.PendingIntent;
+import android.content.Context;
 import android.content.Intent;
 import android.net.VpnService;
 import android.os.ParcelFileDescriptor;
@@ -9,45 +10,59 @@ import android.widget.Toast;
 
 import com.kimbr.privacytools.MainActivity;
 import com.kimbr.privacytools.R;
+import com.kimbr.privacytools.internal.vpn.FilterHolder;
+import com.kimbr.privacytools.internal.vpn.FilterMapHandler;
+import com.kimbr.privacytools.internal.vpn.HostFilter;
+import com.kimbr.privacytools.internal.vpn.LogcatSink;
 import com.kimbr.privacytools.internal.vpn.LoggingCallback;
+import com.kimbr.privacytools.internal.vpn.TrafficLog;
+import com.kimbr.privacytools.internal.vpn.TunnelEngine;
+import com.kimbr.privacytools.internal.vpn.history.ConnectionLog;
+import com.kimbr.privacytools.internal.vpn.history.ConnectionRecorder;
+import com.kimbr.privacytools.internal.vpn.metrics.PipelineMetrics;
 import com.kimbr.privacytools.internal.vpn.network.ByteBufferPool;
-import com.kimbr.privacytools.internal.vpn.network.Packet;
-import com.kimbr.privacytools.internal.vpn.VpnRunnable;
-import com.kimbr.privacytools.internal.vpn.network.TCPInput;
-import com.kimbr.privacytools.internal.vpn.network.TCPOutput;
-import com.kimbr.privacytools.internal.vpn.network.UDPInput;
-import com.kimbr.privacytools.internal.vpn.network.UDPOutput;
+import com.kimbr.privacytools.internal.vpn.network.HostnameTable;
+import com.kimbr.privacytools.internal.vpn.network.TCB;
+import com.kimbr.privacytools.internal.vpn.platform.ChannelTunDevice;
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+import com.kimbr.privacytools.internal.vpn.platform.SocketProtector;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.Selector;
-import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
-public class LocalVpnService extends VpnService {
+// Protects the engine's sockets with VpnService.protect()
+public class LocalVpnService extends VpnService implements SocketProtector {
 
     private static String TAG = "LocalVpnService";
 
     private static volatile LocalVpnService instance; // TODO: improve performance of holding onto it's own reference?
     private static IsRunningCallback isRunningCb;
-    private static LoggingCallback loggingCallback;
 
     private static String VPN_ADDRESS = "10.1.10.1"; // TODO: improve, is only ipv4 for now
     private static String VPN_ROUTE = "0.0.0.0"; // Intercepts everything
     private static String DNS_ADDRESS_0 = "1.1.1.1";
     private static String DNS_ADDRESS_1 = "1.0.0.1";
+    private static final int HOSTNAME_TABLE_SIZE = 4096;
+    private static final int TRAFFIC_LOG_SIZE = 8192;
+    private static final String CONNECTION_LOG_DIRECTORY = "connections";
 
-    private ExecutorService tunnelExecutorService;
-    private ParcelFileDescriptor vpnInterface;
-    private Map<String, Boolean> filterMap;
+    // Outlive the tunnel, logging can be toggled and a filter published while it's stopped
+    private static final TrafficLog trafficLog = new TrafficLog(TRAFFIC_LOG_SIZE, Preferences.getMaxLoggedEventsPerSecond());
+    private static final FilterHolder filters = new FilterHolder(HostFilter.EMPTY);
+    private static final ExecutorService filterBuilder = Executors.newSingleThreadExecutor();
+
+    static {
+        EngineLog.setSink(new LogcatSink());
+    }
 
-    private ConcurrentLinkedQueue<Packet> deviceToNetworkUdpQueue;
-    private ConcurrentLinkedQueue<Packet> deviceToNetworkTcpQueue;
-    private ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue;
-    private Selector udpSelector;
-    private Selector tcpSelector;
+    private TunnelEngine engine;
+    private ParcelFileDescriptor vpnInterface;
+    // Outlives restarts, apps go on connecting to addresses they resolved before
+    private final HostnameTable hostnames = new HostnameTable(HOSTNAME_TABLE_SIZE);
+    private ConnectionLog connectionLog;
+    private ConnectionRecorder connectionRecorder;
 
     @Override
     public void onCreate() {
@@ -59,6 +74,8 @@ public class LocalVpnService extends VpnService {
             }
         }
 
+        // Traffic flows unfiltered until the lists are loaded, rather than waiting on them
+        if (Preferences.isFilteringEnabled()) Handler.reloadFilter(this);
         startVpn();
     }
 
@@ -81,23 +98,17 @@ public class LocalVpnService extends VpnService {
         if (isRunningCb != null) isRunningCb.stateChanging();
 
         setupVpn();
+        if (Preferences.keepConnectionHistory()) startConnectionHistory();
+
         try {
-            udpSelector = Selector.open();
-            tcpSelector = Selector.open();
-            deviceToNetworkUdpQueue = new ConcurrentLinkedQueue<>();
-            deviceToNetworkTcpQueue = new ConcurrentLinkedQueue<>();
-            networkToDeviceQueue = new ConcurrentLinkedQueue<>();
-
-            tunnelExecutorService = Executors.newFixedThreadPool(5);
-            tunnelExecutorService.submit(new UDPInput(networkToDeviceQueue, udpSelector));
-            tunnelExecutorService.submit(new UDPOutput(deviceToNetworkUdpQueue, udpSelector, this));
-            tunnelExecutorService.submit(new TCPInput(networkToDeviceQueue, tcpSelector));
-            tunnelExecutorService.submit(new TCPOutput(deviceToNetworkTcpQueue, networkToDeviceQueue, tcpSelector, this));
-
-            final VpnRunnable vpnRunnable = new VpnRunnable(vpnInterface.getFileDescriptor(), deviceToNetworkUdpQueue, deviceToNetworkTcpQueue, networkToDeviceQueue);
-            vpnRunnable.loggingCallback = loggingCallback; // reduces having to use an 'if' to check for loggingCallback != null
-            vpnRunnable.filterMap = filterMap;
-            tunnelExecutorService.submit(vpnRunnable);
+            TCB.setMaxConnections(Preferences.getMaxTcpConnections());
+            engine = new TunnelEngine(this);
+            engine.reactorCount = Preferences.getReactorCount();
+            engine.blockDnsWithNxDomain = Preferences.blockDnsWithNxDomain();
+            engine.trafficLog = trafficLog;
+            engine.filters = filters;
+            engine.hostnames = hostnames;
+            engine.start(ChannelTunDevice.open(vpnInterface.getFileDescriptor()));
 
             if (isRunningCb != null) isRunningCb.started();
         }
@@ -112,10 +123,34 @@ public class LocalVpnService extends VpnService {
         }
     }
 
+    // Recorded from the traffic log's drain thread, a history that can't be opened only costs the history
+    private void startConnectionHistory() {
+        try {
+            connectionLog = new ConnectionLog(new File(getFilesDir(), CONNECTION_LOG_DIRECTORY));
+            connectionRecorder = new ConnectionRecorder(connectionLog);
+            trafficLog.setRecorder(connectionRecorder);
+        }
+
+        catch (IOException ex) {
+            Log.e(TAG, "Unable to open the connection history", ex);
+        }
+    }
+
+    private void stopConnectionHistory() {
+        if (connectionRecorder == null) return;
+
+        trafficLog.setRecorder(null);
+        connectionRecorder.close();
+        Utils.closeResources(connectionLog);
+        connectionRecorder = null;
+        connectionLog = null;
+    }
+
     private void stopVpn() {
         if (isRunningCb != null) isRunningCb.stateChanging();
 
-        tunnelExecutorService.shutdownNow();
+        if (engine != null) engine.stop();
+        engine = null;
         cleanup();
 
         if (isRunningCb != null) isRunningCb.stopped();
@@ -131,6 +166,7 @@ public class LocalVpnService extends VpnService {
             builder.addDnsServer(DNS_ADDRESS_1);
             builder.addRoute(VPN_ROUTE, 0);
             builder.setConfigureIntent(getPendingIntent());
+            builder.setBlocking(true); // VpnRunnable blocks on reads, establish() is non-blocking otherwise
             vpnInterface = builder.establish();
         }
     }
@@ -141,11 +177,13 @@ public class LocalVpnService extends VpnService {
     }
 
     private void cleanup() {
-        deviceToNetworkUdpQueue = null;
-        deviceToNetworkTcpQueue = null;
-        networkToDeviceQueue = null;
+        Log.d(TAG, "Traffic log: " + trafficLog.getStats());
+        Log.d(TAG, "Pipeline: " + PipelineMetrics.snapshot());
+        stopConnectionHistory();
+        for (ByteBufferPool.Stats stats : ByteBufferPool.getStats()) Log.d(TAG, "Buffer pool: " + stats);
+        Log.d(TAG, "Leaked buffers: " + ByteBufferPool.checkLeaks());
         ByteBufferPool.clear();
-        Utils.closeResources(udpSelector, tcpSelector, vpnInterface);
+        Utils.closeResources(vpnInterface);
     }
 
     public static class Handler {
@@ -154,18 +192,37 @@ public class LocalVpnService extends VpnService {
             isRunningCb = callback;
         }
 
+        // Takes effect from the next packet, open connections are kept
         public static void setLoggingCallback(LoggingCallback callback) {
-            loggingCallback = callback;
+            trafficLog.setCallback(callback);
+        }
 
-            if (isRunning()) {
-                Log.d(TAG, "Restarting VPN with logging enabled");
-                instance.stopVpn();
-                instance.startVpn();
-            }
+        // Takes effect from the next packet or DNS query, open connections are kept
+        public static void setFilter(HostFilter filter) {
+            filters.publish(filter);
+        }
+
+        // Builds the filter from the current lists in the background, then publishes it
+        public static void reloadFilter(Context context) {
+            final Context applicationContext = context.getApplicationContext();
+
+            filterBuilder.submit(new Runnable() {
+                @Override
+                public void run() {
+                    filters.publish(FilterMapHandler.getFilter(applicationContext));
+                }
+            });
+        }
+
+        // Cumulative for the process, readable while the tunnel runs
+        public static PipelineMetrics.Snapshot getMetrics() {
+            return PipelineMetrics.snapshot();
         }
 
-        public static void setFilterMap(Map<String, Boolean> map) {
-            instance.filterMap = map;
+        // Null while the tunnel is stopped or keeps no history
+        public static ConnectionLog getConnectionLog() {
+            final LocalVpnService service = instance;
+            return service != null ? service.connectionLog : null;
         }
 
         public static boolean isRunning() {
@@ -1,5 +1,8 @@
 package com.kimbr.privacytools.internal;
 
+import java.util.Arrays;
+import java.util.List;
+
 public class Preferences {
 
     // Setup SharedPreferences store here
@@ -16,7 +19,39 @@ public class Preferences {
         return false;
     }
 
-    public static String getHostsUrl() {
-        return "https://raw.githubusercontent.com/grufwub/DNS-Blocklist-Compiler/master/hosts";
+    // Traffic log events shown per second at most, the rest are counted and skipped
+    public static int getMaxLoggedEventsPerSecond() {
+        return 200;
+    }
+
+    // Whether connections are written to the on-device history, see ConnectionLog
+    public static boolean keepConnectionHistory() {
+        return true;
+    }
+
+    // 0 runs the thread-per-stage tunnel pipeline, N > 0 runs N single-threaded
+    // TunnelReactors with flows sharded between them
+    public static int getReactorCount() {
+        return 0;
+    }
+
+    // Open TCP connections tracked at once, SYNs beyond this are reset
+    public static int getMaxTcpConnections() {
+        return 4096;
+    }
+
+    // How DNS queries for blocked names are answered: NXDOMAIN, or else 0.0.0.0 / ::
+    public static boolean blockDnsWithNxDomain() {
+        return true;
+    }
+
+    // Blocklists merged into the hosts file, in hosts, plain domain or dnsmasq format
+    public static List<String> getHostsUrls() {
+        return Arrays.asList("https://raw.githubusercontent.com/grufwub/DNS-Blocklist-Compiler/master/hosts");
+    }
+
+    // Blocklists downloaded at once
+    public static int getHostsDownloadParallelism() {
+        return 4;
     }
 }
@@ -7,15 +7,8 @@ import com.kimbr.privacytools.internal.Preferences;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.HashMap;
-import java.util.Map;
 
 public class FilterMapHandler {
 
@@ -26,34 +19,102 @@ public class FilterMapHandler {
     private static final String HOSTS_FILE = "hosts.txt";
     private static final String WHITELIST_FILE = "whitelist.txt";
     private static final String BLACKLIST_FILE = "blacklist.txt";
+    private static final String SNAPSHOT_FILE = "filter.idx";
+
+    // The filter from the hosts list and the user's whitelist and blacklist. Whitelist and
+    // blacklist entries cover subdomains too, a whitelisted name is allowed even if the hosts
+    // list or the blacklist has it or a parent domain
+    public static HostFilter getFilter(Context context) {
+        final HostFilter filter = new HostFilter(getHostsIndex(context), getRules(context));
+        Log.d(TAG, "Filter has " + filter.hosts.size() + " hosts in " + filter.hosts.sizeInBytes() / 1024 + " KB, "
+                + filter.rules.size() + " rules in " + filter.rules.sizeInBytes() / 1024 + " KB");
+        return filter;
+    }
+
+    // Mapped from the snapshot of the last build if the hosts list hasn't changed since
+    private static DomainIndex getHostsIndex(Context context) {
+        final File snapshotFile = new File(context.getFilesDir(), SNAPSHOT_FILE);
+
+        try {
+            if (snapshotFile.exists()) {
+                final DomainIndex snapshot = DomainIndex.open(snapshotFile, getSourceStamp(context));
+                if (snapshot != null) return snapshot;
+            }
+        }
+
+        catch (IOException ex) {
+            Log.e(TAG, "Unable to open filter snapshot", ex);
+        }
+
+        final DomainIndex index = buildHostsIndex(context);
+
+        // Stamped after building, which may have downloaded the hosts file
+        try {
+            final long sourceStamp = getSourceStamp(context);
+            index.writeTo(snapshotFile, sourceStamp);
+
+            // Use the mapped copy, the built one can leave the heap
+            final DomainIndex snapshot = DomainIndex.open(snapshotFile, sourceStamp);
+            if (snapshot != null) return snapshot;
+        }
+
+        catch (IOException ex) {
+            Log.e(TAG, "Unable to write filter snapshot", ex);
+        }
+
+        return index;
+    }
+
+    private static DomainIndex buildHostsIndex(Context context) {
+        if (!Preferences.useHostsFile()) return DomainIndex.EMPTY;
 
-    // Returns a filter map with String = host, and boolean = connectivityAllowed
-    public static Map<String, Boolean> getMap(Context context) {
-        final Map<String, Boolean> filterMap = new HashMap<>();
-
-        // Get hosts (either from file or from url then to file)
-        if (Preferences.useHostsFile()) {
-            final File hostsFile = new File(context.getFilesDir(), HOSTS_FILE);
-            if (!hostsFile.exists()) {
-                final String hostsUrl = Preferences.getHostsUrl();
-                final Map<String, Boolean> downloadedHosts = fetch(hostsUrl);
-                writeToFile(hostsFile, downloadedHosts);
-                filterMap.putAll(downloadedHosts);
+        final File hostsFile = new File(context.getFilesDir(), HOSTS_FILE);
+        DomainIndex.Builder builder = null;
+
+        // Get hosts (either from file or from the lists then to file)
+        if (!hostsFile.exists()) builder = updateHostsFile(context);
+
+        if (builder == null) {
+            builder = new DomainIndex.Builder();
+
+            try {
+                BlocklistIngester.parse(hostsFile.toURI().toString(), builder);
             }
 
-            else filterMap.putAll(readFromFile(hostsFile, false));
+            catch (IOException ex) {
+                Log.e(TAG, "Unable to read from file.", ex);
+            }
         }
 
+        return builder.build();
+    }
+
+    private static DomainTrie getRules(Context context) {
+        final DomainTrie.Builder builder = new DomainTrie.Builder();
+
         // Read whitelist
         final File whitelistFile = getWhitelistFile(context);
         if (whitelistFile.exists())
-            filterMap.putAll(readFromFile(whitelistFile, true));
+            readRulesFromFile(whitelistFile, builder, true);
         // Read blacklist
         final File blacklistFile = getBlacklistFile(context);
         if (blacklistFile.exists())
-            filterMap.putAll(readFromFile(blacklistFile, false));
+            readRulesFromFile(blacklistFile, builder, false);
+
+        return builder.build();
+    }
 
-        return filterMap;
+    // Changes whenever the hosts list does
+    private static long getSourceStamp(Context context) {
+        if (!Preferences.useHostsFile()) return 0;
+        return stamp(1, new File(context.getFilesDir(), HOSTS_FILE));
+    }
+
+    private static long stamp(long stamp, File file) {
+        stamp = 31 * stamp + (file.exists() ? 1 : 0);
+        stamp = 31 * stamp + file.length();
+        stamp = 31 * stamp + file.lastModified();
+        return stamp;
     }
 
     public static File getWhitelistFile(Context context) {
@@ -64,76 +125,36 @@ public class FilterMapHandler {
         return new File(context.getFilesDir(), BLACKLIST_FILE);
     }
 
-    public static void updateHostsFile(Context context) {
-        final String hostsUrl = Preferences.getHostsUrl();
+    // Downloads and merges the blocklists into the hosts file. Returns what was written, or null
+    // if none of the lists could be read and the old file was kept
+    public static DomainIndex.Builder updateHostsFile(Context context) {
         final File hostsFile = new File(context.getFilesDir(), HOSTS_FILE);
-        final Map<String, Boolean> hosts = fetch(hostsUrl);
-        writeToFile(hostsFile, hosts);
-    }
 
-    private static Map<String, Boolean> fetch(String hostsUrl) {
         try {
-            final URL url = new URL(hostsUrl);
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()));
-            final Map<String, Boolean> filterMap = new HashMap<>();
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (Character.isLetterOrDigit(line.charAt(0))
-                        || filterMap.containsKey(line))
-                    continue;
-
-                line = line.replaceAll("127.0.0.1 ", "");
-                filterMap.put(line, false);
-            }
-            reader.close();
-
-            return filterMap;
-        }
-
-        catch (MalformedURLException ex) {
-            Log.e(TAG, "Invalid url.", ex);
-            return new HashMap<>();
-        }
-
-        catch (IOException ex) {
-            Log.e(TAG, "Unable to read from url's input stream.");
-            return new HashMap<>();
-        }
-    }
-
-    private static void writeToFile(File file, Map<String, Boolean> map) {
-        try {
-            if (file.exists()) file.delete();
-            file.createNewFile();
-
-            final OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
-            for (String line : map.keySet()) writer.write(line + "\n");
-            writer.close();
+            final DomainIndex.Builder hosts = new BlocklistIngester(Preferences.getHostsDownloadParallelism()).ingest(Preferences.getHostsUrls());
+            BlocklistIngester.writeHostsFile(hostsFile, hosts);
+            return hosts;
         }
 
         catch (IOException ex) {
-            Log.e(TAG, "Unable to write to file", ex);
+            Log.e(TAG, "Unable to update hosts file", ex);
+            return null;
         }
     }
 
-    private static Map<String, Boolean> readFromFile(File file, boolean boolValue) {
+    private static void readRulesFromFile(File file, DomainTrie.Builder builder, boolean allowed) {
         try {
             final BufferedReader reader = new BufferedReader(new FileReader(file));
-            final Map<String, Boolean> filterMap = new HashMap<>();
 
             String line;
             while ((line = reader.readLine()) != null) {
-                filterMap.put(line, boolValue);
+                if (!line.trim().isEmpty() && !builder.add(line, allowed)) Log.w(TAG, "Ignoring invalid rule: " + line);
             }
             reader.close();
-
-            return filterMap;
         }
 
         catch (IOException ex) {
             Log.e(TAG, "Unable to read from file.", ex);
-            return new HashMap<>();
         }
     }
 }
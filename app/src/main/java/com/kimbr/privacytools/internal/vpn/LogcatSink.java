@@ -0,0 +1,15 @@
+package com.kimbr.privacytools.internal.vpn;
+
+import android.util.Log;
+
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+
+// Sends the engine's log to logcat, priorities are the same
+public class LogcatSink implements EngineLog.Sink {
+
+    @Override
+    public void log(int priority, String tag, String message, Throwable throwable) {
+        if (throwable != null) message += '\n' + Log.getStackTraceString(throwable);
+        Log.println(priority, tag, message);
+    }
+}
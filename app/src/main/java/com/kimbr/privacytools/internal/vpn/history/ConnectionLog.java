@@ -0,0 +1,224 @@
+package com.kimbr.privacytools.internal.vpn.history;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Weeks of per-connection history on disk, for audits. An append-only log of fixed-size records
+// split into segment files (see Segment): the active segment is sealed once it's full or a day
+// old and a new one started. Sealed segments older than COMPACT_AFTER_MS are rewritten with each
+// hour's connections to a destination merged into one record, and deleted after RETENTION_MS.
+// Every segment knows its time range and which of its records each host has, so a query only
+// reads the segments and records that can match.
+// Appends come from one thread (ConnectionRecorder on the traffic log's drain thread), queries
+// from any. Compaction and deletion run on a thread of their own.
+public class ConnectionLog implements Closeable {
+
+    private static final String TAG = "ConnectionLog";
+
+    public static final int DEFAULT_SEGMENT_CAPACITY = 16384; // 768 KB a segment
+    public static final long SEGMENT_MAX_AGE_MS = TimeUnit.DAYS.toMillis(1);
+    public static final long COMPACT_AFTER_MS = TimeUnit.DAYS.toMillis(2);
+    public static final long RETENTION_MS = TimeUnit.DAYS.toMillis(28);
+    private static final long COMPACTED_PERIOD_MS = TimeUnit.HOURS.toMillis(1);
+    private static final String TEMPORARY_PREFIX = "tmp-";
+
+    private final File directory;
+    private final int segmentCapacity;
+    private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>(); // Oldest first
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor();
+    private final Object maintenanceLock = new Object();
+    private Segment active;
+    private int nextSequence;
+    private boolean closed;
+
+    public ConnectionLog(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_CAPACITY);
+    }
+
+    // Opens the segments already in directory, appending to the last one if it wasn't sealed
+    public ConnectionLog(File directory, int segmentCapacity) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Unable to create " + directory);
+
+        this.directory = directory;
+        this.segmentCapacity = segmentCapacity;
+
+        final List<String> names = new ArrayList<>();
+        for (String file : directory.list()) {
+            if (file.startsWith(TEMPORARY_PREFIX)) new File(directory, file).delete(); // Compaction cut short
+            else if (file.endsWith(Segment.DATA_SUFFIX)) names.add(file.substring(0, file.length() - Segment.DATA_SUFFIX.length()));
+        }
+
+        final String[] sorted = names.toArray(new String[names.size()]);
+        Arrays.sort(sorted);
+
+        for (String name : sorted) {
+            try {
+                final Segment segment = Segment.open(directory, name);
+                if (active != null) active.seal();
+                active = segment.isSealed() ? null : segment;
+                segments.add(segment);
+                nextSequence = Math.max(nextSequence, Integer.parseInt(name) + 1);
+            }
+
+            catch (IOException | NumberFormatException ex) {
+                Log.e(TAG, "Skipping unreadable segment " + name, ex);
+            }
+        }
+
+        Log.d(TAG, "Opened " + segments.size() + " segments in " + directory);
+        scheduleMaintenance();
+    }
+
+    public synchronized void append(ConnectionRecord record) throws IOException {
+        if (closed) return;
+
+        if (active != null && (active.isFull() || record.startTime - active.getMinTime() > SEGMENT_MAX_AGE_MS)) {
+            active.seal();
+            active = null;
+            if (!maintenance.isShutdown()) scheduleMaintenance();
+        }
+
+        if (active == null) {
+            active = Segment.create(directory, String.format(Locale.US, "%08d", nextSequence++), segmentCapacity);
+            segments.add(active);
+        }
+
+        active.append(record);
+    }
+
+    // Connections overlapping [from, to), oldest segment first, at most limit of them.
+    // hostName null for any host, verdict negative for any verdict
+    public List<ConnectionRecord> query(String hostName, int verdict, long from, long to, int limit) {
+        final List<ConnectionRecord> records = new ArrayList<>();
+
+        for (Segment segment : segments) {
+            if (records.size() >= limit) break;
+            segment.query(hostName, verdict, from, to, records, limit);
+        }
+
+        return records;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    private void scheduleMaintenance() {
+        maintenance.submit(new Runnable() {
+            @Override
+            public void run() {
+                maintain(System.currentTimeMillis());
+            }
+        });
+    }
+
+    // Deletes sealed segments that ended before now - RETENTION_MS and compacts those that ended
+    // before now - COMPACT_AFTER_MS. Runs after every rotation, public so it can be run at a given time
+    public void maintain(long now) {
+        synchronized (maintenanceLock) {
+            for (Segment segment : segments) {
+                if (!segment.isSealed()) continue;
+
+                try {
+                    if (segment.getMaxTime() < now - RETENTION_MS) {
+                        segments.remove(segment);
+                        segment.delete();
+                        Log.d(TAG, "Deleted " + segment);
+                    }
+
+                    else if (!segment.isCompacted() && segment.getMaxTime() < now - COMPACT_AFTER_MS) {
+                        final Segment compacted = compact(segment);
+                        segments.set(segments.indexOf(segment), compacted); // Only appends happen meanwhile
+                        Log.d(TAG, "Compacted " + segment + " to " + compacted);
+                    }
+                }
+
+                catch (IOException ex) {
+                    Log.e(TAG, "Unable to maintain " + segment, ex);
+                }
+            }
+        }
+    }
+
+    // Writes the merged records to a temporary segment and renames it over the original, which
+    // queries keep reading until they see the replacement
+    private Segment compact(Segment segment) throws IOException {
+        final Map<String, ConnectionRecord> merged = new LinkedHashMap<>();
+
+        for (int i = 0; i < segment.getCount(); i++) {
+            final ConnectionRecord record = segment.read(i);
+            final String key = record.startTime / COMPACTED_PERIOD_MS + "|" + record.hostName + "|" + record.protocolNumber + "|"
+                    + record.destinationAddress + "|" + record.destinationPort + "|" + record.verdict;
+
+            final ConnectionRecord existing = merged.get(key);
+            if (existing == null) {
+                record.sourcePort = 0;
+                merged.put(key, record);
+                continue;
+            }
+
+            final long endTime = Math.max(existing.getEndTime(), record.getEndTime());
+            existing.startTime = Math.min(existing.startTime, record.startTime);
+            existing.duration = (int) (endTime - existing.startTime);
+            existing.bytes += record.bytes;
+            existing.packets += record.packets;
+        }
+
+        final String temporaryName = TEMPORARY_PREFIX + segment.name;
+        final Segment temporary = Segment.create(directory, temporaryName, merged.size());
+
+        try {
+            for (ConnectionRecord record : merged.values()) temporary.append(record);
+            temporary.markCompacted();
+            temporary.seal();
+        }
+
+        catch (IOException ex) {
+            temporary.delete();
+            throw ex;
+        }
+
+        if (!temporary.renameTo(segment.name)) throw new IOException("Unable to replace " + segment + " with " + temporaryName);
+        return Segment.open(directory, segment.name);
+    }
+
+    // Writes out the active segment, which is appended to again when the log is next opened, then
+    // waits for maintenance to finish. Appends are turned away first, so none can reach the executor
+    // after it's shut down
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            if (active != null) active.close();
+            active = null;
+        }
+
+        maintenance.shutdown();
+
+        try {
+            maintenance.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionLog{" + directory + ", segments=" + segments.size() + "}";
+    }
+}
@@ -0,0 +1,39 @@
+package com.kimbr.privacytools.internal.vpn.history;
+
+import com.kimbr.privacytools.internal.vpn.network.headers.IP4Header;
+
+// One connection as the history keeps it: the packets the device sent on a flow, from the first
+// to the last. Compacted records stand for all of an hour's connections to one destination.
+public class ConnectionRecord {
+
+    public long startTime; // System.currentTimeMillis() of the first packet
+    public int duration; // Milliseconds from the first packet to the last
+    public int protocolNumber;
+    public int verdict; // DomainIndex.NOT_LISTED, ALLOWED or BLOCKED
+    public int sourceAddress;
+    public int sourcePort; // 0 once compacted
+    public int destinationAddress;
+    public int destinationPort;
+    public long bytes; // Sent by the device, IP headers included
+    public int packets;
+    public String hostName; // Name the destination was resolved by, null if unknown
+
+    public long getEndTime() {
+        return startTime + duration;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("ConnectionRecord{");
+        builder.append("startTime=").append(startTime).append(", ");
+        builder.append("duration=").append(duration).append(", ");
+        builder.append("protocol=").append(protocolNumber).append(", ");
+        builder.append("verdict=").append(verdict).append(", ");
+        builder.append("source=").append(IP4Header.toHostAddress(sourceAddress)).append(':').append(sourcePort).append(", ");
+        builder.append("destination=").append(IP4Header.toHostAddress(destinationAddress)).append(':').append(destinationPort).append(", ");
+        builder.append("hostName=").append(hostName).append(", ");
+        builder.append("bytes=").append(bytes).append(", ");
+        builder.append("packets=").append(packets).append("}");
+        return builder.toString();
+    }
+}
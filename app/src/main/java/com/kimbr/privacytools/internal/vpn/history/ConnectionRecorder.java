@@ -0,0 +1,127 @@
+package com.kimbr.privacytools.internal.vpn.history;
+
+import android.util.Log;
+
+import com.kimbr.privacytools.internal.vpn.LoggingCallback;
+import com.kimbr.privacytools.internal.vpn.TrafficLog;
+import com.kimbr.privacytools.internal.vpn.network.FlowTable;
+import com.kimbr.privacytools.internal.vpn.network.headers.IP4Header;
+
+import java.io.IOException;
+import java.util.List;
+
+// Turns traffic log events into ConnectionLog records: the packets the device sends on a flow
+// are added up, and the flow is written out as one record once it's been idle IDLE_TIMEOUT_MS
+// (or on flush()). Set as the TrafficLog's recorder, so it runs on the drain thread and the
+// packet path only pays for publishing the event. Once closed it drops further events, such as
+// a batch from a drain that read the recorder just before it was unset.
+public class ConnectionRecorder implements LoggingCallback {
+
+    private static final String TAG = "ConnectionRecorder";
+    public static final long IDLE_TIMEOUT_MS = 60000;
+    private static final long SWEEP_INTERVAL_MS = 5000;
+    private static final int MAX_OPEN_FLOWS = 8192;
+    private static final int PROTOCOL_TCP = IP4Header.TransportProtocol.TCP.getNumber();
+    private static final int PROTOCOL_UDP = IP4Header.TransportProtocol.UDP.getNumber();
+
+    private final ConnectionLog log;
+    private final FlowTable<ConnectionRecord> tcpFlows = new FlowTable<>(MAX_OPEN_FLOWS);
+    private final FlowTable<ConnectionRecord> udpFlows = new FlowTable<>(MAX_OPEN_FLOWS);
+    private long lastSweep;
+    private boolean closed;
+
+    public ConnectionRecorder(ConnectionLog log) {
+        this.log = log;
+    }
+
+    @Override
+    public synchronized void log(TrafficLog.Batch events) {
+        if (closed) return;
+        long latest = lastSweep;
+
+        for (int i = 0; i < events.size(); i++) {
+            final int protocolNumber = events.getProtocolNumber(i);
+            final FlowTable<ConnectionRecord> flows = flowsFor(protocolNumber);
+            if (flows == null) continue;
+
+            final long timestamp = events.getTimestamp(i);
+            final long key = FlowTable.key(events.getDestinationAddress(i), events.getDestinationPort(i), events.getSourcePort(i));
+            ConnectionRecord record = flows.get(key);
+            boolean untracked = false;
+
+            if (record == null) {
+                record = new ConnectionRecord();
+                record.startTime = timestamp;
+                record.protocolNumber = protocolNumber;
+                record.sourceAddress = events.getSourceAddress(i);
+                record.sourcePort = events.getSourcePort(i);
+                record.destinationAddress = events.getDestinationAddress(i);
+                record.destinationPort = events.getDestinationPort(i);
+                untracked = !flows.put(key, record); // Too many open flows, written out per packet
+            }
+
+            record.duration = (int) Math.max(timestamp - record.startTime, record.duration);
+            record.verdict = events.getVerdict(i);
+            record.bytes += events.getLength(i);
+            record.packets++;
+            if (record.hostName == null) record.hostName = events.getHostName(i);
+
+            if (untracked) write(record);
+            latest = Math.max(latest, timestamp);
+        }
+
+        if (latest - lastSweep >= SWEEP_INTERVAL_MS) {
+            sweep(latest - IDLE_TIMEOUT_MS);
+            lastSweep = latest;
+        }
+    }
+
+    // Writes out every open flow and keeps recording
+    public synchronized void flush() {
+        for (ConnectionRecord record : tcpFlows.clear()) write(record);
+        for (ConnectionRecord record : udpFlows.clear()) write(record);
+    }
+
+    // Writes out every open flow and ignores events from then on, when the tunnel stops
+    public synchronized void close() {
+        flush();
+        closed = true;
+    }
+
+    public synchronized int getOpenFlowCount() {
+        return tcpFlows.size() + udpFlows.size();
+    }
+
+    // Writes out the flows that saw nothing after idleBefore
+    private void sweep(long idleBefore) {
+        sweep(tcpFlows, idleBefore);
+        sweep(udpFlows, idleBefore);
+    }
+
+    private void sweep(FlowTable<ConnectionRecord> flows, long idleBefore) {
+        final List<ConnectionRecord> records = flows.values();
+
+        for (ConnectionRecord record : records) {
+            if (record.getEndTime() >= idleBefore) continue;
+
+            flows.remove(FlowTable.key(record.destinationAddress, record.destinationPort, record.sourcePort), record);
+            write(record);
+        }
+    }
+
+    private FlowTable<ConnectionRecord> flowsFor(int protocolNumber) {
+        if (protocolNumber == PROTOCOL_TCP) return tcpFlows;
+        if (protocolNumber == PROTOCOL_UDP) return udpFlows;
+        return null;
+    }
+
+    private void write(ConnectionRecord record) {
+        try {
+            log.append(record);
+        }
+
+        catch (IOException ex) {
+            Log.e(TAG, "Unable to record " + record, ex);
+        }
+    }
+}
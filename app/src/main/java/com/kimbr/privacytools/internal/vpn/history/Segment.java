@@ -0,0 +1,425 @@
+package com.kimbr.privacytools.internal.vpn.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// One file of ConnectionLog: a header and fixed-size records in the order written, mapped whole,
+// so appending is a few puts into memory and the kernel writes them out. Host names go into a
+// side file once each, records refer to them by number. Which records each host has is kept in
+// memory while the segment is written and saved to an index file when it's sealed, so opening a
+// sealed segment later doesn't mean reading it through.
+// The count in the header is updated after each record is written, a record torn by a crash is
+// past it and not read back.
+class Segment {
+
+    static final String DATA_SUFFIX = ".seg";
+    static final String HOSTS_SUFFIX = ".hosts";
+    static final String INDEX_SUFFIX = ".idx";
+
+    static final int RECORD_SIZE = 48;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC = 0x434C4F47; // "CLOG"
+    private static final int INDEX_MAGIC = 0x434C4958; // "CLIX"
+    private static final int VERSION = 1;
+
+    private static final int FLAG_SEALED = 1;
+    private static final int FLAG_COMPACTED = 2;
+
+    // Header offsets
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int FLAGS_OFFSET = 16;
+    private static final int MIN_TIME_OFFSET = 24;
+    private static final int MAX_TIME_OFFSET = 32;
+
+    // Record offsets
+    private static final int START_TIME_OFFSET = 0;
+    private static final int DURATION_OFFSET = 8;
+    private static final int BYTES_OFFSET = 12;
+    private static final int PACKETS_OFFSET = 20;
+    private static final int HOST_OFFSET = 24;
+    private static final int SOURCE_ADDRESS_OFFSET = 28;
+    private static final int DESTINATION_ADDRESS_OFFSET = 32;
+    private static final int SOURCE_PORT_OFFSET = 36;
+    private static final int DESTINATION_PORT_OFFSET = 38;
+    private static final int PROTOCOL_OFFSET = 40;
+    private static final int VERDICT_OFFSET = 41;
+
+    private static final int NO_HOST = -1;
+
+    final File directory;
+    final String name;
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private int count;
+    private int flags;
+    private long minTime;
+    private long maxTime;
+
+    private final List<String> hostNames = new ArrayList<>();
+    private final Map<String, Integer> hostIds = new HashMap<>();
+    private DataOutputStream hostsOutput; // Null once sealed
+    private int[][] postings = new int[16][];
+    private int[] postingCounts = new int[16];
+
+    private Segment(File directory, String name, MappedByteBuffer buffer) {
+        this.directory = directory;
+        this.name = name;
+        this.buffer = buffer;
+        capacity = buffer.getInt(CAPACITY_OFFSET);
+        count = buffer.getInt(COUNT_OFFSET);
+        flags = buffer.getInt(FLAGS_OFFSET);
+        minTime = buffer.getLong(MIN_TIME_OFFSET);
+        maxTime = buffer.getLong(MAX_TIME_OFFSET);
+    }
+
+    static Segment create(File directory, String name, int capacity) throws IOException {
+        final MappedByteBuffer buffer = map(new File(directory, name + DATA_SUFFIX), HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putLong(MIN_TIME_OFFSET, Long.MAX_VALUE);
+        buffer.putLong(MAX_TIME_OFFSET, Long.MIN_VALUE);
+
+        final Segment segment = new Segment(directory, name, buffer);
+        segment.hostsOutput = openHostsOutput(new File(directory, name + HOSTS_SUFFIX));
+        return segment;
+    }
+
+    static Segment open(File directory, String name) throws IOException {
+        final File file = new File(directory, name + DATA_SUFFIX);
+        final MappedByteBuffer buffer = map(file, -1);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION)
+            throw new IOException("Not a connection log segment: " + file);
+        if (buffer.capacity() < HEADER_SIZE + (long) buffer.getInt(CAPACITY_OFFSET) * RECORD_SIZE)
+            throw new IOException("Truncated connection log segment: " + file);
+
+        final Segment segment = new Segment(directory, name, buffer);
+        final File hostsFile = new File(directory, name + HOSTS_SUFFIX);
+        segment.readHosts(hostsFile);
+
+        if (!segment.isSealed()) {
+            segment.rebuildIndex();
+            segment.hostsOutput = openHostsOutput(hostsFile);
+        }
+
+        else if (!segment.readIndex()) {
+            segment.rebuildIndex();
+            segment.writeIndex();
+        }
+
+        return segment;
+    }
+
+    // length -1 maps the file as it is
+    private static MappedByteBuffer map(File file, long length) throws IOException {
+        final RandomAccessFile access = new RandomAccessFile(file, "rw");
+
+        try {
+            final FileChannel channel = access.getChannel();
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, length < 0 ? channel.size() : length);
+        }
+
+        finally {
+            access.close(); // The mapping stays valid
+        }
+    }
+
+    private static DataOutputStream openHostsOutput(File file) throws FileNotFoundException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    // Returns false if the segment is full
+    synchronized boolean append(ConnectionRecord record) throws IOException {
+        if (count == capacity) return false;
+        if (hostsOutput == null) throw new IllegalStateException("Segment " + name + " is sealed");
+
+        final int host = hostId(record.hostName);
+        final int offset = HEADER_SIZE + count * RECORD_SIZE;
+        buffer.putLong(offset + START_TIME_OFFSET, record.startTime);
+        buffer.putInt(offset + DURATION_OFFSET, record.duration);
+        buffer.putLong(offset + BYTES_OFFSET, record.bytes);
+        buffer.putInt(offset + PACKETS_OFFSET, record.packets);
+        buffer.putInt(offset + HOST_OFFSET, host);
+        buffer.putInt(offset + SOURCE_ADDRESS_OFFSET, record.sourceAddress);
+        buffer.putInt(offset + DESTINATION_ADDRESS_OFFSET, record.destinationAddress);
+        buffer.putShort(offset + SOURCE_PORT_OFFSET, (short) record.sourcePort);
+        buffer.putShort(offset + DESTINATION_PORT_OFFSET, (short) record.destinationPort);
+        buffer.put(offset + PROTOCOL_OFFSET, (byte) record.protocolNumber);
+        buffer.put(offset + VERDICT_OFFSET, (byte) record.verdict);
+
+        if (host != NO_HOST) addPosting(host, count);
+        minTime = Math.min(minTime, record.startTime);
+        maxTime = Math.max(maxTime, record.getEndTime());
+        buffer.putLong(MIN_TIME_OFFSET, minTime);
+        buffer.putLong(MAX_TIME_OFFSET, maxTime);
+        buffer.putInt(COUNT_OFFSET, ++count);
+        return true;
+    }
+
+    // New names are written to the hosts file before any record refers to them
+    private int hostId(String hostName) throws IOException {
+        if (hostName == null) return NO_HOST;
+
+        final Integer id = hostIds.get(hostName);
+        if (id != null) return id;
+
+        hostsOutput.writeUTF(hostName);
+        hostsOutput.flush();
+        return addHost(hostName);
+    }
+
+    private int addHost(String hostName) {
+        final int id = hostNames.size();
+        hostNames.add(hostName);
+        hostIds.put(hostName, id);
+        return id;
+    }
+
+    private void addPosting(int host, int record) {
+        if (host >= postings.length) {
+            postings = Arrays.copyOf(postings, Math.max(postings.length * 2, host + 1));
+            postingCounts = Arrays.copyOf(postingCounts, postings.length);
+        }
+
+        int[] list = postings[host];
+        if (list == null) list = postings[host] = new int[4];
+        else if (postingCounts[host] == list.length) list = postings[host] = Arrays.copyOf(list, Math.max(list.length * 2, 4));
+        list[postingCounts[host]++] = record;
+    }
+
+    // Adds the records matching to out, in the order written, until out holds limit records.
+    // hostName null for any host (and those with none), verdict negative for any verdict
+    synchronized void query(String hostName, int verdict, long from, long to, List<ConnectionRecord> out, int limit) {
+        if (count == 0 || maxTime < from || minTime >= to) return;
+
+        if (hostName == null) {
+            for (int i = 0; i < count && out.size() < limit; i++) match(i, verdict, from, to, out);
+            return;
+        }
+
+        final Integer host = hostIds.get(hostName);
+        if (host == null || host >= postings.length) return;
+
+        final int[] list = postings[host];
+        for (int i = 0; i < postingCounts[host] && out.size() < limit; i++) match(list[i], verdict, from, to, out);
+    }
+
+    private void match(int record, int verdict, long from, long to, List<ConnectionRecord> out) {
+        final int offset = HEADER_SIZE + record * RECORD_SIZE;
+        if (verdict >= 0 && buffer.get(offset + VERDICT_OFFSET) != verdict) return;
+
+        final long startTime = buffer.getLong(offset + START_TIME_OFFSET);
+        if (startTime >= to || startTime + buffer.getInt(offset + DURATION_OFFSET) < from) return;
+
+        out.add(read(record));
+    }
+
+    synchronized ConnectionRecord read(int record) {
+        if (record < 0 || record >= count) throw new IndexOutOfBoundsException("Record " + record + " of " + count);
+
+        final int offset = HEADER_SIZE + record * RECORD_SIZE;
+        final ConnectionRecord result = new ConnectionRecord();
+        result.startTime = buffer.getLong(offset + START_TIME_OFFSET);
+        result.duration = buffer.getInt(offset + DURATION_OFFSET);
+        result.bytes = buffer.getLong(offset + BYTES_OFFSET);
+        result.packets = buffer.getInt(offset + PACKETS_OFFSET);
+        result.sourceAddress = buffer.getInt(offset + SOURCE_ADDRESS_OFFSET);
+        result.destinationAddress = buffer.getInt(offset + DESTINATION_ADDRESS_OFFSET);
+        result.sourcePort = buffer.getShort(offset + SOURCE_PORT_OFFSET) & 0xFFFF;
+        result.destinationPort = buffer.getShort(offset + DESTINATION_PORT_OFFSET) & 0xFFFF;
+        result.protocolNumber = buffer.get(offset + PROTOCOL_OFFSET) & 0xFF;
+        result.verdict = buffer.get(offset + VERDICT_OFFSET);
+
+        final int host = buffer.getInt(offset + HOST_OFFSET);
+        result.hostName = host >= 0 && host < hostNames.size() ? hostNames.get(host) : null;
+        return result;
+    }
+
+    // Ends writing: flushes the records to disk and saves the index next to them
+    synchronized void seal() throws IOException {
+        if (isSealed()) return;
+
+        setFlags(flags | FLAG_SEALED);
+        buffer.force();
+        hostsOutput.close();
+        hostsOutput = null;
+        writeIndex();
+    }
+
+    synchronized void markCompacted() {
+        setFlags(flags | FLAG_COMPACTED);
+    }
+
+    private void setFlags(int flags) {
+        this.flags = flags;
+        buffer.putInt(FLAGS_OFFSET, flags);
+    }
+
+    // Writes what's mapped to disk, for an unsealed segment that's going to be reopened
+    synchronized void force() throws IOException {
+        buffer.force();
+        if (hostsOutput != null) hostsOutput.flush();
+    }
+
+    synchronized void close() throws IOException {
+        buffer.force();
+
+        if (hostsOutput != null) {
+            hostsOutput.close();
+            hostsOutput = null;
+        }
+    }
+
+    synchronized boolean isSealed() {
+        return (flags & FLAG_SEALED) != 0;
+    }
+
+    synchronized boolean isCompacted() {
+        return (flags & FLAG_COMPACTED) != 0;
+    }
+
+    synchronized boolean isFull() {
+        return count == capacity;
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+
+    // Earliest start of the records in it, Long.MAX_VALUE while empty
+    synchronized long getMinTime() {
+        return minTime;
+    }
+
+    // Latest end of the records in it, Long.MIN_VALUE while empty
+    synchronized long getMaxTime() {
+        return maxTime;
+    }
+
+    // The records stay readable through this object until it's collected, even after the files are gone
+    boolean delete() {
+        boolean deleted = new File(directory, name + DATA_SUFFIX).delete();
+        deleted &= new File(directory, name + HOSTS_SUFFIX).delete();
+        new File(directory, name + INDEX_SUFFIX).delete(); // Rebuilt if missing anyway
+        return deleted;
+    }
+
+    // Renames the files to those of name in the same directory, replacing any there
+    boolean renameTo(String name) {
+        boolean renamed = true;
+        for (String suffix : new String[]{DATA_SUFFIX, HOSTS_SUFFIX, INDEX_SUFFIX})
+            renamed &= new File(directory, this.name + suffix).renameTo(new File(directory, name + suffix));
+        return renamed;
+    }
+
+    // A name cut short by a crash is dropped, a record can't refer to it yet
+    private void readHosts(File file) throws IOException {
+        if (!file.exists()) return;
+
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            while (true) addHost(input.readUTF());
+        }
+
+        catch (EOFException ex) {
+            // Done
+        }
+
+        finally {
+            input.close();
+        }
+    }
+
+    private void rebuildIndex() {
+        postings = new int[Math.max(hostNames.size(), 16)][];
+        postingCounts = new int[postings.length];
+
+        for (int i = 0; i < count; i++) {
+            final int host = buffer.getInt(HEADER_SIZE + i * RECORD_SIZE + HOST_OFFSET);
+            if (host >= 0 && host < hostNames.size()) addPosting(host, i);
+        }
+    }
+
+    // Index file: magic, record count, host count, then per host its record count and records
+    private void writeIndex() throws IOException {
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, name + INDEX_SUFFIX))));
+
+        try {
+            output.writeInt(INDEX_MAGIC);
+            output.writeInt(count);
+            output.writeInt(hostNames.size());
+
+            for (int host = 0; host < hostNames.size(); host++) {
+                final int size = host < postingCounts.length ? postingCounts[host] : 0;
+                output.writeInt(size);
+                for (int i = 0; i < size; i++) output.writeInt(postings[host][i]);
+            }
+        }
+
+        finally {
+            output.close();
+        }
+    }
+
+    // Returns false if the index file is missing or doesn't match the segment
+    private boolean readIndex() throws IOException {
+        final File file = new File(directory, name + INDEX_SUFFIX);
+        if (!file.exists()) return false;
+
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            if (input.readInt() != INDEX_MAGIC || input.readInt() != count || input.readInt() != hostNames.size()) return false;
+
+            final int[][] postings = new int[Math.max(hostNames.size(), 1)][];
+            final int[] postingCounts = new int[postings.length];
+
+            for (int host = 0; host < hostNames.size(); host++) {
+                final int size = input.readInt();
+                if (size < 0 || size > count) return false;
+
+                postings[host] = new int[size];
+                postingCounts[host] = size;
+                for (int i = 0; i < size; i++) postings[host][i] = input.readInt();
+            }
+
+            this.postings = postings;
+            this.postingCounts = postingCounts;
+            return true;
+        }
+
+        catch (EOFException ex) {
+            return false;
+        }
+
+        finally {
+            input.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Segment{" + name + ", count=" + count + "/" + capacity + ", flags=" + flags + "}";
+    }
+}
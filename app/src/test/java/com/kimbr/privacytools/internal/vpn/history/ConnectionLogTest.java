@@ -0,0 +1,203 @@
+package com.kimbr.privacytools.internal.vpn.history;
+
+import com.kimbr.privacytools.internal.vpn.DomainIndex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Appends connections to a ConnectionLog in a temporary directory and queries them back: queries must
+ * match on host, verdict and time across segments, records must survive closing and reopening the log,
+ * and maintenance must merge old connections without losing their totals and delete expired ones.
+ */
+public class ConnectionLogTest {
+
+    private static final int PROTOCOL_TCP = 6;
+    private static final int PROTOCOL_UDP = 17;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private File directory;
+    private long now;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("connections", "");
+        directory.delete();
+        directory.mkdir();
+        now = System.currentTimeMillis();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void queriesByHostVerdictAndTime() throws IOException {
+        final ConnectionLog log = new ConnectionLog(directory, 8);
+
+        try {
+            for (int i = 0; i < 20; i++) {
+                log.append(record(now - 30 * HOUR + i * HOUR, "tracker.example.com", i % 2 == 0 ? DomainIndex.BLOCKED : DomainIndex.ALLOWED, 40000 + i));
+                log.append(record(now - 30 * HOUR + i * HOUR, "cdn.example.com", DomainIndex.NOT_LISTED, 50000 + i));
+            }
+
+            log.append(record(now - HOUR, null, DomainIndex.NOT_LISTED, 60000));
+            assertEquals(6, log.getSegmentCount());
+
+            // Blocked connections to the tracker in the last 24h: hours 6, 8, .. 18 of the 20
+            final List<ConnectionRecord> blocked = log.query("tracker.example.com", DomainIndex.BLOCKED, now - DAY, now, 100);
+            assertEquals(7, blocked.size());
+
+            for (ConnectionRecord record : blocked) {
+                assertEquals("tracker.example.com", record.hostName);
+                assertEquals(DomainIndex.BLOCKED, record.verdict);
+                assertTrue(record.getEndTime() >= now - DAY);
+            }
+
+            assertEquals(40 + 1, log.query(null, -1, 0, Long.MAX_VALUE, 100).size());
+            assertEquals(20, log.query("cdn.example.com", -1, 0, Long.MAX_VALUE, 100).size());
+            assertEquals(5, log.query(null, -1, 0, Long.MAX_VALUE, 5).size());
+            assertEquals(0, log.query("unknown.example.com", -1, 0, Long.MAX_VALUE, 100).size());
+            assertEquals(0, log.query("cdn.example.com", DomainIndex.BLOCKED, 0, Long.MAX_VALUE, 100).size());
+
+            final ConnectionRecord unnamed = log.query(null, -1, now - HOUR, now, 100).get(0);
+            assertNull(unnamed.hostName);
+            assertEquals(60000, unnamed.sourcePort);
+        }
+
+        finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void recordsSurviveReopening() throws IOException {
+        ConnectionLog log = new ConnectionLog(directory, 4);
+        for (int i = 0; i < 10; i++) log.append(record(now - i, "host" + i % 3 + ".example.com", DomainIndex.ALLOWED, 40000 + i));
+        log.close();
+
+        // A lost index is rebuilt from the records
+        new File(directory, "00000000" + Segment.INDEX_SUFFIX).delete();
+
+        log = new ConnectionLog(directory, 4);
+
+        try {
+            assertEquals(3, log.getSegmentCount());
+            assertEquals(4, log.query("host0.example.com", DomainIndex.ALLOWED, 0, Long.MAX_VALUE, 100).size());
+
+            // The last segment wasn't full, it's appended to rather than a new one started
+            log.append(record(now, "host0.example.com", DomainIndex.BLOCKED, 50000));
+            assertEquals(3, log.getSegmentCount());
+
+            final ConnectionRecord record = log.query("host0.example.com", DomainIndex.BLOCKED, 0, Long.MAX_VALUE, 100).get(0);
+            assertEquals(now, record.startTime);
+            assertEquals(1500, record.duration);
+            assertEquals(PROTOCOL_TCP, record.protocolNumber);
+            assertEquals(0x0A010A01, record.sourceAddress);
+            assertEquals(50000, record.sourcePort);
+            assertEquals(0x5DB8D822, record.destinationAddress);
+            assertEquals(443, record.destinationPort);
+            assertEquals(1200, record.bytes);
+            assertEquals(3, record.packets);
+        }
+
+        finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void maintenanceCompactsAndExpires() throws IOException {
+        final ConnectionLog log = new ConnectionLog(directory, 64);
+
+        try {
+            // Segments rotate daily: one past retention, one old enough to compact, one current
+            for (int i = 0; i < 10; i++) log.append(record(now - 30 * DAY + i, "expired.example.com", DomainIndex.BLOCKED, 40000 + i));
+
+            final long hour = (now - 5 * DAY) / HOUR * HOUR;
+            for (int i = 0; i < 10; i++) log.append(record(hour + i * 60000, "old.example.com", DomainIndex.BLOCKED, 40000 + i));
+            for (int i = 0; i < 3; i++) log.append(udpRecord(hour + i * 60000, "old.example.com", 50000 + i));
+            log.append(record(hour + HOUR, "old.example.com", DomainIndex.BLOCKED, 41000));
+
+            for (int i = 0; i < 5; i++) log.append(record(now - HOUR + i, "new.example.com", DomainIndex.ALLOWED, 40000 + i));
+
+            // Also scheduled after each rotation, whichever runs first does the work
+            log.maintain(now);
+            assertEquals(2, log.getSegmentCount());
+            assertEquals(0, log.query("expired.example.com", -1, 0, Long.MAX_VALUE, 100).size());
+
+            // Merged per hour, protocol, destination and verdict, totals kept
+            final List<ConnectionRecord> old = log.query("old.example.com", -1, 0, Long.MAX_VALUE, 100);
+            assertEquals(3, old.size());
+
+            final ConnectionRecord merged = old.get(0);
+            assertEquals(PROTOCOL_TCP, merged.protocolNumber);
+            assertEquals(hour, merged.startTime);
+            assertEquals(9 * 60000 + 1500, merged.duration);
+            assertEquals(10 * 1200, merged.bytes);
+            assertEquals(10 * 3, merged.packets);
+            assertEquals(0, merged.sourcePort);
+            assertEquals(PROTOCOL_UDP, old.get(1).protocolNumber);
+            assertEquals(3, old.get(1).packets);
+            assertEquals(hour + HOUR, old.get(2).startTime);
+
+            assertEquals(5, log.query("new.example.com", DomainIndex.ALLOWED, 0, Long.MAX_VALUE, 100).size());
+
+            // Compacted segments are left alone from then on, and read back as such
+            log.maintain(now);
+            assertEquals(2, log.getSegmentCount());
+            assertEquals(3, log.query("old.example.com", DomainIndex.BLOCKED, 0, Long.MAX_VALUE, 100).size());
+        }
+
+        finally {
+            log.close();
+        }
+
+        final ConnectionLog reopened = new ConnectionLog(directory, 64);
+
+        try {
+            assertEquals(2, reopened.getSegmentCount());
+            assertEquals(3, reopened.query("old.example.com", -1, 0, Long.MAX_VALUE, 100).size());
+        }
+
+        finally {
+            reopened.close();
+        }
+    }
+
+    private static ConnectionRecord record(long startTime, String hostName, int verdict, int sourcePort) {
+        final ConnectionRecord record = new ConnectionRecord();
+        record.startTime = startTime;
+        record.duration = 1500;
+        record.protocolNumber = PROTOCOL_TCP;
+        record.verdict = verdict;
+        record.sourceAddress = 0x0A010A01;
+        record.sourcePort = sourcePort;
+        record.destinationAddress = 0x5DB8D822;
+        record.destinationPort = 443;
+        record.bytes = 1200;
+        record.packets = 3;
+        record.hostName = hostName;
+        return record;
+    }
+
+    private static ConnectionRecord udpRecord(long startTime, String hostName, int sourcePort) {
+        final ConnectionRecord record = record(startTime, hostName, DomainIndex.BLOCKED, sourcePort);
+        record.protocolNumber = PROTOCOL_UDP;
+        record.packets = 1;
+        return record;
+    }
+}
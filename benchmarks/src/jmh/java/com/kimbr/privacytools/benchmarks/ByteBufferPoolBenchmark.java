@@ -0,0 +1,111 @@
+package com.kimbr.privacytools.benchmarks;
+
+import com.kimbr.privacytools.internal.vpn.network.ByteBufferPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Buffer pool round trips, against allocating a direct buffer per packet. acquireRelease stays
+// in the thread's own cache; a burst of BURST outruns it into the shared queue, like a
+// window's worth of responses queued for the device writer; handoff acquires on one thread
+// and releases on another, the way every device packet crosses from VpnRunnable to an output
+// worker. leakSamplingInterval 128 is what the app runs with, 0 shows what tracking costs
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ByteBufferPoolBenchmark {
+
+    private static final int BURST = 64;
+
+    @Param({"0", "128"})
+    public int leakSamplingInterval;
+
+    // Between the handoff threads, bounded like the pipeline's queues
+    private final BlockingQueue<ByteBuffer> handoffQueue = new ArrayBlockingQueue<>(256);
+
+    @Setup
+    public void setUp() {
+        ByteBufferPool.clear();
+        ByteBufferPool.setLeakSamplingInterval(leakSamplingInterval);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (ByteBufferPool.Stats stats : ByteBufferPool.getStats()) System.out.println("Buffer pool: " + stats);
+    }
+
+    @State(Scope.Thread)
+    public static class Burst {
+
+        final ByteBuffer[] buffers = new ByteBuffer[BURST];
+    }
+
+    @Benchmark
+    public ByteBuffer acquireRelease() {
+        final ByteBuffer buffer = ByteBufferPool.acquire();
+        ByteBufferPool.release(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer acquireReleaseHeader() {
+        final ByteBuffer buffer = ByteBufferPool.acquire(ByteBufferPool.HEADER_BUFFER_SIZE);
+        ByteBufferPool.release(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public ByteBuffer acquireReleaseBurst(Burst burst) {
+        for (int i = 0; i < BURST; i++) burst.buffers[i] = ByteBufferPool.acquire();
+        for (int i = 0; i < BURST; i++) ByteBufferPool.release(burst.buffers[i]);
+        return burst.buffers[0];
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ByteBuffer acquireReleaseContended() {
+        return acquireRelease();
+    }
+
+    @Benchmark
+    public ByteBuffer allocateDirect() {
+        return ByteBuffer.allocateDirect(ByteBufferPool.BUFFER_SIZE);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean handoffAcquire() {
+        final ByteBuffer buffer = ByteBufferPool.acquire();
+        if (handoffQueue.offer(buffer)) return true;
+
+        ByteBufferPool.release(buffer); // Consumer behind, dropped like a full queue would
+        return false;
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public ByteBuffer handoffRelease() {
+        final ByteBuffer buffer = handoffQueue.poll();
+        if (buffer != null) ByteBufferPool.release(buffer);
+        return buffer;
+    }
+}
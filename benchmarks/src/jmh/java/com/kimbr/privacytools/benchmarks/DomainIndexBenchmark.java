@@ -0,0 +1,112 @@
+package com.kimbr.privacytools.benchmarks;
+
+import com.kimbr.privacytools.internal.vpn.DomainIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Filter lookups on a synthetic blocklist: the HashMap FilterMapHandler used to build against
+// DomainIndex. Queries are half listed names, half names that aren't on the list (what most
+// traffic looks like). The footprint of both is printed at setup. Query Strings cache their
+// hash after the first use, a host name from the packet path doesn't, so the HashMap has a
+// head start here
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class DomainIndexBenchmark {
+
+    private static final String[] TOP_LEVEL_DOMAINS = {"com", "net", "org", "io", "de", "co.uk", "info", "ru"};
+
+    @Param({"500000"})
+    public int domains;
+
+    private String[] queries;
+    private Map<String, Boolean> hashMap;
+    private DomainIndex index;
+
+    @Setup
+    public void setUp() {
+        // The map's footprint includes its key Strings, like the one FilterMapHandler built
+        final Runtime runtime = Runtime.getRuntime();
+        final long before = usedMemory(runtime);
+        final String[] names = generate(domains, 42);
+        hashMap = new HashMap<>();
+        for (String name : names) hashMap.put(name, false);
+        final long mapBytes = usedMemory(runtime) - before;
+
+        final DomainIndex.Builder builder = new DomainIndex.Builder();
+        for (String name : names) builder.add(name, false);
+        index = builder.build();
+
+        System.out.println();
+        System.out.println("HashMap: ~" + mapBytes / 1024 + " KB, DomainIndex: " + index.sizeInBytes() / 1024 + " KB for " + index.size() + " names");
+
+        final String[] misses = generate(4096, 7);
+        queries = new String[8192];
+        final Random random = new Random(1);
+        for (int i = 0; i < queries.length; i += 2) {
+            queries[i] = new String(names[random.nextInt(names.length)]); // Not the key itself, so equals() compares
+            queries[i + 1] = misses[i / 2];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next;
+
+        int next(int queries) {
+            next = (next + 1) & (queries - 1);
+            return next;
+        }
+    }
+
+    @Benchmark
+    public Boolean hashMap(Cursor cursor) {
+        return hashMap.get(queries[cursor.next(queries.length)]);
+    }
+
+    @Benchmark
+    public int domainIndex(Cursor cursor) {
+        return index.lookup(queries[cursor.next(queries.length)]);
+    }
+
+    // Ad and tracker hosts: one to three labels on a handful of registrable domains' suffixes
+    static String[] generate(int count, long seed) {
+        final Random random = new Random(seed);
+        final String[] names = new String[count];
+        final StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < count; i++) {
+            builder.setLength(0);
+
+            final int labels = 1 + random.nextInt(3);
+            for (int j = 0; j < labels; j++) {
+                final int length = 2 + random.nextInt(10);
+                for (int k = 0; k < length; k++) builder.append((char) ('a' + random.nextInt(26)));
+                builder.append('.');
+            }
+
+            builder.append(TOP_LEVEL_DOMAINS[random.nextInt(TOP_LEVEL_DOMAINS.length)]);
+            names[i] = builder.toString();
+        }
+
+        return names;
+    }
+
+    private static long usedMemory(Runtime runtime) {
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
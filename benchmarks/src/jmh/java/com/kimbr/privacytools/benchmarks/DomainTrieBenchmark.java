@@ -0,0 +1,121 @@
+package com.kimbr.privacytools.benchmarks;
+
+import com.kimbr.privacytools.internal.vpn.DomainTrie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Subdomain-aware rule lookups: DomainTrie against a HashMap of the same rules, queried for the
+// name and then each parent domain (what matching subdomains takes with a map), and against
+// the exact HashMap lookup VpnRunnable used to do, which misses every subdomain.
+// Rules are registrable domains, a few with a subdomain. Queries look like traffic: a third
+// subdomains of blocked domains (cdn.tracker.com, eu.api.tracker.com), a little under a third
+// the rules themselves, the rest names that aren't blocked at all, mostly under popular sites
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class DomainTrieBenchmark {
+
+    private static final String[] TOP_LEVEL_DOMAINS = {"com", "com", "com", "net", "org", "io", "de", "co.uk"};
+    private static final String[] SUBDOMAIN_LABELS = {"www", "cdn", "api", "eu", "us", "static", "img", "m", "ads", "t", "pixel", "sync"};
+
+    @Param({"1000", "50000"})
+    public int rules;
+
+    private String[] queries;
+    private Map<String, Boolean> hashMap;
+    private DomainTrie trie;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        final String[] domains = new String[rules];
+        hashMap = new HashMap<>();
+        final DomainTrie.Builder builder = new DomainTrie.Builder();
+
+        for (int i = 0; i < rules; i++) {
+            domains[i] = label(random) + "." + TOP_LEVEL_DOMAINS[random.nextInt(TOP_LEVEL_DOMAINS.length)];
+            final String rule = random.nextInt(10) == 0 ? subdomain(random) + "." + domains[i] : domains[i];
+
+            hashMap.put(rule, false);
+            builder.add(rule, false);
+        }
+
+        trie = builder.build();
+
+        // A few hundred popular sites make up most of the unblocked traffic
+        final String[] sites = new String[300];
+        for (int i = 0; i < sites.length; i++) sites[i] = label(random) + "." + TOP_LEVEL_DOMAINS[random.nextInt(TOP_LEVEL_DOMAINS.length)];
+
+        queries = new String[8192];
+        for (int i = 0; i < queries.length; i++) {
+            final int kind = random.nextInt(10);
+            final String domain = domains[random.nextInt(domains.length)];
+
+            if (kind < 3) queries[i] = subdomain(random) + "." + domain;
+            else if (kind < 4) queries[i] = subdomain(random) + "." + subdomain(random) + "." + domain;
+            else if (kind < 5) queries[i] = new String(domain);
+            else if (kind < 9) queries[i] = subdomain(random) + "." + sites[random.nextInt(sites.length)];
+            else queries[i] = label(random) + "." + TOP_LEVEL_DOMAINS[random.nextInt(TOP_LEVEL_DOMAINS.length)];
+        }
+
+        System.out.println();
+        System.out.println("DomainTrie: " + trie.sizeInBytes() / 1024 + " KB, " + trie.nodeCount() + " nodes for " + trie.size() + " rules");
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next;
+
+        int next(int queries) {
+            next = (next + 1) & (queries - 1);
+            return next;
+        }
+    }
+
+    @Benchmark
+    public boolean hashMapExact(Cursor cursor) {
+        return hashMap.containsKey(queries[cursor.next(queries.length)]);
+    }
+
+    @Benchmark
+    public boolean hashMapSuffixes(Cursor cursor) {
+        String name = queries[cursor.next(queries.length)];
+
+        while (true) {
+            if (hashMap.containsKey(name)) return true;
+
+            final int dot = name.indexOf('.');
+            if (dot < 0) return false;
+            name = name.substring(dot + 1);
+        }
+    }
+
+    @Benchmark
+    public int domainTrie(Cursor cursor) {
+        return trie.lookup(queries[cursor.next(queries.length)]);
+    }
+
+    private static String label(Random random) {
+        final StringBuilder builder = new StringBuilder();
+        final int length = 3 + random.nextInt(10);
+        for (int i = 0; i < length; i++) builder.append((char) ('a' + random.nextInt(26)));
+        return builder.toString();
+    }
+
+    private static String subdomain(Random random) {
+        return random.nextInt(4) == 0 ? label(random) : SUBDOMAIN_LABELS[random.nextInt(SUBDOMAIN_LABELS.length)];
+    }
+}
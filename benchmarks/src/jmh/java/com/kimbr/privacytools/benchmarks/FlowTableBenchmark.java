@@ -0,0 +1,107 @@
+package com.kimbr.privacytools.benchmarks;
+
+import com.kimbr.privacytools.internal.vpn.CustomLRUCache;
+import com.kimbr.privacytools.internal.vpn.network.FlowTable;
+import com.kimbr.privacytools.internal.vpn.network.headers.IP4Header;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Per-packet TCB lookup: the string-keyed LRU cache TCPOutput used (key built from the packet,
+// then a get under one global lock) against FlowTable's packed long keys. Every lookup hits
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class FlowTableBenchmark {
+
+    // 50 was the old cache's limit, beyond it the LRU cache is sized to fit so nothing is evicted
+    @Param({"50", "1000", "4000"})
+    public int flows;
+
+    private int[] addresses;
+    private int[] destinationPorts;
+    private int[] sourcePorts;
+
+    private CustomLRUCache<String, Object> lruCache;
+    private FlowTable<Object> flowTable;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        addresses = new int[flows];
+        destinationPorts = new int[flows];
+        sourcePorts = new int[flows];
+
+        lruCache = new CustomLRUCache<>(flows, new CustomLRUCache.CleanupCallback<String, Object>() {
+            @Override
+            public void cleanup(Map.Entry<String, Object> eldest) {
+            }
+        });
+        flowTable = new FlowTable<>(flows);
+
+        for (int i = 0; i < flows; i++) {
+            // A few hundred servers, mostly on 443, ephemeral source ports like Android hands out
+            addresses[i] = 0x68100000 | random.nextInt(300);
+            destinationPorts[i] = random.nextInt(10) == 0 ? 80 : 443;
+            sourcePorts[i] = 32768 + i;
+
+            final Object tcb = new Object();
+            lruCache.put(stringKey(i), tcb);
+            flowTable.put(FlowTable.key(addresses[i], destinationPorts[i], sourcePorts[i]), tcb);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next;
+
+        int next(int flows) {
+            next = (next + 7919) % flows; // Walks all flows in a scattered order
+            return next;
+        }
+    }
+
+    @Benchmark
+    public Object stringKeyedLruCache(Cursor cursor) {
+        final String key = stringKey(cursor.next(flows));
+
+        synchronized (lruCache) {
+            return lruCache.get(key);
+        }
+    }
+
+    @Benchmark
+    public Object flowTable(Cursor cursor) {
+        final int i = cursor.next(flows);
+        return flowTable.get(FlowTable.key(addresses[i], destinationPorts[i], sourcePorts[i]));
+    }
+
+    // Input and output threads of the pipeline, or several reactors, looking up at once
+    @Benchmark
+    @Threads(4)
+    public Object stringKeyedLruCacheContended(Cursor cursor) {
+        return stringKeyedLruCache(cursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object flowTableContended(Cursor cursor) {
+        return flowTable(cursor);
+    }
+
+    private String stringKey(int i) {
+        return IP4Header.toHostAddress(addresses[i]) + ":" + destinationPorts[i] + ":" + sourcePorts[i];
+    }
+}
@@ -0,0 +1,109 @@
+package com.kimbr.privacytools.benchmarks;
+
+import com.kimbr.privacytools.internal.vpn.DomainIndex;
+import com.kimbr.privacytools.internal.vpn.DomainTrie;
+import com.kimbr.privacytools.internal.vpn.HostFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The filter FilterMapHandler builds, looked up the way VpnRunnable and UDPOutput do: a hosts
+// list the size of common blocklists plus a few dozen user rules, either built on the heap or
+// mapped from its snapshot file (what the app actually runs on). Queries look like traffic:
+// mostly names under popular sites that aren't listed, a fifth listed names and some
+// subdomains of listed names, which only the rules can catch
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class HostFilterBenchmark {
+
+    private static final int QUERY_COUNT = 8192; // Power of two
+    private static final String[] SUBDOMAIN_LABELS = {"www", "cdn", "api", "static", "img", "m"};
+
+    @Param({"150000", "1000000"})
+    public int hosts;
+
+    @Param({"false", "true"})
+    public boolean mapped;
+
+    private HostFilter filter;
+    private String[] queries;
+    private File snapshotFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        final Random random = new Random(42);
+        final String[] names = DomainIndexBenchmark.generate(hosts, 42);
+
+        final DomainIndex.Builder hostsBuilder = new DomainIndex.Builder();
+        for (String name : names) hostsBuilder.add(name, false);
+        DomainIndex index = hostsBuilder.build();
+
+        if (mapped) {
+            snapshotFile = File.createTempFile("filter", ".idx");
+            index.writeTo(snapshotFile, 1);
+            index = DomainIndex.open(snapshotFile, 1);
+        }
+
+        // A blacklist of whole domains and a whitelist of listed names the user needs
+        final DomainTrie.Builder rulesBuilder = new DomainTrie.Builder();
+        for (int i = 0; i < 30; i++) rulesBuilder.add(names[random.nextInt(names.length)], false);
+        for (int i = 0; i < 10; i++) rulesBuilder.add(names[random.nextInt(names.length)], true);
+        filter = new HostFilter(index, rulesBuilder.build());
+
+        final String[] sites = DomainIndexBenchmark.generate(300, 7);
+        queries = new String[QUERY_COUNT];
+
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            final int kind = random.nextInt(100);
+            final String query;
+
+            if (kind < 20) query = names[random.nextInt(names.length)];
+            else if (kind < 30) query = subdomain(random) + "." + names[random.nextInt(names.length)];
+            else query = subdomain(random) + "." + sites[random.nextInt(sites.length)];
+
+            // Not the key itself, so equals() compares. HostnameTable hands out the same String
+            // for an address every time, so caching its hash after the first lookup is realistic
+            queries[i] = new String(query);
+        }
+
+        System.out.println();
+        System.out.println("Hosts: " + filter.hosts.size() + " names in " + filter.hosts.sizeInBytes() / 1024 + " KB, rules: " + filter.rules.size());
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (snapshotFile != null) snapshotFile.delete();
+    }
+
+    private static String subdomain(Random random) {
+        return SUBDOMAIN_LABELS[random.nextInt(SUBDOMAIN_LABELS.length)];
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next;
+
+        int next() {
+            return next++ & (QUERY_COUNT - 1);
+        }
+    }
+
+    @Benchmark
+    public int lookup(Cursor cursor) {
+        return filter.lookup(queries[cursor.next()]);
+    }
+}
@@ -0,0 +1,102 @@
+package com.kimbr.privacytools.benchmarks;
+
+import com.kimbr.privacytools.internal.vpn.network.FlowTable;
+import com.kimbr.privacytools.internal.vpn.network.Packet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Per-packet header work. parse: what VpnRunnable and the output workers do with every device
+// packet, wrap() and read the flow key, over PacketCorpus. The update benchmarks write a
+// response's headers and checksums the way TCPInput and UDPInput do, into a buffer already
+// holding payloadSize bytes of payload: from a flow's reference packet (checksums adjusted
+// incrementally, the payload summed once), and for TCP also from a plain device packet
+// (every checksum recomputed), the path responses took before reference packets
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class PacketBenchmark {
+
+    private static final int CORPUS_SIZE = 4096; // Power of two
+
+    private ByteBuffer[] corpus;
+    private int next;
+    private final Packet packet = new Packet();
+
+    @Setup
+    public void setUp() {
+        corpus = PacketCorpus.generate(CORPUS_SIZE, 42);
+    }
+
+    @State(Scope.Thread)
+    public static class Response {
+
+        @Param({"0", "512", "1400"})
+        public int payloadSize;
+
+        private Packet tcpReference;
+        private Packet tcpDevicePacket;
+        private Packet udpReference;
+        private ByteBuffer buffer;
+        private int sequenceNumber;
+
+        @Setup
+        public void setUp() {
+            for (ByteBuffer packetBuffer : PacketCorpus.generate(64, 42)) {
+                final Packet packet = new Packet().wrap(packetBuffer);
+                if (tcpDevicePacket == null && packet.isTcp() && packet.tcpHeader.isACK()) tcpDevicePacket = packet;
+                if (udpReference == null && packet.isUdp()) udpReference = packet.copyHeaders();
+            }
+
+            tcpReference = tcpDevicePacket.copyHeaders();
+            tcpReference.swapSourceAndDestination();
+            udpReference.swapSourceAndDestination();
+
+            // Pool sized, with the payload already read in after the headers
+            buffer = ByteBuffer.allocateDirect(16384);
+            final byte[] payload = new byte[payloadSize];
+            new Random(7).nextBytes(payload);
+            buffer.position(Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE);
+            buffer.put(payload);
+        }
+    }
+
+    @Benchmark
+    public long parse() {
+        packet.wrap(corpus[next++ & (CORPUS_SIZE - 1)]);
+
+        if (packet.isTcp()) return FlowTable.key(packet.ip4Header.getDestinationAddress(), packet.tcpHeader.getDestinationPort(), packet.tcpHeader.getSourcePort());
+        if (packet.isUdp()) return FlowTable.key(packet.ip4Header.getDestinationAddress(), packet.udpHeader.getDestinationPort(), packet.udpHeader.getSourcePort());
+        return 0;
+    }
+
+    @Benchmark
+    public ByteBuffer updateTcpBuffer(Response response) {
+        final int sequenceNumber = ++response.sequenceNumber;
+        response.tcpReference.updateTcpBuffer(response.buffer, (byte) 0x18, sequenceNumber, sequenceNumber * 31L, response.payloadSize);
+        return response.buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer updateTcpBufferRecomputed(Response response) {
+        final int sequenceNumber = ++response.sequenceNumber;
+        response.tcpDevicePacket.updateTcpBuffer(response.buffer, (byte) 0x18, sequenceNumber, sequenceNumber * 31L, response.payloadSize);
+        return response.buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer updateUdpBuffer(Response response) {
+        response.udpReference.updateUdpBuffer(response.buffer, response.payloadSize);
+        return response.buffer;
+    }
+}
@@ -0,0 +1,77 @@
+package com.kimbr.privacytools.benchmarks;
+
+import com.kimbr.privacytools.internal.vpn.network.Packet;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// Device-side packets in the proportions a phone sends them: mostly bare ACKs (half with the
+// timestamp option), requests of a few hundred bytes and the odd full-size upload segment on
+// TCP, SYNs with the usual options, QUIC datagrams and DNS queries on UDP. Spread over a few
+// hundred servers from ephemeral source ports. Seeded, so every run sees the same packets.
+final class PacketCorpus {
+
+    static final int DEVICE_ADDRESS = 0x0A010A01;
+    private static final int TCP = 6;
+    private static final int UDP = 17;
+
+    private PacketCorpus() {
+    }
+
+    // Each packet in a direct buffer of its own, flipped like VpnRunnable's read buffer
+    static ByteBuffer[] generate(int count, long seed) {
+        final Random random = new Random(seed);
+        final ByteBuffer[] packets = new ByteBuffer[count];
+
+        for (int i = 0; i < count; i++) {
+            final int destinationAddress = 0x68100000 | random.nextInt(300);
+            final int sourcePort = 32768 + random.nextInt(28232);
+            final int kind = random.nextInt(100);
+
+            if (kind < 40) packets[i] = tcp(random, destinationAddress, sourcePort, 0x10, random.nextBoolean() ? 12 : 0, 0);
+            else if (kind < 55) packets[i] = tcp(random, destinationAddress, sourcePort, 0x18, 12, 100 + random.nextInt(500));
+            else if (kind < 65) packets[i] = tcp(random, destinationAddress, sourcePort, 0x10, 12, 1448);
+            else if (kind < 70) packets[i] = tcp(random, destinationAddress, sourcePort, 0x02, 20, 0);
+            else if (kind < 88) packets[i] = udp(random, destinationAddress, sourcePort, 443, 1200 + random.nextInt(150));
+            else packets[i] = udp(random, 0x01010101, sourcePort, 53, 30 + random.nextInt(40));
+        }
+
+        return packets;
+    }
+
+    private static ByteBuffer tcp(Random random, int destinationAddress, int sourcePort, int flags, int optionsLength, int payloadSize) {
+        final int headerLength = Packet.TCP_HEADER_SIZE + optionsLength;
+        final ByteBuffer buffer = ip4(destinationAddress, TCP, headerLength + payloadSize);
+        buffer.putShort((short) sourcePort).putShort((short) (random.nextInt(10) == 0 ? 80 : 443));
+        buffer.putInt(random.nextInt()).putInt(flags == 0x02 ? 0 : random.nextInt());
+        buffer.put((byte) (headerLength << 2)).put((byte) flags);
+        buffer.putShort((short) 65535).putShort((short) 0).putShort((short) 0);
+
+        for (int i = 0; i < optionsLength; i++) buffer.put((byte) 1); // NOPs, as good as real options for parsing
+        return fill(random, buffer, payloadSize);
+    }
+
+    private static ByteBuffer udp(Random random, int destinationAddress, int sourcePort, int destinationPort, int payloadSize) {
+        final ByteBuffer buffer = ip4(destinationAddress, UDP, Packet.UDP_HEADER_SIZE + payloadSize);
+        buffer.putShort((short) sourcePort).putShort((short) destinationPort);
+        buffer.putShort((short) (Packet.UDP_HEADER_SIZE + payloadSize)).putShort((short) 0);
+        return fill(random, buffer, payloadSize);
+    }
+
+    private static ByteBuffer ip4(int destinationAddress, int protocol, int transportLength) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(Packet.IP4_HEADER_SIZE + transportLength);
+        buffer.put((byte) 0x45).put((byte) 0).putShort((short) (Packet.IP4_HEADER_SIZE + transportLength));
+        buffer.putInt(0x40000000); // Don't fragment
+        buffer.put((byte) 64).put((byte) protocol).putShort((short) 0);
+        buffer.putInt(DEVICE_ADDRESS).putInt(destinationAddress);
+        return buffer;
+    }
+
+    private static ByteBuffer fill(Random random, ByteBuffer buffer, int payloadSize) {
+        final byte[] payload = new byte[payloadSize];
+        random.nextBytes(payload);
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+}
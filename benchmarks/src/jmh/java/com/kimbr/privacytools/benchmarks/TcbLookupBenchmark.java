@@ -0,0 +1,98 @@
+package com.kimbr.privacytools.benchmarks;
+
+import com.kimbr.privacytools.internal.vpn.network.FlowTable;
+import com.kimbr.privacytools.internal.vpn.network.Packet;
+import com.kimbr.privacytools.internal.vpn.network.TCB;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// What TCPOutput does before anything else with a device TCP packet: parse it, build the flow
+// key and look the flow's TCB up in the global table, with connections open to the corpus's
+// destinations. A few packets in a hundred belong to flows that aren't open (new connections
+// and stragglers after a close), so miss. FlowTableBenchmark has the table on its own.
+// The table is static and never emptied, JMH forks a fresh JVM for every flows value
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class TcbLookupBenchmark {
+
+    private static final int CORPUS_SIZE = 8192; // Power of two
+    private static final int MISSES_PER_HUNDRED = 3;
+
+    @Param({"100", "1000", "4000"})
+    public int flows;
+
+    private ByteBuffer[] packets;
+
+    @Setup
+    public void setUp() {
+        TCB.setMaxConnections(flows);
+
+        // The corpus's TCP packets, each open flow's packets repeated through the array
+        final List<ByteBuffer> tcpPackets = new ArrayList<>();
+        final Packet packet = new Packet();
+
+        for (ByteBuffer buffer : PacketCorpus.generate(CORPUS_SIZE * 2, 42)) {
+            if (!packet.wrap(buffer).isTcp()) continue;
+
+            final long key = FlowTable.key(packet.ip4Header.getDestinationAddress(), packet.tcpHeader.getDestinationPort(), packet.tcpHeader.getSourcePort());
+            final boolean miss = tcpPackets.size() % 100 < MISSES_PER_HUNDRED;
+            boolean open = TCB.getTcb(key) != null;
+
+            if (!open && !miss && TCB.getConnectionCount() < flows) {
+                TCB.putTcb(new TCB(null, key, 0, 0, 0, 0, null, packet.copyHeaders()));
+                open = true;
+            }
+
+            if (open || miss) tcpPackets.add(buffer);
+        }
+
+        packets = new ByteBuffer[CORPUS_SIZE];
+        for (int i = 0; i < CORPUS_SIZE; i++) packets[i] = tcpPackets.get(i % tcpPackets.size());
+    }
+
+    // Wrapping moves a buffer's position, so each thread reads through its own views
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        final Packet packet = new Packet();
+        private ByteBuffer[] packets;
+        private int next;
+
+        @Setup
+        public void setUp(TcbLookupBenchmark benchmark) {
+            packets = new ByteBuffer[CORPUS_SIZE];
+            for (int i = 0; i < CORPUS_SIZE; i++) packets[i] = benchmark.packets[i].duplicate();
+        }
+
+        ByteBuffer next() {
+            return packets[next++ & (CORPUS_SIZE - 1)];
+        }
+    }
+
+    @Benchmark
+    public TCB lookup(Cursor cursor) {
+        final Packet packet = cursor.packet.wrap(cursor.next());
+        return TCB.getTcb(FlowTable.key(packet.ip4Header.getDestinationAddress(), packet.tcpHeader.getDestinationPort(), packet.tcpHeader.getSourcePort()));
+    }
+
+    // Output workers of the pipeline, or several reactors, looking up at once
+    @Benchmark
+    @Threads(4)
+    public TCB lookupContended(Cursor cursor) {
+        return lookup(cursor);
+    }
+}
@@ -1,6 +1,6 @@
 package com.kimbr.privacytools.internal;
 
-import android.util.Log;
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
 
 import java.io.Closeable;
 import java.io.IOException;
@@ -9,11 +9,13 @@ public class Utils {
 
     public static void closeResources(Closeable... closeables) {
         for (Closeable resource : closeables) {
+            if (resource == null) continue;
+
             try {
-                Log.d("Utils", "Closing resource: " + resource.toString());
+                EngineLog.d("Utils", "Closing resource: " + resource.toString());
                 resource.close();
             } catch (IOException ex) {
-                Log.e("Utils.closeResource()", "Unable to close.", ex);
+                EngineLog.e("Utils.closeResource()", "Unable to close.", ex);
             }
         }
     }
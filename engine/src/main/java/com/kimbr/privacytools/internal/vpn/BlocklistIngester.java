@@ -0,0 +1,146 @@
+package com.kimbr.privacytools.internal.vpn;
+
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Reads any number of blocklists at once on a fork-join pool: each source streams through its
+// own BlocklistParser into its own builder, and builders are merged pairwise as their halves of
+// the source list finish, deduplicating as they go. Sources are URLs, file: ones included.
+public class BlocklistIngester {
+
+    private static final String TAG = "BlocklistIngester";
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final int parallelism;
+
+    // Sources read at once at most, they mostly wait on the network
+    public BlocklistIngester(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    // Every name the sources list, blocked. Sources that can't be read are logged and left out,
+    // but if none can be it throws, so a dead connection doesn't empty the filter
+    public DomainIndex.Builder ingest(List<String> sources) throws IOException {
+        if (sources.isEmpty()) return new DomainIndex.Builder();
+
+        final ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(parallelism, sources.size())));
+        final AtomicInteger failures = new AtomicInteger();
+
+        try {
+            final DomainIndex.Builder hosts = pool.invoke(new IngestTask(sources, 0, sources.size(), failures));
+            if (failures.get() == sources.size()) throw new IOException("None of " + sources.size() + " blocklists could be read");
+
+            EngineLog.d(TAG, "Read " + hosts.count() + " names from " + (sources.size() - failures.get()) + " of " + sources.size() + " blocklists");
+            return hosts;
+        }
+
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    // Writes the names in one go, one per line (the plain format BlocklistParser reads back).
+    // Written aside and renamed over the old file, a reader never sees half a list
+    public static void writeHostsFile(File file, DomainIndex.Builder hosts) throws IOException {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        final OutputStream output = new BufferedOutputStream(new FileOutputStream(tempFile), WRITE_BUFFER_SIZE);
+
+        try {
+            hosts.writeNamesTo(output);
+        }
+
+        finally {
+            output.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    // Reads one source into builder
+    public static void parse(String source, DomainIndex.Builder builder) throws IOException {
+        final URLConnection connection = new URL(source).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+
+        final BlocklistParser parser = new BlocklistParser(builder, false);
+        final InputStream input = connection.getInputStream();
+
+        try {
+            parser.parse(input);
+        }
+
+        finally {
+            input.close();
+        }
+
+        if (parser.getSkippedLines() > 0) EngineLog.d(TAG, "Skipped " + parser.getSkippedLines() + " lines of " + source);
+    }
+
+    // Reads sources[from, to), halving the range until it's a single source
+    private static class IngestTask extends RecursiveTask<DomainIndex.Builder> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> sources;
+        private final int from;
+        private final int to;
+        private final AtomicInteger failures;
+
+        IngestTask(List<String> sources, int from, int to, AtomicInteger failures) {
+            this.sources = sources;
+            this.from = from;
+            this.to = to;
+            this.failures = failures;
+        }
+
+        @Override
+        protected DomainIndex.Builder compute() {
+            if (to - from == 1) {
+                final DomainIndex.Builder builder = new DomainIndex.Builder();
+
+                try {
+                    parse(sources.get(from), builder);
+                    return builder;
+                }
+
+                catch (IOException | RuntimeException ex) {
+                    EngineLog.e(TAG, "Unable to read blocklist " + sources.get(from), ex);
+                    failures.incrementAndGet();
+                    return new DomainIndex.Builder(); // Nothing half read
+                }
+            }
+
+            final int middle = (from + to) >>> 1;
+            final IngestTask left = new IngestTask(sources, from, middle, failures);
+            left.fork();
+            final DomainIndex.Builder right = new IngestTask(sources, middle, to, failures).compute();
+            final DomainIndex.Builder merged = left.join();
+
+            // Copy the smaller into the larger
+            if (merged.count() >= right.count()) {
+                merged.addAll(right);
+                return merged;
+            }
+
+            right.addAll(merged);
+            return right;
+        }
+    }
+}
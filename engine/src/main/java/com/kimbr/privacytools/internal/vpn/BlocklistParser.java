@@ -0,0 +1,199 @@
+package com.kimbr.privacytools.internal.vpn;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reads a blocklist straight from its bytes into a DomainIndex.Builder, with no String or regex
+// per line. Understands the usual formats, a line at a time:
+//  hosts:   "0.0.0.0 ads.example.com", any address and any number of names after it
+//  plain:   "ads.example.com", a name alone
+//  dnsmasq: "address=/ads.example.com/0.0.0.0", "server=/ads.example.com/" or "local=/..../"
+// Comments start with # anywhere or ! at the start of a line. Names without a dot (localhost,
+// broadcasthost) and lines in any other format (adblock rules, wildcards) are skipped.
+// Not thread safe, a parser serves one stream at a time.
+public class BlocklistParser {
+
+    private static final int BUFFER_SIZE = 64 * 1024; // Lines longer than this are skipped
+
+    private static final byte[] DNSMASQ_ADDRESS = {'a', 'd', 'd', 'r', 'e', 's', 's', '='};
+    private static final byte[] DNSMASQ_SERVER = {'s', 'e', 'r', 'v', 'e', 'r', '='};
+    private static final byte[] DNSMASQ_LOCAL = {'l', 'o', 'c', 'a', 'l', '='};
+    private static final byte[] LOCALHOST = {'l', 'o', 'c', 'a', 'l', 'h', 'o', 's', 't', '.', 'l', 'o', 'c', 'a', 'l', 'd', 'o', 'm', 'a', 'i', 'n'};
+
+    private final DomainIndex.Builder builder;
+    private final boolean allowed;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int skippedLines;
+
+    // Names read go to builder, as allowed or blocked
+    public BlocklistParser(DomainIndex.Builder builder, boolean allowed) {
+        this.builder = builder;
+        this.allowed = allowed;
+    }
+
+    // Reads input to its end, doesn't close it
+    public void parse(InputStream input) throws IOException {
+        int length = 0; // The unfinished line carried over from the last read, then what was read
+        int scanned = 0;
+        boolean overlong = false;
+        int read;
+
+        while ((read = input.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            int lineStart = 0;
+
+            for (int i = scanned; i < length; i++) {
+                if (buffer[i] != '\n') continue;
+
+                if (overlong) overlong = false;
+                else parseLine(lineStart, i);
+                lineStart = i + 1;
+            }
+
+            if (lineStart == 0 && length == buffer.length) {
+                // No end of line in sight, drop what there is and the rest of the line after it
+                if (!overlong) skippedLines++;
+                overlong = true;
+                length = 0;
+            }
+
+            else {
+                System.arraycopy(buffer, lineStart, buffer, 0, length - lineStart);
+                length -= lineStart;
+            }
+
+            scanned = length;
+        }
+
+        if (length > 0 && !overlong) parseLine(0, length);
+    }
+
+    // Lines in a format this doesn't understand, or too long to read
+    public int getSkippedLines() {
+        return skippedLines;
+    }
+
+    private void parseLine(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == '#') {
+                end = i;
+                break;
+            }
+        }
+
+        start = skipSpace(start, end);
+        while (end > start && isSpace(buffer[end - 1])) end--; // Also drops the \r of \r\n
+        if (start == end || buffer[start] == '!') return;
+
+        if (startsWith(start, end, DNSMASQ_ADDRESS) || startsWith(start, end, DNSMASQ_SERVER) || startsWith(start, end, DNSMASQ_LOCAL)) {
+            parseDnsmasqLine(start, end);
+            return;
+        }
+
+        int tokenEnd = tokenEnd(start, end);
+
+        if (isAddress(start, tokenEnd)) {
+            for (start = skipSpace(tokenEnd, end); start < end; start = skipSpace(tokenEnd, end)) {
+                tokenEnd = tokenEnd(start, end);
+                addName(start, tokenEnd);
+            }
+        }
+
+        else if (tokenEnd == end) {
+            if (!addName(start, end)) skippedLines++;
+        }
+
+        else skippedLines++;
+    }
+
+    // option=/name/.../name/target, server= and local= only block with an empty target
+    private void parseDnsmasqLine(int start, int end) {
+        int nameStart = start;
+        while (buffer[nameStart] != '=') nameStart++;
+        nameStart++;
+
+        int lastSlash = end - 1;
+        while (lastSlash > nameStart && buffer[lastSlash] != '/') lastSlash--;
+
+        if (buffer[nameStart] != '/' || lastSlash == nameStart || (buffer[start] != 'a' && lastSlash != end - 1)) {
+            skippedLines++;
+            return;
+        }
+
+        nameStart++;
+        for (int i = nameStart; i <= lastSlash; i++) {
+            if (buffer[i] != '/') continue;
+
+            addName(nameStart, i);
+            nameStart = i + 1;
+        }
+    }
+
+    private boolean addName(int start, int end) {
+        if (end > start && buffer[end - 1] == '.') end--;
+        if (start == end || buffer[start] == '.') return false;
+
+        boolean dotted = false;
+        for (int i = start; i < end; i++) {
+            final int c = buffer[i];
+            if (c == '.') {
+                if (buffer[i - 1] == '.') return false;
+                dotted = true;
+            }
+
+            else if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_')) return false;
+        }
+
+        // Local names, and addresses listed where a name should be
+        if (!dotted || isAddress(start, end) || equalsIgnoreCase(start, end, LOCALHOST)) return false;
+
+        return builder.add(buffer, start, end - start, allowed);
+    }
+
+    // IPv4 (digits and dots only) or IPv6 (hex digits, dots and at least one colon)
+    private boolean isAddress(int start, int end) {
+        boolean digitsOnly = true;
+        boolean colon = false;
+
+        for (int i = start; i < end; i++) {
+            final int c = buffer[i];
+            if (c == ':') colon = true;
+            else if (c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F') digitsOnly = false;
+            else if (!(c >= '0' && c <= '9' || c == '.')) return false;
+        }
+
+        return end > start && (colon || digitsOnly);
+    }
+
+    private boolean startsWith(int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) return false;
+
+        for (int i = 0; i < prefix.length; i++)
+            if (buffer[start + i] != prefix[i]) return false;
+
+        return true;
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, byte[] name) {
+        if (end - start != name.length) return false;
+
+        for (int i = 0; i < name.length; i++)
+            if ((buffer[start + i] | 0x20) != name[i]) return false;
+
+        return true;
+    }
+
+    private int skipSpace(int start, int end) {
+        while (start < end && isSpace(buffer[start])) start++;
+        return start;
+    }
+
+    private int tokenEnd(int start, int end) {
+        while (start < end && !isSpace(buffer[start])) start++;
+        return start;
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+}
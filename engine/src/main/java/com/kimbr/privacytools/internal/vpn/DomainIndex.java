@@ -0,0 +1,406 @@
+package com.kimbr.privacytools.internal.vpn;
+
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Immutable set of domain names, each either allowed or blocked. The names are lowercased and
+// packed into one byte buffer, each behind a length byte, and found through an open addressing
+// table of their offsets, hashing and comparing straight from the query's chars: a lookup
+// allocates nothing and a name costs its length plus about 9 bytes, instead of a String, a
+// boxed map entry and a table slot. The top bit of a name's slot says whether it's allowed.
+// An index can be saved as a snapshot file and mapped back in as is, see writeTo() and open().
+public class DomainIndex {
+
+    private static final String TAG = "DomainIndex";
+
+    public static final int NOT_LISTED = 0;
+    public static final int ALLOWED = 1;
+    public static final int BLOCKED = 2;
+
+    public static final int MAX_NAME_LENGTH = 255; // DNS allows 253
+
+    private static final int ALLOWED_FLAG = 0x80000000;
+    private static final int OFFSET_MASK = 0x7FFFFFFF;
+
+    // Snapshot layout, little endian: magic, format version, source stamp (long), size, slot count,
+    // names length, CRC32 of the rest. Then the slots and the names, exactly as held in memory
+    private static final int SNAPSHOT_MAGIC = 0x58444950; // "PIDX"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER_SIZE = 32;
+
+    public static final DomainIndex EMPTY = new Builder().build();
+
+    private final ByteBuffer names;
+    // Offset of a name's length byte plus one, 0 for an empty slot. Power of two sized, at most half full
+    private final IntBuffer slots;
+    private final int size;
+
+    DomainIndex(ByteBuffer names, IntBuffer slots, int size) {
+        this.names = names;
+        this.slots = slots;
+        this.size = size;
+    }
+
+    // NOT_LISTED, ALLOWED or BLOCKED, case-insensitive and ignoring a trailing dot
+    public int lookup(CharSequence host) {
+        int length = host.length();
+        if (length > 0 && host.charAt(length - 1) == '.') length--;
+        if (length == 0 || length > MAX_NAME_LENGTH) return NOT_LISTED;
+
+        int hash = 0;
+        for (int i = 0; i < length; i++) hash = 31 * hash + toLowerCase(host.charAt(i));
+
+        final int mask = slots.limit() - 1;
+        for (int i = mix(hash) & mask; ; i = (i + 1) & mask) {
+            final int slot = slots.get(i);
+            if (slot == 0) return NOT_LISTED;
+
+            if (matches((slot & OFFSET_MASK) - 1, host, length))
+                return (slot & ALLOWED_FLAG) != 0 ? ALLOWED : BLOCKED;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // What the index itself takes up, names and table
+    public long sizeInBytes() {
+        return names.capacity() + 4L * slots.capacity();
+    }
+
+    // Saves the index for open(), replacing file atomically. sourceStamp identifies what the index
+    // was built from, open() only accepts the snapshot for the same stamp
+    public void writeTo(File file, long sourceStamp) throws IOException {
+        final ByteBuffer slotBytes = ByteBuffer.allocate(4 * slots.limit()).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < slots.limit(); i++) slotBytes.putInt(slots.get(i));
+        slotBytes.flip();
+
+        final ByteBuffer nameBytes = names.duplicate();
+        nameBytes.clear();
+
+        final CRC32 crc = new CRC32();
+        update(crc, slotBytes.duplicate());
+        update(crc, nameBytes.duplicate());
+
+        final ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(SNAPSHOT_MAGIC);
+        header.putInt(SNAPSHOT_VERSION);
+        header.putLong(sourceStamp);
+        header.putInt(size);
+        header.putInt(slots.limit());
+        header.putInt(nameBytes.remaining());
+        header.putInt((int) crc.getValue());
+        header.flip();
+
+        // Written aside and renamed over the old one, a reader never sees half a snapshot
+        final File tempFile = new File(file.getPath() + ".tmp");
+        final FileOutputStream output = new FileOutputStream(tempFile);
+
+        try {
+            final FileChannel channel = output.getChannel();
+            final ByteBuffer[] buffers = {header, slotBytes, nameBytes};
+            while (header.hasRemaining() || slotBytes.hasRemaining() || nameBytes.hasRemaining()) channel.write(buffers);
+            channel.force(true);
+        }
+
+        finally {
+            output.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    // Maps a snapshot saved by writeTo(). Lookups run against the mapped pages, so opening costs
+    // the same for any list size (apart from one checksum pass) and the index stays off the heap.
+    // Returns null if the snapshot is for another sourceStamp or format version, or is corrupt.
+    public static DomainIndex open(File file, long sourceStamp) throws IOException {
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        final ByteBuffer snapshot;
+
+        try {
+            snapshot = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        finally {
+            input.close(); // The mapping stays valid
+        }
+
+        if (snapshot.capacity() < SNAPSHOT_HEADER_SIZE || snapshot.getInt(0) != SNAPSHOT_MAGIC) {
+            EngineLog.w(TAG, "Not a snapshot: " + file);
+            return null;
+        }
+
+        if (snapshot.getInt(4) != SNAPSHOT_VERSION || snapshot.getLong(8) != sourceStamp) {
+            EngineLog.d(TAG, "Snapshot is out of date: " + file);
+            return null;
+        }
+
+        final int size = snapshot.getInt(16);
+        final int slotCount = snapshot.getInt(20);
+        final int namesLength = snapshot.getInt(24);
+
+        if (slotCount <= 0 || Integer.bitCount(slotCount) != 1 || namesLength < 0 || size < 0 || size > slotCount / 2
+                || SNAPSHOT_HEADER_SIZE + 4L * slotCount + namesLength != snapshot.capacity()) {
+            EngineLog.w(TAG, "Snapshot has a broken header: " + file);
+            return null;
+        }
+
+        final ByteBuffer slotBytes = slice(snapshot, SNAPSHOT_HEADER_SIZE, 4 * slotCount);
+        final ByteBuffer nameBytes = slice(snapshot, SNAPSHOT_HEADER_SIZE + 4 * slotCount, namesLength);
+
+        final CRC32 crc = new CRC32();
+        update(crc, slotBytes.duplicate());
+        update(crc, nameBytes.duplicate());
+
+        if ((int) crc.getValue() != snapshot.getInt(28)) {
+            EngineLog.w(TAG, "Snapshot is corrupt: " + file);
+            return null;
+        }
+
+        return new DomainIndex(nameBytes, slotBytes.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(), size);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+
+    // CRC32.update(ByteBuffer) needs API 26
+    private static void update(CRC32 crc, ByteBuffer buffer) {
+        final byte[] chunk = new byte[8192];
+
+        while (buffer.hasRemaining()) {
+            final int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+    }
+
+    private boolean matches(int offset, CharSequence host, int length) {
+        if ((names.get(offset) & 0xFF) != length) return false;
+
+        for (int i = 0; i < length; i++)
+            if (names.get(offset + 1 + i) != toLowerCase(host.charAt(i))) return false;
+
+        return true;
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    // MurmurHash3 finalizer, 31 * hash + c alone clusters similar names into neighbouring slots
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static int tableCapacity(int size) {
+        return Math.max(Integer.highestOneBit(Math.max(size, 1)) * 4, 2);
+    }
+
+    // Collects names from any number of lists, dropping duplicates as they come in. A name added
+    // both allowed and blocked ends up allowed, whichever list it came from and in whatever order.
+    // Names are expected as ASCII (IDNs in punycode), anything else is rejected.
+    public static class Builder {
+
+        private byte[] bytes = new byte[64 * 1024];
+        private int byteCount;
+        // Start of each distinct name in bytes, with ALLOWED_FLAG, its end and its hash
+        private int[] starts = new int[1024];
+        private int[] ends = new int[1024];
+        private int[] hashes = new int[1024];
+        private int count;
+        // Entry number plus one, 0 for an empty slot. Power of two sized, at most half full
+        private int[] table = new int[tableCapacity(1024)];
+
+        // Returns false if name isn't a plausible domain name
+        public boolean add(CharSequence name, boolean allowed) {
+            int start = 0;
+            int end = name.length();
+            while (start < end && name.charAt(start) <= ' ') start++;
+            while (end > start && name.charAt(end - 1) <= ' ') end--;
+            if (end > start && name.charAt(end - 1) == '.') end--;
+            if (start == end || end - start > MAX_NAME_LENGTH) return false;
+
+            ensureBytes(end - start);
+            final int nameStart = byteCount;
+
+            for (int i = start; i < end; i++) {
+                final char c = name.charAt(i);
+                if (c <= ' ' || c >= 0x7F) {
+                    byteCount = nameStart;
+                    return false;
+                }
+
+                bytes[byteCount++] = (byte) toLowerCase(c);
+            }
+
+            addEntry(nameStart, allowed);
+            return true;
+        }
+
+        // Same as add(CharSequence, boolean) for a name already in a byte array
+        public boolean add(byte[] source, int offset, int length, boolean allowed) {
+            int start = offset;
+            int end = offset + length;
+            while (start < end && (source[start] & 0xFF) <= ' ') start++;
+            while (end > start && (source[end - 1] & 0xFF) <= ' ') end--;
+            if (end > start && source[end - 1] == '.') end--;
+            if (start == end || end - start > MAX_NAME_LENGTH) return false;
+
+            ensureBytes(end - start);
+            final int nameStart = byteCount;
+
+            for (int i = start; i < end; i++) {
+                final int c = source[i] & 0xFF;
+                if (c <= ' ' || c >= 0x7F) {
+                    byteCount = nameStart;
+                    return false;
+                }
+
+                bytes[byteCount++] = (byte) toLowerCase(c);
+            }
+
+            addEntry(nameStart, allowed);
+            return true;
+        }
+
+        // Adds every name other has, for merging lists collected on separate threads
+        public void addAll(Builder other) {
+            for (int entry = 0; entry < other.count; entry++) {
+                final int start = other.starts[entry] & OFFSET_MASK;
+                final int length = other.ends[entry] - start;
+
+                ensureBytes(length);
+                final int nameStart = byteCount;
+                System.arraycopy(other.bytes, start, bytes, nameStart, length);
+                byteCount += length;
+
+                addEntry(nameStart, other.hashes[entry], (other.starts[entry] & ALLOWED_FLAG) != 0);
+            }
+        }
+
+        // Distinct names added so far
+        public int count() {
+            return count;
+        }
+
+        // The names as a plain list, one per line. Whether they're allowed isn't written
+        public void writeNamesTo(OutputStream output) throws IOException {
+            for (int entry = 0; entry < count; entry++) {
+                final int start = starts[entry] & OFFSET_MASK;
+                output.write(bytes, start, ends[entry] - start);
+                output.write('\n');
+            }
+        }
+
+        public DomainIndex build() {
+            final byte[] names = new byte[byteCount + count];
+            final int[] slots = new int[tableCapacity(count)];
+            final int mask = slots.length - 1;
+            int position = 0;
+
+            for (int entry = 0; entry < count; entry++) {
+                final int start = starts[entry] & OFFSET_MASK;
+                final int length = ends[entry] - start;
+
+                names[position] = (byte) length;
+                System.arraycopy(bytes, start, names, position + 1, length);
+
+                int i = mix(hashes[entry]) & mask;
+                while (slots[i] != 0) i = (i + 1) & mask;
+                slots[i] = (position + 1) | (starts[entry] & ALLOWED_FLAG);
+                position += 1 + length;
+            }
+
+            return new DomainIndex(ByteBuffer.wrap(names).asReadOnlyBuffer(), IntBuffer.wrap(slots).asReadOnlyBuffer(), count);
+        }
+
+        // The name just written at bytes[nameStart, byteCount)
+        private void addEntry(int nameStart, boolean allowed) {
+            int hash = 0;
+            for (int i = nameStart; i < byteCount; i++) hash = 31 * hash + bytes[i];
+            addEntry(nameStart, hash, allowed);
+        }
+
+        private void addEntry(int nameStart, int hash, boolean allowed) {
+            final int length = byteCount - nameStart;
+            final int mask = table.length - 1;
+            int i = mix(hash) & mask;
+
+            for (; table[i] != 0; i = (i + 1) & mask) {
+                final int entry = table[i] - 1;
+                if (hashes[entry] != hash || !equal(entry, nameStart, length)) continue;
+
+                // Already added, allowed wins
+                if (allowed) starts[entry] |= ALLOWED_FLAG;
+                byteCount = nameStart;
+                return;
+            }
+
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                hashes = Arrays.copyOf(hashes, count * 2);
+            }
+
+            starts[count] = allowed ? nameStart | ALLOWED_FLAG : nameStart;
+            ends[count] = byteCount;
+            hashes[count] = hash;
+            table[i] = ++count;
+
+            if (tableCapacity(count) > table.length) rehash();
+        }
+
+        private boolean equal(int entry, int start, int length) {
+            final int entryStart = starts[entry] & OFFSET_MASK;
+            if (ends[entry] - entryStart != length) return false;
+
+            for (int i = 0; i < length; i++)
+                if (bytes[entryStart + i] != bytes[start + i]) return false;
+
+            return true;
+        }
+
+        private void rehash() {
+            table = new int[tableCapacity(count)];
+            final int mask = table.length - 1;
+
+            for (int entry = 0; entry < count; entry++) {
+                int i = mix(hashes[entry]) & mask;
+                while (table[i] != 0) i = (i + 1) & mask;
+                table[i] = entry + 1;
+            }
+        }
+
+        private void ensureBytes(int length) {
+            if (byteCount + length <= bytes.length) return;
+
+            // Names plus their length bytes have to stay addressable by the slots
+            if ((long) byteCount + length + count + 1 > OFFSET_MASK) throw new IllegalStateException("Too many names");
+            bytes = Arrays.copyOf(bytes, (int) Math.min(Math.max(bytes.length * 2L, (long) byteCount + length), OFFSET_MASK));
+        }
+    }
+}
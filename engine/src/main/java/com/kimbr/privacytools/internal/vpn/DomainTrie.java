@@ -0,0 +1,244 @@
+package com.kimbr.privacytools.internal.vpn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Immutable domain rules that cover subdomains, as a trie of labels from the right
+// (com -> example -> tracker). A rule "tracker.example.com" matches that name and everything
+// under it, "*.tracker.example.com" only what's under it. Allowing rules win over blocking ones
+// wherever they sit in the trie, so "cdn.example.com" can be allowed under a blocked
+// "example.com". An allow rule covers its whole subtree: blocking "cdn.example.com" under an
+// allowed "example.com" has no effect.
+// Edges are kept in one open addressing table keyed by parent node and label hash, rather than
+// per node child lists, since a top level node like "com" ends up with most nodes as children.
+// A lookup hashes each label of the query while scanning for its dot and allocates nothing.
+public class DomainTrie {
+
+    // Which names a node's rules cover
+    private static final int ALLOW_NAME = 1;
+    private static final int ALLOW_SUBDOMAINS = 2;
+    private static final int BLOCK_NAME = 4;
+    private static final int BLOCK_SUBDOMAINS = 8;
+
+    public static final DomainTrie EMPTY = new Builder().build();
+
+    // Labels packed behind a length byte each, a node's label starts at labelStarts[node]
+    private final byte[] labels;
+    private final int[] labelStarts;
+    private final int[] parents;
+    private final byte[] flags;
+    // Node number of each edge's child, 0 (the root) for an empty slot. Power of two sized, at most half full
+    private final int[] edges;
+    private final int ruleCount;
+
+    private DomainTrie(byte[] labels, int[] labelStarts, int[] parents, byte[] flags, int[] edges, int ruleCount) {
+        this.labels = labels;
+        this.labelStarts = labelStarts;
+        this.parents = parents;
+        this.flags = flags;
+        this.edges = edges;
+        this.ruleCount = ruleCount;
+    }
+
+    // DomainIndex.NOT_LISTED, ALLOWED or BLOCKED, case-insensitive and ignoring a trailing dot
+    public int lookup(CharSequence host) {
+        int end = host.length();
+        if (end > 0 && host.charAt(end - 1) == '.') end--;
+        if (end == 0) return DomainIndex.NOT_LISTED;
+
+        boolean blocked = false;
+        int node = 0;
+
+        while (true) {
+            // Hashes the label back to front on the way to its start
+            int start = end;
+            int hash = 0;
+
+            for (; start > 0; start--) {
+                final int c = host.charAt(start - 1);
+                if (c == '.') break;
+                hash = 31 * hash + toLowerCase(c);
+            }
+
+            node = findChild(node, hash, host, start, end);
+            if (node < 0) break;
+
+            final int nodeFlags = flags[node];
+
+            // Every label matched, this is the rule's own name
+            if (start == 0) {
+                if ((nodeFlags & ALLOW_NAME) != 0) return DomainIndex.ALLOWED;
+                blocked |= (nodeFlags & BLOCK_NAME) != 0;
+                break;
+            }
+
+            if ((nodeFlags & ALLOW_SUBDOMAINS) != 0) return DomainIndex.ALLOWED;
+            blocked |= (nodeFlags & BLOCK_SUBDOMAINS) != 0;
+
+            end = start - 1; // Skip the dot
+        }
+
+        return blocked ? DomainIndex.BLOCKED : DomainIndex.NOT_LISTED;
+    }
+
+    // Rules added, counting duplicates once
+    public int size() {
+        return ruleCount;
+    }
+
+    public int nodeCount() {
+        return flags.length;
+    }
+
+    public long sizeInBytes() {
+        return labels.length + 4L * labelStarts.length + 4L * parents.length + flags.length + 4L * edges.length;
+    }
+
+    private int findChild(int node, int labelHash, CharSequence host, int start, int end) {
+        final int mask = edges.length - 1;
+
+        for (int i = edgeHash(node, labelHash) & mask; ; i = (i + 1) & mask) {
+            final int child = edges[i];
+            if (child == 0) return -1;
+
+            if (parents[child] == node && matches(labelStarts[child], host, start, end)) return child;
+        }
+    }
+
+    private boolean matches(int offset, CharSequence host, int start, int end) {
+        if ((labels[offset] & 0xFF) != end - start) return false;
+
+        for (int i = start; i < end; i++)
+            if (labels[++offset] != toLowerCase(host.charAt(i))) return false;
+
+        return true;
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    // MurmurHash3 finalizer over the parent and the label's hash
+    private static int edgeHash(int parent, int labelHash) {
+        int hash = labelHash ^ (parent * 0x9e3779b9);
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    public static class Builder {
+
+        private final Node root = new Node("", null);
+        private int ruleCount;
+
+        // A domain name, or "*." and a domain name for its subdomains only. Returns false if it
+        // isn't a plausible domain name (ASCII only, IDNs in punycode)
+        public boolean add(CharSequence rule, boolean allowed) {
+            String name = rule.toString().trim().toLowerCase(Locale.US);
+            if (name.endsWith(".")) name = name.substring(0, name.length() - 1);
+
+            boolean subdomainsOnly = false;
+            if (name.startsWith("*.")) {
+                subdomainsOnly = true;
+                name = name.substring(2);
+            }
+
+            if (name.isEmpty() || name.length() > DomainIndex.MAX_NAME_LENGTH) return false;
+
+            for (int i = 0; i < name.length(); i++) {
+                final char c = name.charAt(i);
+                if (c <= ' ' || c >= 0x7F || c == '*') return false;
+            }
+
+            final String[] nameLabels = name.split("\\.", -1);
+            for (String label : nameLabels)
+                if (label.isEmpty() || label.length() > 63) return false;
+
+            Node node = root;
+            for (int i = nameLabels.length - 1; i >= 0; i--) {
+                Node child = node.children.get(nameLabels[i]);
+                if (child == null) {
+                    child = new Node(nameLabels[i], node);
+                    node.children.put(nameLabels[i], child);
+                }
+
+                node = child;
+            }
+
+            final int previous = node.flags;
+            if (allowed) node.flags |= subdomainsOnly ? ALLOW_SUBDOMAINS : ALLOW_NAME | ALLOW_SUBDOMAINS;
+            else node.flags |= subdomainsOnly ? BLOCK_SUBDOMAINS : BLOCK_NAME | BLOCK_SUBDOMAINS;
+            if (node.flags != previous) ruleCount++;
+
+            return true;
+        }
+
+        public DomainTrie build() {
+            // Breadth first, so parents are numbered before their children
+            final List<Node> nodes = new ArrayList<>();
+            final ArrayDeque<Node> queue = new ArrayDeque<>();
+            queue.add(root);
+            int labelBytes = 0;
+
+            while (!queue.isEmpty()) {
+                final Node node = queue.poll();
+                nodes.add(node);
+                labelBytes += 1 + node.label.length();
+
+                queue.addAll(node.children.values());
+            }
+
+            final byte[] labels = new byte[labelBytes];
+            final int[] labelStarts = new int[nodes.size()];
+            final int[] parents = new int[nodes.size()];
+            final byte[] flags = new byte[nodes.size()];
+            final int[] edges = new int[Math.max(Integer.highestOneBit(nodes.size()) * 4, 2)];
+            final int mask = edges.length - 1;
+            int position = 0;
+
+            for (int i = 0; i < nodes.size(); i++) {
+                final Node node = nodes.get(i);
+                node.number = i;
+
+                labelStarts[i] = position;
+                labels[position++] = (byte) node.label.length();
+                for (int j = 0; j < node.label.length(); j++) labels[position++] = (byte) node.label.charAt(j);
+                flags[i] = (byte) node.flags;
+
+                if (i == 0) continue; // The root isn't anyone's child
+                parents[i] = node.parent.number;
+
+                // Same hash lookup() builds, back to front
+                int labelHash = 0;
+                for (int j = node.label.length() - 1; j >= 0; j--) labelHash = 31 * labelHash + node.label.charAt(j);
+
+                int slot = edgeHash(parents[i], labelHash) & mask;
+                while (edges[slot] != 0) slot = (slot + 1) & mask;
+                edges[slot] = i;
+            }
+
+            return new DomainTrie(labels, labelStarts, parents, flags, edges, ruleCount);
+        }
+
+        private static class Node {
+
+            final String label;
+            final Node parent;
+            final Map<String, Node> children = new HashMap<>();
+            int flags;
+            int number;
+
+            Node(String label, Node parent) {
+                this.label = label;
+                this.parent = parent;
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.kimbr.privacytools.internal.vpn;
+
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+
+// The filter the tunnel checks names against, replaced as a whole while traffic flows. Readers
+// go through one volatile reference per packet, so a published filter applies from the next
+// packet on, and open connections and flows are left alone.
+// Readers only hold a filter for the lookup at hand, so a replaced one is retired (and a mapped
+// snapshot unmapped by the collector) as soon as the lookups in flight on it finish.
+public class FilterHolder {
+
+    private static final String TAG = "FilterHolder";
+
+    private volatile Version current;
+
+    private static class Version {
+
+        final HostFilter filter;
+        final long number;
+
+        Version(HostFilter filter, long number) {
+            this.filter = filter;
+            this.number = number;
+        }
+    }
+
+    public FilterHolder(HostFilter filter) {
+        current = new Version(filter, 1);
+    }
+
+    public HostFilter get() {
+        return current.filter;
+    }
+
+    // Counts publish() calls, 1 for the filter the holder was created with
+    public long getVersion() {
+        return current.number;
+    }
+
+    // Swaps filter in, it should be built completely beforehand (e.g. on a background thread)
+    public synchronized void publish(HostFilter filter) {
+        final Version previous = current;
+        current = new Version(filter, previous.number + 1);
+        EngineLog.d(TAG, "Published filter version " + current.number + ", retiring version " + previous.number);
+    }
+}
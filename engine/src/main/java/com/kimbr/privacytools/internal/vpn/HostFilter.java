@@ -0,0 +1,23 @@
+package com.kimbr.privacytools.internal.vpn;
+
+// What VpnRunnable filters by: the hosts list, which blocks exact names, and the user's own
+// rules, which also cover subdomains. A user rule decides before the hosts list does, so
+// anything the user allowed gets through whatever the hosts list says.
+public class HostFilter {
+
+    public static final HostFilter EMPTY = new HostFilter(DomainIndex.EMPTY, DomainTrie.EMPTY);
+
+    public final DomainIndex hosts;
+    public final DomainTrie rules;
+
+    public HostFilter(DomainIndex hosts, DomainTrie rules) {
+        this.hosts = hosts;
+        this.rules = rules;
+    }
+
+    // DomainIndex.NOT_LISTED, ALLOWED or BLOCKED
+    public int lookup(CharSequence host) {
+        final int verdict = rules.lookup(host);
+        return verdict != DomainIndex.NOT_LISTED ? verdict : hosts.lookup(host);
+    }
+}
@@ -0,0 +1,7 @@
+package com.kimbr.privacytools.internal.vpn;
+
+public interface LoggingCallback {
+    // Called on the TrafficLog's drain thread with the events published since the last call.
+    // events is a view reused for the next batch, don't hold onto it after returning
+    void log(TrafficLog.Batch events);
+}
@@ -0,0 +1,270 @@
+package com.kimbr.privacytools.internal.vpn;
+
+import com.kimbr.privacytools.internal.vpn.network.Packet;
+import com.kimbr.privacytools.internal.vpn.network.headers.AbstractHeader;
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Carries traffic log events from the device thread to whatever shows them. VpnRunnable
+// publishes one event of primitives per packet into a preallocated ring, and run() drains the
+// ring every DRAIN_INTERVAL_MS, handing the LoggingCallback what's new as one batch.
+// Publishing is wait-free: no lock, no allocation, and a full ring drops the event (counted)
+// rather than wait. Delivery is capped at maxEventsPerSecond, events over it are skipped (also
+// counted), so a burst of traffic can't flood the log either. A recorder, if set, is handed
+// every event ahead of the callback, rate limit or not, for history that mustn't have gaps.
+// Single producer: only one thread may publish, VpnRunnable's device thread.
+public class TrafficLog implements Runnable {
+
+    private static final String TAG = "TrafficLog";
+    private static final long DRAIN_INTERVAL_MS = 100;
+
+    private final int mask;
+    private final long[] timestamps;
+    private final int[] protocolNumbers;
+    private final int[] sourceAddresses;
+    private final int[] sourcePorts;
+    private final int[] destinationAddresses;
+    private final int[] destinationPorts;
+    private final int[] verdicts;
+    private final int[] lengths;
+    private final String[] hostNames;
+
+    // Sequence numbers of the next event to publish and to drain. Only the publisher moves head and
+    // only the drainer moves tail, each reading the other's to see how far it may go
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+
+    private final int maxEventsPerSecond;
+    private long budget; // Thousandths of an event, refilled as time passes
+    private long lastDrainMs;
+
+    private volatile LoggingCallback callback;
+    private volatile LoggingCallback recorder;
+    private final Batch batch = new Batch();
+
+    // capacity is rounded up to a power of two
+    public TrafficLog(int capacity, int maxEventsPerSecond) {
+        final int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mask = size - 1;
+        timestamps = new long[size];
+        protocolNumbers = new int[size];
+        sourceAddresses = new int[size];
+        sourcePorts = new int[size];
+        destinationAddresses = new int[size];
+        destinationPorts = new int[size];
+        verdicts = new int[size];
+        lengths = new int[size];
+        hostNames = new String[size];
+
+        this.maxEventsPerSecond = maxEventsPerSecond;
+        budget = maxEventsPerSecond * 1000L;
+        lastDrainMs = now();
+    }
+
+    // Null stops logging, events already published are skipped
+    public void setCallback(LoggingCallback callback) {
+        this.callback = callback;
+    }
+
+    // Null stops recording. Called on the drain thread like the callback, so it mustn't block long
+    public void setRecorder(LoggingCallback recorder) {
+        this.recorder = recorder;
+    }
+
+    // Whether there's any point publishing
+    public boolean isEnabled() {
+        return callback != null || recorder != null;
+    }
+
+    // hostName as HostnameTable has it, verdict DomainIndex.NOT_LISTED, ALLOWED or BLOCKED.
+    // Returns false if the ring was full and the event dropped
+    public boolean publish(Packet packet, String hostName, int verdict) {
+        final long sequence = head.get();
+        if (sequence - tail.get() > mask) {
+            droppedCount.lazySet(droppedCount.get() + 1); // Only this thread writes it
+            return false;
+        }
+
+        final int i = (int) sequence & mask;
+        timestamps[i] = System.currentTimeMillis();
+        protocolNumbers[i] = packet.ip4Header.getProtocolNumber();
+        sourceAddresses[i] = packet.ip4Header.getSourceAddress();
+        destinationAddresses[i] = packet.ip4Header.getDestinationAddress();
+        lengths[i] = packet.ip4Header.getTotalLength();
+        verdicts[i] = verdict;
+        hostNames[i] = hostName;
+
+        final AbstractHeader header = packet.isTcp() ? packet.tcpHeader : packet.isUdp() ? packet.udpHeader : null;
+        sourcePorts[i] = header != null ? header.getSourcePort() : 0;
+        destinationPorts[i] = header != null ? header.getDestinationPort() : 0;
+
+        // Ordered after the writes above, the drainer never sees a half written event
+        head.lazySet(sequence + 1);
+        return true;
+    }
+
+    @Override
+    public void run() {
+        EngineLog.d(TAG, "Started.");
+
+        try {
+            while (!Thread.interrupted()) {
+                Thread.sleep(DRAIN_INTERVAL_MS);
+                drain();
+            }
+        }
+
+        catch (InterruptedException ex) {
+            EngineLog.d(TAG, "Stopping");
+        }
+    }
+
+    // Hands the events published since the last drain to the callback, as far as the rate limit
+    // allows. Returns how many it handed over. Called from one thread at a time
+    int drain() {
+        final long now = now();
+        budget = Math.min(budget + (now - lastDrainMs) * maxEventsPerSecond, maxEventsPerSecond * 1000L);
+        lastDrainMs = now;
+
+        final long start = tail.get();
+        final int available = (int) (head.get() - start);
+        if (available == 0) return 0;
+
+        final LoggingCallback recorder = this.recorder;
+        if (recorder != null) deliver(recorder, start, available);
+
+        final LoggingCallback callback = this.callback;
+        final int delivered = callback == null ? 0 : (int) Math.min(available, budget / 1000);
+
+        if (delivered > 0) {
+            deliver(callback, start, delivered);
+            budget -= delivered * 1000L;
+            deliveredCount.lazySet(deliveredCount.get() + delivered);
+        }
+
+        skippedCount.lazySet(skippedCount.get() + available - delivered);
+        tail.lazySet(start + available); // The publisher may reuse the slots from here on
+        return delivered;
+    }
+
+    private void deliver(LoggingCallback target, long start, int size) {
+        batch.start = start;
+        batch.size = size;
+
+        try {
+            target.log(batch);
+        }
+
+        catch (RuntimeException ex) {
+            EngineLog.e(TAG, "Logging callback failed", ex);
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public Stats getStats() {
+        return new Stats(mask + 1, head.get(), deliveredCount.get(), droppedCount.get(), skippedCount.get());
+    }
+
+    // The events of one drain, indexed from 0 to size() - 1. A view on the ring, only valid until
+    // the callback returns
+    public class Batch {
+
+        private long start;
+        private int size;
+
+        public int size() {
+            return size;
+        }
+
+        // System.currentTimeMillis() when published
+        public long getTimestamp(int event) {
+            return timestamps[index(event)];
+        }
+
+        // IP protocol number, 6 for TCP and 17 for UDP
+        public int getProtocolNumber(int event) {
+            return protocolNumbers[index(event)];
+        }
+
+        public int getSourceAddress(int event) {
+            return sourceAddresses[index(event)];
+        }
+
+        public int getSourcePort(int event) {
+            return sourcePorts[index(event)];
+        }
+
+        public int getDestinationAddress(int event) {
+            return destinationAddresses[index(event)];
+        }
+
+        public int getDestinationPort(int event) {
+            return destinationPorts[index(event)];
+        }
+
+        // DomainIndex.NOT_LISTED, ALLOWED or BLOCKED
+        public int getVerdict(int event) {
+            return verdicts[index(event)];
+        }
+
+        // IP packet length
+        public int getLength(int event) {
+            return lengths[index(event)];
+        }
+
+        // Name the destination was resolved by, null if unknown
+        public String getHostName(int event) {
+            return hostNames[index(event)];
+        }
+
+        // Events lost to a full ring so far, in total
+        public long getDroppedCount() {
+            return droppedCount.get();
+        }
+
+        // Events skipped by the rate limit so far, in total
+        public long getSkippedCount() {
+            return skippedCount.get();
+        }
+
+        private int index(int event) {
+            if (event < 0 || event >= size) throw new IndexOutOfBoundsException("Event " + event + " of " + size);
+            return (int) (start + event) & mask;
+        }
+    }
+
+    public static class Stats {
+
+        public final int capacity;
+        public final long publishedCount;
+        public final long deliveredCount;
+        public final long droppedCount;
+        public final long skippedCount;
+
+        Stats(int capacity, long publishedCount, long deliveredCount, long droppedCount, long skippedCount) {
+            this.capacity = capacity;
+            this.publishedCount = publishedCount;
+            this.deliveredCount = deliveredCount;
+            this.droppedCount = droppedCount;
+            this.skippedCount = skippedCount;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("capacity=").append(capacity).append(", ");
+            builder.append("published=").append(publishedCount).append(", ");
+            builder.append("delivered=").append(deliveredCount).append(", ");
+            builder.append("dropped=").append(droppedCount).append(", ");
+            builder.append("skipped=").append(skippedCount);
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.kimbr.privacytools.internal.vpn;
+
+import com.kimbr.privacytools.internal.Utils;
+import com.kimbr.privacytools.internal.vpn.metrics.PipelineMetrics;
+import com.kimbr.privacytools.internal.vpn.network.HandoffQueue;
+import com.kimbr.privacytools.internal.vpn.network.HostnameTable;
+import com.kimbr.privacytools.internal.vpn.network.RegistrationQueue;
+import com.kimbr.privacytools.internal.vpn.network.TCBReaper;
+import com.kimbr.privacytools.internal.vpn.network.TCPInput;
+import com.kimbr.privacytools.internal.vpn.network.TCPOutput;
+import com.kimbr.privacytools.internal.vpn.network.TunnelReactor;
+import com.kimbr.privacytools.internal.vpn.network.UDPInput;
+import com.kimbr.privacytools.internal.vpn.network.UDPOutput;
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+import com.kimbr.privacytools.internal.vpn.platform.SocketProtector;
+import com.kimbr.privacytools.internal.vpn.platform.TunDevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Runs the tunnel on a tun device: VpnRunnable reading the device and either a thread per stage
+// or reactorCount TunnelReactors handling the packets, plus the traffic log's drain thread when
+// there's a log. The same wiring for LocalVpnService, StandaloneTunnel and the test tools.
+// Fields are read by start(), an engine runs once
+public class TunnelEngine {
+
+    private static final String TAG = "TunnelEngine";
+    public static final int DEFAULT_QUEUE_SIZE = 256; // Each queued packet holds a pool buffer
+
+    public int reactorCount = 0; // 0 runs the pipeline
+    public int queueSize = DEFAULT_QUEUE_SIZE;
+    public boolean blockDnsWithNxDomain = true;
+    public TrafficLog trafficLog; // These three may be null
+    public FilterHolder filters;
+    public HostnameTable hostnames;
+    public ThreadFactory threadFactory = Executors.defaultThreadFactory();
+
+    private final SocketProtector protector;
+    private TunDevice tun;
+    private ExecutorService executorService;
+    private Selector udpSelector;
+    private Selector tcpSelector;
+    private HandoffQueue<ByteBuffer> deviceToNetworkUdpQueue;
+    private HandoffQueue<ByteBuffer> deviceToNetworkTcpQueue;
+
+    public TunnelEngine(SocketProtector protector) {
+        this.protector = protector;
+    }
+
+    public void start(TunDevice tun) throws IOException {
+        this.tun = tun;
+
+        final VpnRunnable vpnRunnable = reactorCount > 0 ? startReactors() : startPipeline();
+        vpnRunnable.trafficLog = trafficLog;
+        vpnRunnable.filters = filters;
+        vpnRunnable.hostnames = hostnames;
+        executorService.submit(vpnRunnable);
+        if (trafficLog != null) executorService.submit(trafficLog);
+    }
+
+    // Thread per stage: tun reader/writer, TCP and UDP output workers and their selector threads, the TCB reaper and the traffic log
+    private VpnRunnable startPipeline() throws IOException {
+        udpSelector = Selector.open();
+        tcpSelector = Selector.open();
+        deviceToNetworkUdpQueue = new HandoffQueue<>(queueSize, null, PipelineMetrics.queueWait);
+        deviceToNetworkTcpQueue = new HandoffQueue<>(queueSize, null, PipelineMetrics.queueWait);
+        final BlockingQueue<ByteBuffer> networkToDeviceQueue = new LinkedBlockingQueue<>();
+
+        final RegistrationQueue udpRegistrations = new RegistrationQueue(udpSelector);
+        final RegistrationQueue tcpRegistrations = new RegistrationQueue(tcpSelector);
+
+        final TCBReaper reaper = new TCBReaper(networkToDeviceQueue);
+
+        executorService = Executors.newFixedThreadPool(7, threadFactory);
+        executorService.submit(new UDPInput(networkToDeviceQueue, udpRegistrations, hostnames));
+        executorService.submit(new UDPOutput(deviceToNetworkUdpQueue, networkToDeviceQueue, udpRegistrations, filters, blockDnsWithNxDomain, protector));
+        executorService.submit(new TCPInput(networkToDeviceQueue, tcpRegistrations));
+        executorService.submit(new TCPOutput(deviceToNetworkTcpQueue, networkToDeviceQueue, tcpRegistrations, reaper, hostnames, protector));
+        executorService.submit(reaper);
+
+        return new VpnRunnable(tun, deviceToNetworkUdpQueue, deviceToNetworkTcpQueue, networkToDeviceQueue);
+    }
+
+    // One thread reading the tun device, reactorCount threads doing everything else, and the traffic log
+    private VpnRunnable startReactors() throws IOException {
+        final List<HandoffQueue<ByteBuffer>> reactorInboxes = new ArrayList<>(reactorCount);
+
+        executorService = Executors.newFixedThreadPool(reactorCount + 2, threadFactory);
+        for (int i = 0; i < reactorCount; i++) {
+            final TunnelReactor reactor = new TunnelReactor(queueSize, tun.getOutput(), filters, blockDnsWithNxDomain, hostnames, protector);
+            reactorInboxes.add(reactor.getInbox());
+            executorService.submit(reactor);
+        }
+
+        return new VpnRunnable(tun, reactorInboxes);
+    }
+
+    // Interrupts every thread, they close their sockets on the way out
+    public void stop() {
+        if (executorService != null) executorService.shutdownNow();
+
+        if (deviceToNetworkUdpQueue != null) EngineLog.d(TAG, "UDP queue: " + deviceToNetworkUdpQueue.getStats());
+        if (deviceToNetworkTcpQueue != null) EngineLog.d(TAG, "TCP queue: " + deviceToNetworkTcpQueue.getStats());
+        Utils.closeResources(udpSelector, tcpSelector, tun);
+    }
+
+    // After stop(), false if a thread is still running after the timeout
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executorService == null || executorService.awaitTermination(timeout, unit);
+    }
+}
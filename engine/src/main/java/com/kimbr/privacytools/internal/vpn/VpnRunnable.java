@@ -0,0 +1,268 @@
+package com.kimbr.privacytools.internal.vpn;
+
+import com.kimbr.privacytools.internal.Utils;
+import com.kimbr.privacytools.internal.vpn.metrics.PipelineMetrics;
+import com.kimbr.privacytools.internal.vpn.network.ByteBufferPool;
+import com.kimbr.privacytools.internal.vpn.network.HandoffQueue;
+import com.kimbr.privacytools.internal.vpn.network.HostnameTable;
+import com.kimbr.privacytools.internal.vpn.network.Packet;
+import com.kimbr.privacytools.internal.vpn.network.headers.AbstractHeader;
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+import com.kimbr.privacytools.internal.vpn.platform.TunDevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class VpnRunnable implements Runnable {
+
+    private static final String TAG = "VpnRunnable";
+    // How long the device thread waits on a full output queue before dropping the packet
+    private static final long HANDOFF_TIMEOUT_MS = 50;
+
+    private final ReadableByteChannel vpnInput;
+    private final WritableByteChannel vpnOutput;
+
+    private final HandoffQueue<ByteBuffer> deviceToNetworkUdpQueue;
+    private final HandoffQueue<ByteBuffer> deviceToNetworkTcpQueue;
+    private final BlockingQueue<ByteBuffer> networkToDeviceQueue;
+    private final List<HandoffQueue<ByteBuffer>> reactorInboxes;
+
+    // Only the device thread reads packets, so one view serves all of them
+    private final Packet packet = new Packet();
+
+    public TrafficLog trafficLog;
+    public FilterHolder filters; // Can be swapped while running, read once per packet
+    public HostnameTable hostnames;
+    public IoMode ioMode = IoMode.EVENT_DRIVEN;
+
+    public enum IoMode {
+        // Single thread alternating non-blocking reads and queue polls, sleeping 10ms when idle.
+        // Requires a non-blocking input channel, kept for comparison benchmarks
+        POLLING,
+        // Reader blocks on the tun descriptor, a writer thread blocks on networkToDeviceQueue
+        // (or, with reactors, the reactors write to the tun descriptor themselves). Requires a
+        // blocking input channel, see TunDevice
+        EVENT_DRIVEN
+    }
+
+    public VpnRunnable(TunDevice tun, HandoffQueue<ByteBuffer> deviceToNetworkUdpQueue, HandoffQueue<ByteBuffer> deviceToNetworkTcpQueue, BlockingQueue<ByteBuffer> networkToDeviceQueue) {
+        this(tun.getInput(), tun.getOutput(), deviceToNetworkUdpQueue, deviceToNetworkTcpQueue, networkToDeviceQueue);
+    }
+
+    // Channels are usually the tun device's, but any pair (e.g. a Pipe) can stand in for it
+    public VpnRunnable(ReadableByteChannel vpnInput, WritableByteChannel vpnOutput, HandoffQueue<ByteBuffer> deviceToNetworkUdpQueue, HandoffQueue<ByteBuffer> deviceToNetworkTcpQueue, BlockingQueue<ByteBuffer> networkToDeviceQueue) {
+        this.vpnInput = vpnInput;
+        this.vpnOutput = vpnOutput;
+        this.deviceToNetworkUdpQueue = deviceToNetworkUdpQueue;
+        this.deviceToNetworkTcpQueue = deviceToNetworkTcpQueue;
+        this.networkToDeviceQueue = networkToDeviceQueue;
+        this.reactorInboxes = null;
+    }
+
+    // Reactor mode: device packets are sharded by flow between the TunnelReactor inboxes, which
+    // write responses to the tun device themselves. Only supports IoMode.EVENT_DRIVEN
+    public VpnRunnable(TunDevice tun, List<HandoffQueue<ByteBuffer>> reactorInboxes) {
+        this.vpnInput = tun.getInput();
+        this.vpnOutput = tun.getOutput();
+        this.deviceToNetworkUdpQueue = null;
+        this.deviceToNetworkTcpQueue = null;
+        this.networkToDeviceQueue = null;
+        this.reactorInboxes = reactorInboxes;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (ioMode == IoMode.POLLING) runPolling();
+            else runEventDriven();
+        }
+
+        catch (InterruptedException ex) {
+            EngineLog.e(TAG, "Stopping vpn runnable", ex);
+        }
+
+        catch (IOException ex) {
+            EngineLog.e(TAG, "Vpn runnable IOException", ex);
+        }
+
+        finally {
+            Utils.closeResources(vpnInput, vpnOutput);
+        }
+    }
+
+    private void runEventDriven() throws IOException, InterruptedException {
+        if (vpnInput instanceof SelectableChannel && !((SelectableChannel) vpnInput).isBlocking())
+            throw new IOException("The tun input must be in blocking mode");
+
+        Thread writerThread = null;
+        if (networkToDeviceQueue != null) {
+            writerThread = new Thread(new DeviceWriter(Thread.currentThread()), TAG + "-writer");
+            writerThread.start();
+        }
+
+        ByteBuffer bufferToNetwork = null;
+
+        try {
+            bufferToNetwork = ByteBufferPool.acquire();
+
+            while (!Thread.interrupted()) {
+                // Blocks until the device sends a packet
+                final int readBytes = vpnInput.read(bufferToNetwork);
+                if (readBytes == -1) break;
+
+                // A blocking read always returns a packet, retrying would spin on a non-blocking one
+                if (readBytes == 0) throw new IOException("Empty read, the tun input must be in blocking mode");
+
+                bufferToNetwork.flip();
+                if (processDevicePacket(bufferToNetwork)) bufferToNetwork = ByteBufferPool.acquire();
+                else bufferToNetwork.clear();
+            }
+        }
+
+        finally {
+            // The buffer being read into was never handed off
+            if (bufferToNetwork != null) ByteBufferPool.release(bufferToNetwork);
+            if (writerThread != null) stopWriter(writerThread);
+        }
+    }
+
+    // Waits for the writer to stop, so the tun device isn't closed under it. An interrupt while
+    // waiting is kept for the caller
+    private static void stopWriter(Thread writerThread) {
+        writerThread.interrupt();
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                writerThread.join();
+                break;
+            }
+
+            catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void runPolling() throws IOException, InterruptedException {
+        ByteBuffer bufferToNetwork = null;
+        boolean dataSent = true;
+        boolean dataReceived;
+
+        while (!Thread.interrupted()) {
+            if (dataSent) bufferToNetwork = ByteBufferPool.acquire();
+            else bufferToNetwork.clear();
+
+            final int readBytes = vpnInput.read(bufferToNetwork);
+            if (readBytes > 0) {
+                bufferToNetwork.flip();
+                dataSent = processDevicePacket(bufferToNetwork);
+            } else dataSent = false;
+
+            final ByteBuffer bufferFromNetwork = networkToDeviceQueue.poll();
+            if (bufferFromNetwork != null) {
+                writeToDevice(bufferFromNetwork);
+                dataReceived = true;
+            } else dataReceived = false;
+
+            if (!dataReceived && !dataSent) Thread.sleep(10);
+        }
+    }
+
+    // Returns true if the packet (and so its buffer) was handed off to an output queue
+    private boolean processDevicePacket(ByteBuffer buffer) throws InterruptedException {
+        PipelineMetrics.packetsFromDevice.increment();
+        PipelineMetrics.bytesFromDevice.add(buffer.remaining());
+        packet.wrap(buffer);
+
+        if (!packet.isUdp() && !packet.isTcp()) {
+            PipelineMetrics.unsupportedPackets.increment();
+            EngineLog.w(TAG, "Unknown packet type");
+            EngineLog.w(TAG, packet.ip4Header.toString());
+            return false;
+        }
+
+        // UDPOutput answers DNS queries for blocked names, this catches addresses the device
+        // resolved before the name was blocked and keeps connecting to from its own cache
+        String hostName = null;
+        int verdict = DomainIndex.NOT_LISTED;
+
+        if (hostnames != null) {
+            hostName = hostnames.lookup(packet.ip4Header.getDestinationAddress());
+            if (hostName != null && filters != null) {
+                verdict = filters.get().lookup(hostName);
+                if (verdict == DomainIndex.BLOCKED) PipelineMetrics.filterHits.increment();
+                else PipelineMetrics.filterMisses.increment();
+            }
+        }
+
+        // Log before handing off, the buffer belongs to the output threads afterwards
+        if (trafficLog != null && trafficLog.isEnabled()) trafficLog.publish(packet, hostName, verdict);
+        if (verdict == DomainIndex.BLOCKED) return false;
+
+        // Backpressure: wait briefly for a lagging worker, then drop (the device retransmits)
+        final HandoffQueue<ByteBuffer> outputQueue;
+        if (reactorInboxes != null) outputQueue = reactorInboxes.get(flowShard(packet));
+        else outputQueue = packet.isUdp() ? deviceToNetworkUdpQueue : deviceToNetworkTcpQueue;
+        if (!outputQueue.offer(buffer, HANDOFF_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            EngineLog.w(TAG, "Output queue full, dropping packet");
+            PipelineMetrics.handoffDrops.increment();
+            return false;
+        }
+
+        return true;
+    }
+
+    // Keeps every packet of a flow on the same reactor, so its state is only touched by one thread
+    private int flowShard(Packet packet) {
+        final AbstractHeader header = packet.isTcp() ? packet.tcpHeader : packet.udpHeader;
+        int hash = packet.ip4Header.getDestinationAddress();
+        hash = 31 * hash + header.getDestinationPort();
+        hash = 31 * hash + header.getSourcePort();
+        return (hash & Integer.MAX_VALUE) % reactorInboxes.size();
+    }
+
+    private void writeToDevice(ByteBuffer bufferFromNetwork) throws IOException {
+        bufferFromNetwork.flip();
+        PipelineMetrics.bytesToDevice.add(bufferFromNetwork.remaining());
+        // TCPInput can queue several segments in one buffer
+        PipelineMetrics.packetsToDevice.add(Packet.writePackets(bufferFromNetwork, vpnOutput));
+
+        ByteBufferPool.release(bufferFromNetwork);
+    }
+
+    private class DeviceWriter implements Runnable {
+
+        private final Thread readerThread;
+
+        DeviceWriter(Thread readerThread) {
+            this.readerThread = readerThread;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // Woken by whichever thread offers to networkToDeviceQueue, no polling
+                while (!Thread.interrupted())
+                    writeToDevice(networkToDeviceQueue.take());
+            }
+
+            catch (InterruptedException ex) {
+                EngineLog.d(TAG, "Stopping device writer");
+            }
+
+            catch (IOException ex) {
+                EngineLog.e(TAG, "Device writer IOException", ex);
+                readerThread.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.kimbr.privacytools.internal.vpn.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Count several threads add to without contending: each thread adds to one of STRIPES cells,
+// picked by thread id and a cache line apart from the others, and get() sums them. A read while
+// threads are adding sees some of their additions and not others, never a torn value.
+// (LongAdder does this too, but only from API 24.)
+public class Counter {
+
+    private static final int STRIPES = 8; // Power of two
+    private static final int PADDING = 8; // Longs per cell, 64 bytes
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(cell(), delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+    // Additions racing with it may survive
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) cells.set(i * PADDING, 0);
+    }
+
+    private static int cell() {
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
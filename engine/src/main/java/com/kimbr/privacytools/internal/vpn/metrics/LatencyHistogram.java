@@ -0,0 +1,131 @@
+package com.kimbr.privacytools.internal.vpn.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts durations in fixed log-scale buckets: four per power of two, so a bucket is at most a
+// quarter as wide as the values in it and 248 buckets cover every positive long. Recording is an
+// increment of one bucket and of the sum, no lock and no allocation, from any number of threads.
+// Percentiles read from a snapshot are the upper bound of the bucket they fall in.
+public class LatencyHistogram {
+
+    static final int BUCKET_COUNT = 248;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final Counter sum = new Counter();
+    private final AtomicLong max = new AtomicLong();
+
+    // Negative durations (a clock step) count as 0
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+
+        buckets.getAndIncrement(bucket(nanos));
+        sum.add(nanos);
+
+        long currentMax;
+        while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+            // Lost to another thread, retry against its value
+        }
+    }
+
+    // Values below 4 get a bucket each, above that the exponent picks a group of four and the two
+    // bits below the leading one pick the bucket in it
+    static int bucket(long value) {
+        if (value < 4) return (int) value;
+
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        return (exponent - 1) * 4 + (int) ((value >>> (exponent - 2)) & 3);
+    }
+
+    // Smallest value that falls in bucket
+    static long lowerBound(int bucket) {
+        if (bucket < 4) return bucket;
+
+        final int exponent = bucket / 4 + 1;
+        return (long) (4 | (bucket & 3)) << (exponent - 2);
+    }
+
+    // Largest value that falls in bucket
+    static long upperBound(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+    }
+
+    // Readable while values are being recorded, each bucket is read once
+    public Snapshot snapshot() {
+        final long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+
+        return new Snapshot(counts, count, sum.get(), max.get());
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) buckets.set(i, 0);
+        sum.reset();
+        max.set(0);
+    }
+
+    public static class Snapshot {
+
+        private final long[] counts;
+        public final long count;
+        public final long sumNanos;
+        public final long maxNanos;
+
+        Snapshot(long[] counts, long count, long sumNanos, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : sumNanos / count;
+        }
+
+        // Upper bound of the bucket holding the value below which fraction (0 to 1) of the values
+        // fall, never more than the largest value recorded. 0 if nothing was recorded
+        public long getPercentileNanos(double fraction) {
+            if (count == 0) return 0;
+
+            final long rank = Math.max((long) Math.ceil(fraction * count), 1);
+            long seen = 0;
+
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(upperBound(i), maxNanos);
+            }
+
+            return maxNanos;
+        }
+
+        // Values recorded in each bucket, see getBucketUpperBound()
+        public long getBucketCount(int bucket) {
+            return counts[bucket];
+        }
+
+        public int getBucketTotal() {
+            return counts.length;
+        }
+
+        public long getBucketUpperBound(int bucket) {
+            return upperBound(bucket);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("count=").append(count).append(", ");
+            builder.append("meanUs=").append(getMeanNanos() / 1000).append(", ");
+            builder.append("p50Us=").append(getPercentileNanos(0.5) / 1000).append(", ");
+            builder.append("p90Us=").append(getPercentileNanos(0.9) / 1000).append(", ");
+            builder.append("p99Us=").append(getPercentileNanos(0.99) / 1000).append(", ");
+            builder.append("maxUs=").append(maxNanos / 1000);
+            return builder.toString();
+        }
+    }
+}
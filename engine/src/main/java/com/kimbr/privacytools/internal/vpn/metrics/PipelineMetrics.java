@@ -0,0 +1,102 @@
+package com.kimbr.privacytools.internal.vpn.metrics;
+
+import com.kimbr.privacytools.internal.vpn.network.ByteBufferPool;
+import com.kimbr.privacytools.internal.vpn.network.TCB;
+
+// Where packets go and how long they take between the stages of the tunnel, for the whole
+// process: the counters and histograms are updated in place by every stage and snapshot() reads
+// them while traffic flows. Everything is cumulative since the process started (or reset()),
+// compare two snapshots for rates.
+public class PipelineMetrics {
+
+    // Device side, counted by VpnRunnable and whoever writes to the tun descriptor
+    public static final Counter packetsFromDevice = new Counter();
+    public static final Counter bytesFromDevice = new Counter();
+    public static final Counter packetsToDevice = new Counter();
+    public static final Counter bytesToDevice = new Counter();
+    public static final Counter unsupportedPackets = new Counter(); // Neither TCP nor UDP
+    public static final Counter handoffDrops = new Counter(); // Output queue stayed full
+
+    // Lookups against the filter, per packet with a known host name and per DNS query
+    public static final Counter filterHits = new Counter(); // Blocked
+    public static final Counter filterMisses = new Counter();
+
+    public static final Counter tcbCreations = new Counter();
+    public static final Counter tcbEvictions = new Counter(); // Reset by TCBReaper, idle or to make room
+    public static final Counter tcbRefusals = new Counter(); // Table full even after reaping
+    public static final Counter connectFailures = new Counter();
+    public static final Counter windowPauses = new Counter(); // TCP reads stopped on a full device window
+
+    // From offer to take on a device-to-network queue (or reactor inbox)
+    public static final LatencyHistogram queueWait = new LatencyHistogram();
+    // From connect() to the connection completing, for new TCP flows
+    public static final LatencyHistogram connectTime = new LatencyHistogram();
+    // From the device thread handing a packet over to its payload written to the socket
+    public static final LatencyHistogram deviceToNetwork = new LatencyHistogram();
+
+    private static final Counter[] counters = {packetsFromDevice, bytesFromDevice, packetsToDevice, bytesToDevice, unsupportedPackets,
+            handoffDrops, filterHits, filterMisses, tcbCreations, tcbEvictions, tcbRefusals, connectFailures, windowPauses};
+    private static final LatencyHistogram[] histograms = {queueWait, connectTime, deviceToNetwork};
+
+    public static Snapshot snapshot() {
+        return new Snapshot();
+    }
+
+    // For tests and benchmarks, updates racing with it may survive
+    public static void reset() {
+        for (Counter counter : counters) counter.reset();
+        for (LatencyHistogram histogram : histograms) histogram.reset();
+    }
+
+    // Each value is read once, values read together may be a few updates apart
+    public static class Snapshot {
+
+        public final long timestamp = System.currentTimeMillis();
+        public final long packetsFromDevice = PipelineMetrics.packetsFromDevice.get();
+        public final long bytesFromDevice = PipelineMetrics.bytesFromDevice.get();
+        public final long packetsToDevice = PipelineMetrics.packetsToDevice.get();
+        public final long bytesToDevice = PipelineMetrics.bytesToDevice.get();
+        public final long unsupportedPackets = PipelineMetrics.unsupportedPackets.get();
+        public final long handoffDrops = PipelineMetrics.handoffDrops.get();
+        public final long filterHits = PipelineMetrics.filterHits.get();
+        public final long filterMisses = PipelineMetrics.filterMisses.get();
+        public final long tcbCreations = PipelineMetrics.tcbCreations.get();
+        public final long tcbEvictions = PipelineMetrics.tcbEvictions.get();
+        public final long tcbRefusals = PipelineMetrics.tcbRefusals.get();
+        public final long connectFailures = PipelineMetrics.connectFailures.get();
+        public final long windowPauses = PipelineMetrics.windowPauses.get();
+        public final int openConnections = TCB.getConnectionCount();
+        public final long poolMisses;
+        public final LatencyHistogram.Snapshot queueWait = PipelineMetrics.queueWait.snapshot();
+        public final LatencyHistogram.Snapshot connectTime = PipelineMetrics.connectTime.snapshot();
+        public final LatencyHistogram.Snapshot deviceToNetwork = PipelineMetrics.deviceToNetwork.snapshot();
+
+        Snapshot() {
+            long misses = 0;
+            for (ByteBufferPool.Stats stats : ByteBufferPool.getStats()) misses += stats.misses;
+            poolMisses = misses;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("fromDevice=").append(packetsFromDevice).append('/').append(bytesFromDevice).append("B, ");
+            builder.append("toDevice=").append(packetsToDevice).append('/').append(bytesToDevice).append("B, ");
+            builder.append("unsupported=").append(unsupportedPackets).append(", ");
+            builder.append("handoffDrops=").append(handoffDrops).append(", ");
+            builder.append("filterHits=").append(filterHits).append(", ");
+            builder.append("filterMisses=").append(filterMisses).append(", ");
+            builder.append("tcbCreations=").append(tcbCreations).append(", ");
+            builder.append("tcbEvictions=").append(tcbEvictions).append(", ");
+            builder.append("tcbRefusals=").append(tcbRefusals).append(", ");
+            builder.append("connectFailures=").append(connectFailures).append(", ");
+            builder.append("windowPauses=").append(windowPauses).append(", ");
+            builder.append("openConnections=").append(openConnections).append(", ");
+            builder.append("poolMisses=").append(poolMisses).append(", ");
+            builder.append("queueWait={").append(queueWait).append("}, ");
+            builder.append("connectTime={").append(connectTime).append("}, ");
+            builder.append("deviceToNetwork={").append(deviceToNetwork).append("}");
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Direct buffers in a few size classes, so a 40 byte ACK doesn't pin a full 16 KB buffer.
+// Each thread keeps a small stack per class in front of the shared queues, and each class only
+// keeps up to a fixed number of idle buffers, anything released beyond that is left to the GC.
+// A sample of acquired buffers is tracked weakly: if one is collected without having been
+// released it has leaked, and where it was acquired is logged.
+public class ByteBufferPool {
+
+    private static final String TAG = "ByteBufferPool";
+
+    public static final int HEADER_BUFFER_SIZE = 64;
+    public static final int BUFFER_SIZE = 16384;
+
+    private static final SizeClass[] SIZE_CLASSES = {
+            new SizeClass(HEADER_BUFFER_SIZE, 256),
+            new SizeClass(BUFFER_SIZE, 128)
+    };
+    private static final int LOCAL_CACHE_SIZE = 16;
+
+    // Bumped by clear(), thread caches from before are dropped the next time they're used
+    private static volatile int generation;
+    private static final ThreadLocal<LocalCache> localCache = new ThreadLocal<LocalCache>() {
+        @Override
+        protected LocalCache initialValue() {
+            return new LocalCache();
+        }
+    };
+
+    // Track one in this many acquires, 0 disables leak detection
+    private static volatile int leakSamplingInterval = 128;
+    private static final ReferenceQueue<ByteBuffer> collectedBuffers = new ReferenceQueue<>();
+    private static final Set<LeakTracker> trackedBuffers = Collections.newSetFromMap(new ConcurrentHashMap<LeakTracker, Boolean>());
+    private static final AtomicLong leakCount = new AtomicLong();
+
+    // A full size buffer, for reading packets
+    public static ByteBuffer acquire() {
+        return acquire(SIZE_CLASSES[SIZE_CLASSES.length - 1]);
+    }
+
+    // The smallest pooled buffer of at least size bytes
+    public static ByteBuffer acquire(int size) {
+        for (SizeClass sizeClass : SIZE_CLASSES)
+            if (sizeClass.capacity >= size) return acquire(sizeClass);
+
+        return ByteBuffer.allocateDirect(size); // Too big to pool, release() will drop it
+    }
+
+    private static ByteBuffer acquire(SizeClass sizeClass) {
+        final LocalCache cache = getLocalCache();
+        ByteBuffer buffer = cache.pop(sizeClass.index);
+
+        if (buffer == null) {
+            buffer = sizeClass.shared.poll();
+            if (buffer != null) sizeClass.pooled.decrementAndGet();
+        }
+
+        if (buffer != null) sizeClass.hits.incrementAndGet();
+
+        else {
+            sizeClass.misses.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(sizeClass.capacity); // Using direct buffer for zero-copy
+        }
+
+        final int outstanding = sizeClass.outstanding.incrementAndGet();
+        int highWaterMark;
+        while (outstanding > (highWaterMark = sizeClass.highWaterMark.get()))
+            if (sizeClass.highWaterMark.compareAndSet(highWaterMark, outstanding)) break;
+
+        final int samplingInterval = leakSamplingInterval;
+        if (samplingInterval > 0 && ++cache.acquiresSinceSample >= samplingInterval) {
+            cache.acquiresSinceSample = 0;
+            checkLeaks();
+            trackedBuffers.add(new LeakTracker(buffer));
+        }
+
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        final SizeClass sizeClass = sizeClassOf(buffer);
+        if (sizeClass == null) return; // Not from the pool
+
+        if (!trackedBuffers.isEmpty()) untrack(buffer);
+
+        buffer.clear();
+        sizeClass.outstanding.decrementAndGet();
+
+        if (getLocalCache().push(sizeClass.index, buffer)) return;
+
+        if (sizeClass.pooled.incrementAndGet() <= sizeClass.maxPooled) sizeClass.shared.offer(buffer);
+
+        else {
+            sizeClass.pooled.decrementAndGet();
+            sizeClass.dropped.incrementAndGet();
+        }
+    }
+
+    // Drops all idle buffers and resets the metrics, buffers still out can be released as usual
+    public static void clear() {
+        generation++;
+
+        for (SizeClass sizeClass : SIZE_CLASSES) {
+            while (sizeClass.shared.poll() != null) sizeClass.pooled.decrementAndGet();
+
+            sizeClass.hits.set(0);
+            sizeClass.misses.set(0);
+            sizeClass.dropped.set(0);
+            sizeClass.highWaterMark.set(sizeClass.outstanding.get());
+        }
+    }
+
+    public static void setLeakSamplingInterval(int interval) {
+        leakSamplingInterval = interval;
+    }
+
+    // Logs tracked buffers that were garbage collected without being released, returns how many so far
+    public static long checkLeaks() {
+        LeakTracker tracker;
+
+        while ((tracker = (LeakTracker) collectedBuffers.poll()) != null) {
+            if (!trackedBuffers.remove(tracker)) continue; // Released before being collected
+
+            leakCount.incrementAndGet();
+            EngineLog.w(TAG, "Buffer was garbage collected without being released", tracker.acquiredAt);
+        }
+
+        return leakCount.get();
+    }
+
+    public static Stats[] getStats() {
+        final Stats[] stats = new Stats[SIZE_CLASSES.length];
+
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            final SizeClass sizeClass = SIZE_CLASSES[i];
+            stats[i] = new Stats(sizeClass.capacity, sizeClass.maxPooled, Math.max(sizeClass.pooled.get(), 0),
+                    sizeClass.outstanding.get(), sizeClass.highWaterMark.get(), sizeClass.hits.get(), sizeClass.misses.get(), sizeClass.dropped.get());
+        }
+
+        return stats;
+    }
+
+    private static LocalCache getLocalCache() {
+        final LocalCache cache = localCache.get();
+
+        final int currentGeneration = generation;
+        if (cache.generation != currentGeneration) cache.reset(currentGeneration);
+
+        return cache;
+    }
+
+    private static SizeClass sizeClassOf(ByteBuffer buffer) {
+        if (!buffer.isDirect()) return null;
+
+        for (SizeClass sizeClass : SIZE_CLASSES)
+            if (sizeClass.capacity == buffer.capacity()) return sizeClass;
+
+        return null;
+    }
+
+    private static void untrack(ByteBuffer buffer) {
+        for (LeakTracker tracker : trackedBuffers) {
+            if (tracker.get() == buffer) {
+                trackedBuffers.remove(tracker);
+                tracker.clear();
+                return;
+            }
+        }
+    }
+
+    private static class SizeClass {
+
+        private static int count;
+
+        final int index;
+        final int capacity;
+        final int maxPooled;
+        final ConcurrentLinkedQueue<ByteBuffer> shared = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pooled = new AtomicInteger();
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger highWaterMark = new AtomicInteger();
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+
+        SizeClass(int capacity, int maxPooled) {
+            this.index = count++;
+            this.capacity = capacity;
+            this.maxPooled = maxPooled;
+        }
+    }
+
+    private static class LocalCache {
+
+        final ByteBuffer[][] buffers = new ByteBuffer[SIZE_CLASSES.length][LOCAL_CACHE_SIZE];
+        final int[] counts = new int[SIZE_CLASSES.length];
+        int generation = ByteBufferPool.generation;
+        int acquiresSinceSample;
+
+        ByteBuffer pop(int sizeClass) {
+            if (counts[sizeClass] == 0) return null;
+
+            final int top = --counts[sizeClass];
+            final ByteBuffer buffer = buffers[sizeClass][top];
+            buffers[sizeClass][top] = null;
+            return buffer;
+        }
+
+        boolean push(int sizeClass, ByteBuffer buffer) {
+            if (counts[sizeClass] == LOCAL_CACHE_SIZE) return false;
+
+            buffers[sizeClass][counts[sizeClass]++] = buffer;
+            return true;
+        }
+
+        void reset(int generation) {
+            for (int i = 0; i < buffers.length; i++) {
+                Arrays.fill(buffers[i], null);
+                counts[i] = 0;
+            }
+
+            this.generation = generation;
+        }
+    }
+
+    private static class LeakTracker extends WeakReference<ByteBuffer> {
+
+        final Throwable acquiredAt;
+
+        LeakTracker(ByteBuffer buffer) {
+            super(buffer, collectedBuffers);
+            this.acquiredAt = new Throwable("Acquired by " + Thread.currentThread().getName());
+        }
+    }
+
+    public static class Stats {
+
+        public final int capacity;
+        public final int maxPooled;
+        public final int pooled;
+        public final int outstanding;
+        public final int highWaterMark;
+        public final long hits;
+        public final long misses;
+        public final long dropped;
+
+        Stats(int capacity, int maxPooled, int pooled, int outstanding, int highWaterMark, long hits, long misses, long dropped) {
+            this.capacity = capacity;
+            this.maxPooled = maxPooled;
+            this.pooled = pooled;
+            this.outstanding = outstanding;
+            this.highWaterMark = highWaterMark;
+            this.hits = hits;
+            this.misses = misses;
+            this.dropped = dropped;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("capacity=").append(capacity).append(", ");
+            builder.append("pooled=").append(pooled).append('/').append(maxPooled).append(", ");
+            builder.append("outstanding=").append(outstanding).append(", ");
+            builder.append("highWaterMark=").append(highWaterMark).append(", ");
+            builder.append("hits=").append(hits).append(", ");
+            builder.append("misses=").append(misses).append(", ");
+            builder.append("dropped=").append(dropped);
+            return builder.toString();
+        }
+    }
+}
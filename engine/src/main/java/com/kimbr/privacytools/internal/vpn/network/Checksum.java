@@ -0,0 +1,61 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import java.nio.ByteBuffer;
+
+// Internet checksum (RFC 1071) helpers working on absolute buffer indices
+public final class Checksum {
+
+    private Checksum() {
+    }
+
+    // Ones' complement sum of the 16-bit words in [offset, offset + length), folded but not
+    // inverted. Reads 8 bytes at a time, offset must be even for the sum to combine with others.
+    public static int sum(ByteBuffer buffer, int offset, int length) {
+        final int end = offset + length;
+        long sum = 0;
+        int i = offset;
+
+        // Each half of a big endian long is two words, adding the halves is the same as adding the words
+        for (; i <= end - 8; i += 8) {
+            final long value = buffer.getLong(i);
+            sum += (value >>> 32) + (value & 0xFFFFFFFFL);
+        }
+
+        if (i <= end - 4) {
+            sum += buffer.getInt(i) & 0xFFFFFFFFL;
+            i += 4;
+        }
+
+        if (i <= end - 2) {
+            sum += buffer.getShort(i) & 0xFFFF;
+            i += 2;
+        }
+
+        // Odd length, padded with a zero byte
+        if (i < end)
+            sum += (buffer.get(i) & 0xFF) << 8;
+
+        return fold(sum);
+    }
+
+    public static int fold(long sum) {
+        while (sum >>> 16 != 0)
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+
+        return (int) sum;
+    }
+
+    // RFC 1624 eqn. 3: HC' = ~(~HC + ~m + m'), for a 16-bit word of the summed data changing from m to m'
+    public static int adjust(int checksum, int oldValue, int newValue) {
+        return ~fold((~checksum & 0xFFFF) + (~oldValue & 0xFFFF) + (newValue & 0xFFFF)) & 0xFFFF;
+    }
+
+    public static int adjust32(int checksum, int oldValue, int newValue) {
+        return adjust(adjust(checksum, oldValue >>> 16, newValue >>> 16), oldValue & 0xFFFF, newValue & 0xFFFF);
+    }
+
+    // Extends a checksum with more data, given as a sum()
+    public static int add(int checksum, int sum) {
+        return ~fold((~checksum & 0xFFFF) + sum) & 0xFFFF;
+    }
+}
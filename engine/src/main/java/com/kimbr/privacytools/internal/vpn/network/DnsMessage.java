@@ -0,0 +1,175 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.DomainIndex;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+// Just enough DNS (RFC 1035) to answer queries for filtered names locally and to learn which
+// name the addresses in a response belong to: reads messages straight from the packet buffer.
+// The question name is collected into a reused StringBuilder, so a view isn't thread safe, each
+// thread keeps its own.
+public class DnsMessage {
+
+    public static final int PORT = 53;
+
+    public static final int TYPE_A = 1;
+    public static final int TYPE_AAAA = 28;
+    private static final int CLASS_IN = 1;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int RCODE_NXDOMAIN = 3;
+    // Short, so a name that's taken off the list resolves again soon
+    private static final int BLOCKED_TTL = 60;
+    // Name pointer, type, class, TTL, data length and an IPv6 address
+    private static final int MAX_ANSWER_SIZE = 2 + 2 + 2 + 4 + 2 + 16;
+
+    private final StringBuilder questionName = new StringBuilder(DomainIndex.MAX_NAME_LENGTH);
+    private ByteBuffer buffer;
+    private int offset;
+    private int end;
+    private int questionEnd;
+    private int questionType;
+
+    // Points this view at the message in buffer[offset, offset + length). Returns false unless it's
+    // a standard query with a single question, anything else is best left to the real server.
+    public boolean wrapQuery(ByteBuffer buffer, int offset, int length) {
+        return wrap(buffer, offset, length, false);
+    }
+
+    // As wrapQuery(), for a successful response to a standard query with a single question
+    public boolean wrapResponse(ByteBuffer buffer, int offset, int length) {
+        return wrap(buffer, offset, length, true);
+    }
+
+    private boolean wrap(ByteBuffer buffer, int offset, int length, boolean response) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.end = offset + length;
+        questionName.setLength(0);
+
+        if (length < HEADER_SIZE) return false;
+
+        // QR (set for a response) and opcode 0 (standard), exactly one question
+        final int flags = buffer.get(offset + 2) & 0xFF;
+        if ((flags & 0xF8) != (response ? 0x80 : 0) || buffer.getShort(offset + 4) != 1) return false;
+        if (response && (buffer.get(offset + 3) & 0x0F) != 0) return false; // Response code, no error
+        int position = offset + HEADER_SIZE;
+
+        while (true) {
+            if (position >= end) return false;
+            final int labelLength = buffer.get(position++) & 0xFF;
+            if (labelLength == 0) break;
+
+            // Compression pointers have no place in a question
+            if (labelLength > 63 || position + labelLength > end) return false;
+            if (questionName.length() + labelLength + 1 > DomainIndex.MAX_NAME_LENGTH) return false;
+            if (questionName.length() > 0) questionName.append('.');
+
+            for (int i = 0; i < labelLength; i++) {
+                final char c = (char) (buffer.get(position++) & 0xFF);
+                if (c == '.' || c <= ' ' || c >= 0x7F) return false; // Not a name the filter can list
+                questionName.append(c);
+            }
+        }
+
+        if (position + 4 > end) return false;
+        questionType = buffer.getShort(position) & 0xFFFF;
+        if ((buffer.getShort(position + 2) & 0xFFFF) != CLASS_IN) return false;
+
+        questionEnd = position + 4;
+        return true;
+    }
+
+    // As sent, without a trailing dot
+    public CharSequence getQuestionName() {
+        return questionName;
+    }
+
+    public int getQuestionType() {
+        return questionType;
+    }
+
+    // Puts the address of each A record answering the wrapped response into table, under the
+    // question's name. Resolvers answer with the CNAME chain from that name followed by the
+    // addresses at its end, so every address answered is one the question's name resolved to,
+    // whichever name the record is under. Returns how many were put
+    public int recordAddresses(HostnameTable table) {
+        final int answerCount = buffer.getShort(offset + 6) & 0xFFFF;
+        String name = null;
+        int position = questionEnd;
+        int recorded = 0;
+
+        for (int i = 0; i < answerCount; i++) {
+            position = skipName(position);
+            if (position < 0 || position + 10 > end) break;
+
+            final int type = buffer.getShort(position) & 0xFFFF;
+            final int recordClass = buffer.getShort(position + 2) & 0xFFFF;
+            final long ttl = buffer.getInt(position + 4) & 0xFFFFFFFFL;
+            final int dataLength = buffer.getShort(position + 8) & 0xFFFF;
+            position += 10;
+            if (position + dataLength > end) break;
+
+            if (type == TYPE_A && recordClass == CLASS_IN && dataLength == 4) {
+                if (name == null) name = questionName.toString().toLowerCase(Locale.US);
+                table.put(buffer.getInt(position), name, ttl);
+                recorded++;
+            }
+
+            position += dataLength;
+        }
+
+        return recorded;
+    }
+
+    // Position after the name at position, -1 if it runs past the message
+    private int skipName(int position) {
+        while (position < end) {
+            final int labelLength = buffer.get(position) & 0xFF;
+            if ((labelLength & 0xC0) == 0xC0) return position + 2; // Compression pointer ends the name
+            if (labelLength > 63) return -1;
+
+            position += 1 + labelLength;
+            if (labelLength == 0) return position;
+        }
+
+        return -1;
+    }
+
+    // Space writeBlockedResponse() needs at most
+    public int getMaxResponseLength() {
+        return questionEnd - offset + MAX_ANSWER_SIZE;
+    }
+
+    // Writes a response to the wrapped query into target at targetOffset, returns its length.
+    // With nxDomain the name is reported as not existing, otherwise A and AAAA questions are
+    // answered with the unspecified address (0.0.0.0, ::) and other types with no records.
+    public int writeBlockedResponse(ByteBuffer target, int targetOffset, boolean nxDomain) {
+        // Same id and question, additional records such as EDNS options aren't echoed
+        int position = targetOffset;
+        for (int i = offset; i < questionEnd; i++) target.put(position++, buffer.get(i));
+
+        final int addressLength = nxDomain ? 0 : questionType == TYPE_A ? 4 : questionType == TYPE_AAAA ? 16 : 0;
+
+        // QR set, opcode 0 and RD copied, then RA set with the response code
+        target.put(targetOffset + 2, (byte) (0x80 | (buffer.get(offset + 2) & 0x01)));
+        target.put(targetOffset + 3, (byte) (0x80 | (nxDomain ? RCODE_NXDOMAIN : 0)));
+        target.putShort(targetOffset + 6, (short) (addressLength > 0 ? 1 : 0));
+        target.putShort(targetOffset + 8, (short) 0);
+        target.putShort(targetOffset + 10, (short) 0);
+
+        if (addressLength > 0) {
+            target.putShort(position, (short) (0xC000 | HEADER_SIZE)); // Pointer to the question's name
+            target.putShort(position + 2, (short) questionType);
+            target.putShort(position + 4, (short) CLASS_IN);
+            target.putInt(position + 6, BLOCKED_TTL);
+            target.putShort(position + 10, (short) addressLength);
+            position += 12;
+
+            for (int i = 0; i < addressLength; i++) target.put(position++, (byte) 0);
+        }
+
+        return position - targetOffset;
+    }
+}
@@ -0,0 +1,215 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hash table from packed flow keys (see key()) to values, open addressing with linear probing
+// over a long[] of keys so lookups neither box nor build strings. Split into segments by hash,
+// each behind its own lock, so threads working on different flows rarely contend.
+// Holds at most maxSize entries, puts of new flows beyond that are refused rather than evicting.
+public class FlowTable<V> {
+
+    private static final int SEGMENT_BITS = 4;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile int maxSize;
+
+    public FlowTable(int maxSize) {
+        this.maxSize = maxSize;
+
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new Segment();
+    }
+
+    // Destination address and port plus source port, all a flow needs on a single device address
+    public static long key(int destinationAddress, int destinationPort, int sourcePort) {
+        return ((long) destinationAddress << 32) | ((long) destinationPort << 16) | sourcePort;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        final int hash = hash(key);
+        return (V) segmentFor(hash).get(key, hash);
+    }
+
+    // Adds or replaces the value for key, returns false if key is new and the table is full
+    public boolean put(long key, V value) {
+        if (value == null) throw new NullPointerException();
+
+        final int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, this);
+    }
+
+    // Removes key only if it still maps to value
+    public boolean remove(long key, V value) {
+        final int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, value, this) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        final int hash = hash(key);
+        return (V) segmentFor(hash).remove(key, hash, null, this);
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    // Lowering it doesn't remove entries, only refuses new ones until enough are gone
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    // Snapshot of the values, each segment is consistent but not the table as a whole
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        final List<V> values = new ArrayList<>(size());
+        for (Segment segment : segments) segment.addValuesTo((List<Object>) values, false, this);
+        return values;
+    }
+
+    // Empties the table, returning what was in it
+    @SuppressWarnings("unchecked")
+    public List<V> clear() {
+        final List<V> values = new ArrayList<>(size());
+        for (Segment segment : segments) segment.addValuesTo((List<Object>) values, true, this);
+        return values;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    // MurmurHash3 finalizer, the key fields are too regular (same address, sequential ports) to use as is
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private static class Segment {
+
+        // A slot is empty when its value is null, any key (even 0) is valid
+        private long[] keys = new long[INITIAL_SEGMENT_CAPACITY];
+        private Object[] values = new Object[INITIAL_SEGMENT_CAPACITY];
+        private int count;
+
+        synchronized Object get(long key, int hash) {
+            final int mask = keys.length - 1;
+
+            for (int i = hash & mask; values[i] != null; i = (i + 1) & mask)
+                if (keys[i] == key) return values[i];
+
+            return null;
+        }
+
+        synchronized boolean put(long key, int hash, Object value, FlowTable<?> table) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return true;
+                }
+            }
+
+            // Reserve a place in the table before taking it, so concurrent segments can't overshoot
+            if (table.size.incrementAndGet() > table.maxSize) {
+                table.size.decrementAndGet();
+                return false;
+            }
+
+            // Keep the load factor at 1/2 or below, linear probing degrades quickly past that
+            if ((count + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+                mask = keys.length - 1;
+                i = hash & mask;
+                while (values[i] != null) i = (i + 1) & mask;
+            }
+
+            keys[i] = key;
+            values[i] = value;
+            count++;
+            return true;
+        }
+
+        synchronized Object remove(long key, int hash, Object expectedValue, FlowTable<?> table) {
+            final int mask = keys.length - 1;
+
+            for (int i = hash & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] != key) continue;
+
+                final Object value = values[i];
+                if (expectedValue != null && value != expectedValue) return null;
+
+                removeAt(i);
+                count--;
+                table.size.decrementAndGet();
+                return value;
+            }
+
+            return null;
+        }
+
+        synchronized void addValuesTo(List<Object> list, boolean clear, FlowTable<?> table) {
+            for (Object value : values)
+                if (value != null) list.add(value);
+
+            if (clear && count > 0) {
+                Arrays.fill(values, null);
+                table.size.addAndGet(-count);
+                count = 0;
+            }
+        }
+
+        // Backward shift deletion: pulls later entries of the probe run into the gap, no tombstones
+        private void removeAt(int gap) {
+            final int mask = keys.length - 1;
+
+            for (int i = (gap + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+                final int ideal = hash(keys[i]) & mask;
+
+                // Entries whose ideal slot lies cyclically in (gap, i] must stay where they are
+                final boolean stays = gap <= i ? (gap < ideal && ideal <= i) : (gap < ideal || ideal <= i);
+                if (stays) continue;
+
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+
+            values[gap] = null;
+        }
+
+        private void resize(int capacity) {
+            final long[] oldKeys = keys;
+            final Object[] oldValues = values;
+            keys = new long[capacity];
+            values = new Object[capacity];
+
+            final int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] == null) continue;
+
+                int i = hash(oldKeys[j]) & mask;
+                while (values[i] != null) i = (i + 1) & mask;
+
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
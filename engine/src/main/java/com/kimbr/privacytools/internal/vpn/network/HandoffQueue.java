@@ -0,0 +1,265 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.metrics.LatencyHistogram;
+
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded blocking queue handing packets from the device thread to an output worker.
+// Consumers park until an item arrives instead of sleep-polling, producers can wait for space
+// (backpressure) or drop, and the time every item spends queued is recorded.
+// A consumer blocked in select() rather than take() can pass its selector to be woken instead.
+public class HandoffQueue<E> {
+
+    private final Object[] items;
+    private final long[] enqueueTimes; // parallel to items, avoids wrapping each item
+    private int head;
+    private int tail;
+    private int count;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Selector wakeupSelector;
+    private final LatencyHistogram waitHistogram;
+    private long lastEnqueueTime; // Of the item last dequeued
+
+    // Metrics, only touched while holding lock
+    private long enqueuedCount;
+    private long dequeuedCount;
+    private long droppedCount;
+    private int highWaterMark;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private long producerBlockedNanos;
+
+    public HandoffQueue(int capacity) {
+        this(capacity, null);
+    }
+
+    public HandoffQueue(int capacity, Selector wakeupSelector) {
+        this(capacity, wakeupSelector, null);
+    }
+
+    // Every item's wait is also recorded into waitHistogram, if not null
+    public HandoffQueue(int capacity, Selector wakeupSelector, LatencyHistogram waitHistogram) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+
+        this.items = new Object[capacity];
+        this.enqueueTimes = new long[capacity];
+        this.wakeupSelector = wakeupSelector;
+        this.waitHistogram = waitHistogram;
+    }
+
+    // Non-blocking, returns false (and counts a drop) if the queue is full
+    public boolean offer(E item) {
+        lock.lock();
+        try {
+            if (count == items.length) {
+                droppedCount++;
+                return false;
+            }
+
+            enqueue(item);
+        }
+
+        finally {
+            lock.unlock();
+        }
+
+        wakeupConsumer();
+        return true;
+    }
+
+    // Waits up to timeout for space, returns false (and counts a drop) if none became free
+    public boolean offer(E item, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+
+        lock.lockInterruptibly();
+        try {
+            if (count == items.length) {
+                final long blockedSince = System.nanoTime();
+
+                while (count == items.length) {
+                    if (nanos <= 0) {
+                        droppedCount++;
+                        producerBlockedNanos += System.nanoTime() - blockedSince;
+                        return false;
+                    }
+
+                    nanos = notFull.awaitNanos(nanos);
+                }
+
+                producerBlockedNanos += System.nanoTime() - blockedSince;
+            }
+
+            enqueue(item);
+        }
+
+        finally {
+            lock.unlock();
+        }
+
+        wakeupConsumer();
+        return true;
+    }
+
+    // Waits as long as needed for space
+    public void put(E item) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (count == items.length) {
+                final long blockedSince = System.nanoTime();
+                while (count == items.length) notFull.await();
+                producerBlockedNanos += System.nanoTime() - blockedSince;
+            }
+
+            enqueue(item);
+        }
+
+        finally {
+            lock.unlock();
+        }
+
+        wakeupConsumer();
+    }
+
+    // Parks the calling thread until an item is available
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) notEmpty.await();
+            return dequeue();
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Non-blocking, returns null if the queue is empty
+    public E poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // System.nanoTime() when the item last taken or polled was offered. Written by the taking
+    // thread itself, so only meaningful to a queue's single consumer, asking right after taking
+    public long getLastEnqueueTime() {
+        return lastEnqueueTime;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    public Stats getStats() {
+        lock.lock();
+        try {
+            return new Stats(count, items.length, highWaterMark, enqueuedCount, dequeuedCount, droppedCount,
+                    dequeuedCount == 0 ? 0 : totalWaitNanos / dequeuedCount, maxWaitNanos, producerBlockedNanos);
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Outside the lock, Selector.wakeup() may be a syscall
+    private void wakeupConsumer() {
+        if (wakeupSelector != null) wakeupSelector.wakeup();
+    }
+
+    private void enqueue(E item) {
+        items[tail] = item;
+        enqueueTimes[tail] = System.nanoTime();
+        if (++tail == items.length) tail = 0;
+
+        count++;
+        enqueuedCount++;
+        if (count > highWaterMark) highWaterMark = count;
+
+        notEmpty.signal();
+    }
+
+    @SuppressWarnings("unchecked")
+    private E dequeue() {
+        final E item = (E) items[head];
+        lastEnqueueTime = enqueueTimes[head];
+        final long waitNanos = System.nanoTime() - lastEnqueueTime;
+        items[head] = null;
+        if (++head == items.length) head = 0;
+
+        count--;
+        dequeuedCount++;
+        totalWaitNanos += waitNanos;
+        if (waitNanos > maxWaitNanos) maxWaitNanos = waitNanos;
+        if (waitHistogram != null) waitHistogram.record(waitNanos);
+
+        notFull.signal();
+        return item;
+    }
+
+    @Override
+    public String toString() {
+        return "HandoffQueue{" + getStats() + "}";
+    }
+
+    public static class Stats {
+
+        public final int depth;
+        public final int capacity;
+        public final int highWaterMark;
+        public final long enqueuedCount;
+        public final long dequeuedCount;
+        public final long droppedCount;
+        public final long averageWaitNanos;
+        public final long maxWaitNanos;
+        public final long producerBlockedNanos;
+
+        Stats(int depth, int capacity, int highWaterMark, long enqueuedCount, long dequeuedCount, long droppedCount, long averageWaitNanos, long maxWaitNanos, long producerBlockedNanos) {
+            this.depth = depth;
+            this.capacity = capacity;
+            this.highWaterMark = highWaterMark;
+            this.enqueuedCount = enqueuedCount;
+            this.dequeuedCount = dequeuedCount;
+            this.droppedCount = droppedCount;
+            this.averageWaitNanos = averageWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.producerBlockedNanos = producerBlockedNanos;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("depth=").append(depth).append('/').append(capacity).append(", ");
+            builder.append("highWaterMark=").append(highWaterMark).append(", ");
+            builder.append("enqueued=").append(enqueuedCount).append(", ");
+            builder.append("dequeued=").append(dequeuedCount).append(", ");
+            builder.append("dropped=").append(droppedCount).append(", ");
+            builder.append("averageWaitUs=").append(averageWaitNanos / 1000).append(", ");
+            builder.append("maxWaitUs=").append(maxWaitNanos / 1000).append(", ");
+            builder.append("producerBlockedMs=").append(producerBlockedNanos / 1000000);
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import java.util.Arrays;
+
+// Which name each address was looked up by, learned from DNS responses on their way back to the
+// device (see UDPInput), so packets can be put down to a host without a reverse lookup. Holds up
+// to capacity addresses, and an address is forgotten a while after its record's TTL runs out.
+// When full, an expired entry makes room, or else the one due to expire soonest: entries are
+// sampled EVICTION_SCAN at a time, in order, so an address answered again just now stays.
+// Addresses are found through an open addressing table of entry numbers, so a lookup neither
+// boxes nor allocates.
+public class HostnameTable {
+
+    // Apps keep connecting to an address for a while after its TTL, from their own caches
+    private static final long MIN_TTL_MS = 120000;
+    private static final long MAX_TTL_MS = 86400000;
+    private static final int EVICTION_SCAN = 16;
+
+    private final int[] addresses;
+    private final String[] names;
+    private final long[] expiries;
+    // Entry number plus one, 0 for an empty slot. Power of two sized, at most half full
+    private final int[] slots;
+    private int next; // Where the next eviction scan starts
+    private int size;
+
+    public HostnameTable(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+
+        addresses = new int[capacity];
+        names = new String[capacity];
+        expiries = new long[capacity];
+        slots = new int[Integer.highestOneBit(capacity) * 4];
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    // The name address was last answered for, null if none or it has expired
+    public synchronized String lookup(int address) {
+        final int entry = find(address);
+        if (entry < 0 || expiries[entry] - now() < 0) return null;
+        return names[entry];
+    }
+
+    public synchronized void put(int address, String name, long ttlSeconds) {
+        final long now = now();
+        final long expiry = now + Math.min(Math.max(ttlSeconds * 1000, MIN_TTL_MS), MAX_TTL_MS);
+
+        int entry = find(address);
+        if (entry < 0) {
+            entry = size < names.length ? size : evictionCandidate(now);
+
+            if (names[entry] != null) removeSlot(addresses[entry]);
+            else size++;
+
+            addresses[entry] = address;
+            final int mask = slots.length - 1;
+            int i = hash(address) & mask;
+            while (slots[i] != 0) i = (i + 1) & mask;
+            slots[i] = entry + 1;
+        }
+
+        names[entry] = name;
+        expiries[entry] = expiry;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(slots, 0);
+        Arrays.fill(names, null);
+        next = 0;
+        size = 0;
+    }
+
+    // Of the next EVICTION_SCAN entries, the first expired one or else the one expiring soonest
+    private int evictionCandidate(long now) {
+        int candidate = next;
+
+        for (int n = 0, i = next; n < Math.min(EVICTION_SCAN, names.length); n++, i = (i + 1) % names.length) {
+            if (expiries[i] - expiries[candidate] < 0) candidate = i;
+            if (expiries[candidate] - now < 0) break;
+        }
+
+        next = (candidate + 1) % names.length;
+        return candidate;
+    }
+
+    private int find(int address) {
+        final int mask = slots.length - 1;
+
+        for (int i = hash(address) & mask; slots[i] != 0; i = (i + 1) & mask)
+            if (addresses[slots[i] - 1] == address) return slots[i] - 1;
+
+        return -1;
+    }
+
+    // Backward shift deletion, as in FlowTable
+    private void removeSlot(int address) {
+        final int mask = slots.length - 1;
+        int gap = hash(address) & mask;
+        while (addresses[slots[gap] - 1] != address) gap = (gap + 1) & mask;
+
+        for (int i = (gap + 1) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            final int ideal = hash(addresses[slots[i] - 1]) & mask;
+
+            // Entries whose ideal slot lies cyclically in (gap, i] must stay where they are
+            final boolean stays = gap <= i ? (gap < ideal && ideal <= i) : (gap < ideal || ideal <= i);
+            if (stays) continue;
+
+            slots[gap] = slots[i];
+            gap = i;
+        }
+
+        slots[gap] = 0;
+    }
+
+    // MurmurHash3 finalizer, addresses handed out by one CDN differ only in their low bits
+    private static int hash(int address) {
+        address ^= address >>> 16;
+        address *= 0x85ebca6b;
+        address ^= address >>> 13;
+        address *= 0xc2b2ae35;
+        address ^= address >>> 16;
+        return address;
+    }
+}
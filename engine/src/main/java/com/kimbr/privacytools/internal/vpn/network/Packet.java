@@ -0,0 +1,270 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.network.headers.AbstractHeader;
+import com.kimbr.privacytools.internal.vpn.network.headers.IP4Header;
+import com.kimbr.privacytools.internal.vpn.network.headers.TCPHeader;
+import com.kimbr.privacytools.internal.vpn.network.headers.UDPHeader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// Flyweight view over a packet starting at index 0 of its backing buffer. Header fields are read
+// lazily at fixed offsets and mutations are written straight into the buffer, so a view can be
+// re-pointed at the next packet with wrap() instead of parsing (and allocating) a new Packet.
+// A view isn't thread safe, every thread handling packets keeps its own.
+public class Packet {
+
+    public static final int IP4_HEADER_SIZE = 20;
+    public static final int TCP_HEADER_SIZE = 20;
+    public static final int UDP_HEADER_SIZE = 8;
+    public static final int MSS_OPTION_SIZE = 4;
+
+    private static final int PROTOCOL_TCP = IP4Header.TransportProtocol.TCP.getNumber();
+    private static final int PROTOCOL_UDP = IP4Header.TransportProtocol.UDP.getNumber();
+
+    public final IP4Header ip4Header = new IP4Header();
+    public final TCPHeader tcpHeader = new TCPHeader();
+    public final UDPHeader udpHeader = new UDPHeader();
+    public ByteBuffer backingBuffer;
+
+    private boolean isUdp = false;
+    private boolean isTcp = false;
+    // Set on reference packets, whose checksums are kept valid for their own headers so responses
+    // only need them adjusted. They must only be modified through swapSourceAndDestination()
+    private boolean hasReferenceChecksums = false;
+
+    public Packet() {
+    }
+
+    public Packet(ByteBuffer buffer) {
+        wrap(buffer);
+    }
+
+    // Points this view at the packet in buffer and positions the buffer at the start of the payload.
+    // Truncated packets are treated as neither TCP nor UDP.
+    public Packet wrap(ByteBuffer buffer) {
+        backingBuffer = buffer;
+        ip4Header.wrap(buffer);
+        isTcp = false;
+        isUdp = false;
+        hasReferenceChecksums = false;
+
+        final int limit = buffer.limit();
+        if (limit < IP4_HEADER_SIZE) return this;
+
+        final int ip4HeaderLength = ip4Header.getHeaderLength();
+        final int protocol = ip4Header.getProtocolNumber();
+
+        if (protocol == PROTOCOL_TCP && limit >= ip4HeaderLength + TCP_HEADER_SIZE) {
+            tcpHeader.wrap(buffer, ip4HeaderLength);
+            final int payloadOffset = ip4HeaderLength + tcpHeader.getHeaderLength();
+            isTcp = payloadOffset <= limit;
+            buffer.position(isTcp ? payloadOffset : limit);
+        }
+
+        else if (protocol == PROTOCOL_UDP && limit >= ip4HeaderLength + UDP_HEADER_SIZE) {
+            udpHeader.wrap(buffer, ip4HeaderLength);
+            isUdp = true;
+            buffer.position(ip4HeaderLength + UDP_HEADER_SIZE);
+        }
+
+        else buffer.position(Math.min(ip4HeaderLength, limit));
+
+        return this;
+    }
+
+    public boolean isUdp() {
+        return isUdp;
+    }
+
+    public boolean isTcp() {
+        return isTcp;
+    }
+
+    // Copies the IP and transport headers, without options, into a small buffer of their own.
+    // Used as a flow's reference packet, which has to outlive the device buffer it came from.
+    public Packet copyHeaders() {
+        final int headersSize = IP4_HEADER_SIZE + (isTcp ? TCP_HEADER_SIZE : UDP_HEADER_SIZE);
+        final ByteBuffer headers = ByteBuffer.allocate(headersSize);
+        copyHeadersTo(headers);
+
+        headers.putShort(2, (short) headersSize);
+        updateIp4Checksum(headers);
+        if (isTcp) updateTcpChecksum(headers, 0, 0);
+
+        final Packet referencePacket = new Packet(headers);
+        referencePacket.hasReferenceChecksums = true;
+        return referencePacket;
+    }
+
+    // Keeps the checksums valid, swapping words doesn't change their sum
+    public void swapSourceAndDestination() {
+        // Swaps destination and source address
+        final int newSourceAddress = ip4Header.getDestinationAddress();
+        ip4Header.setDestinationAddress(ip4Header.getSourceAddress());
+        ip4Header.setSourceAddress(newSourceAddress);
+
+        // Swaps destination and source ports
+        final AbstractHeader transportHeader;
+        if (isUdp) transportHeader = udpHeader;
+        else if (isTcp) transportHeader = tcpHeader;
+        else return;
+
+        final int newSourcePort = transportHeader.getDestinationPort();
+        transportHeader.setDestinationPort(transportHeader.getSourcePort());
+        transportHeader.setSourcePort(newSourcePort);
+    }
+
+    // Writes this packet's headers into buffer as a response, leaving buffer positioned after them.
+    // This view and its own buffer are left untouched.
+    public void updateTcpBuffer(ByteBuffer buffer, byte flags, long sequenceNumber, long acknowledgementNumber, int payloadSize) {
+        updateTcpBuffer(buffer, 0, flags, sequenceNumber, acknowledgementNumber, payloadSize);
+    }
+
+    // As above, for a response starting at offset, so one buffer can carry several back to back
+    public void updateTcpBuffer(ByteBuffer buffer, int offset, byte flags, long sequenceNumber, long acknowledgementNumber, int payloadSize) {
+        copyHeadersTo(buffer, offset);
+
+        buffer.put(offset + IP4_HEADER_SIZE + 13, flags);
+        buffer.putInt(offset + IP4_HEADER_SIZE + 4, (int) sequenceNumber);
+        buffer.putInt(offset + IP4_HEADER_SIZE + 8, (int) acknowledgementNumber);
+
+        final int ip4TotalLength = IP4_HEADER_SIZE + TCP_HEADER_SIZE + payloadSize;
+        buffer.putShort(offset + 2, (short) ip4TotalLength);
+
+        if (hasReferenceChecksums) {
+            // RFC 1624: adjust the copied checksums for the words that differ from this packet's,
+            // then add the payload. Nothing else in the headers is touched between responses
+            int tcpChecksum = tcpHeader.getChecksum();
+            tcpChecksum = Checksum.adjust32(tcpChecksum, (int) tcpHeader.getSequenceNumber(), (int) sequenceNumber);
+            tcpChecksum = Checksum.adjust32(tcpChecksum, (int) tcpHeader.getAcknowledgementNumber(), (int) acknowledgementNumber);
+            tcpChecksum = Checksum.adjust(tcpChecksum, tcpHeader.getFlags() & 0xFF, flags & 0xFF);
+            // TCP length in the pseudo-header
+            tcpChecksum = Checksum.adjust(tcpChecksum, TCP_HEADER_SIZE, TCP_HEADER_SIZE + payloadSize);
+
+            if (payloadSize > 0)
+                tcpChecksum = Checksum.add(tcpChecksum, Checksum.sum(buffer, offset + IP4_HEADER_SIZE + TCP_HEADER_SIZE, payloadSize));
+
+            buffer.putShort(offset + IP4_HEADER_SIZE + 16, (short) tcpChecksum);
+            buffer.putShort(offset + 10, (short) Checksum.adjust(ip4Header.getHeaderChecksum(), ip4Header.getTotalLength(), ip4TotalLength));
+        }
+
+        else {
+            updateTcpChecksum(buffer, offset, payloadSize);
+            updateIp4Checksum(buffer, offset);
+        }
+
+        buffer.position(offset + IP4_HEADER_SIZE + TCP_HEADER_SIZE);
+    }
+
+    // A SYN+ACK response advertising maxSegmentSize, the only option we send. The option is
+    // written and summed as if it were payload, then the header is extended over it
+    public void updateSynAckBuffer(ByteBuffer buffer, long sequenceNumber, long acknowledgementNumber, int maxSegmentSize) {
+        buffer.putInt(IP4_HEADER_SIZE + TCP_HEADER_SIZE, TCPHeader.OPTION_MSS << 24 | MSS_OPTION_SIZE << 16 | maxSegmentSize & 0xFFFF);
+        updateTcpBuffer(buffer, (byte) (TCPHeader.SYN | TCPHeader.ACK), sequenceNumber, acknowledgementNumber, MSS_OPTION_SIZE);
+
+        final int dataOffsetAndFlags = buffer.getShort(IP4_HEADER_SIZE + 12) & 0xFFFF;
+        final int extendedDataOffsetAndFlags = (TCP_HEADER_SIZE + MSS_OPTION_SIZE) << 10 | dataOffsetAndFlags & 0xFF;
+        buffer.putShort(IP4_HEADER_SIZE + 12, (short) extendedDataOffsetAndFlags);
+        buffer.putShort(IP4_HEADER_SIZE + 16, (short) Checksum.adjust(buffer.getShort(IP4_HEADER_SIZE + 16) & 0xFFFF, dataOffsetAndFlags, extendedDataOffsetAndFlags));
+
+        buffer.position(IP4_HEADER_SIZE + TCP_HEADER_SIZE + MSS_OPTION_SIZE);
+    }
+
+    public void updateUdpBuffer(ByteBuffer buffer, int payloadSize) {
+        copyHeadersTo(buffer);
+
+        final int udpTotalLength = UDP_HEADER_SIZE + payloadSize;
+        buffer.putShort(IP4_HEADER_SIZE + 4, (short) udpTotalLength);
+
+        // disable udp checksum verification
+        buffer.putShort(IP4_HEADER_SIZE + 6, (short) 0);
+
+        final int ip4TotalLength = IP4_HEADER_SIZE + udpTotalLength;
+        buffer.putShort(2, (short) ip4TotalLength);
+
+        if (hasReferenceChecksums)
+            buffer.putShort(10, (short) Checksum.adjust(ip4Header.getHeaderChecksum(), ip4Header.getTotalLength(), ip4TotalLength));
+
+        else updateIp4Checksum(buffer);
+        buffer.position(IP4_HEADER_SIZE + UDP_HEADER_SIZE);
+    }
+
+    // Writes each packet in buffer, from its position to its limit, to output with a write of its
+    // own, as a tun device takes one packet per write. Returns how many packets were written
+    public static int writePackets(ByteBuffer buffer, WritableByteChannel output) throws IOException {
+        final int end = buffer.limit();
+        int packets = 0;
+
+        while (buffer.position() < end) {
+            final int start = buffer.position();
+            final int totalLength = buffer.getShort(start + 2) & 0xFFFF;
+            buffer.limit(totalLength < IP4_HEADER_SIZE ? end : Math.min(start + totalLength, end));
+
+            while (buffer.hasRemaining())
+                output.write(buffer);
+
+            buffer.limit(end);
+            packets++;
+        }
+
+        return packets;
+    }
+
+    // Fixed part of the IP header plus the fixed part of the transport header, an int at a time
+    private void copyHeadersTo(ByteBuffer buffer) {
+        copyHeadersTo(buffer, 0);
+    }
+
+    private void copyHeadersTo(ByteBuffer buffer, int offset) {
+        final int ip4HeaderLength = ip4Header.getHeaderLength();
+        final int transportHeaderSize = isTcp ? TCP_HEADER_SIZE : UDP_HEADER_SIZE;
+
+        for (int i = 0; i < IP4_HEADER_SIZE; i += 4)
+            buffer.putInt(offset + i, backingBuffer.getInt(i));
+
+        for (int i = 0; i < transportHeaderSize; i += 4)
+            buffer.putInt(offset + IP4_HEADER_SIZE + i, backingBuffer.getInt(ip4HeaderLength + i));
+
+        // Reset header sizes, since we don't need options
+        buffer.put(offset, (byte) (0x40 | IP4_HEADER_SIZE >> 2));
+        if (isTcp) buffer.put(offset + IP4_HEADER_SIZE + 12, (byte) (TCP_HEADER_SIZE << 2));
+    }
+
+    private static void updateIp4Checksum(ByteBuffer buffer) {
+        updateIp4Checksum(buffer, 0);
+    }
+
+    private static void updateIp4Checksum(ByteBuffer buffer, int offset) {
+        // Clear previous checksum
+        buffer.putShort(offset + 10, (short) 0);
+        buffer.putShort(offset + 10, (short) ~Checksum.sum(buffer, offset, IP4_HEADER_SIZE));
+    }
+
+    private static void updateTcpChecksum(ByteBuffer buffer, int offset, int payloadSize) {
+        final int tcpLength = TCP_HEADER_SIZE + payloadSize;
+
+        // clear previous checksum
+        buffer.putShort(offset + IP4_HEADER_SIZE + 16, (short) 0);
+
+        // Pseudo-header (both addresses, protocol and TCP length) plus the TCP segment
+        final long sum = Checksum.sum(buffer, offset + 12, 8) + PROTOCOL_TCP + tcpLength + Checksum.sum(buffer, offset + IP4_HEADER_SIZE, tcpLength);
+        buffer.putShort(offset + IP4_HEADER_SIZE + 16, (short) ~Checksum.fold(sum));
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder stringBuilder = new StringBuilder("Packet{");
+        stringBuilder.append("ip4header=").append(ip4Header);
+        stringBuilder.append(", ");
+
+        if (isTcp) stringBuilder.append("tcpHeader=").append(tcpHeader);
+        else if (isUdp) stringBuilder.append("udpHeader=").append(udpHeader);
+
+        stringBuilder.append(", ");
+        stringBuilder.append(backingBuffer.limit() - backingBuffer.position());
+        stringBuilder.append("}");
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,93 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Channel registrations and interest changes requested from other threads. They are queued and
+// applied by the selector thread itself between select() calls, so register() never races (or
+// blocks on) a select() in progress and the selector thread never has to sleep and retry.
+// Requests made on the selector thread itself (e.g. from a TunnelReactor) are applied directly.
+public class RegistrationQueue {
+
+    private static final String TAG = "RegistrationQueue";
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Registration> pending = new ConcurrentLinkedQueue<>();
+    private volatile Thread selectorThread;
+
+    public RegistrationQueue(Selector selector) {
+        this.selector = selector;
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    // Registers the channel, or updates its interest set and attachment if already registered
+    public void register(SelectableChannel channel, int interestOps, Object attachment) {
+        if (Thread.currentThread() == selectorThread) {
+            apply(channel, interestOps, attachment, true);
+            return;
+        }
+
+        pending.offer(new Registration(channel, interestOps, attachment, true));
+        selector.wakeup();
+    }
+
+    // Changes the interest set of an already registered channel, keeping its attachment
+    public void interestOps(SelectableChannel channel, int interestOps) {
+        if (Thread.currentThread() == selectorThread) {
+            apply(channel, interestOps, null, false);
+            return;
+        }
+
+        pending.offer(new Registration(channel, interestOps, null, false));
+        selector.wakeup();
+    }
+
+    // Must only be called from the thread that owns the selector
+    public void processPending() {
+        selectorThread = Thread.currentThread();
+        Registration registration;
+
+        while ((registration = pending.poll()) != null)
+            apply(registration.channel, registration.interestOps, registration.attachment, registration.register);
+    }
+
+    private void apply(SelectableChannel channel, int interestOps, Object attachment, boolean register) {
+        try {
+            if (register) channel.register(selector, interestOps, attachment);
+
+            else {
+                final SelectionKey key = channel.keyFor(selector);
+                if (key != null && key.isValid()) key.interestOps(interestOps);
+            }
+        }
+
+        catch (ClosedChannelException | CancelledKeyException ex) {
+            // Connection was closed before the selector thread got to it, nothing left to do
+            EngineLog.d(TAG, "Skipping registration for closed channel: " + channel);
+        }
+    }
+
+    private static class Registration {
+
+        final SelectableChannel channel;
+        final int interestOps;
+        final Object attachment;
+        final boolean register;
+
+        Registration(SelectableChannel channel, int interestOps, Object attachment, boolean register) {
+            this.channel = channel;
+            this.interestOps = interestOps;
+            this.attachment = attachment;
+            this.register = register;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+public class TCB {
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 4096;
+    private static final FlowTable<TCB> tcbTable = new FlowTable<>(DEFAULT_MAX_CONNECTIONS);
+
+    // RFC 1122 default, for devices whose SYN carries no MSS option
+    public static final int DEFAULT_MAX_SEGMENT_SIZE = 536;
+    // Largest payload a pool buffer holds behind our headers, also the MSS we advertise to devices
+    public static final int MAX_SEGMENT_SIZE = ByteBufferPool.BUFFER_SIZE - Packet.IP4_HEADER_SIZE - Packet.TCP_HEADER_SIZE;
+
+    public String ipAndPort;
+    public String hostName; // Name the device looked the address up by, null if HostnameTable hadn't seen it
+    public final long flowKey;
+    public long mySequenceNumber;
+    public long theirSequenceNumber;
+    public long myAcknowledgementNumber;
+    public long theirAcknowledgementNumber;
+    public TCBStatus status;
+
+    public Packet referencePacket;
+    public SocketChannel channel;
+    public boolean waitingForNetworkData;
+    public int maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE; // Largest payload the device takes in one segment
+    // Last window the device advertised. Never scaled, our SYN-ACK doesn't carry the option
+    public int theirWindow;
+    public boolean readPaused; // TCPInput stopped reading the channel until the window opens
+
+    // TCBReaper.now() of the last packet either way
+    public volatile long lastActivity;
+    long checkTick; // Owned by TCBReaper
+    long connectStartTime; // System.nanoTime() of connect(), for PipelineMetrics.connectTime
+
+    // TCP has more states but we only need these
+    public enum TCBStatus {
+        SYN_SENT(20000), // Remote hasn't answered our connect yet
+        SYN_RECEIVED(30000), // Device hasn't acknowledged our SYN+ACK yet
+        ESTABLISHED(600000),
+        CLOSE_WAIT(30000), // Device closed its side
+        LAST_ACK(10000); // Both sides closed, waiting for the device's last ACK
+
+        // How long a flow in this state may go without packets before TCBReaper resets it
+        public final long idleTimeoutMs;
+
+        TCBStatus(long idleTimeoutMs) {
+            this.idleTimeoutMs = idleTimeoutMs;
+        }
+    }
+
+    public TCB(String ipAndPort, long flowKey, long mySequenceNumber, long theirSequenceNumber, long myAcknowledgementNumber, long theirAcknowledgementNumber, SocketChannel channel, Packet referencePacket) {
+        this.ipAndPort = ipAndPort;
+        this.flowKey = flowKey;
+        this.mySequenceNumber = mySequenceNumber;
+        this.theirSequenceNumber = theirSequenceNumber;
+        this.myAcknowledgementNumber = myAcknowledgementNumber;
+        this.theirAcknowledgementNumber = theirAcknowledgementNumber;
+        this.channel = channel;
+        this.referencePacket = referencePacket;
+    }
+
+    // Sent to the device and not acknowledged yet
+    public long getUnacknowledgedBytes() {
+        return (mySequenceNumber - theirAcknowledgementNumber) & 0xFFFFFFFFL;
+    }
+
+    // How much more the device's window takes. Nothing while that's less than a segment and
+    // something is still unacknowledged, the ACK for it will open the window further, so a
+    // nearly full window isn't topped up with small segments (RFC 1122 4.2.3.4)
+    public int getSendableBytes() {
+        final long unacknowledged = getUnacknowledgedBytes();
+        final long room = theirWindow - unacknowledged;
+        if (room <= 0 || room < maxSegmentSize && unacknowledged > 0) return 0;
+        return (int) room;
+    }
+
+    // Takes the ACK number and window of a packet from the device, unless it acknowledges data
+    // we never sent
+    public void updateFromAck(long acknowledgementNumber, int window) {
+        if (((acknowledgementNumber - theirAcknowledgementNumber) & 0xFFFFFFFFL) > getUnacknowledgedBytes()) return;
+
+        theirAcknowledgementNumber = acknowledgementNumber;
+        theirWindow = window;
+    }
+
+    // flowKey from FlowTable.key()
+    public static TCB getTcb(long flowKey) {
+        return tcbTable.get(flowKey);
+    }
+
+    // Returns false if there are already as many connections as allowed
+    public static boolean putTcb(TCB tcb) {
+        return tcbTable.put(tcb.flowKey, tcb);
+    }
+
+    public static void closeTcb(TCB tcb) {
+        tcb.closeChannel();
+        tcbTable.remove(tcb.flowKey, tcb);
+    }
+
+    // Snapshot of the open connections
+    public static List<TCB> getAll() {
+        return tcbTable.values();
+    }
+
+    public static void closeAll() {
+        for (TCB tcb : tcbTable.clear()) tcb.closeChannel();
+    }
+
+    public static int getMaxConnections() {
+        return tcbTable.getMaxSize();
+    }
+
+    public static void setMaxConnections(int maxConnections) {
+        tcbTable.setMaxSize(maxConnections);
+    }
+
+    public static int getConnectionCount() {
+        return tcbTable.size();
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        }
+
+        catch (IOException ex) {
+            EngineLog.e("TCB", ex.getMessage(), ex);
+        }
+    }
+}
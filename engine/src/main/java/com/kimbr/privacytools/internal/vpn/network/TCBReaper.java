@@ -0,0 +1,170 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.metrics.PipelineMetrics;
+import com.kimbr.privacytools.internal.vpn.network.headers.TCPHeader;
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+// Closes TCBs that have been idle for longer than their state allows, resetting them on the
+// device. Flows sit in a hashed timing wheel by the tick they're next due to be checked: a check
+// that finds the flow active again just reschedules it, so packets only ever update
+// TCB.lastActivity and never touch the wheel. Checks are at most MAX_CHECK_INTERVAL_MS apart,
+// which also picks up flows moving to a state with a shorter timeout (e.g. FIN received).
+// Runs on its own thread in the pipeline, a TunnelReactor calls tick() from its loop instead.
+public class TCBReaper implements Runnable {
+
+    private static final String TAG = "TCBReaper";
+
+    public static final long TICK_MS = 1000;
+    private static final long MAX_CHECK_INTERVAL_MS = 5000;
+    private static final int WHEEL_SIZE = 64; // Power of two, covers MAX_CHECK_INTERVAL_MS
+
+    // Closing flows are given up on soonest, they're also the first to go when the table is full
+    private static final TCB.TCBStatus[] PRESSURE_ORDER = {TCB.TCBStatus.LAST_ACK, TCB.TCBStatus.CLOSE_WAIT, TCB.TCBStatus.SYN_SENT};
+
+    private final BlockingQueue<ByteBuffer> outputQueue;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final List<TCB>[] wheel = new List[WHEEL_SIZE];
+    private final List<TCB> due = new ArrayList<>();
+    private long currentTick;
+
+    private long reapedCount;
+    private long pressureReapedCount;
+
+    public TCBReaper(BlockingQueue<ByteBuffer> outputQueue) {
+        this.outputQueue = outputQueue;
+        this.currentTick = now() / TICK_MS;
+
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            wheel[i] = new ArrayList<>();
+    }
+
+    // Monotonic milliseconds, what TCB.lastActivity is measured in
+    public static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    @Override
+    public void run() {
+        EngineLog.d(TAG, "Started.");
+
+        try {
+            while (!Thread.interrupted()) {
+                Thread.sleep(TICK_MS);
+                tick();
+            }
+        }
+
+        catch (InterruptedException ex) {
+            EngineLog.d(TAG, "Stopping, reaped " + reapedCount + " idle and " + pressureReapedCount + " under pressure");
+        }
+    }
+
+    // Starts watching a new flow
+    public void schedule(TCB tcb) {
+        tcb.lastActivity = now();
+        scheduleCheck(tcb, tcb.lastActivity + Math.min(tcb.status.idleTimeoutMs, MAX_CHECK_INTERVAL_MS));
+    }
+
+    // Checks every flow due by now, any thread may call it but only one should
+    public void tick() {
+        tick(now());
+    }
+
+    // now as now() would return it, tests move it ahead instead of waiting
+    void tick(long now) {
+        final long nowTick = now / TICK_MS;
+
+        synchronized (wheel) {
+            for (; currentTick <= nowTick; currentTick++) {
+                final List<TCB> slot = wheel[(int) (currentTick & (WHEEL_SIZE - 1))];
+
+                // Flows scheduled a full turn or more ahead stay for a later round
+                for (int i = slot.size() - 1; i >= 0; i--) {
+                    final TCB tcb = slot.get(i);
+                    if (tcb.checkTick > currentTick) continue;
+
+                    due.add(tcb);
+                    final int last = slot.size() - 1;
+                    slot.set(i, slot.get(last));
+                    slot.remove(last);
+                }
+            }
+        }
+
+        for (int i = 0; i < due.size(); i++) check(due.get(i), now);
+        due.clear();
+    }
+
+    // Called when a new flow doesn't fit: reaps the least recently active flow of the first state
+    // in PRESSURE_ORDER that has any, returns false if none could be. One at a time, a CLOSE_WAIT
+    // flow may still be receiving data so no more are given up than the new flow needs
+    public boolean reapUnderPressure() {
+        final List<TCB> tcbs = TCB.getAll();
+
+        for (TCB.TCBStatus status : PRESSURE_ORDER) {
+            while (true) {
+                // Unlocked reads only pick a candidate, it's checked again under its lock
+                TCB oldest = null;
+                for (TCB tcb : tcbs)
+                    if (tcb.status == status && (oldest == null || tcb.lastActivity < oldest.lastActivity)) oldest = tcb;
+
+                if (oldest == null) break;
+
+                synchronized (oldest) {
+                    if (oldest.status == status && TCB.getTcb(oldest.flowKey) == oldest) {
+                        EngineLog.d(TAG, "Reaping " + status + " connection to make room: " + oldest.ipAndPort);
+                        reap(oldest);
+                        pressureReapedCount++;
+                        return true;
+                    }
+                }
+
+                // Moved on or closed in the meantime
+                tcbs.remove(oldest);
+            }
+        }
+
+        return false;
+    }
+
+    private void check(TCB tcb, long now) {
+        synchronized (tcb) {
+            // Already closed through the normal path
+            if (TCB.getTcb(tcb.flowKey) != tcb) return;
+
+            final long deadline = tcb.lastActivity + tcb.status.idleTimeoutMs;
+            if (now < deadline) {
+                scheduleCheck(tcb, Math.min(deadline, now + MAX_CHECK_INTERVAL_MS));
+                return;
+            }
+
+            EngineLog.d(TAG, "Reaping " + tcb.status + " connection idle for " + (now - tcb.lastActivity) + "ms: " + tcb.ipAndPort);
+            reap(tcb);
+            reapedCount++;
+        }
+    }
+
+    // Must hold the TCB's lock
+    private void reap(TCB tcb) {
+        // RST+ACK is accepted by the device in every state, including before our SYN+ACK
+        final ByteBuffer buffer = ByteBufferPool.acquire(Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE);
+        tcb.referencePacket.updateTcpBuffer(buffer, (byte) (TCPHeader.RST | TCPHeader.ACK), tcb.mySequenceNumber, tcb.myAcknowledgementNumber, 0);
+        outputQueue.offer(buffer);
+        TCB.closeTcb(tcb);
+        PipelineMetrics.tcbEvictions.increment();
+    }
+
+    private void scheduleCheck(TCB tcb, long time) {
+        synchronized (wheel) {
+            // Never into a slot tick() has already passed
+            final long tick = Math.max(time / TICK_MS, currentTick);
+            tcb.checkTick = tick;
+            wheel[(int) (tick & (WHEEL_SIZE - 1))].add(tcb);
+        }
+    }
+}
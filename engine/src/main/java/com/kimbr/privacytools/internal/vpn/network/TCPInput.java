@@ -0,0 +1,195 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.metrics.PipelineMetrics;
+import com.kimbr.privacytools.internal.vpn.network.headers.TCPHeader;
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+
+public class TCPInput implements Runnable {
+
+    public static final String TAG = "TCPInput";
+    private static final int HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE;
+
+    private BlockingQueue<ByteBuffer> outputQueue;
+    private RegistrationQueue registrations;
+    private Selector selector;
+
+    public TCPInput(BlockingQueue<ByteBuffer> outputQueue, RegistrationQueue registrations) {
+        this.outputQueue = outputQueue;
+        this.registrations = registrations;
+        this.selector = registrations.getSelector();
+    }
+
+    @Override
+    public void run() {
+        try {
+            EngineLog.d(TAG, "Started.");
+            while (!Thread.interrupted()) {
+                // Apply what TCPOutput queued, then block until a channel is ready or a new
+                // registration wakes the selector up
+                registrations.processPending();
+                selector.select();
+
+                final Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+
+                while (keyIterator.hasNext()) {
+                    final SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+
+                    try {
+                        processKey(key);
+                    }
+
+                    catch (CancelledKeyException ex) {
+                        // Channel was closed by TCPOutput in the meantime
+                    }
+                }
+            }
+        }
+
+        catch (IOException ex) {
+            EngineLog.d(TAG, ex.toString(), ex);
+        }
+    }
+
+    // Handles one selected key, from run() or from a TunnelReactor's thread
+    void processKey(SelectionKey key) {
+        if (key.isValid()) {
+            if (key.isConnectable()) processConnect(key);
+            else if (key.isReadable()) processInput(key);
+        }
+    }
+
+    private void processConnect(SelectionKey key) {
+        final TCB tcb = (TCB) key.attachment();
+        final Packet referencePacket = tcb.referencePacket;
+
+        try {
+            if (tcb.channel.finishConnect()) {
+                PipelineMetrics.connectTime.record(System.nanoTime() - tcb.connectStartTime);
+                tcb.status = TCB.TCBStatus.SYN_RECEIVED;
+                tcb.lastActivity = TCBReaper.now();
+
+                final ByteBuffer responseBuffer = ByteBufferPool.acquire(HEADER_SIZE + Packet.MSS_OPTION_SIZE);
+                referencePacket.updateSynAckBuffer(responseBuffer, tcb.mySequenceNumber, tcb.myAcknowledgementNumber, TCB.MAX_SEGMENT_SIZE);
+                outputQueue.offer(responseBuffer);
+
+                tcb.mySequenceNumber++; // SYN counts as a byte
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        catch (IOException ex) {
+            EngineLog.e(TAG, "Connection Error: " + tcb.ipAndPort, ex);
+            PipelineMetrics.connectFailures.increment();
+
+            final ByteBuffer responseBuffer = ByteBufferPool.acquire(HEADER_SIZE);
+            referencePacket.updateTcpBuffer(responseBuffer, (byte) TCPHeader.RST, 0, tcb.myAcknowledgementNumber, 0);
+            outputQueue.offer(responseBuffer);
+            TCB.closeTcb(tcb);
+        }
+    }
+
+    // Reads what the network has into one pool buffer laid out as the device-bound segments: each
+    // read fills the payload of one segment of at most the device's MSS, behind room for its
+    // headers, until the channel is drained, the buffer is full or the device's window is. The
+    // headers are then written in place, so the segments go out back to back in that one buffer
+    // with each byte summed once. With the window full, reading stops until TCPOutput sees it open
+    private void processInput(SelectionKey key) {
+        final ByteBuffer receiveBuffer = ByteBufferPool.acquire();
+        final int capacity = receiveBuffer.capacity();
+
+        final TCB tcb = (TCB) key.attachment();
+        synchronized (tcb) {
+            final int sendableBytes = tcb.getSendableBytes();
+            if (sendableBytes == 0) {
+                pauseReading(key, tcb);
+                ByteBufferPool.release(receiveBuffer);
+                return;
+            }
+
+            final Packet referencePacket = tcb.referencePacket;
+            final SocketChannel inputChannel = (SocketChannel) key.channel();
+            final int segmentSize = tcb.maxSegmentSize;
+
+            int readBytes = 0;
+            boolean endOfStream = false;
+            try {
+                for (int segmentStart = 0; segmentStart + HEADER_SIZE < capacity && readBytes < sendableBytes; segmentStart += HEADER_SIZE + segmentSize) {
+                    final int payloadLimit = Math.min(segmentSize, sendableBytes - readBytes);
+                    receiveBuffer.limit(Math.min(segmentStart + HEADER_SIZE + payloadLimit, capacity));
+                    receiveBuffer.position(segmentStart + HEADER_SIZE);
+
+                    final int segmentBytes = inputChannel.read(receiveBuffer);
+                    if (segmentBytes == -1) endOfStream = readBytes == 0;
+                    else readBytes += segmentBytes;
+
+                    if (receiveBuffer.hasRemaining()) break; // Drained, or closed after the data so far
+                }
+            } catch (IOException ex) {
+                EngineLog.e(TAG, "Network Read Error: " + tcb.ipAndPort, ex);
+
+                receiveBuffer.clear();
+                referencePacket.updateTcpBuffer(receiveBuffer, (byte) TCPHeader.RST, 0, tcb.myAcknowledgementNumber, 0);
+                outputQueue.offer(receiveBuffer);
+                TCB.closeTcb(tcb);
+                return;
+            }
+
+            receiveBuffer.clear();
+            tcb.lastActivity = TCBReaper.now();
+
+            if (endOfStream) {
+                // End of stream, stop waiting until we push more data
+                key.interestOps(0);
+                tcb.waitingForNetworkData = false;
+
+                if (tcb.status != TCB.TCBStatus.CLOSE_WAIT) {
+                    ByteBufferPool.release(receiveBuffer);
+                    return;
+                }
+
+                tcb.status = TCB.TCBStatus.LAST_ACK;
+                referencePacket.updateTcpBuffer(receiveBuffer, (byte) TCPHeader.FIN, tcb.mySequenceNumber, tcb.myAcknowledgementNumber, 0);
+                tcb.myAcknowledgementNumber++; // FIN counts as a byte
+            }
+
+            else if (readBytes == 0) {
+                ByteBufferPool.release(receiveBuffer);
+                return;
+            }
+
+            else {
+                // PSH on the last segment only, the device's stack can deliver the rest with it
+                int segmentStart = 0;
+                for (int remaining = readBytes; remaining > 0; remaining -= segmentSize) {
+                    final int payloadSize = Math.min(remaining, segmentSize);
+                    final byte flags = (byte) (payloadSize == remaining ? TCPHeader.PSH | TCPHeader.ACK : TCPHeader.ACK);
+                    referencePacket.updateTcpBuffer(receiveBuffer, segmentStart, flags, tcb.mySequenceNumber, tcb.myAcknowledgementNumber, payloadSize);
+                    tcb.mySequenceNumber += payloadSize; // Next sequence number
+                    segmentStart += HEADER_SIZE + payloadSize;
+                }
+
+                receiveBuffer.position(segmentStart);
+                if (tcb.getSendableBytes() == 0) pauseReading(key, tcb);
+            }
+        }
+
+        outputQueue.offer(receiveBuffer);
+    }
+
+    // Until TCPOutput resumes it, see TCPOutput.resumeReadingIfWindowOpened()
+    private static void pauseReading(SelectionKey key, TCB tcb) {
+        key.interestOps(0);
+        tcb.readPaused = true;
+        PipelineMetrics.windowPauses.increment();
+    }
+}
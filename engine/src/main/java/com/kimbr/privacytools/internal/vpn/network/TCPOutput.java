@@ -0,0 +1,283 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.metrics.PipelineMetrics;
+import com.kimbr.privacytools.internal.vpn.network.headers.IP4Header;
+import com.kimbr.privacytools.internal.vpn.network.headers.TCPHeader;
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+import com.kimbr.privacytools.internal.vpn.platform.SocketProtector;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+
+public class TCPOutput implements Runnable {
+
+    private static final String TAG = "TCPOutput";
+    private static final int HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE;
+
+    private SocketProtector protector;
+    private HandoffQueue<ByteBuffer> inputQueue;
+    private BlockingQueue<ByteBuffer> outputQueue;
+    private RegistrationQueue registrations;
+    private TCBReaper reaper;
+    private HostnameTable hostnames;
+    private Random random;
+    // Re-pointed at every packet handled, only valid until processPacket() returns
+    private final Packet currentPacket = new Packet();
+    private long handedOverAt;
+
+    // hostnames names new flows, may be null
+    public TCPOutput(HandoffQueue<ByteBuffer> inputQueue, BlockingQueue<ByteBuffer> outputQueue, RegistrationQueue registrations, TCBReaper reaper, HostnameTable hostnames, SocketProtector protector) {
+        this.protector = protector;
+        this.inputQueue = inputQueue;
+        this.outputQueue = outputQueue;
+        this.registrations = registrations;
+        this.reaper = reaper;
+        this.hostnames = hostnames;
+        this.random = new Random();
+    }
+
+    @Override
+    public void run() {
+        try {
+            EngineLog.d(TAG, "Started.");
+
+            while (!Thread.interrupted()) {
+                // Parks until VpnRunnable hands over a packet
+                final ByteBuffer packet = inputQueue.take();
+                processPacket(packet, inputQueue.getLastEnqueueTime());
+            }
+        }
+
+        catch (InterruptedException | IOException ex) {
+            EngineLog.e(TAG, "Stopping: " + ex.toString(), ex);
+        }
+
+        finally {
+            TCB.closeAll();
+        }
+    }
+
+    // Handles one packet from the device, from run() or from a TunnelReactor's thread.
+    // handedOverAt is the System.nanoTime() VpnRunnable queued it at
+    void processPacket(ByteBuffer payloadBuffer, long handedOverAt) throws IOException {
+        currentPacket.wrap(payloadBuffer);
+        this.handedOverAt = handedOverAt;
+        // Responses from here never carry a payload, at most an MSS option
+        final ByteBuffer responseBuffer = ByteBufferPool.acquire(HEADER_SIZE + Packet.MSS_OPTION_SIZE);
+
+        final int destinationAddress = currentPacket.ip4Header.getDestinationAddress();
+        final TCPHeader tcpHeader = currentPacket.tcpHeader;
+        final int destinationPort = tcpHeader.getDestinationPort();
+        final int sourcePort = tcpHeader.getSourcePort();
+
+        final long flowKey = FlowTable.key(destinationAddress, destinationPort, sourcePort);
+        final TCB tcb = TCB.getTcb(flowKey);
+
+        if (tcb != null) tcb.lastActivity = TCBReaper.now(); // Keeps TCBReaper away
+
+        if (tcb == null)
+            initializeConnection(flowKey, destinationAddress, destinationPort, sourcePort, tcpHeader, responseBuffer);
+
+        else if (tcpHeader.isSYN())
+            processDuplicateSYN(tcb, tcpHeader, responseBuffer);
+
+        else if (tcpHeader.isRST())
+            closeCleanly(tcb, responseBuffer);
+
+        else if (tcpHeader.isFIN())
+            processFIN(tcb, tcpHeader, responseBuffer);
+
+        else if (tcpHeader.isACK())
+            processACK(tcb, tcpHeader, payloadBuffer, responseBuffer);
+
+        else ByteBufferPool.release(responseBuffer);
+
+        // Each path above either queues responseBuffer for the device or releases it, once
+        // queued it belongs to the device writer and must not be touched here
+        ByteBufferPool.release(payloadBuffer);
+    }
+
+    private void initializeConnection(long flowKey, int destinationAddress, int destinationPort, int sourcePort, TCPHeader tcpHeader, ByteBuffer responseBuffer) throws IOException {
+        currentPacket.swapSourceAndDestination();
+
+        if (tcpHeader.isSYN()) {
+            final String ipAndPort = IP4Header.toHostAddress(destinationAddress) + ":" + destinationPort + ":" + sourcePort;
+
+            final SocketChannel outputChannel = SocketChannel.open();
+            outputChannel.configureBlocking(false);
+            protector.protect(outputChannel.socket());
+
+            // The device buffer goes back to the pool below, the flow keeps a copy of its headers
+            final Packet referencePacket = currentPacket.copyHeaders();
+            // Nothing of ours is acknowledged yet, theirAcknowledgementNumber starts at our ISN
+            final long initialSequenceNumber = random.nextInt(Short.MAX_VALUE + 1);
+            final TCB tcb = new TCB(ipAndPort, flowKey, initialSequenceNumber, tcpHeader.getSequenceNumber(), tcpHeader.getSequenceNumber() + 1, initialSequenceNumber, outputChannel, referencePacket);
+            if (hostnames != null) tcb.hostName = hostnames.lookup(destinationAddress);
+
+            // TCPInput cuts what it reads from the network to the device's MSS
+            final int deviceMaxSegmentSize = tcpHeader.getMaxSegmentSize();
+            if (deviceMaxSegmentSize > 0) tcb.maxSegmentSize = Math.min(deviceMaxSegmentSize, TCB.MAX_SEGMENT_SIZE);
+            tcb.theirWindow = tcpHeader.getWindow();
+
+            // When full, closing flows make way for new ones, one at a time until this one fits
+            boolean added = TCB.putTcb(tcb);
+            while (!added && reaper.reapUnderPressure()) added = TCB.putTcb(tcb);
+
+            if (!added) {
+                EngineLog.w(TAG, "Too many connections, resetting: " + ipAndPort);
+                PipelineMetrics.tcbRefusals.increment();
+                referencePacket.updateTcpBuffer(responseBuffer, (byte) TCPHeader.RST, 0, tcb.myAcknowledgementNumber, 0);
+                TCB.closeTcb(tcb);
+                outputQueue.offer(responseBuffer);
+                return;
+            }
+
+            PipelineMetrics.tcbCreations.increment();
+
+            try {
+                tcb.connectStartTime = System.nanoTime();
+                outputChannel.connect(new InetSocketAddress(IP4Header.toInetAddress(destinationAddress), destinationPort));
+
+                if (outputChannel.finishConnect()) {
+                    PipelineMetrics.connectTime.record(System.nanoTime() - tcb.connectStartTime);
+                    tcb.status = TCB.TCBStatus.SYN_RECEIVED;
+                    reaper.schedule(tcb);
+
+                    referencePacket.updateSynAckBuffer(responseBuffer, tcb.mySequenceNumber, tcb.myAcknowledgementNumber, TCB.MAX_SEGMENT_SIZE);
+                    tcb.mySequenceNumber++; // SYN counts as a byte
+                }
+
+                else {
+                    tcb.status = TCB.TCBStatus.SYN_SENT;
+                    reaper.schedule(tcb);
+                    registrations.register(outputChannel, SelectionKey.OP_CONNECT, tcb);
+                    ByteBufferPool.release(responseBuffer);
+                    return;
+                }
+            }
+
+            catch (IOException ex) {
+                EngineLog.e(TAG, "Connection Error: " + ipAndPort, ex);
+                PipelineMetrics.connectFailures.increment();
+                referencePacket.updateTcpBuffer(responseBuffer, (byte) TCPHeader.RST, 0, tcb.myAcknowledgementNumber, 0);
+                TCB.closeTcb(tcb);
+            }
+        }
+
+        else
+            currentPacket.updateTcpBuffer(responseBuffer, (byte) TCPHeader.RST, 0, tcpHeader.getSequenceNumber() + 1, 0);
+
+        outputQueue.offer(responseBuffer);
+    }
+
+    private void processDuplicateSYN(TCB tcb, TCPHeader tcpHeader, ByteBuffer responseBuffer) {
+        synchronized (tcb) {
+            if (tcb.status == TCB.TCBStatus.SYN_SENT) {
+                tcb.myAcknowledgementNumber = tcpHeader.getSequenceNumber() + 1;
+                ByteBufferPool.release(responseBuffer);
+                return;
+            }
+
+            sendRST(tcb, 1, responseBuffer);
+        }
+    }
+
+    private void processFIN(TCB tcb, TCPHeader tcpHeader, ByteBuffer responseBuffer) {
+        synchronized (tcb) {
+            final Packet referencePacket = tcb.referencePacket;
+            tcb.myAcknowledgementNumber = tcpHeader.getSequenceNumber() + 1;
+            tcb.updateFromAck(tcpHeader.getAcknowledgementNumber(), tcpHeader.getWindow());
+            resumeReadingIfWindowOpened(tcb);
+
+            if (tcb.waitingForNetworkData) {
+                tcb.status = TCB.TCBStatus.CLOSE_WAIT;
+                referencePacket.updateTcpBuffer(responseBuffer, (byte) TCPHeader.ACK, tcb.mySequenceNumber, tcb.myAcknowledgementNumber, 0);
+            }
+
+            else {
+                tcb.status = TCB.TCBStatus.LAST_ACK;
+                referencePacket.updateTcpBuffer(responseBuffer, (byte) (TCPHeader.FIN | TCPHeader.ACK), tcb.mySequenceNumber, tcb.myAcknowledgementNumber, 0);
+                tcb.mySequenceNumber++;
+            }
+        }
+
+        outputQueue.offer(responseBuffer);
+    }
+
+    private void processACK(TCB tcb, TCPHeader tcpHeader, ByteBuffer payloadBuffer, ByteBuffer responseBuffer) {
+        int payloadSize = payloadBuffer.limit() - payloadBuffer.position();
+
+        synchronized (tcb) {
+            final SocketChannel outputChannel = tcb.channel;
+            tcb.updateFromAck(tcpHeader.getAcknowledgementNumber(), tcpHeader.getWindow());
+
+            if (tcb.status == TCB.TCBStatus.SYN_RECEIVED) {
+                tcb.status = TCB.TCBStatus.ESTABLISHED;
+                registrations.register(outputChannel, SelectionKey.OP_READ, tcb);
+                tcb.waitingForNetworkData = true;
+            }
+
+            else if (tcb.status == TCB.TCBStatus.LAST_ACK) {
+                closeCleanly(tcb, responseBuffer);
+                return;
+            }
+
+            resumeReadingIfWindowOpened(tcb);
+
+            if (payloadSize == 0) {
+                // Empty ACK, nothing to forward
+                ByteBufferPool.release(responseBuffer);
+                return;
+            }
+
+            if (!tcb.waitingForNetworkData) {
+                registrations.interestOps(outputChannel, SelectionKey.OP_READ);
+                tcb.waitingForNetworkData = true;
+            }
+
+            // Forward to remote server
+            try {
+                while (payloadBuffer.hasRemaining()) outputChannel.write(payloadBuffer);
+                PipelineMetrics.deviceToNetwork.record(System.nanoTime() - handedOverAt);
+            }
+
+            catch (IOException ex) {
+                EngineLog.e(TAG, "Network write error: " + tcb.ipAndPort, ex);
+                sendRST(tcb, payloadSize, responseBuffer);
+                return;
+            }
+
+            // TODO: We don't expect out of order packets, but verify
+            tcb.myAcknowledgementNumber = tcpHeader.getSequenceNumber() + payloadSize;
+            final Packet referencePacket = tcb.referencePacket;
+            referencePacket.updateTcpBuffer(responseBuffer, (byte) TCPHeader.ACK, tcb.mySequenceNumber, tcb.myAcknowledgementNumber, 0);
+        }
+
+        outputQueue.offer(responseBuffer);
+    }
+
+    // TCPInput stops reading when the device's window is full, so the remote's data waits in the
+    // socket buffers (and the remote is slowed down by its window) rather than in our queues
+    private void resumeReadingIfWindowOpened(TCB tcb) {
+        if (!tcb.readPaused || tcb.getSendableBytes() == 0) return;
+
+        tcb.readPaused = false;
+        registrations.interestOps(tcb.channel, SelectionKey.OP_READ);
+    }
+
+    private void sendRST(TCB tcb, int prevPayloadSize, ByteBuffer buffer) {
+        tcb.referencePacket.updateTcpBuffer(buffer, (byte) TCPHeader.RST, 0, tcb.myAcknowledgementNumber + prevPayloadSize, 0);
+        outputQueue.offer(buffer);
+        TCB.closeTcb(tcb);
+    }
+
+    private void closeCleanly(TCB tcb, ByteBuffer buffer) {
+        ByteBufferPool.release(buffer);
+        TCB.closeTcb(tcb);
+    }
+}
@@ -0,0 +1,126 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.Utils;
+import com.kimbr.privacytools.internal.vpn.FilterHolder;
+import com.kimbr.privacytools.internal.vpn.metrics.PipelineMetrics;
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+import com.kimbr.privacytools.internal.vpn.platform.SocketProtector;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Runs TCP and UDP flows on a single thread instead of the four Input/Output workers: packets from
+// the device, socket readiness on one shared selector, TCB state and writes back to the tun
+// descriptor all happen here, so there are no cross-thread handoffs past the inbox and every
+// synchronized (tcb) block is uncontended. The tun descriptor isn't selectable, so VpnRunnable
+// still reads it on its own thread and hands packets over through the inbox, which wakes the
+// selector. Several reactors can run side by side with flows sharded between them by hash.
+public class TunnelReactor implements Runnable {
+
+    private static final String TAG = "TunnelReactor";
+
+    private final Selector selector;
+    private final RegistrationQueue registrations;
+    private final HandoffQueue<ByteBuffer> inbox;
+    private final Packet packetView = new Packet();
+    private final WritableByteChannel vpnOutput;
+    // Only ever touched by this thread, drained to the tun descriptor once per loop
+    private final BlockingQueue<ByteBuffer> deviceQueue = new LinkedBlockingQueue<>();
+
+    private final TCPInput tcpInput;
+    private final TCPOutput tcpOutput;
+    private final TCBReaper reaper;
+    private final UDPInput udpInput;
+    private final UDPOutput udpOutput;
+
+    // filters and blockWithNxDomain are for DNS queries, see UDPOutput. Both holders are shared by all reactors
+    public TunnelReactor(int inboxCapacity, WritableByteChannel vpnOutput, FilterHolder filters, boolean blockWithNxDomain, HostnameTable hostnames, SocketProtector protector) throws IOException {
+        this.selector = Selector.open();
+        this.registrations = new RegistrationQueue(selector);
+        this.inbox = new HandoffQueue<>(inboxCapacity, selector, PipelineMetrics.queueWait);
+        this.vpnOutput = vpnOutput;
+
+        // The workers are only driven through processPacket()/processKey(), so have no input queues
+        this.tcpInput = new TCPInput(deviceQueue, registrations);
+        this.reaper = new TCBReaper(deviceQueue);
+        this.tcpOutput = new TCPOutput(null, deviceQueue, registrations, reaper, hostnames, protector);
+        this.udpInput = new UDPInput(deviceQueue, registrations, hostnames);
+        this.udpOutput = new UDPOutput(null, deviceQueue, registrations, filters, blockWithNxDomain, protector);
+    }
+
+    // Where VpnRunnable hands over this reactor's share of device packets
+    public HandoffQueue<ByteBuffer> getInbox() {
+        return inbox;
+    }
+
+    @Override
+    public void run() {
+        EngineLog.d(TAG, "Started.");
+
+        try {
+            while (!Thread.interrupted()) {
+                registrations.processPending();
+                // Wakes up at least every tick so idle flows are reaped without traffic
+                selector.select(TCBReaper.TICK_MS);
+
+                // Device packets first, so new connections are registered before handling keys
+                ByteBuffer packet;
+                while ((packet = inbox.poll()) != null) {
+                    final long handedOverAt = inbox.getLastEnqueueTime();
+                    if (packetView.wrap(packet).isTcp()) tcpOutput.processPacket(packet, handedOverAt);
+                    else udpOutput.processPacket(packet, handedOverAt);
+                }
+
+                final Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+
+                while (keyIterator.hasNext()) {
+                    final SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+
+                    try {
+                        if (key.channel() instanceof SocketChannel) tcpInput.processKey(key);
+                        else udpInput.processKey(key);
+                    }
+
+                    catch (CancelledKeyException ex) {
+                        // Channel was closed while handling an earlier key
+                    }
+                }
+
+                reaper.tick();
+                flushToDevice();
+            }
+        }
+
+        catch (IOException ex) {
+            EngineLog.e(TAG, "Stopping: " + ex.toString(), ex);
+        }
+
+        finally {
+            TCB.closeAll();
+            udpOutput.closeAll();
+            Utils.closeResources(selector);
+            EngineLog.d(TAG, "Inbox: " + inbox.getStats());
+        }
+    }
+
+    private void flushToDevice() throws IOException {
+        ByteBuffer buffer;
+
+        while ((buffer = deviceQueue.poll()) != null) {
+            buffer.flip();
+            PipelineMetrics.bytesToDevice.add(buffer.remaining());
+            PipelineMetrics.packetsToDevice.add(Packet.writePackets(buffer, vpnOutput));
+
+            ByteBufferPool.release(buffer);
+        }
+    }
+}
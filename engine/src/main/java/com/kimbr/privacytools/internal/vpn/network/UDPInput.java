@@ -0,0 +1,104 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+
+public class UDPInput implements Runnable {
+
+    private static final String TAG = "UDPInput";
+    private static final int HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.UDP_HEADER_SIZE;
+
+    private RegistrationQueue registrations;
+    private Selector selector;
+    private BlockingQueue<ByteBuffer> outputQueue;
+    private HostnameTable hostnames;
+
+    int dnsPort = DnsMessage.PORT; // Tests point it at a stub server
+    private final DnsMessage dnsMessage = new DnsMessage();
+
+    // hostnames learns the addresses in DNS responses, null to leave them alone
+    public UDPInput(BlockingQueue<ByteBuffer> outputQueue, RegistrationQueue registrations, HostnameTable hostnames) {
+        this.registrations = registrations;
+        this.selector = registrations.getSelector();
+        this.outputQueue = outputQueue;
+        this.hostnames = hostnames;
+    }
+
+    @Override
+    public void run() {
+        try {
+            EngineLog.d(TAG, "Started.");
+
+            while (!Thread.interrupted()) {
+                // Apply what UDPOutput queued, then block until a channel is ready or a new
+                // registration wakes the selector up
+                registrations.processPending();
+                selector.select();
+
+                final Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+
+                while (keyIterator.hasNext()) {
+                    final SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+
+                    try {
+                        processKey(key);
+                    }
+
+                    catch (CancelledKeyException ex) {
+                        // Channel was closed by UDPOutput in the meantime
+                    }
+                }
+            }
+        }
+
+        catch (IOException ex) {
+            EngineLog.e(TAG, "Stopped: " + ex.toString(), ex);
+        }
+    }
+
+    // Handles one selected key, from run() or from a TunnelReactor's thread
+    void processKey(SelectionKey key) {
+        if (!key.isValid() || !key.isReadable()) return;
+
+        final ByteBuffer receivedBuffer = ByteBufferPool.acquire();
+        // Leave space for the header
+        receivedBuffer.position(HEADER_SIZE);
+
+        final DatagramChannel inputChannel = (DatagramChannel) key.channel();
+
+        int readBytes;
+        try {
+            readBytes = inputChannel.read(receivedBuffer);
+        }
+
+        catch (IOException ex) {
+            EngineLog.e(TAG, "Network Read Error: " + ex.toString(), ex);
+            readBytes = -1;
+        }
+
+        if (readBytes == -1) {
+            ByteBufferPool.release(receivedBuffer);
+            return;
+        }
+
+        final Packet referencePacket = (Packet) key.attachment();
+        referencePacket.updateUdpBuffer(receivedBuffer, readBytes);
+
+        // The reference packet is addressed to the device, so its source is the server
+        if (hostnames != null && referencePacket.udpHeader.getSourcePort() == dnsPort && dnsMessage.wrapResponse(receivedBuffer, HEADER_SIZE, readBytes))
+            dnsMessage.recordAddresses(hostnames);
+
+        receivedBuffer.position(HEADER_SIZE + readBytes);
+
+        outputQueue.offer(receivedBuffer);
+    }
+}
@@ -0,0 +1,171 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.CustomLRUCache;
+import com.kimbr.privacytools.internal.vpn.DomainIndex;
+import com.kimbr.privacytools.internal.vpn.FilterHolder;
+import com.kimbr.privacytools.internal.vpn.metrics.PipelineMetrics;
+import com.kimbr.privacytools.internal.vpn.network.headers.IP4Header;
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+import com.kimbr.privacytools.internal.vpn.platform.SocketProtector;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+public class UDPOutput implements Runnable {
+
+    private static final String TAG = "UDPOutput";
+    private static final int MAX_CACHE = 50;
+    private static final int HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.UDP_HEADER_SIZE;
+
+    private SocketProtector protector;
+    private HandoffQueue<ByteBuffer> inputQueue;
+    private BlockingQueue<ByteBuffer> outputQueue;
+    private RegistrationQueue registrations;
+    private FilterHolder filters;
+    private boolean blockWithNxDomain;
+    int dnsPort = DnsMessage.PORT; // Tests point it at a stub server
+    // Re-pointed at every packet handled, only valid until processPacket() returns
+    private final Packet currentPacket = new Packet();
+    private final DnsMessage dnsMessage = new DnsMessage();
+    private CustomLRUCache<String, DatagramChannel> channelCache = new CustomLRUCache<>(MAX_CACHE, new CustomLRUCache.CleanupCallback<String, DatagramChannel>() {
+        @Override
+        public void cleanup(Map.Entry<String, DatagramChannel> eldest) {
+            closeChannel(eldest.getValue());
+        }
+    });
+
+    // DNS queries for names the current filter blocks are answered locally, with NXDOMAIN if
+    // blockWithNxDomain and the unspecified address otherwise. Null filters let every query through
+    public UDPOutput(HandoffQueue<ByteBuffer> inputQueue, BlockingQueue<ByteBuffer> outputQueue, RegistrationQueue registrations,
+                     FilterHolder filters, boolean blockWithNxDomain, SocketProtector protector) {
+        this.protector = protector;
+        this.inputQueue = inputQueue;
+        this.outputQueue = outputQueue;
+        this.registrations = registrations;
+        this.filters = filters;
+        this.blockWithNxDomain = blockWithNxDomain;
+    }
+
+    @Override
+    public void run() {
+        EngineLog.d(TAG, "Starting.");
+
+        try {
+            while (!Thread.interrupted()) {
+                // Parks until VpnRunnable hands over a packet
+                final ByteBuffer packet = inputQueue.take();
+                processPacket(packet, inputQueue.getLastEnqueueTime());
+            }
+        }
+
+        catch (InterruptedException | IOException ex) {
+            EngineLog.e(TAG, "Stopping: " + ex.toString(), ex);
+        }
+
+        finally {
+            closeAll();
+        }
+    }
+
+    // Handles one packet from the device, from run() or from a TunnelReactor's thread.
+    // handedOverAt is the System.nanoTime() VpnRunnable queued it at
+    void processPacket(ByteBuffer payloadBuffer, long handedOverAt) throws IOException {
+        currentPacket.wrap(payloadBuffer);
+
+        final int destinationAddress = currentPacket.ip4Header.getDestinationAddress();
+        final int destinationPort = currentPacket.udpHeader.getDestinationPort();
+        final int sourcePort = currentPacket.udpHeader.getSourcePort();
+
+        if (destinationPort == dnsPort && filters != null && answerDnsQuery(payloadBuffer)) {
+            ByteBufferPool.release(payloadBuffer);
+            return;
+        }
+
+        final String ipAndPort = IP4Header.toHostAddress(destinationAddress) + ":" + destinationPort + ":" + sourcePort;
+        DatagramChannel outputChannel = channelCache.get(ipAndPort);
+
+        if (outputChannel == null) {
+            outputChannel = DatagramChannel.open();
+
+            try {
+                outputChannel.connect(new InetSocketAddress(IP4Header.toInetAddress(destinationAddress), destinationPort));
+            }
+
+            catch (IOException ex) {
+                EngineLog.e(TAG, "Connection Error: " + ipAndPort, ex);
+                closeChannel(outputChannel);
+                ByteBufferPool.release(payloadBuffer);
+                return;
+            }
+
+            outputChannel.configureBlocking(false);
+
+            // UDPInput stamps responses with a copy of the headers, the device buffer is released below
+            final Packet referencePacket = currentPacket.copyHeaders();
+            referencePacket.swapSourceAndDestination();
+            registrations.register(outputChannel, SelectionKey.OP_READ, referencePacket);
+
+            protector.protect(outputChannel.socket());
+            channelCache.put(ipAndPort, outputChannel);
+        }
+
+        try {
+            while (payloadBuffer.hasRemaining()) outputChannel.write(payloadBuffer);
+            PipelineMetrics.deviceToNetwork.record(System.nanoTime() - handedOverAt);
+        }
+
+        catch (IOException ex) {
+            EngineLog.e(TAG, "Network Write Error: " + ipAndPort, ex);
+            channelCache.remove(ipAndPort);
+            closeChannel(outputChannel);
+        }
+
+        ByteBufferPool.release(payloadBuffer);
+    }
+
+    // Answers a query for a blocked name without it leaving the device, returns false to forward it
+    private boolean answerDnsQuery(ByteBuffer payloadBuffer) {
+        if (!dnsMessage.wrapQuery(payloadBuffer, payloadBuffer.position(), payloadBuffer.remaining())) return false;
+        if (filters.get().lookup(dnsMessage.getQuestionName()) != DomainIndex.BLOCKED) {
+            PipelineMetrics.filterMisses.increment();
+            return false;
+        }
+
+        PipelineMetrics.filterHits.increment();
+
+        final ByteBuffer responseBuffer = ByteBufferPool.acquire(HEADER_SIZE + dnsMessage.getMaxResponseLength());
+        final int responseLength = dnsMessage.writeBlockedResponse(responseBuffer, HEADER_SIZE, blockWithNxDomain);
+
+        currentPacket.swapSourceAndDestination();
+        currentPacket.updateUdpBuffer(responseBuffer, responseLength);
+        responseBuffer.position(HEADER_SIZE + responseLength);
+
+        outputQueue.offer(responseBuffer);
+        return true;
+    }
+
+    void closeAll() {
+        final Iterator<Map.Entry<String, DatagramChannel>> iterator = channelCache.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            closeChannel(iterator.next().getValue());
+            iterator.remove();
+        }
+    }
+
+    private void closeChannel(DatagramChannel channel) {
+        try {
+            channel.close();
+        }
+
+        catch (IOException ex) {
+            EngineLog.e(TAG, "Failed to close channel: " + ex.toString(), ex);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.kimbr.privacytools.internal.vpn.network.headers;
+
+import com.kimbr.privacytools.internal.vpn.network.BitUtils;
+
+import java.nio.ByteBuffer;
+
+// Transport header view: fields are read from (and written to) the backing buffer at fixed
+// offsets from where the header starts, nothing is copied
+public abstract class AbstractHeader {
+
+    ByteBuffer buffer;
+    int offset;
+
+    public void wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    public int getSourcePort() {
+        return BitUtils.getUnsignedShort(buffer.getShort(offset));
+    }
+
+    public void setSourcePort(int sourcePort) {
+        buffer.putShort(offset, (short) sourcePort);
+    }
+
+    public int getDestinationPort() {
+        return BitUtils.getUnsignedShort(buffer.getShort(offset + 2));
+    }
+
+    public void setDestinationPort(int destinationPort) {
+        buffer.putShort(offset + 2, (short) destinationPort);
+    }
+}
@@ -0,0 +1,139 @@
+package com.kimbr.privacytools.internal.vpn.network.headers;
+
+import com.kimbr.privacytools.internal.vpn.network.BitUtils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+// IPv4 header view over a packet starting at index 0 of the backing buffer. Fields are read
+// and written in place, addresses are plain ints in network byte order.
+public class IP4Header {
+
+    private ByteBuffer buffer;
+
+    public void wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public int getVersion() {
+        return (buffer.get(0) >> 4) & 0x0F;
+    }
+
+    // Header length in bytes, including options
+    public int getHeaderLength() {
+        return (buffer.get(0) & 0x0F) << 2;
+    }
+
+    public int getTypeOfService() {
+        return BitUtils.getUnsignedByte(buffer.get(1));
+    }
+
+    public int getTotalLength() {
+        return BitUtils.getUnsignedShort(buffer.getShort(2));
+    }
+
+    public void setTotalLength(int totalLength) {
+        buffer.putShort(2, (short) totalLength);
+    }
+
+    public int getIdentificationAndFlagsAndFragmentOffset() {
+        return buffer.getInt(4);
+    }
+
+    public int getTtl() {
+        return BitUtils.getUnsignedByte(buffer.get(8));
+    }
+
+    public int getProtocolNumber() {
+        return BitUtils.getUnsignedByte(buffer.get(9));
+    }
+
+    public TransportProtocol getProtocol() {
+        return TransportProtocol.numberToEnum(getProtocolNumber());
+    }
+
+    public int getHeaderChecksum() {
+        return BitUtils.getUnsignedShort(buffer.getShort(10));
+    }
+
+    public void setHeaderChecksum(int headerChecksum) {
+        buffer.putShort(10, (short) headerChecksum);
+    }
+
+    public int getSourceAddress() {
+        return buffer.getInt(12);
+    }
+
+    public void setSourceAddress(int sourceAddress) {
+        buffer.putInt(12, sourceAddress);
+    }
+
+    public int getDestinationAddress() {
+        return buffer.getInt(16);
+    }
+
+    public void setDestinationAddress(int destinationAddress) {
+        buffer.putInt(16, destinationAddress);
+    }
+
+    // Only for where an InetAddress is really needed (e.g. connecting), allocates
+    public static InetAddress toInetAddress(int address) {
+        try {
+            return InetAddress.getByAddress(new byte[] {(byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address});
+        }
+
+        catch (UnknownHostException ex) {
+            throw new AssertionError(ex); // Can't happen, any 4 bytes are a valid IPv4 address
+        }
+    }
+
+    public static String toHostAddress(int address) {
+        return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("IP4Header{");
+        builder.append("version=").append(getVersion()).append(", ");
+        builder.append("headerLength=").append(getHeaderLength()).append(", ");
+        builder.append("typeOfService=").append(getTypeOfService()).append(", ");
+        builder.append("totalLength=").append(getTotalLength()).append(", ");
+        builder.append("identificationAndFlagsAndFragmentOffset=").append(getIdentificationAndFlagsAndFragmentOffset()).append(", ");
+        builder.append("TTL=").append(getTtl()).append(", ");
+        builder.append("protocol=").append(getProtocolNumber()).append(getProtocol()).append(", ");
+        builder.append("headerChecksum=").append(getHeaderChecksum()).append(", ");
+        builder.append("sourceAddress=").append(toHostAddress(getSourceAddress())).append(", ");
+        builder.append("destinationAddress=").append(toHostAddress(getDestinationAddress())).append("}");
+        return builder.toString();
+    }
+
+    public enum TransportProtocol {
+        TCP(6),
+        UDP(17),
+        Other(0xFF);
+
+        private int protocolNumber;
+
+        TransportProtocol(int protocolNumber) {
+            this.protocolNumber = protocolNumber;
+        }
+
+        public static TransportProtocol numberToEnum(int protocolNumber) {
+            switch (protocolNumber) {
+                case 6:
+                    return TCP;
+
+                case 17:
+                    return UDP;
+
+                default:
+                    return Other;
+            }
+        }
+
+        public int getNumber() {
+            return protocolNumber;
+        }
+    }
+}
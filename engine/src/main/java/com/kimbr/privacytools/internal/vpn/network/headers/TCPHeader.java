@@ -0,0 +1,141 @@
+package com.kimbr.privacytools.internal.vpn.network.headers;
+
+import com.kimbr.privacytools.internal.vpn.network.BitUtils;
+
+public class TCPHeader extends AbstractHeader {
+
+    public static final int FIN = 0x01;
+    public static final int SYN = 0x02;
+    public static final int RST = 0x04;
+    public static final int PSH = 0x08;
+    public static final int ACK = 0x10;
+    public static final int URG = 0x20;
+
+    public static final int OPTION_END = 0;
+    public static final int OPTION_NOP = 1;
+    public static final int OPTION_MSS = 2;
+
+    private static final int FIXED_HEADER_SIZE = 20;
+
+    public long getSequenceNumber() {
+        return BitUtils.getUnsignedInt(buffer.getInt(offset + 4));
+    }
+
+    public void setSequenceNumber(long sequenceNumber) {
+        buffer.putInt(offset + 4, (int) sequenceNumber);
+    }
+
+    public long getAcknowledgementNumber() {
+        return BitUtils.getUnsignedInt(buffer.getInt(offset + 8));
+    }
+
+    public void setAcknowledgementNumber(long acknowledgementNumber) {
+        buffer.putInt(offset + 8, (int) acknowledgementNumber);
+    }
+
+    // Header length in bytes, including options
+    public int getHeaderLength() {
+        return (buffer.get(offset + 12) & 0xF0) >> 2;
+    }
+
+    public void setHeaderLength(int headerLength) {
+        buffer.put(offset + 12, (byte) (headerLength << 2));
+    }
+
+    // The MSS option's value, or -1 without one (devices only send it on SYNs). Stops at the first
+    // malformed option, the header length itself was checked against the packet by Packet.wrap()
+    public int getMaxSegmentSize() {
+        final int end = offset + getHeaderLength();
+        int i = offset + FIXED_HEADER_SIZE;
+
+        while (i < end) {
+            final int kind = buffer.get(i) & 0xFF;
+            if (kind == OPTION_END) break;
+
+            if (kind == OPTION_NOP) {
+                i++;
+                continue;
+            }
+
+            if (i + 1 >= end) break;
+            final int length = buffer.get(i + 1) & 0xFF;
+            if (length < 2 || i + length > end) break;
+
+            if (kind == OPTION_MSS && length == 4) return BitUtils.getUnsignedShort(buffer.getShort(i + 2));
+            i += length;
+        }
+
+        return -1;
+    }
+
+    public byte getFlags() {
+        return buffer.get(offset + 13);
+    }
+
+    public void setFlags(byte flags) {
+        buffer.put(offset + 13, flags);
+    }
+
+    public int getWindow() {
+        return BitUtils.getUnsignedShort(buffer.getShort(offset + 14));
+    }
+
+    public int getChecksum() {
+        return BitUtils.getUnsignedShort(buffer.getShort(offset + 16));
+    }
+
+    public void setChecksum(int checksum) {
+        buffer.putShort(offset + 16, (short) checksum);
+    }
+
+    public int getUrgentPointer() {
+        return BitUtils.getUnsignedShort(buffer.getShort(offset + 18));
+    }
+
+    public boolean isFIN() {
+        return (getFlags() & FIN) == FIN;
+    }
+
+    public boolean isSYN() {
+        return (getFlags() & SYN) == SYN;
+    }
+
+    public boolean isRST() {
+        return (getFlags() & RST) == RST;
+    }
+
+    public boolean isPSH() {
+        return (getFlags() & PSH) == PSH;
+    }
+
+    public boolean isACK() {
+        return (getFlags() & ACK) == ACK;
+    }
+
+    public boolean isURG() {
+        return (getFlags() & URG) == URG;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("TCPHeader{");
+        builder.append("sourcePort=").append(getSourcePort()).append(", ");
+        builder.append("destinationPort=").append(getDestinationPort()).append(", ");
+        builder.append("sequenceNumber=").append(getSequenceNumber()).append(", ");
+        builder.append("acknowledgementNumber=").append(getAcknowledgementNumber()).append(", ");
+        builder.append("headerLength=").append(getHeaderLength()).append(", ");
+        builder.append("window=").append(getWindow()).append(", ");
+        builder.append("checksum=").append(getChecksum()).append(", ");
+        builder.append("flags=");
+
+        if (isFIN()) builder.append(" FIN");
+        if (isSYN()) builder.append(" SYN");
+        if (isRST()) builder.append(" RST");
+        if (isPSH()) builder.append(" PSH");
+        if (isACK()) builder.append(" ACK");
+        if (isURG()) builder.append(" URG");
+        builder.append("}");
+
+        return builder.toString();
+    }
+}
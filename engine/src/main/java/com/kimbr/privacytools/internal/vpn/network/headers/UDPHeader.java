@@ -0,0 +1,32 @@
+package com.kimbr.privacytools.internal.vpn.network.headers;
+
+import com.kimbr.privacytools.internal.vpn.network.BitUtils;
+
+public class UDPHeader extends AbstractHeader {
+
+    public int getLength() {
+        return BitUtils.getUnsignedShort(buffer.getShort(offset + 4));
+    }
+
+    public void setLength(int length) {
+        buffer.putShort(offset + 4, (short) length);
+    }
+
+    public int getChecksum() {
+        return BitUtils.getUnsignedShort(buffer.getShort(offset + 6));
+    }
+
+    public void setChecksum(int checksum) {
+        buffer.putShort(offset + 6, (short) checksum);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("UDPHeader{");
+        builder.append("sourcePort=").append(getSourcePort()).append(", ");
+        builder.append("destinationPort=").append(getDestinationPort()).append(", ");
+        builder.append("length=").append(getLength()).append(", ");
+        builder.append("checksum=").append(getChecksum()).append("}");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,42 @@
+package com.kimbr.privacytools.internal.vpn.platform;
+
+import com.kimbr.privacytools.internal.Utils;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+// A tun device over channels that already keep packets apart: a tun descriptor (Android's, or
+// one handed over by a bridge), a connected DatagramChannel, or a Pipe when only one packet is
+// in flight at a time. For byte streams see FramedTunDevice
+public class ChannelTunDevice implements TunDevice {
+
+    private final ReadableByteChannel input;
+    private final WritableByteChannel output;
+
+    public ChannelTunDevice(ReadableByteChannel input, WritableByteChannel output) {
+        this.input = input;
+        this.output = output;
+    }
+
+    public static ChannelTunDevice open(FileDescriptor fileDescriptor) {
+        return new ChannelTunDevice(new FileInputStream(fileDescriptor).getChannel(), new FileOutputStream(fileDescriptor).getChannel());
+    }
+
+    @Override
+    public ReadableByteChannel getInput() {
+        return input;
+    }
+
+    @Override
+    public WritableByteChannel getOutput() {
+        return output;
+    }
+
+    @Override
+    public void close() {
+        Utils.closeResources(input, output);
+    }
+}
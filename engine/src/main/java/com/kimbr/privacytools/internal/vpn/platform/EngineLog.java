@@ -0,0 +1,73 @@
+package com.kimbr.privacytools.internal.vpn.platform;
+
+// Where the engine logs, called like android.util.Log. The app routes it to logcat; anywhere
+// else warnings and errors go to standard error until a sink is set
+public final class EngineLog {
+
+    // Same values as android.util.Log's
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static volatile Sink sink = new StandardErrorSink(WARN);
+
+    private EngineLog() {
+    }
+
+    public interface Sink {
+        // throwable may be null
+        void log(int priority, String tag, String message, Throwable throwable);
+    }
+
+    public static void setSink(Sink sink) {
+        EngineLog.sink = sink;
+    }
+
+    public static void d(String tag, String message) {
+        sink.log(DEBUG, tag, message, null);
+    }
+
+    public static void d(String tag, String message, Throwable throwable) {
+        sink.log(DEBUG, tag, message, throwable);
+    }
+
+    public static void i(String tag, String message) {
+        sink.log(INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        sink.log(WARN, tag, message, null);
+    }
+
+    public static void w(String tag, String message, Throwable throwable) {
+        sink.log(WARN, tag, message, throwable);
+    }
+
+    public static void e(String tag, String message) {
+        sink.log(ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable throwable) {
+        sink.log(ERROR, tag, message, throwable);
+    }
+
+    // Prints entries of at least minPriority, like logcat's brief format
+    public static class StandardErrorSink implements Sink {
+
+        private static final String LEVELS = "??VDIWE";
+        private final int minPriority;
+
+        public StandardErrorSink(int minPriority) {
+            this.minPriority = minPriority;
+        }
+
+        @Override
+        public void log(int priority, String tag, String message, Throwable throwable) {
+            if (priority < minPriority) return;
+
+            System.err.println(LEVELS.charAt(Math.min(priority, ERROR)) + "/" + tag + ": " + message);
+            if (throwable != null) throwable.printStackTrace();
+        }
+    }
+}
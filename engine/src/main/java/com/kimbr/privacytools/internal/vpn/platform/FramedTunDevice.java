@@ -0,0 +1,116 @@
+package com.kimbr.privacytools.internal.vpn.platform;
+
+import com.kimbr.privacytools.internal.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+// A tun device over byte streams (standard input and output, named pipes, a socket), which
+// don't keep packets apart: each packet is preceded by its length as two big-endian bytes,
+// both ways. Packets too big for the engine's buffer are skipped
+public class FramedTunDevice implements TunDevice {
+
+    private static final String TAG = "FramedTunDevice";
+
+    private final ReadableByteChannel stream;
+    private final WritableByteChannel sink;
+
+    private final ReadableByteChannel input = new ReadableByteChannel() {
+        // Only the device thread reads
+        private final ByteBuffer header = ByteBuffer.allocate(2);
+
+        @Override
+        public int read(ByteBuffer packet) throws IOException {
+            header.clear();
+            if (!readFully(header)) return -1;
+
+            final int length = header.getShort(0) & 0xFFFF;
+            if (length > packet.remaining()) {
+                EngineLog.w(TAG, "Skipping a " + length + " byte packet");
+                return skip(length) ? 0 : -1;
+            }
+
+            final int limit = packet.limit();
+            packet.limit(packet.position() + length);
+
+            try {
+                return readFully(packet) ? length : -1;
+            }
+
+            finally {
+                packet.limit(limit);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return stream.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    };
+
+    private final WritableByteChannel output = new WritableByteChannel() {
+        private final ByteBuffer header = ByteBuffer.allocate(2);
+
+        // Reactors write from their own threads, a packet and its length must stay together
+        @Override
+        public synchronized int write(ByteBuffer packet) throws IOException {
+            final int length = packet.remaining();
+            header.clear();
+            header.putShort((short) length).flip();
+
+            while (header.hasRemaining()) sink.write(header);
+            while (packet.hasRemaining()) sink.write(packet);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return sink.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            sink.close();
+        }
+    };
+
+    public FramedTunDevice(ReadableByteChannel stream, WritableByteChannel sink) {
+        this.stream = stream;
+        this.sink = sink;
+    }
+
+    @Override
+    public ReadableByteChannel getInput() {
+        return input;
+    }
+
+    @Override
+    public WritableByteChannel getOutput() {
+        return output;
+    }
+
+    @Override
+    public void close() {
+        Utils.closeResources(stream, sink);
+    }
+
+    // False if the stream ended first
+    private boolean readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (stream.read(buffer) == -1) return false;
+
+        return true;
+    }
+
+    private boolean skip(int length) throws IOException {
+        final ByteBuffer discard = ByteBuffer.allocate(length);
+        return readFully(discard);
+    }
+}
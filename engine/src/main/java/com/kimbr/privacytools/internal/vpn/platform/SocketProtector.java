@@ -0,0 +1,27 @@
+package com.kimbr.privacytools.internal.vpn.platform;
+
+import java.net.DatagramSocket;
+import java.net.Socket;
+
+// Keeps the engine's own sockets from being routed back into the tunnel. On Android that's
+// VpnService.protect(), which LocalVpnService inherits. NONE is for when the tunnel doesn't
+// capture the engine's traffic, a routed test network or a replay
+public interface SocketProtector {
+
+    SocketProtector NONE = new SocketProtector() {
+        @Override
+        public boolean protect(Socket socket) {
+            return true;
+        }
+
+        @Override
+        public boolean protect(DatagramSocket socket) {
+            return true;
+        }
+    };
+
+    // Before the socket connects, returns false if it couldn't be protected
+    boolean protect(Socket socket);
+
+    boolean protect(DatagramSocket socket);
+}
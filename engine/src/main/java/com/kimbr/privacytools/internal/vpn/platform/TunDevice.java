@@ -0,0 +1,16 @@
+package com.kimbr.privacytools.internal.vpn.platform;
+
+import java.io.Closeable;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+// The device's end of the tunnel. Each read from the input returns one IPv4 packet the device
+// sent (blocking until there is one), each write to the output hands it one, whole. The output
+// may be written from several threads at once. The input must be in blocking mode: Android's
+// descriptor only is when the VpnService.Builder had setBlocking(true)
+public interface TunDevice extends Closeable {
+
+    ReadableByteChannel getInput();
+
+    WritableByteChannel getOutput();
+}
@@ -0,0 +1,177 @@
+package com.kimbr.privacytools.internal.vpn.standalone;
+
+import com.kimbr.privacytools.internal.vpn.BlocklistIngester;
+import com.kimbr.privacytools.internal.vpn.DomainIndex;
+import com.kimbr.privacytools.internal.vpn.DomainTrie;
+import com.kimbr.privacytools.internal.vpn.FilterHolder;
+import com.kimbr.privacytools.internal.vpn.HostFilter;
+import com.kimbr.privacytools.internal.vpn.TunnelEngine;
+import com.kimbr.privacytools.internal.vpn.metrics.PipelineMetrics;
+import com.kimbr.privacytools.internal.vpn.network.ByteBufferPool;
+import com.kimbr.privacytools.internal.vpn.network.HostnameTable;
+import com.kimbr.privacytools.internal.vpn.network.TCB;
+import com.kimbr.privacytools.internal.vpn.platform.ChannelTunDevice;
+import com.kimbr.privacytools.internal.vpn.platform.EngineLog;
+import com.kimbr.privacytools.internal.vpn.platform.FramedTunDevice;
+import com.kimbr.privacytools.internal.vpn.platform.SocketProtector;
+import com.kimbr.privacytools.internal.vpn.platform.TunDevice;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Runs the tunnel engine outside Android, for load tests and profiling on a server or in a
+// container. Java can't attach a tun interface itself, the tun comes from another process:
+//   --tun                    standard input and output are an attached tun descriptor, see tun-exec.py
+//   --stdio                  length-framed packets on standard input and output (FramedTunDevice)
+//   --udp <port> <peerPort>  one datagram per packet on 127.0.0.1
+// Other options: --reactors N (0 runs the pipeline), --max-connections N, --blocklist <url or
+// file:> (repeatable, names are answered with NXDOMAIN and their addresses dropped) and --verbose.
+// The routes must leave the engine's own sockets out of the tunnel, nothing is protected here.
+// Stops when the tun input ends or on a signal, printing the pipeline metrics to standard error
+public class StandaloneTunnel {
+
+    private static final String TAG = "StandaloneTunnel";
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final int HOSTNAME_TABLE_SIZE = 4096;
+    private static final int BLOCKLIST_PARALLELISM = 4;
+    private static final String USAGE = "Usage: StandaloneTunnel (--tun | --stdio | --udp <port> <peerPort>) [--reactors N] "
+            + "[--max-connections N] [--blocklist <url>]... [--verbose]";
+
+    public static void main(String[] args) throws Exception {
+        final TunnelEngine engine = new TunnelEngine(SocketProtector.NONE);
+        final List<String> blocklists = new ArrayList<>();
+        final CountDownLatch inputEnded = new CountDownLatch(1);
+        TunDevice tun = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--tun".equals(args[i])) tun = new ChannelTunDevice(new FileInputStream(FileDescriptor.in).getChannel(), new FileOutputStream(FileDescriptor.out).getChannel());
+            else if ("--udp".equals(args[i]) && i + 2 < args.length) tun = openDatagramTun(parsePort(args[++i]), parsePort(args[++i]));
+            else if ("--stdio".equals(args[i])) tun = new FramedTunDevice(new FileInputStream(FileDescriptor.in).getChannel(), new FileOutputStream(FileDescriptor.out).getChannel());
+            else if ("--reactors".equals(args[i]) && i + 1 < args.length) engine.reactorCount = Integer.parseInt(args[++i]);
+            else if ("--max-connections".equals(args[i]) && i + 1 < args.length) TCB.setMaxConnections(Integer.parseInt(args[++i]));
+            else if ("--blocklist".equals(args[i]) && i + 1 < args.length) blocklists.add(args[++i]);
+            else if ("--verbose".equals(args[i])) EngineLog.setSink(new EngineLog.StandardErrorSink(EngineLog.DEBUG));
+            else usage();
+        }
+
+        if (tun == null) usage();
+
+        if (!blocklists.isEmpty()) {
+            final DomainIndex hosts = new BlocklistIngester(BLOCKLIST_PARALLELISM).ingest(blocklists).build();
+            engine.filters = new FilterHolder(new HostFilter(hosts, DomainTrie.EMPTY));
+            engine.hostnames = new HostnameTable(HOSTNAME_TABLE_SIZE);
+            EngineLog.i(TAG, "Blocking " + hosts.size() + " names");
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                engine.stop();
+
+                try {
+                    engine.awaitTermination(5, TimeUnit.SECONDS);
+                }
+
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+
+                System.err.println("Pipeline: " + PipelineMetrics.snapshot());
+                for (ByteBufferPool.Stats stats : ByteBufferPool.getStats()) System.err.println("Buffer pool: " + stats);
+            }
+        }, TAG + "-shutdown"));
+
+        engine.start(new EndOfInputTunDevice(tun, inputEnded));
+        inputEnded.await();
+        System.exit(0);
+    }
+
+    private static int parsePort(String port) {
+        try {
+            return Integer.parseInt(port);
+        }
+
+        catch (NumberFormatException ex) {
+            usage();
+            return -1;
+        }
+    }
+
+    private static void usage() {
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+
+    // Bound to port and connected to peerPort, so only the peer can write to the engine
+    private static TunDevice openDatagramTun(int port, int peerPort) throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(LOOPBACK, port));
+        channel.connect(new InetSocketAddress(LOOPBACK, peerPort));
+        return new ChannelTunDevice(channel, channel);
+    }
+
+    // Counts down when the device's input ends, VpnRunnable stops then but the rest of the engine
+    // would go on waiting for packets
+    private static class EndOfInputTunDevice implements TunDevice {
+
+        private final TunDevice tun;
+        private final CountDownLatch inputEnded;
+
+        private final ReadableByteChannel input = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer packet) throws IOException {
+                try {
+                    final int readBytes = tun.getInput().read(packet);
+                    if (readBytes == -1) inputEnded.countDown();
+                    return readBytes;
+                }
+
+                catch (IOException ex) {
+                    inputEnded.countDown();
+                    throw ex;
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                return tun.getInput().isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                tun.getInput().close();
+            }
+        };
+
+        EndOfInputTunDevice(TunDevice tun, CountDownLatch inputEnded) {
+            this.tun = tun;
+            this.inputEnded = inputEnded;
+        }
+
+        @Override
+        public ReadableByteChannel getInput() {
+            return input;
+        }
+
+        @Override
+        public WritableByteChannel getOutput() {
+            return tun.getOutput();
+        }
+
+        @Override
+        public void close() throws IOException {
+            tun.close();
+        }
+    }
+}
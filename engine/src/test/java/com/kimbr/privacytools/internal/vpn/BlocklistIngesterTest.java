@@ -0,0 +1,134 @@
+package com.kimbr.privacytools.internal.vpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Ingests blocklists in each supported format from local files through file: URLs, the way the app
+ * ingests downloaded ones: overlapping lists must merge without duplicates, and a source that can't be
+ * read must only cost its own names.
+ */
+public class BlocklistIngesterTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("blocklists", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void mergesFormatsAndDropsDuplicates() throws Exception {
+        final String hosts = source("hosts", "# Title: test hosts\r\n"
+                + "127.0.0.1 localhost\r\n"
+                + "127.0.0.1 localhost.localdomain\r\n"
+                + "::1 ip6-localhost ip6-loopback\r\n"
+                + "0.0.0.0 0.0.0.0\r\n"
+                + "0.0.0.0 ads.example.com\r\n"
+                + "127.0.0.1\ttracker.example.net   pixel.example.net # two on a line\r\n"
+                + "0.0.0.0 Shared.Example.org.\r\n");
+        final String plain = source("plain", "! plain list\n"
+                + "shared.example.org\n"
+                + "ADS.example.com\n"
+                + "\n"
+                + "metrics.example.io\n"
+                + "||adblock.example.com^\n"
+                + "*.wildcard.example.com\n"
+                + "last.example.io");
+        final String dnsmasq = source("dnsmasq", "address=/dnsmasq.example.com/0.0.0.0\n"
+                + "address=/one.example.com/two.example.com/\n"
+                + "server=/local-only.example.com/\n"
+                + "server=/forwarded.example.com/1.1.1.1\n"
+                + "local=/shared.example.org/\n");
+
+        final DomainIndex.Builder builder = new BlocklistIngester(3).ingest(Arrays.asList(hosts, plain, dnsmasq));
+        final DomainIndex index = builder.build();
+
+        for (String name : new String[]{"ads.example.com", "tracker.example.net", "pixel.example.net", "shared.example.org",
+                "metrics.example.io", "last.example.io", "dnsmasq.example.com", "one.example.com", "two.example.com", "local-only.example.com"})
+            assertEquals(name, DomainIndex.BLOCKED, index.lookup(name));
+
+        for (String name : new String[]{"localhost", "localhost.localdomain", "ip6-localhost", "0.0.0.0", "adblock.example.com",
+                "wildcard.example.com", "forwarded.example.com", "1.1.1.1"})
+            assertEquals(name, DomainIndex.NOT_LISTED, index.lookup(name));
+
+        assertEquals(10, index.size());
+    }
+
+    @Test
+    public void unreadableSourceIsLeftOut() throws Exception {
+        final String missing = new File(directory, "missing").toURI().toString();
+        final String plain = source("plain", "ads.example.com\n");
+
+        final DomainIndex.Builder builder = new BlocklistIngester(2).ingest(Arrays.asList(missing, plain));
+        assertEquals(1, builder.count());
+
+        try {
+            new BlocklistIngester(2).ingest(Arrays.asList(missing, missing));
+            fail("Ingesting only unreadable sources should fail");
+        }
+
+        catch (IOException expected) {
+            // The caller keeps its old hosts file
+        }
+    }
+
+    @Test
+    public void linesSpanningReadsAndWrittenFileRoundTrip() throws Exception {
+        // Several times the parser's buffer, across more sources than threads
+        final List<String> sources = new ArrayList<>();
+        for (int source = 0; source < 6; source++) {
+            final StringBuilder list = new StringBuilder();
+            for (int i = 0; i < 20000; i++) list.append("0.0.0.0 host").append(source * 10000 + i).append(".example.com\n");
+            sources.add(source("list" + source, list.toString()));
+        }
+
+        final DomainIndex.Builder builder = new BlocklistIngester(4).ingest(sources);
+        assertEquals(70000, builder.count()); // Each list shares half its names with the next
+
+        final File hostsFile = new File(directory, "hosts.txt");
+        BlocklistIngester.writeHostsFile(hostsFile, builder);
+
+        final DomainIndex.Builder readBack = new DomainIndex.Builder();
+        BlocklistIngester.parse(hostsFile.toURI().toString(), readBack);
+        final DomainIndex index = readBack.build();
+
+        assertEquals(70000, index.size());
+        for (int i = 0; i < 70000; i++) assertEquals(DomainIndex.BLOCKED, index.lookup("host" + i + ".example.com"));
+    }
+
+    private String source(String name, String content) throws IOException {
+        final File file = new File(directory, name);
+        final OutputStream output = new FileOutputStream(file);
+
+        try {
+            output.write(content.getBytes("UTF-8"));
+        }
+
+        finally {
+            output.close();
+        }
+
+        return file.toURI().toString();
+    }
+}
@@ -0,0 +1,108 @@
+package com.kimbr.privacytools.internal.vpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Saves an index with writeTo() and maps it back with open(): lookups must survive the round trip, and a
+ * snapshot for another source, with a flipped byte or cut short must be turned down so it gets rebuilt.
+ */
+public class DomainIndexTest {
+
+    private static final int NAMES = 2000;
+    private static final long SOURCE_STAMP = 0x1234567890L;
+    private static final int SNAPSHOT_HEADER_SIZE = 32;
+
+    private File snapshot;
+
+    @Before
+    public void setUp() throws IOException {
+        snapshot = File.createTempFile("domains", ".idx");
+        build().writeTo(snapshot, SOURCE_STAMP);
+    }
+
+    @After
+    public void tearDown() {
+        snapshot.delete();
+    }
+
+    @Test
+    public void roundTripsLookups() throws Exception {
+        final DomainIndex index = DomainIndex.open(snapshot, SOURCE_STAMP);
+        assertNotNull(index);
+        assertEquals(NAMES, index.size());
+
+        for (int i = 0; i < NAMES; i++)
+            assertEquals(i % 10 == 0 ? DomainIndex.ALLOWED : DomainIndex.BLOCKED, index.lookup(name(i)));
+
+        assertEquals(DomainIndex.BLOCKED, index.lookup("HOST7.Example.com."));
+        assertEquals(DomainIndex.NOT_LISTED, index.lookup(name(NAMES)));
+        assertEquals(DomainIndex.NOT_LISTED, index.lookup("example.com"));
+    }
+
+    @Test
+    public void rejectsOtherSourceStamp() throws Exception {
+        assertNull(DomainIndex.open(snapshot, SOURCE_STAMP + 1));
+    }
+
+    @Test
+    public void rejectsFlippedByte() throws Exception {
+        final RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+        try {
+            final long position = SNAPSHOT_HEADER_SIZE + (file.length() - SNAPSHOT_HEADER_SIZE) / 2;
+            file.seek(position);
+            final int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0x01);
+        }
+
+        finally {
+            file.close();
+        }
+
+        assertNull(DomainIndex.open(snapshot, SOURCE_STAMP));
+    }
+
+    @Test
+    public void rejectsTruncatedSnapshot() throws Exception {
+        truncate(snapshot.length() - 1);
+        assertNull(DomainIndex.open(snapshot, SOURCE_STAMP));
+
+        truncate(SNAPSHOT_HEADER_SIZE - 1);
+        assertNull(DomainIndex.open(snapshot, SOURCE_STAMP));
+
+        truncate(0);
+        assertNull(DomainIndex.open(snapshot, SOURCE_STAMP));
+    }
+
+    private void truncate(long length) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+        try {
+            file.setLength(length);
+        }
+
+        finally {
+            file.close();
+        }
+    }
+
+    // Every tenth name allowed, the rest blocked
+    private static DomainIndex build() {
+        final DomainIndex.Builder builder = new DomainIndex.Builder();
+        for (int i = 0; i < NAMES; i++) builder.add(name(i), i % 10 == 0);
+        return builder.build();
+    }
+
+    private static String name(int i) {
+        return "host" + i + ".example.com";
+    }
+}
@@ -0,0 +1,160 @@
+package com.kimbr.privacytools.internal.vpn;
+
+import com.kimbr.privacytools.internal.vpn.network.Packet;
+import com.kimbr.privacytools.internal.vpn.network.TestPackets;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes packets into a TrafficLog the way VpnRunnable does and drains them into a callback: a full ring
+ * must drop rather than wait, the rate limit must skip the excess, and every event must arrive whole and
+ * be counted exactly once even with the drainer running concurrently.
+ */
+public class TrafficLogTest {
+
+    private static final byte[] REMOTE_ADDRESS = {93, (byte) 184, (byte) 216, 34};
+
+    @Test
+    public void fullRingDropsEvents() {
+        final TrafficLog log = new TrafficLog(4, 1000);
+        final Collector collector = new Collector();
+        log.setCallback(collector);
+        final Packet packet = udpPacket(5353);
+
+        for (int i = 0; i < 4; i++) assertTrue(log.publish(packet, "example.com", DomainIndex.BLOCKED));
+        assertFalse(log.publish(packet, "example.com", DomainIndex.BLOCKED));
+
+        assertEquals(4, log.drain());
+        assertEquals(4, collector.events.get());
+        assertEquals(1, log.getStats().droppedCount);
+
+        // The drain freed the ring
+        assertTrue(log.publish(packet, null, DomainIndex.NOT_LISTED));
+    }
+
+    @Test
+    public void batchCarriesEventFields() {
+        final TrafficLog log = new TrafficLog(16, 1000);
+        final TrafficLog.Batch[] seen = new TrafficLog.Batch[1];
+
+        log.setCallback(new LoggingCallback() {
+            @Override
+            public void log(TrafficLog.Batch events) {
+                assertEquals(1, events.size());
+                assertEquals(17, events.getProtocolNumber(0));
+                assertEquals(0x0A010A01, events.getSourceAddress(0));
+                assertEquals(40000, events.getSourcePort(0));
+                assertEquals(0x5DB8D822, events.getDestinationAddress(0));
+                assertEquals(443, events.getDestinationPort(0));
+                assertEquals(DomainIndex.ALLOWED, events.getVerdict(0));
+                assertEquals(Packet.IP4_HEADER_SIZE + Packet.UDP_HEADER_SIZE + 4, events.getLength(0));
+                assertEquals("cdn.example.com", events.getHostName(0));
+                seen[0] = events;
+            }
+        });
+
+        final ByteBuffer buffer = TestPackets.udp(TestPackets.DEVICE_ADDRESS, 40000, REMOTE_ADDRESS, 443, new byte[4]);
+        log.publish(new Packet().wrap(buffer), "cdn.example.com", DomainIndex.ALLOWED);
+
+        assertEquals(1, log.drain());
+        assertEquals(1, seen[0].size());
+    }
+
+    @Test
+    public void rateLimitSkipsExcessEvents() {
+        final TrafficLog log = new TrafficLog(64, 10);
+        final Collector collector = new Collector();
+        log.setCallback(collector);
+        final Packet packet = udpPacket(53);
+
+        for (int i = 0; i < 30; i++) log.publish(packet, null, DomainIndex.NOT_LISTED);
+
+        assertEquals(10, log.drain()); // A second's worth
+        assertEquals(20, log.getStats().skippedCount);
+        assertEquals(0, log.getStats().droppedCount);
+    }
+
+    @Test
+    public void recorderGetsEventsOverRateLimit() {
+        final TrafficLog log = new TrafficLog(64, 10);
+        final Collector collector = new Collector();
+        final Collector recorder = new Collector();
+        log.setCallback(collector);
+        log.setRecorder(recorder);
+        final Packet packet = udpPacket(53);
+
+        for (int i = 0; i < 30; i++) log.publish(packet, null, DomainIndex.NOT_LISTED);
+
+        assertEquals(10, log.drain());
+        assertEquals(10, collector.events.get());
+        assertEquals(30, recorder.events.get());
+
+        // Recording alone keeps publishing worthwhile
+        log.setCallback(null);
+        assertTrue(log.isEnabled());
+        log.setRecorder(null);
+        assertFalse(log.isEnabled());
+    }
+
+    @Test
+    public void concurrentDrainSeesWholeEvents() throws Exception {
+        final TrafficLog log = new TrafficLog(1024, Integer.MAX_VALUE / 1000);
+        final Collector collector = new Collector();
+        log.setCallback(collector);
+
+        // Drains as fast as it can instead of every DRAIN_INTERVAL_MS, so the ring wraps constantly
+        final Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) log.drain();
+            }
+        });
+        drainer.start();
+
+        // Source and destination port are written together, a torn event would show them apart
+        final Packet packet = udpPacket(0);
+        final ByteBuffer buffer = packet.backingBuffer;
+        final int events = 1000000;
+
+        for (int i = 0; i < events; i++) {
+            buffer.putShort(Packet.IP4_HEADER_SIZE, (short) i);
+            buffer.putShort(Packet.IP4_HEADER_SIZE + 2, (short) i);
+            while (!log.publish(packet, null, DomainIndex.NOT_LISTED)) Thread.yield();
+        }
+
+        drainer.interrupt();
+        drainer.join();
+        log.drain();
+
+        final TrafficLog.Stats stats = log.getStats();
+        assertEquals(0, collector.tornEvents.get());
+        assertEquals(events, stats.publishedCount);
+        assertEquals(events, stats.deliveredCount);
+        assertEquals(events, collector.events.get());
+    }
+
+    private static Packet udpPacket(int port) {
+        return new Packet().wrap(TestPackets.udp(TestPackets.DEVICE_ADDRESS, port, REMOTE_ADDRESS, port, new byte[0]));
+    }
+
+    private static class Collector implements LoggingCallback {
+
+        final AtomicLong events = new AtomicLong();
+        final AtomicLong tornEvents = new AtomicLong();
+
+        @Override
+        public void log(TrafficLog.Batch batch) {
+            for (int i = 0; i < batch.size(); i++)
+                if (batch.getSourcePort(i) != batch.getDestinationPort(i)) tornEvents.incrementAndGet();
+
+            events.addAndGet(batch.size());
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.kimbr.privacytools.internal.vpn;
+
+import com.kimbr.privacytools.internal.vpn.network.ByteBufferPool;
+import com.kimbr.privacytools.internal.vpn.network.HandoffQueue;
+import com.kimbr.privacytools.internal.vpn.network.Packet;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round-trip latency of VpnRunnable in both io modes, using a pair of pipes in place of the tun descriptor.
+ * Each round writes a packet from the "device", waits for it on the udp queue, then pushes a response
+ * through networkToDeviceQueue and waits for it on the device side.
+ */
+public class VpnRunnableLatencyTest {
+
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 100;
+    private static final int PACKET_SIZE = 40;
+
+    @Test
+    public void eventDrivenRoundTripIsFasterThanPolling() throws Exception {
+        final long[] polling = measureRoundTrips(VpnRunnable.IoMode.POLLING);
+        final long[] eventDriven = measureRoundTrips(VpnRunnable.IoMode.EVENT_DRIVEN);
+
+        System.out.println("VpnRunnable round trip (us) polling:      " + summary(polling));
+        System.out.println("VpnRunnable round trip (us) event driven: " + summary(eventDriven));
+        assertTrue(percentile(eventDriven, 50) < percentile(polling, 50));
+    }
+
+    @Test
+    public void eventDrivenStopsOnNonBlockingInput() throws Exception {
+        final Pipe deviceToTunnel = Pipe.open();
+        final Pipe tunnelToDevice = Pipe.open();
+        deviceToTunnel.source().configureBlocking(false);
+
+        final VpnRunnable vpnRunnable = new VpnRunnable(deviceToTunnel.source(), tunnelToDevice.sink(),
+                new HandoffQueue<ByteBuffer>(16), new HandoffQueue<ByteBuffer>(16), new LinkedBlockingQueue<ByteBuffer>());
+        final Thread thread = new Thread(vpnRunnable);
+        thread.start();
+
+        try {
+            // Would spin on empty reads instead
+            thread.join(1000);
+            assertFalse(thread.isAlive());
+        }
+
+        finally {
+            thread.interrupt();
+            deviceToTunnel.sink().close();
+            tunnelToDevice.source().close();
+        }
+    }
+
+    private static long[] measureRoundTrips(VpnRunnable.IoMode ioMode) throws Exception {
+        final Pipe deviceToTunnel = Pipe.open();
+        final Pipe tunnelToDevice = Pipe.open();
+        if (ioMode == VpnRunnable.IoMode.POLLING) deviceToTunnel.source().configureBlocking(false);
+
+        final HandoffQueue<ByteBuffer> udpQueue = new HandoffQueue<>(16);
+        final HandoffQueue<ByteBuffer> tcpQueue = new HandoffQueue<>(16);
+        final LinkedBlockingQueue<ByteBuffer> networkToDeviceQueue = new LinkedBlockingQueue<>();
+
+        final VpnRunnable vpnRunnable = new VpnRunnable(deviceToTunnel.source(), tunnelToDevice.sink(), udpQueue, tcpQueue, networkToDeviceQueue);
+        vpnRunnable.ioMode = ioMode;
+        final Thread thread = new Thread(vpnRunnable);
+        thread.start();
+
+        final long[] samples = new long[MEASURED_ROUNDS];
+        final ByteBuffer deviceReadBuffer = ByteBuffer.allocate(PACKET_SIZE);
+
+        try {
+            for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+                // Let the tunnel go idle, as it would be between real packets
+                Thread.sleep(1);
+                final long start = System.nanoTime();
+
+                writeFully(deviceToTunnel.sink(), udpPacket());
+                ByteBuffer packet;
+                while ((packet = udpQueue.poll()) == null) Thread.yield();
+                ByteBufferPool.release(packet);
+
+                final ByteBuffer response = ByteBufferPool.acquire();
+                response.put(udpPacket());
+                networkToDeviceQueue.offer(response);
+
+                deviceReadBuffer.clear();
+                while (deviceReadBuffer.hasRemaining()) tunnelToDevice.source().read(deviceReadBuffer);
+
+                if (round >= WARMUP_ROUNDS) samples[round - WARMUP_ROUNDS] = System.nanoTime() - start;
+            }
+        }
+
+        finally {
+            thread.interrupt();
+            thread.join(1000);
+            deviceToTunnel.sink().close();
+            tunnelToDevice.source().close();
+        }
+
+        Arrays.sort(samples);
+        return samples;
+    }
+
+    // Minimal IPv4 + UDP packet with a zeroed payload, 10.1.10.1:40000 -> 1.1.1.1:53
+    private static ByteBuffer udpPacket() {
+        final ByteBuffer buffer = ByteBuffer.allocate(PACKET_SIZE);
+        buffer.put((byte) 0x45).put((byte) 0).putShort((short) PACKET_SIZE);
+        buffer.putInt(0);
+        buffer.put((byte) 64).put((byte) 17).putShort((short) 0);
+        buffer.put(new byte[] {10, 1, 10, 1});
+        buffer.put(new byte[] {1, 1, 1, 1});
+        buffer.putShort((short) 40000).putShort((short) 53);
+        buffer.putShort((short) (PACKET_SIZE - Packet.IP4_HEADER_SIZE)).putShort((short) 0);
+        buffer.position(PACKET_SIZE);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(Pipe.SinkChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    private static long percentile(long[] sortedSamples, int percentile) {
+        return sortedSamples[(sortedSamples.length - 1) * percentile / 100];
+    }
+
+    private static String summary(long[] sortedSamples) {
+        return "p50=" + percentile(sortedSamples, 50) / 1000
+                + " p90=" + percentile(sortedSamples, 90) / 1000
+                + " p99=" + percentile(sortedSamples, 99) / 1000;
+    }
+}
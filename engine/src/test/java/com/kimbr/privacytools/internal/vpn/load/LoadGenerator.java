@@ -0,0 +1,619 @@
+package com.kimbr.privacytools.internal.vpn.load;
+
+import com.kimbr.privacytools.internal.Utils;
+import com.kimbr.privacytools.internal.vpn.TunnelEngine;
+import com.kimbr.privacytools.internal.vpn.metrics.LatencyHistogram;
+import com.kimbr.privacytools.internal.vpn.metrics.PipelineMetrics;
+import com.kimbr.privacytools.internal.vpn.network.ByteBufferPool;
+import com.kimbr.privacytools.internal.vpn.network.Packet;
+import com.kimbr.privacytools.internal.vpn.network.TCB;
+import com.kimbr.privacytools.internal.vpn.network.headers.TCPHeader;
+import com.kimbr.privacytools.internal.vpn.platform.ChannelTunDevice;
+import com.kimbr.privacytools.internal.vpn.platform.SocketProtector;
+import com.kimbr.privacytools.internal.vpn.replay.LoopbackEchoServers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Synthesizes the device's side of an app opening many connections at once and drives it through
+ * the tunnel engine on a workstation JVM, to see where the engine gives way as flows multiply.
+ * <p>
+ * One run opens {@code flowCount} TCP flows together, each a handshake, a bulk transfer of
+ * {@link #bytesPerFlow} bytes to {@link LoopbackEchoServers} (which send it back, so data crosses
+ * the engine both ways) and a FIN or RST teardown, alongside a burst of DNS queries on UDP flows of
+ * their own. The device side keeps at most {@link #DEVICE_WINDOW} bytes unacknowledged by the
+ * engine and acknowledges what it receives. The tun is a connected pair of loopback datagram
+ * channels, as for {@code PcapReplay}; checksums are left at zero, the engine doesn't verify them.
+ * <p>
+ * Reports connect, transfer and DNS latency percentiles, echo throughput, how many flows the engine
+ * refused or reset, TCB evictions and the peak number of TCBs. Run with
+ * {@code ./gradlew :engine:load -PloadArgs="--flows 10,100,1000,10000 [--bytes 16384] [--dns 1]
+ * [--reset-fraction 0.5] [--reactors 2] [--max-connections 4096]"}, one run per flow count followed
+ * by a table comparing them. Thousands of flows need about three descriptors each, check ulimit -n.
+ */
+public class LoadGenerator {
+
+    public static final int DEVICE_WINDOW = 65535; // Advertised, no window scaling
+    private static final int DEVICE_ADDRESS = 0x0A010A01; // 10.1.10.1
+    private static final int LOOPBACK_ADDRESS = 0x7F000001;
+    private static final int TCP = 6;
+    private static final int UDP = 17;
+    private static final int HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE;
+    private static final int FIRST_PORT = 1024;
+    private static final int DEVICE_ISN = 1000;
+    private static final int TUN_BUFFER_SIZE = 8 << 20; // Capped by the kernel, often to a few hundred KB
+    // Written but not yet read by VpnRunnable, the tun channel drops what overflows its buffer
+    private static final int MAX_IN_FLIGHT = 64;
+    private static final long STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // The run is over once nothing has crossed the tun channel for this long
+    private static final long QUIET_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // Like a device's first retransmission timeout, packets the engine dropped are sent again
+    private static final long RETRANSMIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_RETRANSMISSIONS = 3;
+    private static final String TABLE_HEADER = String.format("%8s %9s %9s %8s %8s %10s %10s %11s %10s %10s %9s %8s",
+            "flows", "connected", "completed", "refused", "reset", "connectP50", "connectP99", "transferP99", "echo MB/s", "evictions", "evict/s", "peakTcbs");
+
+    public int bytesPerFlow = 16384; // Sent by each TCP flow and echoed back, 0 for handshakes only
+    public int segmentSize = 1360;
+    public int dnsQueriesPerFlow = 1;
+    public double resetFraction = 0.5; // Flows torn down with RST rather than FIN
+    public int reactorCount = 0; // 0 runs the pipeline
+    public int maxConnections = 4096;
+    public int timeoutSeconds = 120;
+
+    private final int flowCount;
+    private final List<Flow> tcpFlows = new ArrayList<>();
+    private final List<Flow> dnsFlows = new ArrayList<>();
+    // By source port, for the device reader
+    private final AtomicReferenceArray<Flow> flowsByPort = new AtomicReferenceArray<>(65536);
+    // Flows the device reader has news for, serviced by the generator thread
+    private final LinkedBlockingQueue<Flow> readyFlows = new LinkedBlockingQueue<>();
+    private final ByteBuffer packetBuffer = ByteBuffer.allocateDirect(HEADER_SIZE + 65536);
+    private final byte[] segmentPayload;
+
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+    private final LatencyHistogram transferLatency = new LatencyHistogram();
+    private final LatencyHistogram dnsLatency = new LatencyHistogram();
+    private final AtomicLong packetsWritten = new AtomicLong();
+    private final AtomicLong echoedBytes = new AtomicLong();
+    private final AtomicLong dnsAnswers = new AtomicLong();
+    private final AtomicLong oversizedSegments = new AtomicLong();
+    private volatile long lastActivityAt;
+    private long lostPackets; // Known lost on the tun channel, generator thread only
+
+    // Generator thread only
+    private int finishedFlows;
+    private int completedFlows;
+    private int refusedFlows;
+    private int resetFlows;
+    private int peakConnections;
+    private int retransmissions;
+
+    private TunnelEngine engine;
+    private DatagramChannel device;
+    private int tcpServerPort;
+    private int udpServerPort;
+
+    public LoadGenerator(int flowCount) {
+        this.flowCount = flowCount;
+        segmentPayload = new byte[65536];
+        for (int i = 0; i < segmentPayload.length; i++) segmentPayload[i] = (byte) ('a' + i % 26);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final List<Integer> steps = new ArrayList<>();
+        final LoadGenerator options = new LoadGenerator(0);
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("--flows".equals(args[i]) && i + 1 < args.length)
+                    for (String step : args[++i].split(",")) steps.add(Integer.parseInt(step.trim()));
+                else if ("--bytes".equals(args[i]) && i + 1 < args.length) options.bytesPerFlow = Integer.parseInt(args[++i]);
+                else if ("--segment".equals(args[i]) && i + 1 < args.length) options.segmentSize = Integer.parseInt(args[++i]);
+                else if ("--dns".equals(args[i]) && i + 1 < args.length) options.dnsQueriesPerFlow = Integer.parseInt(args[++i]);
+                else if ("--reset-fraction".equals(args[i]) && i + 1 < args.length) options.resetFraction = Double.parseDouble(args[++i]);
+                else if ("--reactors".equals(args[i]) && i + 1 < args.length) options.reactorCount = Integer.parseInt(args[++i]);
+                else if ("--max-connections".equals(args[i]) && i + 1 < args.length) options.maxConnections = Integer.parseInt(args[++i]);
+                else if ("--timeout".equals(args[i]) && i + 1 < args.length) options.timeoutSeconds = Integer.parseInt(args[++i]);
+                else {
+                    steps.clear();
+                    break;
+                }
+            }
+        }
+
+        catch (NumberFormatException ex) {
+            steps.clear();
+        }
+
+        if (steps.isEmpty()) {
+            System.err.println("Usage: LoadGenerator --flows <count>[,<count>...] [--bytes <per flow>] [--segment <size>] [--dns <queries per flow>] "
+                    + "[--reset-fraction <0-1>] [--reactors <count>] [--max-connections <count>] [--timeout <seconds>]");
+            System.exit(2);
+        }
+
+        final List<Report> reports = new ArrayList<>();
+        for (int flowCount : steps) {
+            final LoadGenerator generator = new LoadGenerator(flowCount);
+            generator.bytesPerFlow = options.bytesPerFlow;
+            generator.segmentSize = options.segmentSize;
+            generator.dnsQueriesPerFlow = options.dnsQueriesPerFlow;
+            generator.resetFraction = options.resetFraction;
+            generator.reactorCount = options.reactorCount;
+            generator.maxConnections = options.maxConnections;
+            generator.timeoutSeconds = options.timeoutSeconds;
+
+            final Report report = generator.run();
+            reports.add(report);
+            System.out.println(report);
+        }
+
+        System.out.println(TABLE_HEADER);
+        for (Report report : reports) System.out.println(report.toRow());
+        System.exit(0); // Leftover engine threads aren't daemons
+    }
+
+    // Single use
+    public Report run() throws IOException, InterruptedException {
+        if (flowCount + flowCount * dnsQueriesPerFlow > 65536 - FIRST_PORT) throw new IllegalArgumentException("More flows than source ports");
+        segmentSize = Math.max(1, Math.min(segmentSize, segmentPayload.length));
+
+        final LoopbackEchoServers servers = new LoopbackEchoServers();
+        tcpServerPort = servers.getTcpPort();
+        udpServerPort = servers.getUdpPort();
+
+        device = DatagramChannel.open();
+        final DatagramChannel tun = DatagramChannel.open();
+        connectPair(device, tun);
+
+        Thread deviceReader = null;
+
+        try {
+            PipelineMetrics.reset();
+            ByteBufferPool.clear();
+            TCB.setMaxConnections(maxConnections);
+
+            engine = new TunnelEngine(SocketProtector.NONE);
+            engine.reactorCount = reactorCount;
+            engine.start(new ChannelTunDevice(tun, tun));
+
+            deviceReader = new Thread(new DeviceReader(), "LoadGenerator-device");
+            deviceReader.start();
+
+            final long startedAt = System.nanoTime();
+            lastActivityAt = startedAt;
+            generate(startedAt + TimeUnit.SECONDS.toNanos(timeoutSeconds));
+            return new Report(lastActivityAt - startedAt);
+        }
+
+        finally {
+            engine.stop();
+            engine.awaitTermination(5, TimeUnit.SECONDS);
+            if (deviceReader != null) deviceReader.interrupt();
+            Utils.closeResources(device, tun, servers);
+        }
+    }
+
+    private void generate(long deadline) throws IOException, InterruptedException {
+        int nextPort = FIRST_PORT;
+
+        // Everything opens at once, serviced in between so early flows don't wait on the last SYN
+        for (int i = 0; i < flowCount; i++) {
+            final Flow flow = new Flow(TCP, nextPort++, i < Math.round(flowCount * resetFraction));
+            tcpFlows.add(flow);
+            flowsByPort.set(flow.sourcePort, flow);
+            flow.synWrittenAt = System.nanoTime();
+            sendTcp(flow, TCPHeader.SYN, DEVICE_ISN, 0, 0);
+
+            for (int j = 0; j < dnsQueriesPerFlow; j++) {
+                final Flow query = new Flow(UDP, nextPort++, false);
+                dnsFlows.add(query);
+                flowsByPort.set(query.sourcePort, query);
+                sendDnsQuery(query, dnsFlows.size());
+            }
+
+            serviceReadyFlows(0);
+        }
+
+        long retransmitCheckAt = System.nanoTime() + RETRANSMIT_NANOS;
+
+        while (finishedFlows < flowCount || dnsAnswers.get() < dnsFlows.size()) {
+            final long now = System.nanoTime();
+            if (now > deadline || now - lastActivityAt > QUIET_NANOS) break;
+
+            if (now > retransmitCheckAt) {
+                retransmitStalledFlows(now);
+                retransmitCheckAt = now + RETRANSMIT_NANOS / 4;
+            }
+
+            serviceReadyFlows(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    // A SYN or data unacknowledged for RETRANSMIT_NANOS is sent again, data from the first
+    // unacknowledged byte. Lost packets the other way stay lost, the engine doesn't retransmit
+    private void retransmitStalledFlows(long now) throws IOException {
+        for (Flow flow : tcpFlows) {
+            if (flow.finished || flow.retransmissions == MAX_RETRANSMISSIONS || now - flow.lastSentAt < RETRANSMIT_NANOS) continue;
+
+            final boolean connected;
+            final long ackedByEngine;
+
+            synchronized (flow) {
+                connected = flow.connected;
+                ackedByEngine = flow.ackedByEngine;
+            }
+
+            if (!connected) sendTcp(flow, TCPHeader.SYN, DEVICE_ISN, 0, 0);
+            else if (flow.sentBytes > ackedByEngine) {
+                flow.sentBytes = ackedByEngine;
+                service(flow);
+            }
+
+            else continue;
+
+            flow.retransmissions++;
+            retransmissions++;
+        }
+    }
+
+    private void serviceReadyFlows(long waitNanos) throws IOException, InterruptedException {
+        Flow flow = readyFlows.poll(waitNanos, TimeUnit.NANOSECONDS);
+
+        while (flow != null) {
+            service(flow);
+            flow = readyFlows.poll();
+        }
+
+        peakConnections = Math.max(peakConnections, TCB.getConnectionCount());
+    }
+
+    // Moves a TCP flow along with what the device reader has seen of the engine's side
+    private void service(Flow flow) throws IOException {
+        final boolean connected;
+        final boolean resetByEngine;
+        final boolean finReceived;
+        final long receivedUpTo;
+        final long ackedByEngine;
+        final long engineBytes;
+
+        synchronized (flow) {
+            flow.queued = false;
+            connected = flow.connected;
+            resetByEngine = flow.resetByEngine;
+            finReceived = flow.finReceived;
+            receivedUpTo = flow.receivedUpTo;
+            ackedByEngine = flow.ackedByEngine;
+            engineBytes = flow.engineBytes;
+        }
+
+        final long nextSequence = DEVICE_ISN + 1 + flow.sentBytes + (flow.finSent ? 1 : 0);
+
+        if (flow.finished) {
+            // The engine's FIN after ours, acknowledging it lets the engine drop the flow
+            if (finReceived && !flow.finAcknowledged && !resetByEngine) {
+                sendTcp(flow, TCPHeader.ACK, nextSequence, receivedUpTo, 0);
+                flow.finAcknowledged = true;
+            }
+
+            return;
+        }
+
+        if (resetByEngine) {
+            if (connected) resetFlows++;
+            else refusedFlows++;
+            finish(flow);
+            return;
+        }
+
+        if (!connected) return;
+
+        if (!flow.handshakeAcknowledged) {
+            sendTcp(flow, TCPHeader.ACK, nextSequence, receivedUpTo, 0);
+            flow.handshakeAcknowledged = true;
+            flow.acknowledgedUpTo = receivedUpTo;
+        }
+
+        while (flow.sentBytes < bytesPerFlow && flow.sentBytes - ackedByEngine < DEVICE_WINDOW) {
+            final int size = (int) Math.min(Math.min(segmentSize, bytesPerFlow - flow.sentBytes), DEVICE_WINDOW - (flow.sentBytes - ackedByEngine));
+            sendTcp(flow, TCPHeader.PSH | TCPHeader.ACK, DEVICE_ISN + 1 + flow.sentBytes, receivedUpTo, size);
+            flow.sentBytes += size;
+            flow.acknowledgedUpTo = receivedUpTo;
+        }
+
+        if (receivedUpTo != flow.acknowledgedUpTo) {
+            sendTcp(flow, TCPHeader.ACK, DEVICE_ISN + 1 + flow.sentBytes, receivedUpTo, 0);
+            flow.acknowledgedUpTo = receivedUpTo;
+        }
+
+        if (flow.sentBytes == bytesPerFlow && engineBytes >= bytesPerFlow) {
+            final long sequence = DEVICE_ISN + 1 + flow.sentBytes;
+
+            if (flow.resetTeardown) sendTcp(flow, TCPHeader.RST, sequence, 0, 0);
+            else {
+                sendTcp(flow, TCPHeader.FIN | TCPHeader.ACK, sequence, receivedUpTo, 0);
+                flow.finSent = true;
+            }
+
+            completedFlows++;
+            finish(flow);
+        }
+    }
+
+    private void finish(Flow flow) {
+        flow.finished = true;
+        finishedFlows++;
+    }
+
+    // SYNs advertise segmentSize as the device's MSS
+    private void sendTcp(Flow flow, int flags, long sequenceNumber, long acknowledgementNumber, int payloadSize) throws IOException {
+        final int headerSize = Packet.TCP_HEADER_SIZE + (flags == TCPHeader.SYN ? Packet.MSS_OPTION_SIZE : 0);
+        putIp4Header(TCP, headerSize + payloadSize);
+        packetBuffer.putShort((short) flow.sourcePort).putShort((short) tcpServerPort);
+        packetBuffer.putInt((int) sequenceNumber).putInt((int) acknowledgementNumber);
+        packetBuffer.put((byte) (headerSize << 2)).put((byte) flags);
+        packetBuffer.putShort((short) DEVICE_WINDOW).putShort((short) 0).putShort((short) 0);
+        if (flags == TCPHeader.SYN) packetBuffer.put((byte) TCPHeader.OPTION_MSS).put((byte) Packet.MSS_OPTION_SIZE).putShort((short) segmentSize);
+        packetBuffer.put(segmentPayload, 0, payloadSize);
+        write();
+        flow.lastSentAt = System.nanoTime();
+    }
+
+    // A query for an A record of a name of its own, the echo server sends it back as the answer
+    private void sendDnsQuery(Flow flow, int id) throws IOException {
+        final byte[] label = ("host" + id).getBytes("US-ASCII");
+        final int payloadSize = 12 + 1 + label.length + 11 + 4;
+
+        putIp4Header(UDP, Packet.UDP_HEADER_SIZE + payloadSize);
+        packetBuffer.putShort((short) flow.sourcePort).putShort((short) udpServerPort);
+        packetBuffer.putShort((short) (Packet.UDP_HEADER_SIZE + payloadSize)).putShort((short) 0);
+        packetBuffer.putShort((short) id).putShort((short) 0x0100).putShort((short) 1).putShort((short) 0).putInt(0);
+        packetBuffer.put((byte) label.length).put(label);
+        packetBuffer.put((byte) 4).put("load".getBytes("US-ASCII")).put((byte) 4).put("test".getBytes("US-ASCII")).put((byte) 0);
+        packetBuffer.putShort((short) 1).putShort((short) 1);
+
+        flow.synWrittenAt = System.nanoTime();
+        write();
+    }
+
+    private void putIp4Header(int protocol, int transportLength) {
+        packetBuffer.clear();
+        packetBuffer.put((byte) 0x45).put((byte) 0).putShort((short) (Packet.IP4_HEADER_SIZE + transportLength));
+        packetBuffer.putInt(0);
+        packetBuffer.put((byte) 64).put((byte) protocol).putShort((short) 0);
+        packetBuffer.putInt(DEVICE_ADDRESS).putInt(LOOPBACK_ADDRESS);
+    }
+
+    private void write() throws IOException {
+        awaitEngine();
+        packetBuffer.flip();
+        device.write(packetBuffer);
+        packetsWritten.incrementAndGet();
+        lastActivityAt = System.nanoTime();
+    }
+
+    // As fast as possible still means no faster than VpnRunnable reads
+    private void awaitEngine() {
+        long waitingSince = 0;
+
+        while (packetsWritten.get() - PipelineMetrics.packetsFromDevice.get() - lostPackets >= MAX_IN_FLIGHT) {
+            final long now = System.nanoTime();
+            if (waitingSince == 0) waitingSince = now;
+
+            // Not coming, the tun channel dropped them
+            else if (now - waitingSince > STALL_NANOS) {
+                lostPackets = packetsWritten.get() - PipelineMetrics.packetsFromDevice.get();
+                return;
+            }
+
+            LockSupport.parkNanos(10000);
+        }
+    }
+
+    // Reads what the engine writes to the tunnel, as the device would
+    private class DeviceReader implements Runnable {
+
+        private final Packet packet = new Packet();
+
+        @Override
+        public void run() {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+
+            try {
+                while (!Thread.interrupted()) {
+                    buffer.clear();
+                    final int readBytes = device.read(buffer);
+                    if (readBytes <= 0) continue;
+
+                    final long now = System.nanoTime();
+                    lastActivityAt = now;
+                    buffer.flip();
+                    packet.wrap(buffer);
+
+                    if (packet.isTcp()) received(flowsByPort.get(packet.tcpHeader.getDestinationPort()), buffer.remaining(), now);
+                    else if (packet.isUdp()) answered(flowsByPort.get(packet.udpHeader.getDestinationPort()), now);
+                }
+            }
+
+            catch (IOException ex) {
+                // Closed at the end of the run
+            }
+        }
+
+        private void answered(Flow flow, long now) {
+            if (flow == null || flow.protocol != UDP || flow.answered) return;
+
+            flow.answered = true;
+            dnsLatency.record(now - flow.synWrittenAt);
+            dnsAnswers.incrementAndGet();
+        }
+
+        private void received(Flow flow, int payloadSize, long now) {
+            if (flow == null || flow.protocol != TCP) return;
+            final TCPHeader tcpHeader = packet.tcpHeader;
+            if (payloadSize > segmentSize) oversizedSegments.incrementAndGet();
+
+            synchronized (flow) {
+                if (tcpHeader.isRST()) flow.resetByEngine = true;
+
+                else if (tcpHeader.isSYN() && tcpHeader.isACK()) {
+                    if (flow.connected) return; // Repeated, ours was acknowledged already
+                    flow.connected = true;
+                    flow.engineIsn = tcpHeader.getSequenceNumber();
+                    flow.receivedUpTo = (flow.engineIsn + 1) & 0xFFFFFFFFL;
+                    connectLatency.record(now - flow.synWrittenAt);
+                }
+
+                else if (flow.connected) {
+                    if (tcpHeader.isACK()) {
+                        final long acked = (tcpHeader.getAcknowledgementNumber() - DEVICE_ISN - 1) & 0xFFFFFFFFL;
+                        if (acked > flow.ackedByEngine && acked <= bytesPerFlow) flow.ackedByEngine = acked;
+                    }
+
+                    // In order on the tun channel, anything else is a retransmission
+                    if (tcpHeader.getSequenceNumber() == flow.receivedUpTo && (payloadSize > 0 || tcpHeader.isFIN())) {
+                        flow.receivedUpTo = (flow.receivedUpTo + payloadSize + (tcpHeader.isFIN() ? 1 : 0)) & 0xFFFFFFFFL;
+                        flow.engineBytes += payloadSize;
+                        echoedBytes.addAndGet(payloadSize);
+                        if (tcpHeader.isFIN()) flow.finReceived = true;
+
+                        if (payloadSize > 0 && flow.engineBytes >= bytesPerFlow && flow.engineBytes - payloadSize < bytesPerFlow)
+                            transferLatency.record(now - flow.synWrittenAt);
+                    }
+                }
+
+                if (flow.queued) return;
+                flow.queued = true;
+            }
+
+            readyFlows.offer(flow);
+        }
+    }
+
+    private static class Flow {
+
+        final int protocol;
+        final int sourcePort;
+        final boolean resetTeardown;
+        volatile long synWrittenAt; // Or the query, for DNS flows
+        volatile boolean answered; // DNS flows, device reader only
+
+        // What the device reader has seen, changed with the flow locked
+        boolean queued;
+        boolean connected;
+        boolean resetByEngine;
+        boolean finReceived;
+        long engineIsn;
+        long receivedUpTo;
+        long engineBytes; // Payload received in order
+        long ackedByEngine; // Of ours
+
+        // Generator thread only
+        long sentBytes;
+        long lastSentAt;
+        int retransmissions;
+        boolean handshakeAcknowledged;
+        long acknowledgedUpTo;
+        boolean finSent;
+        boolean finAcknowledged;
+        boolean finished;
+
+        Flow(int protocol, int sourcePort, boolean resetTeardown) {
+            this.protocol = protocol;
+            this.sourcePort = sourcePort;
+            this.resetTeardown = resetTeardown;
+        }
+    }
+
+    public class Report {
+
+        public final int flowCount = LoadGenerator.this.flowCount;
+        public final long elapsedNanos;
+        public final int connectedFlows;
+        public final int completedFlows = LoadGenerator.this.completedFlows;
+        public final int refusedFlows = LoadGenerator.this.refusedFlows;
+        public final int resetFlows = LoadGenerator.this.resetFlows;
+        public final int unfinishedFlows = flowCount - finishedFlows;
+        public final int dnsQueries = dnsFlows.size();
+        public final long dnsAnswers = LoadGenerator.this.dnsAnswers.get();
+        public final long echoedBytes = LoadGenerator.this.echoedBytes.get();
+        public final long oversizedSegments = LoadGenerator.this.oversizedSegments.get(); // Over the device's MSS
+        public final int peakConnections = LoadGenerator.this.peakConnections;
+        public final int retransmissions = LoadGenerator.this.retransmissions;
+        public final int openConnectionsAtEnd = TCB.getConnectionCount();
+        public final LatencyHistogram.Snapshot connectLatency = LoadGenerator.this.connectLatency.snapshot();
+        public final LatencyHistogram.Snapshot transferLatency = LoadGenerator.this.transferLatency.snapshot();
+        public final LatencyHistogram.Snapshot dnsLatency = LoadGenerator.this.dnsLatency.snapshot();
+        public final PipelineMetrics.Snapshot pipeline = PipelineMetrics.snapshot();
+
+        Report(long elapsedNanos) {
+            this.elapsedNanos = Math.max(elapsedNanos, 1);
+
+            int connected = 0;
+            for (Flow flow : tcpFlows) {
+                synchronized (flow) {
+                    if (flow.connected) connected++;
+                }
+            }
+
+            connectedFlows = connected;
+        }
+
+        public double getEchoBytesPerSecond() {
+            return echoedBytes * 1e9 / elapsedNanos;
+        }
+
+        public double getEvictionsPerSecond() {
+            return pipeline.tcbEvictions * 1e9 / elapsedNanos;
+        }
+
+        String toRow() {
+            return String.format("%8d %9d %9d %8d %8d %8dus %8dus %9dus %10.1f %10d %9.1f %8d",
+                    flowCount, connectedFlows, completedFlows, refusedFlows, resetFlows,
+                    connectLatency.getPercentileNanos(0.5) / 1000, connectLatency.getPercentileNanos(0.99) / 1000,
+                    transferLatency.getPercentileNanos(0.99) / 1000, getEchoBytesPerSecond() / 1e6,
+                    pipeline.tcbEvictions, getEvictionsPerSecond(), peakConnections);
+        }
+
+        @Override
+        public String toString() {
+            final double seconds = elapsedNanos / 1e9;
+            final StringBuilder builder = new StringBuilder();
+            builder.append(String.format("%d TCP flows and %d DNS queries in %.3fs\n", flowCount, dnsQueries, seconds));
+            builder.append(String.format("TCP: %d connected, %d completed, %d refused, %d reset by the engine, %d unfinished\n",
+                    connectedFlows, completedFlows, refusedFlows, resetFlows, unfinishedFlows));
+            builder.append(String.format("DNS: %d of %d answered\n", dnsAnswers, dnsQueries));
+            builder.append(String.format("Retransmitted by the device: %d\n", retransmissions));
+            builder.append(String.format("Echoed: %d bytes, %.1f MB/s, %d segments over the device's MSS\n", echoedBytes, getEchoBytesPerSecond() / 1e6, oversizedSegments));
+            builder.append("Connect (SYN to SYN-ACK): ").append(connectLatency).append('\n');
+            builder.append("Transfer (SYN to last echoed byte): ").append(transferLatency).append('\n');
+            builder.append("DNS (query to answer): ").append(dnsLatency).append('\n');
+            builder.append(String.format("TCBs: peak %d, %d still open, %d evictions (%.1f/s), %d refusals, %d connect failures\n",
+                    peakConnections, openConnectionsAtEnd, pipeline.tcbEvictions, getEvictionsPerSecond(), pipeline.tcbRefusals, pipeline.connectFailures));
+            builder.append("Pipeline: ").append(pipeline).append('\n');
+            return builder.toString();
+        }
+    }
+
+    private static void connectPair(DatagramChannel first, DatagramChannel second) throws IOException {
+        for (DatagramChannel channel : new DatagramChannel[] {first, second}) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, TUN_BUFFER_SIZE);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, TUN_BUFFER_SIZE);
+            channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        }
+
+        first.connect(second.getLocalAddress());
+        second.connect(first.getLocalAddress());
+    }
+}
@@ -0,0 +1,46 @@
+package com.kimbr.privacytools.internal.vpn.load;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A small load, a few dozen flows each transferring a few segments each way with half of them
+ * reset and half closed, plus a DNS query per flow, through the pipeline and through reactors.
+ */
+public class LoadGeneratorTest {
+
+    private static final int FLOWS = 24;
+    private static final int BYTES_PER_FLOW = 5000;
+
+    @Test
+    public void loadsPipeline() throws Exception {
+        assertCompleted(newGenerator().run());
+    }
+
+    @Test
+    public void loadsReactors() throws Exception {
+        final LoadGenerator generator = newGenerator();
+        generator.reactorCount = 2;
+        assertCompleted(generator.run());
+    }
+
+    private static LoadGenerator newGenerator() {
+        final LoadGenerator generator = new LoadGenerator(FLOWS);
+        generator.bytesPerFlow = BYTES_PER_FLOW;
+        generator.timeoutSeconds = 30;
+        return generator;
+    }
+
+    private static void assertCompleted(LoadGenerator.Report report) {
+        assertEquals(report.toString(), FLOWS, report.connectedFlows);
+        assertEquals(report.toString(), FLOWS, report.completedFlows);
+        assertEquals(report.toString(), 0, report.refusedFlows + report.resetFlows + report.unfinishedFlows);
+        assertEquals(report.toString(), FLOWS, report.dnsAnswers);
+        assertEquals(report.toString(), (long) FLOWS * BYTES_PER_FLOW, report.echoedBytes);
+        assertEquals(report.toString(), 0, report.oversizedSegments);
+        assertEquals(report.toString(), FLOWS, report.connectLatency.count);
+        assertEquals(report.toString(), FLOWS, report.transferLatency.count);
+        assertEquals(report.toString(), FLOWS, report.pipeline.tcbCreations);
+    }
+}
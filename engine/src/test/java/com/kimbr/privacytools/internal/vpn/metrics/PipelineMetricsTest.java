@@ -0,0 +1,144 @@
+package com.kimbr.privacytools.internal.vpn.metrics;
+
+import com.kimbr.privacytools.internal.vpn.network.HandoffQueue;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the building blocks of PipelineMetrics: every value must land in a histogram bucket whose bounds
+ * hold it and are at most a quarter apart, percentiles must come out within that error, counters must
+ * sum concurrent increments exactly and snapshots taken meanwhile must never go backwards.
+ */
+public class PipelineMetricsTest {
+
+    @Test
+    public void bucketsHoldTheirValues() {
+        final Random random = new Random(42);
+
+        for (int i = 0; i < 1000000; i++) {
+            final long value = i < 100000 ? i : (random.nextLong() >>> 1) >>> random.nextInt(63);
+            checkBucket(value);
+        }
+
+        for (int shift = 0; shift < 63; shift++) {
+            checkBucket(1L << shift);
+            checkBucket((1L << shift) - 1);
+            checkBucket((1L << shift) + 1);
+        }
+
+        checkBucket(Long.MAX_VALUE);
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+
+        // Adjacent buckets leave no gaps
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT - 1; bucket++)
+            assertEquals(LatencyHistogram.upperBound(bucket) + 1, LatencyHistogram.lowerBound(bucket + 1));
+    }
+
+    private static void checkBucket(long value) {
+        final int bucket = LatencyHistogram.bucket(value);
+        final long lower = LatencyHistogram.lowerBound(bucket);
+        final long upper = LatencyHistogram.upperBound(bucket);
+
+        assertTrue(value + " in bucket " + bucket, lower <= value && value <= upper);
+        assertTrue(value + " in a bucket too wide", upper - lower <= lower / 4);
+    }
+
+    @Test
+    public void percentilesWithinBucketError() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 10000; micros++) histogram.record(micros * 1000);
+        histogram.record(-5); // A clock step, counted as 0
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10001, snapshot.count);
+        assertEquals(10000000, snapshot.maxNanos);
+        assertEquals(50005000000L / 10001, snapshot.getMeanNanos());
+
+        checkPercentile(snapshot, 0.5, 5000000);
+        checkPercentile(snapshot, 0.9, 9000000);
+        checkPercentile(snapshot, 0.99, 9900000);
+        assertEquals(10000000, snapshot.getPercentileNanos(1));
+        assertEquals(0, new LatencyHistogram().snapshot().getPercentileNanos(0.5));
+    }
+
+    private static void checkPercentile(LatencyHistogram.Snapshot snapshot, double fraction, long exact) {
+        final long estimate = snapshot.getPercentileNanos(fraction);
+        assertTrue(fraction + ": " + estimate + " for " + exact, estimate >= exact && estimate <= exact + exact / 4);
+    }
+
+    @Test
+    public void concurrentCountsAreExact() throws Exception {
+        final Counter counter = new Counter();
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int threads = 8;
+        final int increments = 500000;
+        final AtomicBoolean backwards = new AtomicBoolean();
+        final AtomicBoolean done = new AtomicBoolean();
+
+        // Snapshots while the writers run
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long last = 0;
+                long lastCount = 0;
+
+                while (!done.get()) {
+                    final long value = counter.get();
+                    final long count = histogram.snapshot().count;
+                    if (value < last || count < lastCount) backwards.set(true);
+                    last = value;
+                    lastCount = count;
+                }
+            }
+        });
+        reader.start();
+
+        final Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < increments; i++) {
+                        counter.increment();
+                        histogram.record(i);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+
+        for (Thread writer : writers) writer.join();
+        done.set(true);
+        reader.join();
+
+        assertEquals((long) threads * increments, counter.get());
+        assertEquals((long) threads * increments, histogram.snapshot().count);
+        assertEquals(increments - 1, histogram.snapshot().maxNanos);
+        assertTrue("Snapshot went backwards", !backwards.get());
+    }
+
+    @Test
+    public void handoffQueueRecordsWaits() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final HandoffQueue<Integer> queue = new HandoffQueue<>(16, null, histogram);
+
+        for (int i = 0; i < 10; i++) queue.offer(i);
+        Thread.sleep(5);
+
+        for (int i = 0; i < 10; i++) {
+            final long before = System.nanoTime();
+            assertEquals(i, (int) queue.take());
+            assertTrue(queue.getLastEnqueueTime() < before - 5000000);
+        }
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10, snapshot.count);
+        assertTrue(snapshot.getPercentileNanos(0) >= 5000000);
+    }
+}
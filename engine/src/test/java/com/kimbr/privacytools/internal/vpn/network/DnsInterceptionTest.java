@@ -0,0 +1,260 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.DomainIndex;
+import com.kimbr.privacytools.internal.vpn.FilterHolder;
+import com.kimbr.privacytools.internal.vpn.DomainTrie;
+import com.kimbr.privacytools.internal.vpn.HostFilter;
+import com.kimbr.privacytools.internal.vpn.platform.SocketProtector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Sends DNS queries through UDPOutput/UDPInput with a stub DNS server on loopback standing in for the
+ * real one: queries for blocked names must be answered locally, everything else must reach the stub as sent,
+ * and the addresses in its answers must be attributed to the name asked for.
+ */
+public class DnsInterceptionTest {
+
+    private static final int DEVICE_PORT = 45000;
+    private static final int STUB_ANSWER_ADDRESS = 0xCB007107; // 203.0.113.7
+
+    private ExecutorService executorService;
+    private DatagramChannel stubServer;
+    private LinkedBlockingQueue<byte[]> stubQueries;
+    private Selector udpSelector;
+
+    private FilterHolder filters;
+    private HandoffQueue<ByteBuffer> udpQueue;
+    private LinkedBlockingQueue<ByteBuffer> networkToDeviceQueue;
+
+    @Before
+    public void setUp() throws IOException {
+        executorService = Executors.newCachedThreadPool();
+        stubServer = DatagramChannel.open();
+        stubServer.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        stubQueries = new LinkedBlockingQueue<>();
+        executorService.submit(new StubDnsServer());
+
+        udpSelector = Selector.open();
+        udpQueue = new HandoffQueue<>(64);
+        networkToDeviceQueue = new LinkedBlockingQueue<>();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executorService.shutdownNow();
+        executorService.awaitTermination(5, TimeUnit.SECONDS);
+        udpSelector.close();
+        stubServer.close();
+    }
+
+    @Test
+    public void blockedQueryIsAnsweredWithNxDomain() throws Exception {
+        start(true, null);
+
+        udpQueue.put(query(0x1234, "eu.ads.example.com", DnsMessage.TYPE_A));
+        final Packet response = awaitResponse();
+
+        assertEquals(0x1234, response.backingBuffer.getShort(response.backingBuffer.position()) & 0xFFFF);
+        assertEquals(0x8183, flagsOf(response)); // Response, RD and RA, NXDOMAIN
+        assertEquals(0, answerCountOf(response));
+        assertNull("Blocked query reached the server", stubQueries.poll(200, TimeUnit.MILLISECONDS));
+        ByteBufferPool.release(response.backingBuffer);
+    }
+
+    @Test
+    public void blockedQueryIsAnsweredWithUnspecifiedAddress() throws Exception {
+        start(false, null);
+
+        udpQueue.put(query(0x4321, "ads.example.com", DnsMessage.TYPE_A));
+        final Packet response = awaitResponse();
+        final ByteBuffer buffer = response.backingBuffer;
+
+        assertEquals(0x8180, flagsOf(response));
+        assertEquals(1, answerCountOf(response));
+        // The answer's address is the last four bytes
+        assertEquals(4, buffer.getShort(buffer.limit() - 6));
+        assertEquals(0, buffer.getInt(buffer.limit() - 4));
+        assertNull("Blocked query reached the server", stubQueries.poll(200, TimeUnit.MILLISECONDS));
+        ByteBufferPool.release(buffer);
+    }
+
+    @Test
+    public void allowedQueryIsForwardedUnchanged() throws Exception {
+        start(true, null);
+
+        final ByteBuffer query = query(0x0042, "cdn.ads.example.com", DnsMessage.TYPE_A);
+        final byte[] sent = new byte[query.limit() - Packet.IP4_HEADER_SIZE - Packet.UDP_HEADER_SIZE];
+        for (int i = 0; i < sent.length; i++) sent[i] = query.get(Packet.IP4_HEADER_SIZE + Packet.UDP_HEADER_SIZE + i);
+
+        udpQueue.put(query);
+        final byte[] received = stubQueries.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Allowed query didn't reach the server", received);
+        assertArrayEquals(sent, received);
+
+        // The stub's answer comes back to the device
+        final Packet response = awaitResponse();
+        assertEquals(0x0042, response.backingBuffer.getShort(response.backingBuffer.position()) & 0xFFFF);
+        assertEquals(0x8180, flagsOf(response));
+        ByteBufferPool.release(response.backingBuffer);
+    }
+
+    @Test
+    public void answeredAddressIsAttributedToQuestion() throws Exception {
+        final HostnameTable hostnames = new HostnameTable(16);
+        start(true, hostnames);
+
+        udpQueue.put(query(0x0077, "WWW.Example.org", DnsMessage.TYPE_A));
+        ByteBufferPool.release(awaitResponse().backingBuffer);
+
+        // The stub answers through a CNAME, the address still belongs to the name the device asked for
+        assertEquals("www.example.org", hostnames.lookup(STUB_ANSWER_ADDRESS));
+        assertNull(hostnames.lookup(STUB_ANSWER_ADDRESS + 1));
+    }
+
+    @Test
+    public void publishedFilterAppliesToNextQuery() throws Exception {
+        start(true, null);
+
+        udpQueue.put(query(0x0100, "tracker.example.net", DnsMessage.TYPE_A));
+        assertNotNull("Unlisted query didn't reach the server", stubQueries.poll(5, TimeUnit.SECONDS));
+        ByteBufferPool.release(awaitResponse().backingBuffer);
+
+        final DomainTrie.Builder rules = new DomainTrie.Builder();
+        rules.add("tracker.example.net", false);
+        filters.publish(new HostFilter(DomainIndex.EMPTY, rules.build()));
+
+        udpQueue.put(query(0x0101, "tracker.example.net", DnsMessage.TYPE_A));
+        final Packet response = awaitResponse();
+        assertEquals(0x8183, flagsOf(response));
+        ByteBufferPool.release(response.backingBuffer);
+        assertNull("Query blocked by the new filter reached the server", stubQueries.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(2, filters.getVersion());
+    }
+
+    // Blocks ads.example.com and everything under it, except cdn.ads.example.com
+    private void start(boolean blockWithNxDomain, HostnameTable hostnames) {
+        final DomainTrie.Builder rules = new DomainTrie.Builder();
+        rules.add("ads.example.com", false);
+        rules.add("cdn.ads.example.com", true);
+        filters = new FilterHolder(new HostFilter(DomainIndex.EMPTY, rules.build()));
+
+        final RegistrationQueue udpRegistrations = new RegistrationQueue(udpSelector);
+        final UDPOutput udpOutput = new UDPOutput(udpQueue, networkToDeviceQueue, udpRegistrations,
+                filters, blockWithNxDomain, SocketProtector.NONE);
+        udpOutput.dnsPort = stubServer.socket().getLocalPort();
+
+        final UDPInput udpInput = new UDPInput(networkToDeviceQueue, udpRegistrations, hostnames);
+        udpInput.dnsPort = udpOutput.dnsPort;
+
+        executorService.submit(udpInput);
+        executorService.submit(udpOutput);
+    }
+
+    private ByteBuffer query(int id, String name, int type) {
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        message.write(id >> 8);
+        message.write(id);
+        message.write(0x01); // RD
+        message.write(0);
+        message.write(0);
+        message.write(1); // One question
+        for (int i = 0; i < 6; i++) message.write(0);
+
+        for (String label : name.split("\\.")) {
+            message.write(label.length());
+            message.write(label.getBytes(), 0, label.length());
+        }
+
+        message.write(0);
+        message.write(type >> 8);
+        message.write(type);
+        message.write(0);
+        message.write(1); // IN
+
+        return TestPackets.udp(TestPackets.DEVICE_ADDRESS, DEVICE_PORT, TestPackets.LOOPBACK_ADDRESS, stubServer.socket().getLocalPort(), message.toByteArray());
+    }
+
+    private Packet awaitResponse() throws Exception {
+        final ByteBuffer buffer = networkToDeviceQueue.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Timed out waiting for a response", buffer);
+
+        final Packet packet = TestPackets.parseDeviceBound(buffer);
+        assertEquals(DEVICE_PORT, packet.udpHeader.getDestinationPort());
+        assertEquals(stubServer.socket().getLocalPort(), packet.udpHeader.getSourcePort());
+        assertEquals(buffer.limit() - Packet.IP4_HEADER_SIZE, packet.udpHeader.getLength());
+        return packet;
+    }
+
+    private static int flagsOf(Packet response) {
+        return response.backingBuffer.getShort(response.backingBuffer.position() + 2) & 0xFFFF;
+    }
+
+    private static int answerCountOf(Packet response) {
+        return response.backingBuffer.getShort(response.backingBuffer.position() + 6) & 0xFFFF;
+    }
+
+    // Records each query and answers it with a CNAME to edge.cdn.example.net and that name's address
+    private class StubDnsServer implements Runnable {
+        @Override
+        public void run() {
+            final ByteBuffer buffer = ByteBuffer.allocate(512);
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    buffer.clear();
+                    final SocketAddress sender = stubServer.receive(buffer);
+                    buffer.flip();
+
+                    final byte[] query = new byte[buffer.remaining()];
+                    buffer.get(query);
+                    stubQueries.add(query);
+
+                    buffer.clear();
+                    buffer.position(query.length);
+                    buffer.putShort(2, (short) 0x8180);
+                    buffer.putShort(6, (short) 2);
+
+                    buffer.putShort((short) 0xC00C); // The question's name
+                    buffer.putShort((short) 5).putShort((short) 1).putInt(300);
+                    final int cnameData = buffer.position() + 2;
+                    buffer.putShort((short) 22);
+                    for (String label : new String[]{"edge", "cdn", "example", "net"}) {
+                        buffer.put((byte) label.length());
+                        buffer.put(label.getBytes());
+                    }
+                    buffer.put((byte) 0);
+
+                    buffer.putShort((short) (0xC000 | cnameData));
+                    buffer.putShort((short) DnsMessage.TYPE_A).putShort((short) 1).putInt(300);
+                    buffer.putShort((short) 4).putInt(STUB_ANSWER_ADDRESS);
+
+                    buffer.flip();
+                    stubServer.send(buffer, sender);
+                }
+            }
+
+            catch (IOException ex) {
+                // Server closed
+            }
+        }
+    }
+}
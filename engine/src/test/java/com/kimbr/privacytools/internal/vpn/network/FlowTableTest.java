@@ -0,0 +1,119 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs random puts, gets and removes against a FlowTable and a HashMap side by side, over few enough
+ * keys that probe runs grow, shrink and wrap around through resizes and backward shift deletions, and
+ * checks that a full table refuses new flows while existing ones can still be replaced.
+ */
+public class FlowTableTest {
+
+    private static final int OPERATIONS = 200000;
+    private static final int KEYS = 3000;
+
+    @Test
+    public void matchesHashMap() {
+        final Random random = new Random(42);
+        final FlowTable<Integer> table = new FlowTable<>(Integer.MAX_VALUE);
+        final Map<Long, Integer> expected = new HashMap<>();
+
+        for (int n = 0; n < OPERATIONS; n++) {
+            final long key = randomKey(random);
+            final int operation = random.nextInt(10);
+
+            if (operation < 4) {
+                final Integer value = n;
+                assertTrue(table.put(key, value));
+                expected.put(key, value);
+            }
+
+            else if (operation < 6) {
+                assertSame(expected.remove(key), table.remove(key));
+            }
+
+            else if (operation < 7) {
+                // Only removed while it still maps to the given value
+                final Integer current = expected.get(key);
+                final Integer value = current != null && random.nextBoolean() ? current : Integer.valueOf(-1);
+                final boolean removed = current != null && value == current;
+                assertEquals(removed, table.remove(key, value));
+                if (removed) expected.remove(key);
+            }
+
+            else {
+                assertSame(expected.get(key), table.get(key));
+            }
+
+            assertEquals(expected.size(), table.size());
+            if (n % 10000 == 0) assertSameValues(expected, table.values());
+        }
+
+        for (Map.Entry<Long, Integer> entry : expected.entrySet())
+            assertSame(entry.getValue(), table.get(entry.getKey()));
+
+        assertSameValues(expected, table.clear());
+        assertEquals(0, table.size());
+        assertNull(table.get(expected.keySet().iterator().next()));
+    }
+
+    @Test
+    public void refusesNewFlowsWhenFull() {
+        final FlowTable<String> table = new FlowTable<>(100);
+        for (int port = 0; port < 100; port++) assertTrue(table.put(key(port), "first"));
+
+        assertFalse(table.put(key(100), "new"));
+        assertNull(table.get(key(100)));
+        assertEquals(100, table.size());
+
+        // Replacing doesn't take a new place
+        assertTrue(table.put(key(50), "replaced"));
+        assertEquals("replaced", table.get(key(50)));
+        assertEquals(100, table.size());
+
+        // A removal makes room for exactly one
+        assertEquals("first", table.remove(key(0)));
+        assertTrue(table.put(key(100), "new"));
+        assertFalse(table.put(key(101), "new"));
+        assertEquals(100, table.size());
+
+        // Lowering the limit keeps what's there but refuses new flows until enough are gone
+        table.setMaxSize(50);
+        assertEquals(100, table.size());
+        assertTrue(table.put(key(1), "replaced"));
+        assertNull(table.remove(key(0)));
+        for (int port = 1; port <= 50; port++) table.remove(key(port));
+        assertFalse(table.put(key(0), "new"));
+        table.remove(key(51));
+        assertTrue(table.put(key(0), "new"));
+        assertEquals(50, table.size());
+    }
+
+    // Ports of a few destinations, like the flows of one device
+    private static long randomKey(Random random) {
+        final int sourcePort = 40000 + random.nextInt(KEYS / 3);
+        return FlowTable.key(0x7F000001 + random.nextInt(3), 443, sourcePort);
+    }
+
+    private static long key(int sourcePort) {
+        return FlowTable.key(0x7F000001, 80, 40000 + sourcePort);
+    }
+
+    private static void assertSameValues(Map<Long, Integer> expected, List<Integer> values) {
+        // Every value is distinct, so equal sets of the same size mean no value was lost or repeated
+        assertEquals(expected.size(), values.size());
+        assertEquals(new HashSet<>(expected.values()), new HashSet<>(values));
+    }
+}
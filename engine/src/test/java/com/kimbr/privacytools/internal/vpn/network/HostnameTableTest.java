@@ -0,0 +1,44 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Fills a HostnameTable and checks which address makes room for a new one: the one due to expire
+ * soonest, so an address answered again keeps its name however early it was first recorded.
+ */
+public class HostnameTableTest {
+
+    private static final int ADDRESS = 0x0A000001;
+
+    @Test
+    public void evictsWhatExpiresSoonest() {
+        final HostnameTable table = new HostnameTable(4);
+        table.put(ADDRESS, "a.example.com", 150);
+        table.put(ADDRESS + 1, "b.example.com", 200);
+        table.put(ADDRESS + 2, "c.example.com", 300);
+        table.put(ADDRESS + 3, "d.example.com", 400);
+
+        // Answered again, now the last to expire
+        table.put(ADDRESS, "a.example.com", 1000);
+
+        table.put(ADDRESS + 4, "e.example.com", 500);
+        assertEquals(4, table.size());
+        assertEquals("a.example.com", table.lookup(ADDRESS));
+        assertNull(table.lookup(ADDRESS + 1));
+        assertEquals("e.example.com", table.lookup(ADDRESS + 4));
+
+        table.put(ADDRESS + 5, "f.example.com", 500);
+        assertNull(table.lookup(ADDRESS + 2));
+        assertEquals("a.example.com", table.lookup(ADDRESS));
+        assertEquals("d.example.com", table.lookup(ADDRESS + 3));
+        assertEquals("f.example.com", table.lookup(ADDRESS + 5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new HostnameTable(0);
+    }
+}
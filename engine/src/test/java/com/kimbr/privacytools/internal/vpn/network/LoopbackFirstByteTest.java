@@ -0,0 +1,184 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.network.headers.TCPHeader;
+import com.kimbr.privacytools.internal.vpn.platform.SocketProtector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Drives TCPOutput/TCPInput and UDPOutput/UDPInput against loopback echo servers: for every connection,
+ * from the device's first packet (SYN, or the datagram itself) on, the echoed bytes must reach the device.
+ */
+public class LoopbackFirstByteTest {
+
+    private static final int CONNECTIONS = 25;
+    private static final byte[] PAYLOAD = "ping".getBytes();
+
+    private ExecutorService executorService;
+    private ServerSocketChannel tcpEchoServer;
+    private DatagramChannel udpEchoServer;
+    private Selector tcpSelector;
+    private Selector udpSelector;
+
+    private HandoffQueue<ByteBuffer> tcpQueue;
+    private HandoffQueue<ByteBuffer> udpQueue;
+    private LinkedBlockingQueue<ByteBuffer> networkToDeviceQueue;
+
+    @Before
+    public void setUp() throws IOException {
+        executorService = Executors.newCachedThreadPool();
+        tcpEchoServer = ServerSocketChannel.open();
+        tcpEchoServer.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        udpEchoServer = DatagramChannel.open();
+        udpEchoServer.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        executorService.submit(new TcpEchoServer());
+        executorService.submit(new UdpEchoServer());
+
+        tcpSelector = Selector.open();
+        udpSelector = Selector.open();
+        tcpQueue = new HandoffQueue<>(64);
+        udpQueue = new HandoffQueue<>(64);
+        networkToDeviceQueue = new LinkedBlockingQueue<>();
+
+        final RegistrationQueue tcpRegistrations = new RegistrationQueue(tcpSelector);
+        final RegistrationQueue udpRegistrations = new RegistrationQueue(udpSelector);
+        executorService.submit(new TCPInput(networkToDeviceQueue, tcpRegistrations));
+        executorService.submit(new TCPOutput(tcpQueue, networkToDeviceQueue, tcpRegistrations, new TCBReaper(networkToDeviceQueue), null, SocketProtector.NONE));
+        executorService.submit(new UDPInput(networkToDeviceQueue, udpRegistrations, null));
+        executorService.submit(new UDPOutput(udpQueue, networkToDeviceQueue, udpRegistrations, null, true, SocketProtector.NONE));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executorService.shutdownNow();
+        executorService.awaitTermination(5, TimeUnit.SECONDS);
+        tcpSelector.close();
+        udpSelector.close();
+        tcpEchoServer.close();
+        udpEchoServer.close();
+    }
+
+    @Test
+    public void tcpConnectToFirstByte() throws Exception {
+        final int serverPort = tcpEchoServer.socket().getLocalPort();
+
+        for (int i = 0; i < CONNECTIONS; i++) {
+            final int sourcePort = 40000 + i;
+
+            tcpQueue.put(TestPackets.tcp(TestPackets.DEVICE_ADDRESS, sourcePort, TestPackets.LOOPBACK_ADDRESS, serverPort, TCPHeader.SYN, 1000, 0, new byte[0]));
+            final Packet synAck = awaitDevicePacket(sourcePort, false);
+            assertEquals(TCPHeader.SYN | TCPHeader.ACK, synAck.tcpHeader.getFlags());
+
+            tcpQueue.put(TestPackets.tcp(TestPackets.DEVICE_ADDRESS, sourcePort, TestPackets.LOOPBACK_ADDRESS, serverPort, TCPHeader.ACK, 1001, synAck.tcpHeader.getSequenceNumber() + 1, PAYLOAD));
+            final Packet echo = awaitDevicePacket(sourcePort, true);
+
+            assertArrayEquals(PAYLOAD, payloadOf(echo));
+            ByteBufferPool.release(echo.backingBuffer);
+        }
+    }
+
+    @Test
+    public void udpRequestToFirstByte() throws Exception {
+        final int serverPort = udpEchoServer.socket().getLocalPort();
+
+        for (int i = 0; i < CONNECTIONS; i++) {
+            final int sourcePort = 50000 + i;
+
+            udpQueue.put(TestPackets.udp(TestPackets.DEVICE_ADDRESS, sourcePort, TestPackets.LOOPBACK_ADDRESS, serverPort, PAYLOAD));
+            final Packet echo = awaitDevicePacket(sourcePort, true);
+
+            assertArrayEquals(PAYLOAD, payloadOf(echo));
+            ByteBufferPool.release(echo.backingBuffer);
+        }
+    }
+
+    // Takes device-bound packets until one for the given device port (with a payload, if asked) arrives
+    private Packet awaitDevicePacket(int devicePort, boolean withPayload) throws Exception {
+        while (true) {
+            final ByteBuffer buffer = networkToDeviceQueue.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Timed out waiting for device port " + devicePort, buffer);
+
+            final Packet packet = TestPackets.parseDeviceBound(buffer);
+            final int destinationPort = packet.isTcp() ? packet.tcpHeader.getDestinationPort() : packet.udpHeader.getDestinationPort();
+            if (destinationPort == devicePort && (!withPayload || buffer.hasRemaining())) return packet;
+
+            ByteBufferPool.release(buffer);
+        }
+    }
+
+    private static byte[] payloadOf(Packet packet) {
+        final byte[] payload = new byte[packet.backingBuffer.remaining()];
+        packet.backingBuffer.get(payload);
+        return payload;
+    }
+
+    private class TcpEchoServer implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    final SocketChannel client = tcpEchoServer.accept();
+                    executorService.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            final ByteBuffer buffer = ByteBuffer.allocate(1024);
+                            try {
+                                while (client.read(buffer) != -1) {
+                                    buffer.flip();
+                                    while (buffer.hasRemaining()) client.write(buffer);
+                                    buffer.clear();
+                                }
+                            }
+
+                            catch (IOException ex) {
+                                // Client went away
+                            }
+                        }
+                    });
+                }
+            }
+
+            catch (IOException ex) {
+                // Server closed
+            }
+        }
+    }
+
+    private class UdpEchoServer implements Runnable {
+        @Override
+        public void run() {
+            final ByteBuffer buffer = ByteBuffer.allocate(1024);
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    buffer.clear();
+                    final SocketAddress sender = udpEchoServer.receive(buffer);
+                    buffer.flip();
+                    udpEchoServer.send(buffer, sender);
+                }
+            }
+
+            catch (IOException ex) {
+                // Server closed
+            }
+        }
+    }
+}
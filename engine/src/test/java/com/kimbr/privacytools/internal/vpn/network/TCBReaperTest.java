@@ -0,0 +1,175 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.metrics.PipelineMetrics;
+import com.kimbr.privacytools.internal.vpn.network.headers.TCPHeader;
+import com.kimbr.privacytools.internal.vpn.platform.SocketProtector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Puts TCBs in different states and with different last activity into the table, then checks which ones
+ * TCBReaper gives up on: idle ones by their state's timeout as time moves on, and under pressure one at
+ * a time, closing states first and the least recently active first, each reset on the device with RST+ACK.
+ */
+public class TCBReaperTest {
+
+    private static final int LOOPBACK_ADDRESS = 0x7F000001;
+    private static final int REMOTE_PORT = 80;
+
+    private LinkedBlockingQueue<ByteBuffer> outputQueue;
+    private TCBReaper reaper;
+    private int maxConnections;
+
+    @Before
+    public void setUp() {
+        TCB.closeAll();
+        maxConnections = TCB.getMaxConnections();
+        outputQueue = new LinkedBlockingQueue<>();
+        reaper = new TCBReaper(outputQueue);
+    }
+
+    @After
+    public void tearDown() {
+        TCB.closeAll();
+        TCB.setMaxConnections(maxConnections);
+    }
+
+    @Test
+    public void reapsIdleFlowsByStateTimeout() throws Exception {
+        final long start = TCBReaper.now();
+        final long evictionsBefore = PipelineMetrics.tcbEvictions.get();
+
+        final TCB established = newTcb(40000, TCB.TCBStatus.ESTABLISHED, 0);
+        final TCB closeWait = newTcb(40001, TCB.TCBStatus.CLOSE_WAIT, 0);
+        final TCB lastAck = newTcb(40002, TCB.TCBStatus.LAST_ACK, 0);
+        final TCB synSent = newTcb(40003, TCB.TCBStatus.SYN_SENT, 0);
+        for (TCB tcb : new TCB[]{established, closeWait, lastAck, synSent}) reaper.schedule(tcb);
+
+        reaper.tick(start + 5000);
+        assertNull(outputQueue.poll());
+        assertEquals(4, TCB.getConnectionCount());
+
+        reaper.tick(start + TCB.TCBStatus.LAST_ACK.idleTimeoutMs + TCBReaper.TICK_MS);
+        assertReset(lastAck);
+        assertNull(outputQueue.poll());
+
+        reaper.tick(start + TCB.TCBStatus.SYN_SENT.idleTimeoutMs + TCBReaper.TICK_MS);
+        assertReset(synSent);
+
+        // Activity pushes the deadline back
+        established.lastActivity = start + 25000;
+        reaper.tick(start + TCB.TCBStatus.CLOSE_WAIT.idleTimeoutMs + TCBReaper.TICK_MS);
+        assertReset(closeWait);
+        assertNull(outputQueue.poll());
+
+        reaper.tick(start + TCB.TCBStatus.ESTABLISHED.idleTimeoutMs + TCBReaper.TICK_MS);
+        assertNull(outputQueue.poll());
+        assertSame(established, TCB.getTcb(established.flowKey));
+
+        reaper.tick(start + 25000 + TCB.TCBStatus.ESTABLISHED.idleTimeoutMs + TCBReaper.TICK_MS);
+        assertReset(established);
+
+        assertEquals(0, TCB.getConnectionCount());
+        assertEquals(4, PipelineMetrics.tcbEvictions.get() - evictionsBefore);
+    }
+
+    @Test
+    public void reapsOneClosingFlowAtATimeUnderPressure() throws Exception {
+        final TCB established = newTcb(41000, TCB.TCBStatus.ESTABLISHED, 10);
+        final TCB synReceived = newTcb(41001, TCB.TCBStatus.SYN_RECEIVED, 20);
+        final TCB closeWaitNewest = newTcb(41002, TCB.TCBStatus.CLOSE_WAIT, 300);
+        final TCB closeWaitOldest = newTcb(41003, TCB.TCBStatus.CLOSE_WAIT, 100);
+        final TCB closeWaitMiddle = newTcb(41004, TCB.TCBStatus.CLOSE_WAIT, 200);
+        final TCB lastAckNewer = newTcb(41005, TCB.TCBStatus.LAST_ACK, 500);
+        final TCB lastAckOlder = newTcb(41006, TCB.TCBStatus.LAST_ACK, 400);
+        final TCB synSent = newTcb(41007, TCB.TCBStatus.SYN_SENT, 50);
+
+        final TCB[] pressureOrder = {lastAckOlder, lastAckNewer, closeWaitOldest, closeWaitMiddle, closeWaitNewest, synSent};
+        for (int i = 0; i < pressureOrder.length; i++) {
+            assertTrue(reaper.reapUnderPressure());
+            assertReset(pressureOrder[i]);
+            assertNull("More than one flow reaped", outputQueue.poll());
+            assertEquals(8 - i - 1, TCB.getConnectionCount());
+        }
+
+        // Open flows are never given up for new ones
+        assertFalse(reaper.reapUnderPressure());
+        assertSame(established, TCB.getTcb(established.flowKey));
+        assertSame(synReceived, TCB.getTcb(synReceived.flowKey));
+    }
+
+    @Test
+    public void newSynEvictsOnlyWhatItNeeds() throws Exception {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final Selector selector = Selector.open();
+
+        try {
+            TCB.setMaxConnections(4);
+            final TCB[] downloads = new TCB[4];
+            for (int i = 0; i < downloads.length; i++) downloads[i] = newTcb(42000 + i, TCB.TCBStatus.CLOSE_WAIT, 1000 - i);
+
+            final TCPOutput tcpOutput = new TCPOutput(null, outputQueue, new RegistrationQueue(selector), reaper, null, SocketProtector.NONE);
+            tcpOutput.processPacket(TestPackets.tcp(TestPackets.DEVICE_ADDRESS, 42100, TestPackets.LOOPBACK_ADDRESS, server.socket().getLocalPort(),
+                    TCPHeader.SYN, 1000, 0, new byte[0]), System.nanoTime());
+
+            // The least recently active one makes room, the others keep going
+            assertReset(downloads[3]);
+            for (int i = 0; i < 3; i++) assertSame(downloads[i], TCB.getTcb(downloads[i].flowKey));
+            assertEquals(4, TCB.getConnectionCount());
+        }
+
+        finally {
+            selector.close();
+            server.close();
+        }
+    }
+
+    // A flow from the device to REMOTE_PORT on loopback, with its reference packet made like TCPOutput does
+    private static TCB newTcb(int devicePort, TCB.TCBStatus status, long lastActivity) throws IOException {
+        final ByteBuffer syn = TestPackets.tcp(TestPackets.DEVICE_ADDRESS, devicePort, TestPackets.LOOPBACK_ADDRESS, REMOTE_PORT, TCPHeader.SYN, 1000, 0, new byte[0]);
+        final Packet packet = new Packet(syn);
+        packet.swapSourceAndDestination();
+        final Packet referencePacket = packet.copyHeaders();
+        ByteBufferPool.release(syn);
+
+        final TCB tcb = new TCB("127.0.0.1:" + REMOTE_PORT + ":" + devicePort, FlowTable.key(LOOPBACK_ADDRESS, REMOTE_PORT, devicePort),
+                5000 + devicePort, 1000, 1001, 5000 + devicePort, SocketChannel.open(), referencePacket);
+        tcb.status = status;
+        tcb.lastActivity = lastActivity;
+        assertTrue(TCB.putTcb(tcb));
+        return tcb;
+    }
+
+    // The next packet for the device must reset tcb's flow, and tcb must be gone from the table
+    private void assertReset(TCB tcb) {
+        final ByteBuffer buffer = outputQueue.poll();
+        assertNotNull("No reset for " + tcb.ipAndPort, buffer);
+        buffer.flip();
+
+        final Packet packet = new Packet(buffer);
+        assertEquals(TCPHeader.RST | TCPHeader.ACK, packet.tcpHeader.getFlags());
+        assertEquals(tcb.flowKey & 0xFFFF, packet.tcpHeader.getDestinationPort());
+        assertEquals(tcb.mySequenceNumber, packet.tcpHeader.getSequenceNumber());
+        assertEquals(tcb.myAcknowledgementNumber, packet.tcpHeader.getAcknowledgementNumber());
+        assertNull(TCB.getTcb(tcb.flowKey));
+        ByteBufferPool.release(buffer);
+    }
+}
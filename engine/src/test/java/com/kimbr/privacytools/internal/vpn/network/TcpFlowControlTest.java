@@ -0,0 +1,164 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.metrics.PipelineMetrics;
+import com.kimbr.privacytools.internal.vpn.network.headers.TCPHeader;
+import com.kimbr.privacytools.internal.vpn.platform.SocketProtector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Has a loopback server send far more than the device's window through TCPOutput/TCPInput while the device
+ * acknowledges one window at a time: no more than the window may be unacknowledged, reading must stop
+ * until the device's ACK opens the window again (also after a zero window) and nothing may be lost.
+ */
+public class TcpFlowControlTest {
+
+    private static final int DEVICE_PORT = 42000;
+    private static final int DEVICE_MSS = 1000;
+    private static final int DEVICE_WINDOW = 8000;
+    private static final int TRANSFER_SIZE = 200000;
+    private static final long DEVICE_ISN = 1000;
+    private static final long QUIET_MS = 200;
+
+    private ExecutorService executorService;
+    private ServerSocketChannel server;
+    private Selector tcpSelector;
+    private HandoffQueue<ByteBuffer> tcpQueue;
+    private LinkedBlockingQueue<ByteBuffer> networkToDeviceQueue;
+
+    @Before
+    public void setUp() throws IOException {
+        executorService = Executors.newCachedThreadPool();
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        executorService.submit(new TransferServer());
+
+        tcpSelector = Selector.open();
+        tcpQueue = new HandoffQueue<>(64);
+        networkToDeviceQueue = new LinkedBlockingQueue<>();
+
+        final RegistrationQueue tcpRegistrations = new RegistrationQueue(tcpSelector);
+        executorService.submit(new TCPInput(networkToDeviceQueue, tcpRegistrations));
+        executorService.submit(new TCPOutput(tcpQueue, networkToDeviceQueue, tcpRegistrations, new TCBReaper(networkToDeviceQueue), null, SocketProtector.NONE));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executorService.shutdownNow();
+        executorService.awaitTermination(5, TimeUnit.SECONDS);
+        tcpSelector.close();
+        server.close();
+    }
+
+    @Test
+    public void staysWithinDeviceWindow() throws Exception {
+        final long pausesBefore = PipelineMetrics.windowPauses.get();
+        tcpQueue.put(TestPackets.syn(TestPackets.DEVICE_ADDRESS, DEVICE_PORT, TestPackets.LOOPBACK_ADDRESS, server.socket().getLocalPort(), DEVICE_ISN, DEVICE_MSS));
+
+        final ByteBuffer synAckBuffer = networkToDeviceQueue.poll(5, TimeUnit.SECONDS);
+        synAckBuffer.flip();
+        final Packet synAck = new Packet(synAckBuffer);
+        assertEquals(TCPHeader.SYN | TCPHeader.ACK, synAck.tcpHeader.getFlags());
+        final long firstSequenceNumber = synAck.tcpHeader.getSequenceNumber() + 1;
+        ByteBufferPool.release(synAckBuffer);
+
+        int receivedBytes = 0;
+        int acknowledgedBytes = 0;
+        int rounds = 0;
+        acknowledge(firstSequenceNumber, 0, DEVICE_WINDOW);
+
+        while (receivedBytes < TRANSFER_SIZE) {
+            // The engine fills the window, then has to wait for the device
+            while (receivedBytes - acknowledgedBytes < DEVICE_WINDOW && receivedBytes < TRANSFER_SIZE)
+                receivedBytes += takeSegments(firstSequenceNumber + receivedBytes, 5000);
+
+            assertEquals(Math.min(acknowledgedBytes + DEVICE_WINDOW, TRANSFER_SIZE), receivedBytes);
+            if (rounds++ == 0) assertNull("Sent past the device's window", networkToDeviceQueue.poll(QUIET_MS, TimeUnit.MILLISECONDS));
+
+            // Once, acknowledge with a closed window: still nothing until it opens
+            if (rounds == 3) {
+                acknowledge(firstSequenceNumber, receivedBytes, 0);
+                assertNull("Sent into a zero window", networkToDeviceQueue.poll(QUIET_MS, TimeUnit.MILLISECONDS));
+            }
+
+            acknowledgedBytes = receivedBytes;
+            acknowledge(firstSequenceNumber, acknowledgedBytes, DEVICE_WINDOW);
+        }
+
+        assertEquals(TRANSFER_SIZE, receivedBytes);
+        assertTrue(PipelineMetrics.windowPauses.get() - pausesBefore >= TRANSFER_SIZE / DEVICE_WINDOW - 1);
+    }
+
+    private void acknowledge(long firstSequenceNumber, int acknowledgedBytes, int window) throws InterruptedException {
+        tcpQueue.put(TestPackets.ack(TestPackets.DEVICE_ADDRESS, DEVICE_PORT, TestPackets.LOOPBACK_ADDRESS, server.socket().getLocalPort(),
+                DEVICE_ISN + 1, firstSequenceNumber + acknowledgedBytes, window));
+    }
+
+    // Takes one device-bound buffer and checks its segments are next in order, returns their payload size
+    private int takeSegments(long expectedSequenceNumber, long timeoutMs) throws InterruptedException {
+        final ByteBuffer buffer = networkToDeviceQueue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        if (buffer == null) throw new AssertionError("Timed out waiting for data at " + expectedSequenceNumber);
+        buffer.flip();
+
+        int payloadSize = 0;
+        for (int start = 0; start < buffer.limit(); ) {
+            final ByteBuffer view = buffer.duplicate();
+            view.position(start);
+            view.limit(start + (buffer.getShort(start + 2) & 0xFFFF));
+            start = view.limit();
+
+            final Packet segment = new Packet(view.slice());
+            assertEquals(expectedSequenceNumber + payloadSize, segment.tcpHeader.getSequenceNumber());
+            payloadSize += segment.backingBuffer.remaining();
+        }
+
+        ByteBufferPool.release(buffer);
+        return payloadSize;
+    }
+
+    // Writes TRANSFER_SIZE bytes to every client as fast as the connection takes them
+    private class TransferServer implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    final SocketChannel client = server.accept();
+                    executorService.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            final ByteBuffer transfer = ByteBuffer.allocate(TRANSFER_SIZE);
+                            try {
+                                while (transfer.hasRemaining()) client.write(transfer);
+                            }
+
+                            catch (IOException ex) {
+                                // Client went away
+                            }
+                        }
+                    });
+                }
+            }
+
+            catch (IOException ex) {
+                // Server closed
+            }
+        }
+    }
+}
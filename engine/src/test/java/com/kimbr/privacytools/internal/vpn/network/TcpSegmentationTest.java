@@ -0,0 +1,162 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.network.headers.TCPHeader;
+import com.kimbr.privacytools.internal.vpn.platform.SocketProtector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Has a loopback server send a burst larger than a segment through TCPOutput/TCPInput: the SYN-ACK must
+ * advertise our MSS, and what reaches the device must be in order, cut to the MSS the device's SYN gave
+ * (or the RFC 1122 default without one) and carry valid checksums, however many segments share a buffer.
+ */
+public class TcpSegmentationTest {
+
+    private static final int DEVICE_MSS = 1000;
+    private static final int BURST_SIZE = 40000;
+    private static final long DEVICE_ISN = 1000;
+
+    private ExecutorService executorService;
+    private ServerSocketChannel burstServer;
+    private Selector tcpSelector;
+    private HandoffQueue<ByteBuffer> tcpQueue;
+    private LinkedBlockingQueue<ByteBuffer> networkToDeviceQueue;
+
+    @Before
+    public void setUp() throws IOException {
+        executorService = Executors.newCachedThreadPool();
+        burstServer = ServerSocketChannel.open();
+        burstServer.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        executorService.submit(new BurstServer());
+
+        tcpSelector = Selector.open();
+        tcpQueue = new HandoffQueue<>(64);
+        networkToDeviceQueue = new LinkedBlockingQueue<>();
+
+        final RegistrationQueue tcpRegistrations = new RegistrationQueue(tcpSelector);
+        executorService.submit(new TCPInput(networkToDeviceQueue, tcpRegistrations));
+        executorService.submit(new TCPOutput(tcpQueue, networkToDeviceQueue, tcpRegistrations, new TCBReaper(networkToDeviceQueue), null, SocketProtector.NONE));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executorService.shutdownNow();
+        executorService.awaitTermination(5, TimeUnit.SECONDS);
+        tcpSelector.close();
+        burstServer.close();
+    }
+
+    @Test
+    public void segmentsToDeviceMss() throws Exception {
+        final int devicePort = 41000;
+        tcpQueue.put(TestPackets.syn(TestPackets.DEVICE_ADDRESS, devicePort, TestPackets.LOOPBACK_ADDRESS, burstServer.socket().getLocalPort(), DEVICE_ISN, DEVICE_MSS));
+        receiveBurst(devicePort, DEVICE_MSS);
+    }
+
+    @Test
+    public void segmentsToDefaultMssWithoutOption() throws Exception {
+        final int devicePort = 41001;
+        tcpQueue.put(TestPackets.tcp(TestPackets.DEVICE_ADDRESS, devicePort, TestPackets.LOOPBACK_ADDRESS, burstServer.socket().getLocalPort(), TCPHeader.SYN, DEVICE_ISN, 0, new byte[0]));
+        receiveBurst(devicePort, TCB.DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    // Completes the handshake, then takes segments until the whole burst arrived
+    private void receiveBurst(int devicePort, int maxSegmentSize) throws Exception {
+        final ByteBuffer synAckBuffer = takeDeviceBound();
+        final Packet synAck = new Packet(synAckBuffer);
+        assertEquals(TCPHeader.SYN | TCPHeader.ACK, synAck.tcpHeader.getFlags());
+        assertEquals(Packet.TCP_HEADER_SIZE + Packet.MSS_OPTION_SIZE, synAck.tcpHeader.getHeaderLength());
+        assertEquals(TCB.MAX_SEGMENT_SIZE, synAck.tcpHeader.getMaxSegmentSize());
+        assertValidChecksums(synAckBuffer);
+
+        long expectedSequenceNumber = synAck.tcpHeader.getSequenceNumber() + 1;
+        ByteBufferPool.release(synAckBuffer);
+        tcpQueue.put(TestPackets.tcp(TestPackets.DEVICE_ADDRESS, devicePort, TestPackets.LOOPBACK_ADDRESS, burstServer.socket().getLocalPort(), TCPHeader.ACK, DEVICE_ISN + 1, expectedSequenceNumber, new byte[0]));
+
+        int receivedBytes = 0;
+        while (receivedBytes < BURST_SIZE) {
+            final ByteBuffer buffer = takeDeviceBound();
+            final int end = buffer.limit();
+
+            // One buffer can carry several segments back to back
+            for (int start = 0; start < end; ) {
+                final ByteBuffer view = buffer.duplicate();
+                view.position(start);
+                view.limit(start + (buffer.getShort(start + 2) & 0xFFFF));
+                final ByteBuffer segmentBuffer = view.slice();
+                start = view.limit();
+
+                final Packet segment = new Packet(segmentBuffer);
+                final int payloadSize = segmentBuffer.remaining();
+                assertValidChecksums(segmentBuffer);
+                assertEquals(expectedSequenceNumber, segment.tcpHeader.getSequenceNumber());
+                assertTrue("Segment of " + payloadSize + " bytes for an MSS of " + maxSegmentSize, payloadSize <= maxSegmentSize);
+
+                for (int i = 0; i < payloadSize; i++)
+                    assertEquals((byte) (receivedBytes + i), segmentBuffer.get(segmentBuffer.position() + i));
+
+                expectedSequenceNumber += payloadSize;
+                receivedBytes += payloadSize;
+            }
+
+            ByteBufferPool.release(buffer);
+        }
+
+        assertEquals(BURST_SIZE, receivedBytes);
+    }
+
+    private ByteBuffer takeDeviceBound() throws InterruptedException {
+        final ByteBuffer buffer = networkToDeviceQueue.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Timed out waiting for the device", buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Both checksums of the packet at index 0, a valid one sums to all ones with the data
+    private static void assertValidChecksums(ByteBuffer packet) {
+        final int totalLength = packet.getShort(2) & 0xFFFF;
+        final int tcpLength = totalLength - Packet.IP4_HEADER_SIZE;
+        assertEquals(0xFFFF, Checksum.sum(packet, 0, Packet.IP4_HEADER_SIZE));
+
+        final long sum = Checksum.sum(packet, 12, 8) + 6 + tcpLength + Checksum.sum(packet, Packet.IP4_HEADER_SIZE, tcpLength);
+        assertEquals(0xFFFF, Checksum.fold(sum));
+    }
+
+    // Sends every client BURST_SIZE bytes at once, then leaves the connection open
+    private class BurstServer implements Runnable {
+        @Override
+        public void run() {
+            final ByteBuffer burst = ByteBuffer.allocate(BURST_SIZE);
+            for (int i = 0; i < BURST_SIZE; i++) burst.put((byte) i);
+
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    final SocketChannel client = burstServer.accept();
+                    burst.clear();
+                    while (burst.hasRemaining()) client.write(burst);
+                }
+            }
+
+            catch (IOException ex) {
+                // Server closed
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.kimbr.privacytools.internal.vpn.network;
+
+import com.kimbr.privacytools.internal.vpn.network.headers.TCPHeader;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds device-side IPv4 packets in pool buffers, the way VpnRunnable hands them to the output workers.
+ */
+public final class TestPackets {
+
+    public static final byte[] DEVICE_ADDRESS = {10, 1, 10, 1};
+    public static final byte[] LOOPBACK_ADDRESS = {127, 0, 0, 1};
+
+    private TestPackets() {
+    }
+
+    public static ByteBuffer tcp(byte[] sourceAddress, int sourcePort, byte[] destinationAddress, int destinationPort, int flags, long sequenceNumber, long acknowledgementNumber, byte[] payload) {
+        final ByteBuffer buffer = ip4(sourceAddress, destinationAddress, 6, Packet.TCP_HEADER_SIZE + payload.length);
+        buffer.putShort((short) sourcePort).putShort((short) destinationPort);
+        buffer.putInt((int) sequenceNumber).putInt((int) acknowledgementNumber);
+        buffer.put((byte) (Packet.TCP_HEADER_SIZE << 2)).put((byte) flags);
+        buffer.putShort((short) 65535).putShort((short) 0).putShort((short) 0);
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    // A SYN with an MSS option
+    public static ByteBuffer syn(byte[] sourceAddress, int sourcePort, byte[] destinationAddress, int destinationPort, long sequenceNumber, int maxSegmentSize) {
+        final int headerSize = Packet.TCP_HEADER_SIZE + Packet.MSS_OPTION_SIZE;
+        final ByteBuffer buffer = ip4(sourceAddress, destinationAddress, 6, headerSize);
+        buffer.putShort((short) sourcePort).putShort((short) destinationPort);
+        buffer.putInt((int) sequenceNumber).putInt(0);
+        buffer.put((byte) (headerSize << 2)).put((byte) TCPHeader.SYN);
+        buffer.putShort((short) 65535).putShort((short) 0).putShort((short) 0);
+        buffer.put((byte) TCPHeader.OPTION_MSS).put((byte) Packet.MSS_OPTION_SIZE).putShort((short) maxSegmentSize);
+        buffer.flip();
+        return buffer;
+    }
+
+    // An ACK without payload advertising window
+    public static ByteBuffer ack(byte[] sourceAddress, int sourcePort, byte[] destinationAddress, int destinationPort, long sequenceNumber, long acknowledgementNumber, int window) {
+        final ByteBuffer buffer = tcp(sourceAddress, sourcePort, destinationAddress, destinationPort, TCPHeader.ACK, sequenceNumber, acknowledgementNumber, new byte[0]);
+        buffer.putShort(Packet.IP4_HEADER_SIZE + 14, (short) window);
+        return buffer;
+    }
+
+    public static ByteBuffer udp(byte[] sourceAddress, int sourcePort, byte[] destinationAddress, int destinationPort, byte[] payload) {
+        final ByteBuffer buffer = ip4(sourceAddress, destinationAddress, 17, Packet.UDP_HEADER_SIZE + payload.length);
+        buffer.putShort((short) sourcePort).putShort((short) destinationPort);
+        buffer.putShort((short) (Packet.UDP_HEADER_SIZE + payload.length)).putShort((short) 0);
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Parses a buffer taken from networkToDeviceQueue, leaving it positioned at the payload
+    public static Packet parseDeviceBound(ByteBuffer buffer) throws Exception {
+        buffer.flip();
+        return new Packet(buffer);
+    }
+
+    private static ByteBuffer ip4(byte[] sourceAddress, byte[] destinationAddress, int protocol, int transportLength) {
+        final ByteBuffer buffer = ByteBufferPool.acquire();
+        buffer.put((byte) 0x45).put((byte) 0).putShort((short) (Packet.IP4_HEADER_SIZE + transportLength));
+        buffer.putInt(0);
+        buffer.put((byte) 64).put((byte) protocol).putShort((short) 0);
+        buffer.put(sourceAddress).put(destinationAddress);
+        return buffer;
+    }
+}
@@ -0,0 +1,153 @@
+package com.kimbr.privacytools.internal.vpn.replay;
+
+import com.kimbr.privacytools.internal.Utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * A TCP and a UDP echo server on 127.0.0.1, standing in for every remote endpoint of a replay.
+ * Both run on one selector thread, so thousands of replayed connections don't need a thread
+ * each. A TCP connection stops being read while its echo can't be written, so a device that
+ * doesn't read holds its server back the way a real one would.
+ */
+public final class LoopbackEchoServers implements Closeable {
+
+    private static final int DATAGRAM_BUFFER_SIZE = 65536;
+    private static final int CONNECTION_BUFFER_SIZE = 16384;
+
+    private final Selector selector;
+    private final ServerSocketChannel tcpServer;
+    private final DatagramChannel udpServer;
+    private final ByteBuffer datagramBuffer = ByteBuffer.allocateDirect(DATAGRAM_BUFFER_SIZE);
+    private final Thread thread;
+
+    public LoopbackEchoServers() throws IOException {
+        selector = Selector.open();
+
+        tcpServer = ServerSocketChannel.open();
+        tcpServer.socket().bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+        tcpServer.configureBlocking(false);
+        tcpServer.register(selector, SelectionKey.OP_ACCEPT);
+
+        udpServer = DatagramChannel.open();
+        udpServer.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        udpServer.configureBlocking(false);
+        udpServer.register(selector, SelectionKey.OP_READ);
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "LoopbackEchoServers");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getTcpPort() {
+        return tcpServer.socket().getLocalPort();
+    }
+
+    public int getUdpPort() {
+        return udpServer.socket().getLocalPort();
+    }
+
+    // Stops the server thread first, closing the selector under it would fail its iteration
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+
+        try {
+            thread.join();
+        }
+
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        selector.close();
+        tcpServer.close();
+        udpServer.close();
+    }
+
+    private void serve() {
+        try {
+            while (!Thread.interrupted()) {
+                selector.select();
+                final Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+
+                while (keyIterator.hasNext()) {
+                    final SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) accept();
+                        else if (key.channel() == udpServer) echoDatagrams();
+                        else echoStream(key);
+                    }
+
+                    catch (IOException ex) {
+                        // The engine closed or reset the connection
+                        key.cancel();
+                        Utils.closeResources(key.channel());
+                    }
+                }
+            }
+        }
+
+        catch (IOException | ClosedSelectorException ex) {
+            // Closed
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client;
+
+        while ((client = tcpServer.accept()) != null) {
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(CONNECTION_BUFFER_SIZE));
+        }
+    }
+
+    private void echoDatagrams() throws IOException {
+        SocketAddress sender;
+
+        while (true) {
+            datagramBuffer.clear();
+            if ((sender = udpServer.receive(datagramBuffer)) == null) return;
+
+            datagramBuffer.flip();
+            udpServer.send(datagramBuffer, sender);
+        }
+    }
+
+    private void echoStream(SelectionKey key) throws IOException {
+        final SocketChannel client = (SocketChannel) key.channel();
+        final ByteBuffer buffer = (ByteBuffer) key.attachment();
+
+        if (key.isReadable() && client.read(buffer) == -1) {
+            key.cancel();
+            client.close();
+            return;
+        }
+
+        buffer.flip();
+        client.write(buffer);
+        buffer.compact();
+
+        // Read again once everything read so far has been echoed
+        key.interestOps(buffer.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+}
@@ -0,0 +1,159 @@
+package com.kimbr.privacytools.internal.vpn.replay;
+
+import com.kimbr.privacytools.internal.vpn.network.Packet;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the IPv4 packets of a classic libpcap capture (not pcapng), of either byte order and
+ * timestamp precision, stripping the link layer of the usual capture types: raw IP (tun
+ * captures), Ethernet, Linux cooked and BSD loopback. Other protocols, and packets the capture
+ * truncated, are skipped and counted.
+ */
+public final class PcapReader implements Closeable {
+
+    private static final int MAGIC_MICROSECONDS = 0xa1b2c3d4;
+    private static final int MAGIC_NANOSECONDS = 0xa1b23c4d;
+    private static final int MAGIC_PCAPNG = 0x0a0d0d0a;
+    private static final int MAX_RECORD_SIZE = 262144;
+
+    private static final int LINKTYPE_NULL = 0;
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int LINKTYPE_RAW_OPENBSD = 12;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int LINKTYPE_LINUX_SLL = 113;
+    private static final int LINKTYPE_IPV4 = 228;
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+
+    private final DataInputStream input;
+    private final ByteBuffer recordHeader;
+    private final int linkType;
+    private final boolean nanosecondTimestamps;
+    private long timestampNanos;
+    private int skippedCount;
+
+    public PcapReader(File file) throws IOException {
+        input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(24);
+            input.readFully(header.array());
+
+            final int magic = header.getInt(0);
+            if (magic == MAGIC_PCAPNG)
+                throw new IOException("pcapng captures aren't supported, convert with: editcap -F pcap " + file.getName() + " out.pcap");
+
+            if (magic == MAGIC_MICROSECONDS || magic == MAGIC_NANOSECONDS) header.order(ByteOrder.BIG_ENDIAN);
+            else if (Integer.reverseBytes(magic) == MAGIC_MICROSECONDS || Integer.reverseBytes(magic) == MAGIC_NANOSECONDS) header.order(ByteOrder.LITTLE_ENDIAN);
+            else throw new IOException("Not a pcap capture: " + file);
+
+            nanosecondTimestamps = header.getInt(0) == MAGIC_NANOSECONDS;
+            linkType = header.getInt(20) & 0xFFFF; // The upper bits can carry FCS information
+            if (linkType != LINKTYPE_NULL && linkType != LINKTYPE_ETHERNET && linkType != LINKTYPE_RAW_OPENBSD && linkType != LINKTYPE_RAW
+                    && linkType != LINKTYPE_LINUX_SLL && linkType != LINKTYPE_IPV4)
+                throw new IOException("Unsupported link type " + linkType + " in " + file);
+
+            recordHeader = ByteBuffer.allocate(16).order(header.order());
+        }
+
+        catch (IOException ex) {
+            input.close();
+            throw ex;
+        }
+    }
+
+    // The next IPv4 packet in a buffer of its own, from position 0 to its total length, or null
+    // at the end of the capture. A record cut off by the end of the file ends it too
+    public ByteBuffer next() throws IOException {
+        while (true) {
+            final byte[] record;
+
+            try {
+                input.readFully(recordHeader.array());
+                final int capturedLength = recordHeader.getInt(8);
+                if (capturedLength < 0 || capturedLength > MAX_RECORD_SIZE) throw new IOException("Corrupt record length " + capturedLength);
+
+                record = new byte[capturedLength];
+                input.readFully(record);
+            }
+
+            catch (EOFException ex) {
+                return null;
+            }
+
+            final long seconds = recordHeader.getInt(0) & 0xFFFFFFFFL;
+            final long fraction = recordHeader.getInt(4) & 0xFFFFFFFFL;
+            timestampNanos = seconds * 1000000000L + (nanosecondTimestamps ? fraction : fraction * 1000);
+
+            final int offset = ip4Offset(record);
+            if (offset < 0 || record.length < recordHeader.getInt(12) || record.length - offset < Packet.IP4_HEADER_SIZE || (record[offset] & 0xF0) != 0x40) {
+                skippedCount++;
+                continue;
+            }
+
+            // Link layers pad short frames, the total length says where the packet ends
+            final int totalLength = ((record[offset + 2] & 0xFF) << 8) | (record[offset + 3] & 0xFF);
+            if (totalLength < Packet.IP4_HEADER_SIZE || totalLength > record.length - offset) {
+                skippedCount++;
+                continue;
+            }
+
+            return ByteBuffer.wrap(record, offset, totalLength).slice();
+        }
+    }
+
+    // Of the packet next() returned last, in nanoseconds since the epoch
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    // Where the IPv4 header starts in a record, -1 if it doesn't hold IPv4
+    private int ip4Offset(byte[] record) {
+        switch (linkType) {
+            case LINKTYPE_NULL:
+                // Address family in the capturing host's byte order, AF_INET is 2 everywhere
+                if (record.length < 4) return -1;
+                final boolean ip4 = (record[0] == 2 && record[3] == 0) || (record[0] == 0 && record[3] == 2);
+                return ip4 && record[1] == 0 && record[2] == 0 ? 4 : -1;
+
+            case LINKTYPE_ETHERNET:
+                if (record.length < 14) return -1;
+                int etherType = readShort(record, 12);
+                if (etherType != ETHERTYPE_VLAN) return etherType == ETHERTYPE_IPV4 ? 14 : -1;
+
+                if (record.length < 18) return -1;
+                etherType = readShort(record, 16);
+                return etherType == ETHERTYPE_IPV4 ? 18 : -1;
+
+            case LINKTYPE_LINUX_SLL:
+                if (record.length < 16) return -1;
+                return readShort(record, 14) == ETHERTYPE_IPV4 ? 16 : -1;
+
+            default:
+                return 0; // Raw IP
+        }
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+}
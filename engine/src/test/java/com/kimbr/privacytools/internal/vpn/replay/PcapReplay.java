@@ -0,0 +1,587 @@
+package com.kimbr.privacytools.internal.vpn.replay;
+
+import com.kimbr.privacytools.internal.Utils;
+import com.kimbr.privacytools.internal.vpn.TunnelEngine;
+import com.kimbr.privacytools.internal.vpn.metrics.LatencyHistogram;
+import com.kimbr.privacytools.internal.vpn.metrics.PipelineMetrics;
+import com.kimbr.privacytools.internal.vpn.network.ByteBufferPool;
+import com.kimbr.privacytools.internal.vpn.network.FlowTable;
+import com.kimbr.privacytools.internal.vpn.network.Packet;
+import com.kimbr.privacytools.internal.vpn.network.TCB;
+import com.kimbr.privacytools.internal.vpn.network.headers.IP4Header;
+import com.kimbr.privacytools.internal.vpn.network.headers.TCPHeader;
+import com.kimbr.privacytools.internal.vpn.platform.ChannelTunDevice;
+import com.kimbr.privacytools.internal.vpn.platform.SocketProtector;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the device's side of a captured session through the tunnel engine on a workstation JVM,
+ * to reproduce and profile performance problems seen in the field.
+ * <p>
+ * The engine runs as a {@link TunnelEngine}, pipeline or reactors, with a connected pair of
+ * loopback datagram channels in place of the tun descriptor (one datagram per packet, like tun
+ * reads) and {@link LoopbackEchoServers} in place of every remote endpoint. Only packets from the
+ * device address are replayed: each flow gets a source port of its own and its destination
+ * rewritten to the echo server, and a TCP flow's packets after the SYN wait for the engine's
+ * SYN-ACK, as on the device. Their acknowledgement numbers are rewritten to what the device side
+ * actually received, so the engine sees a consistent peer, and their windows to the largest
+ * unscaled one: captured windows are scaled by an option the engine doesn't agree to. Checksums
+ * are left stale, the engine doesn't verify them.
+ * <p>
+ * Reports throughput both ways, per-flow connect and first byte latency, the engine threads'
+ * allocation rate, the pipeline metrics and the buffer pools. Run with
+ * {@code ./gradlew :engine:replay -PreplayArgs="capture.pcap [--speed 1] [--reactors 2] [--device 10.1.10.1]"},
+ * a speed of 0 (the default) replays as fast as the engine takes packets, 1 at the captured pace.
+ */
+public class PcapReplay {
+
+    private static final int LOOPBACK_ADDRESS = 0x7F000001;
+    private static final int MAX_WINDOW = 65535;
+    private static final int TCP = 6;
+    private static final int UDP = 17;
+    private static final int FIRST_PORT = 1024;
+    private static final int TUN_BUFFER_SIZE = 8 << 20; // Capped by the kernel, often to a few hundred KB
+    // Written but not yet read by VpnRunnable, the tun channel drops what overflows its buffer
+    private static final int MAX_IN_FLIGHT = 64;
+    private static final long STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MAX_CONNECTIONS = 4096;
+    // The engine is done once nothing has crossed the tun channel for this long
+    private static final long QUIET_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int SLOWEST_FLOWS_REPORTED = 5;
+
+    public double speed = 0; // Multiple of the captured pace, 0 for as fast as possible
+    public int reactorCount = 0; // 0 runs the pipeline
+    public int deviceAddress = 0; // 0 takes the source of the first SYN in the capture
+
+    private final Packet replayView = new Packet();
+    private final Map<Long, Flow> tcpFlows = new HashMap<>();
+    private final Map<Long, Flow> udpFlows = new HashMap<>();
+    private final List<Flow> flows = new ArrayList<>();
+    // By assigned source port, for the device reader
+    private final AtomicReferenceArray<Flow> flowsByPort = new AtomicReferenceArray<>(65536);
+    private int nextPort = FIRST_PORT;
+    private int skippedPackets;
+
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+    private final LatencyHistogram firstByteLatency = new LatencyHistogram();
+    private final AtomicLong packetsWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong packetsRead = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private volatile long lastActivityAt;
+    private long lostPackets; // Known lost on the tun channel, replay thread only
+
+    private final ThreadGroup engineThreads = new ThreadGroup("engine");
+    private TunnelEngine engine;
+    private DatagramChannel device;
+    private int tcpServerPort;
+    private int udpServerPort;
+
+    public static void main(String[] args) throws Exception {
+        final PcapReplay replay = new PcapReplay();
+        File pcap = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--speed".equals(args[i]) && i + 1 < args.length) replay.speed = Double.parseDouble(args[++i]);
+            else if ("--reactors".equals(args[i]) && i + 1 < args.length) replay.reactorCount = Integer.parseInt(args[++i]);
+            else if ("--device".equals(args[i]) && i + 1 < args.length) replay.deviceAddress = toAddress(args[++i]);
+            else if (pcap == null && !args[i].startsWith("--")) pcap = new File(args[i]);
+            else pcap = null;
+        }
+
+        if (pcap == null) {
+            System.err.println("Usage: PcapReplay <capture.pcap> [--speed <multiple, 0 for as fast as possible>] [--reactors <count>] [--device <address>]");
+            System.exit(2);
+        }
+
+        System.out.println(replay.replay(pcap));
+        System.exit(0); // Leftover engine threads aren't daemons
+    }
+
+    public Report replay(File pcap) throws IOException, InterruptedException {
+        if (deviceAddress == 0) deviceAddress = findDeviceAddress(pcap);
+
+        final LoopbackEchoServers servers = new LoopbackEchoServers();
+        tcpServerPort = servers.getTcpPort();
+        udpServerPort = servers.getUdpPort();
+
+        device = DatagramChannel.open();
+        final DatagramChannel tun = DatagramChannel.open();
+        connectPair(device, tun);
+
+        Thread deviceReader = null;
+
+        try {
+            PipelineMetrics.reset();
+            TCB.setMaxConnections(MAX_CONNECTIONS);
+            startEngine(tun);
+
+            deviceReader = new Thread(new DeviceReader(), "PcapReplay-device");
+            deviceReader.start();
+
+            final Map<Long, Long> allocatedAtStart = allocatedBytes();
+            final long startedAt = System.nanoTime();
+            lastActivityAt = startedAt;
+
+            final PcapReader reader = new PcapReader(pcap);
+            try {
+                replayPackets(reader, startedAt);
+                skippedPackets += reader.getSkippedCount();
+            }
+
+            finally {
+                reader.close();
+            }
+
+            awaitQuiet();
+            final long elapsedNanos = lastActivityAt - startedAt;
+            final Map<Long, Long> allocatedAtEnd = allocatedBytes();
+            return new Report(elapsedNanos, engineAllocation(allocatedAtStart, allocatedAtEnd));
+        }
+
+        finally {
+            if (engine != null) {
+                engine.stop();
+                engine.awaitTermination(5, TimeUnit.SECONDS);
+            }
+
+            if (deviceReader != null) deviceReader.interrupt();
+            Utils.closeResources(device, tun, servers);
+        }
+    }
+
+    // Without filters, hostname tracking or the traffic log
+    private void startEngine(DatagramChannel tun) throws IOException {
+        engine = new TunnelEngine(SocketProtector.NONE);
+        engine.reactorCount = reactorCount;
+        engine.threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(engineThreads, runnable);
+            }
+        };
+        engine.start(new ChannelTunDevice(tun, tun));
+    }
+
+    private void replayPackets(PcapReader reader, long startedAt) throws IOException {
+        long firstTimestamp = -1;
+        ByteBuffer buffer;
+
+        while ((buffer = reader.next()) != null) {
+            if (buffer.getInt(12) != deviceAddress) continue; // The network's side, the echo servers answer instead
+
+            if (speed > 0) {
+                if (firstTimestamp < 0) firstTimestamp = reader.getTimestampNanos();
+                final long dueAt = startedAt + (long) ((reader.getTimestampNanos() - firstTimestamp) / speed);
+
+                long delay;
+                while ((delay = dueAt - System.nanoTime()) > 0) LockSupport.parkNanos(delay);
+            }
+
+            awaitEngine();
+            final Packet packet = replayView.wrap(buffer);
+            if (packet.isUdp()) replayUdp(packet, buffer);
+            else if (packet.isTcp()) replayTcp(packet, buffer);
+            else skippedPackets++;
+        }
+    }
+
+    // As fast as possible still means no faster than VpnRunnable reads
+    private void awaitEngine() {
+        long waitingSince = 0;
+
+        while (packetsWritten.get() - PipelineMetrics.packetsFromDevice.get() - lostPackets >= MAX_IN_FLIGHT) {
+            final long now = System.nanoTime();
+            if (waitingSince == 0) waitingSince = now;
+
+            // Not coming, the tun channel dropped them
+            else if (now - waitingSince > STALL_NANOS) {
+                lostPackets = packetsWritten.get() - PipelineMetrics.packetsFromDevice.get();
+                return;
+            }
+
+            LockSupport.parkNanos(10000);
+        }
+    }
+
+    private void replayUdp(Packet packet, ByteBuffer buffer) throws IOException {
+        final long key = FlowTable.key(packet.ip4Header.getDestinationAddress(), packet.udpHeader.getDestinationPort(), packet.udpHeader.getSourcePort());
+        Flow flow = udpFlows.get(key);
+
+        if (flow == null) {
+            flow = newFlow(UDP, packet.ip4Header.getDestinationAddress(), packet.udpHeader.getDestinationPort());
+            flow.connected = true;
+            udpFlows.put(key, flow);
+        }
+
+        synchronized (flow) {
+            send(flow, buffer);
+        }
+    }
+
+    private void replayTcp(Packet packet, ByteBuffer buffer) throws IOException {
+        final TCPHeader tcpHeader = packet.tcpHeader;
+        final long key = FlowTable.key(packet.ip4Header.getDestinationAddress(), tcpHeader.getDestinationPort(), tcpHeader.getSourcePort());
+        Flow flow = tcpFlows.get(key);
+
+        if (tcpHeader.isSYN() && !tcpHeader.isACK()) {
+            // A retransmitted SYN would only get the flow reset, a SYN after a close opens a new one
+            if (flow != null && !flow.finished) {
+                skippedPackets++;
+                return;
+            }
+
+            flow = newFlow(TCP, packet.ip4Header.getDestinationAddress(), tcpHeader.getDestinationPort());
+            tcpFlows.put(key, flow);
+        }
+
+        // Captured mid-connection, or reset by the engine
+        else if (flow == null || flow.reset) {
+            skippedPackets++;
+            return;
+        }
+
+        if (tcpHeader.isFIN() || tcpHeader.isRST()) flow.finished = true;
+
+        synchronized (flow) {
+            if (flow.connected || flow.synWrittenAt == 0) send(flow, buffer);
+            else if (!flow.reset) flow.heldPackets.add(buffer);
+        }
+    }
+
+    private Flow newFlow(int protocol, int destinationAddress, int destinationPort) {
+        final Flow flow = new Flow(protocol, destinationAddress, destinationPort, nextPort);
+        // Ports are reused once every one has been handed out, long gone flows are closed by then
+        nextPort = nextPort == 65535 ? FIRST_PORT : nextPort + 1;
+        flowsByPort.set(flow.sourcePort, flow);
+        flows.add(flow);
+        return flow;
+    }
+
+    // Rewrites the packet for the loopback endpoints and writes it to the tunnel. Called with the
+    // flow locked, from the replay thread or (for held packets) the device reader
+    private void send(Flow flow, ByteBuffer buffer) throws IOException {
+        final int ip4HeaderLength = (buffer.get(0) & 0x0F) << 2;
+        final int totalLength = buffer.limit();
+        final int payloadSize;
+
+        buffer.putInt(16, LOOPBACK_ADDRESS);
+        buffer.putShort(ip4HeaderLength, (short) flow.sourcePort);
+
+        if (flow.protocol == TCP) {
+            buffer.putShort(ip4HeaderLength + 2, (short) tcpServerPort);
+            final int flags = buffer.get(ip4HeaderLength + 13);
+            if ((flags & TCPHeader.ACK) != 0 && flow.receivedUpTo >= 0) buffer.putInt(ip4HeaderLength + 8, (int) flow.receivedUpTo);
+            buffer.putShort(ip4HeaderLength + 14, (short) MAX_WINDOW);
+
+            payloadSize = totalLength - ip4HeaderLength - ((buffer.get(ip4HeaderLength + 12) & 0xF0) >> 2);
+            if ((flags & TCPHeader.SYN) != 0) flow.synWrittenAt = System.nanoTime();
+        }
+
+        else {
+            buffer.putShort(ip4HeaderLength + 2, (short) udpServerPort);
+            payloadSize = totalLength - ip4HeaderLength - Packet.UDP_HEADER_SIZE;
+        }
+
+        final long now = System.nanoTime();
+        if (payloadSize > 0 && flow.firstPayloadWrittenAt == 0) flow.firstPayloadWrittenAt = now;
+
+        buffer.rewind();
+        device.write(buffer);
+
+        packetsWritten.incrementAndGet();
+        bytesWritten.addAndGet(totalLength);
+        lastActivityAt = now;
+    }
+
+    private void awaitQuiet() throws InterruptedException {
+        final long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+
+        while (System.nanoTime() - lastActivityAt < QUIET_NANOS && System.nanoTime() < deadline)
+            Thread.sleep(50);
+    }
+
+    // Reads what the engine writes to the tunnel, as the device would
+    private class DeviceReader implements Runnable {
+
+        private final Packet packet = new Packet();
+
+        @Override
+        public void run() {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+
+            try {
+                while (!Thread.interrupted()) {
+                    buffer.clear();
+                    final int readBytes = device.read(buffer);
+                    if (readBytes <= 0) continue;
+
+                    final long now = System.nanoTime();
+                    lastActivityAt = now;
+                    packetsRead.incrementAndGet();
+                    bytesRead.addAndGet(readBytes);
+
+                    buffer.flip();
+                    packet.wrap(buffer);
+                    if (packet.isTcp()) received(flowsByPort.get(packet.tcpHeader.getDestinationPort()), TCP, buffer.remaining(), now);
+                    else if (packet.isUdp()) received(flowsByPort.get(packet.udpHeader.getDestinationPort()), UDP, buffer.remaining(), now);
+                }
+            }
+
+            catch (IOException ex) {
+                // Closed at the end of the replay
+            }
+        }
+
+        private void received(Flow flow, int protocol, int payloadSize, long now) throws IOException {
+            if (flow == null || flow.protocol != protocol) return;
+
+            if (payloadSize > 0 && flow.firstPayloadReadAt == 0 && flow.firstPayloadWrittenAt != 0) {
+                flow.firstPayloadReadAt = now;
+                firstByteLatency.record(now - flow.firstPayloadWrittenAt);
+            }
+
+            if (protocol != TCP) return;
+            final TCPHeader tcpHeader = packet.tcpHeader;
+
+            synchronized (flow) {
+                // What the device side has received of the engine's stream, which its ACKs acknowledge
+                long end = tcpHeader.getSequenceNumber() + payloadSize;
+                if (tcpHeader.isSYN()) end++;
+                if (tcpHeader.isFIN()) end++;
+                end &= 0xFFFFFFFFL;
+                if (flow.receivedUpTo < 0 || ((end - flow.receivedUpTo) & 0xFFFFFFFFL) < 0x80000000L) flow.receivedUpTo = end;
+
+                if (tcpHeader.isRST()) {
+                    flow.reset = true;
+                    flow.heldPackets.clear();
+                }
+
+                else if (tcpHeader.isSYN() && tcpHeader.isACK() && !flow.connected) {
+                    flow.connected = true;
+                    connectLatency.record(now - flow.synWrittenAt);
+                    for (ByteBuffer held : flow.heldPackets) send(flow, held);
+                    flow.heldPackets.clear();
+                }
+            }
+        }
+    }
+
+    private static class Flow {
+
+        final int protocol;
+        final int destinationAddress; // As captured
+        final int destinationPort;
+        final int sourcePort; // Assigned for the replay
+        final List<ByteBuffer> heldPackets = new ArrayList<>(); // Until the engine's SYN-ACK
+
+        // Changed with the flow locked
+        volatile boolean connected;
+        volatile boolean reset;
+        long receivedUpTo = -1;
+        boolean finished; // The device sent FIN or RST, replay thread only
+        volatile long synWrittenAt;
+        volatile long firstPayloadWrittenAt;
+        volatile long firstPayloadReadAt;
+
+        Flow(int protocol, int destinationAddress, int destinationPort, int sourcePort) {
+            this.protocol = protocol;
+            this.destinationAddress = destinationAddress;
+            this.destinationPort = destinationPort;
+            this.sourcePort = sourcePort;
+        }
+
+        long getFirstByteNanos() {
+            return firstPayloadReadAt != 0 ? firstPayloadReadAt - firstPayloadWrittenAt : -1;
+        }
+
+        @Override
+        public String toString() {
+            return (protocol == TCP ? "tcp " : "udp ") + IP4Header.toHostAddress(destinationAddress) + ":" + destinationPort;
+        }
+    }
+
+    public class Report {
+
+        public final long elapsedNanos;
+        public final long packetsWritten = PcapReplay.this.packetsWritten.get();
+        public final long bytesWritten = PcapReplay.this.bytesWritten.get();
+        public final long packetsRead = PcapReplay.this.packetsRead.get();
+        public final long bytesRead = PcapReplay.this.bytesRead.get();
+        public final int skippedPackets = PcapReplay.this.skippedPackets;
+        public final int tcpFlows = tcpFlowCount();
+        public final int udpFlows = flows.size() - tcpFlows;
+        public final int connectedTcpFlows;
+        public final int resetTcpFlows;
+        public final int unansweredFlows;
+        public final LatencyHistogram.Snapshot connectLatency = PcapReplay.this.connectLatency.snapshot();
+        public final LatencyHistogram.Snapshot firstByteLatency = PcapReplay.this.firstByteLatency.snapshot();
+        public final List<String> slowestFlows = new ArrayList<>();
+        public final long engineAllocatedBytes; // -1 where the JVM can't tell
+        public final PipelineMetrics.Snapshot pipeline = PipelineMetrics.snapshot();
+        public final List<ByteBufferPool.Stats> bufferPools = Arrays.asList(ByteBufferPool.getStats());
+
+        Report(long elapsedNanos, long engineAllocatedBytes) {
+            this.elapsedNanos = Math.max(elapsedNanos, 1);
+            this.engineAllocatedBytes = engineAllocatedBytes;
+
+            int connected = 0;
+            int reset = 0;
+            int unanswered = 0;
+            final List<Flow> answered = new ArrayList<>();
+
+            for (Flow flow : flows) {
+                synchronized (flow) {
+                    if (flow.protocol == TCP && flow.connected) connected++;
+                    if (flow.protocol == TCP && flow.reset) reset++;
+                }
+
+                if (flow.getFirstByteNanos() >= 0) answered.add(flow);
+                else if (flow.firstPayloadWrittenAt != 0) unanswered++;
+            }
+
+            connectedTcpFlows = connected;
+            resetTcpFlows = reset;
+            unansweredFlows = unanswered;
+
+            Collections.sort(answered, new Comparator<Flow>() {
+                @Override
+                public int compare(Flow first, Flow second) {
+                    return Long.compare(second.getFirstByteNanos(), first.getFirstByteNanos());
+                }
+            });
+
+            for (int i = 0; i < Math.min(SLOWEST_FLOWS_REPORTED, answered.size()); i++)
+                slowestFlows.add(answered.get(i) + " " + answered.get(i).getFirstByteNanos() / 1000 + "us");
+        }
+
+        private int tcpFlowCount() {
+            int count = 0;
+            for (Flow flow : flows) if (flow.protocol == TCP) count++;
+            return count;
+        }
+
+        public double getPacketsPerSecond() {
+            return (packetsWritten + packetsRead) * 1e9 / elapsedNanos;
+        }
+
+        public double getBytesPerSecond() {
+            return (bytesWritten + bytesRead) * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            final double seconds = elapsedNanos / 1e9;
+            final StringBuilder builder = new StringBuilder();
+            builder.append(String.format("Replayed %d packets (%d skipped) in %.3fs\n", packetsWritten, skippedPackets, seconds));
+            builder.append(String.format("Device to tunnel: %.0f packets/s, %.0f bytes/s\n", packetsWritten / seconds, bytesWritten / seconds));
+            builder.append(String.format("Tunnel to device: %.0f packets/s, %.0f bytes/s\n", packetsRead / seconds, bytesRead / seconds));
+            builder.append(String.format("Lost before VpnRunnable read them: %d\n", packetsWritten - pipeline.packetsFromDevice));
+            builder.append(String.format("Flows: %d tcp (%d connected, %d reset), %d udp, %d never answered\n", tcpFlows, connectedTcpFlows, resetTcpFlows, udpFlows, unansweredFlows));
+            builder.append("Connect (SYN to SYN-ACK): ").append(connectLatency).append('\n');
+            builder.append("First byte (request to response): ").append(firstByteLatency).append('\n');
+            builder.append("Slowest first bytes: ").append(slowestFlows).append('\n');
+
+            if (engineAllocatedBytes >= 0)
+                builder.append(String.format("Engine allocation: %.1f MB/s, %d bytes/packet\n", engineAllocatedBytes / seconds / 1e6,
+                        engineAllocatedBytes / Math.max(packetsWritten + packetsRead, 1)));
+
+            builder.append("Pipeline: ").append(pipeline).append('\n');
+            for (ByteBufferPool.Stats stats : bufferPools) builder.append("Buffer pool: ").append(stats).append('\n');
+            return builder.toString();
+        }
+    }
+
+    // Source of the first SYN, or of the first packet if the capture has no connection opening
+    private static int findDeviceAddress(File pcap) throws IOException {
+        final PcapReader reader = new PcapReader(pcap);
+        final Packet packet = new Packet();
+        int firstSource = 0;
+
+        try {
+            ByteBuffer buffer;
+            while ((buffer = reader.next()) != null) {
+                packet.wrap(buffer);
+                if (firstSource == 0) firstSource = packet.ip4Header.getSourceAddress();
+                if (packet.isTcp() && packet.tcpHeader.isSYN() && !packet.tcpHeader.isACK()) return packet.ip4Header.getSourceAddress();
+            }
+        }
+
+        finally {
+            reader.close();
+        }
+
+        return firstSource;
+    }
+
+    private static void connectPair(DatagramChannel first, DatagramChannel second) throws IOException {
+        for (DatagramChannel channel : new DatagramChannel[] {first, second}) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, TUN_BUFFER_SIZE);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, TUN_BUFFER_SIZE);
+            channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        }
+
+        first.connect(second.getLocalAddress());
+        second.connect(first.getLocalAddress());
+    }
+
+    private static int toAddress(String hostAddress) throws IOException {
+        return ByteBuffer.wrap(InetAddress.getByName(hostAddress).getAddress()).getInt();
+    }
+
+    // Bytes allocated so far by each live engine thread, null where the JVM doesn't count them.
+    // Looked up reflectively, com.sun.management isn't part of every JVM
+    private Map<Long, Long> allocatedBytes() {
+        final Thread[] threads = new Thread[engineThreads.activeCount() + 16];
+        final int threadCount = engineThreads.enumerate(threads);
+        final Map<Long, Long> allocated = new HashMap<>();
+
+        try {
+            final Object threadBean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            final Method getThreadAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+
+            for (int i = 0; i < threadCount; i++)
+                allocated.put(threads[i].getId(), (Long) getThreadAllocatedBytes.invoke(threadBean, threads[i].getId()));
+        }
+
+        catch (ReflectiveOperationException | ClassCastException ex) {
+            return null;
+        }
+
+        return allocated;
+    }
+
+    // Threads started during the replay count from zero, ones that ended during it are missed
+    private static long engineAllocation(Map<Long, Long> atStart, Map<Long, Long> atEnd) {
+        if (atStart == null || atEnd == null) return -1;
+
+        long total = 0;
+        for (Map.Entry<Long, Long> entry : atEnd.entrySet()) {
+            final Long start = atStart.get(entry.getKey());
+            total += entry.getValue() - (start != null ? start : 0);
+        }
+
+        return total;
+    }
+}
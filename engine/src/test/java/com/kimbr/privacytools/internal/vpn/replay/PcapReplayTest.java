@@ -0,0 +1,113 @@
+package com.kimbr.privacytools.internal.vpn.replay;
+
+import com.kimbr.privacytools.internal.vpn.network.ByteBufferPool;
+import com.kimbr.privacytools.internal.vpn.network.TestPackets;
+import com.kimbr.privacytools.internal.vpn.network.headers.TCPHeader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a small capture, both directions of a few TCP connections and DNS queries plus the tail of a
+ * connection opened before the capture started, through the pipeline and through reactors.
+ */
+public class PcapReplayTest {
+
+    private static final int TCP_FLOWS = 20;
+    private static final int UDP_FLOWS = 10;
+    private static final byte[] REQUEST = new byte[300];
+
+    private File capture;
+
+    @Before
+    public void setUp() throws IOException {
+        capture = File.createTempFile("replay", ".pcap");
+        final DataOutputStream output = new DataOutputStream(new FileOutputStream(capture));
+
+        try {
+            writeHeader(output);
+            long timestamp = 1500000000000000L;
+
+            for (int i = 0; i < TCP_FLOWS; i++) {
+                final byte[] server = {93, (byte) 184, 0, (byte) i};
+                final int port = 40000 + i;
+                writeRecord(output, timestamp++, TestPackets.tcp(TestPackets.DEVICE_ADDRESS, port, server, 443, TCPHeader.SYN, 1000, 0, new byte[0]));
+                writeRecord(output, timestamp++, TestPackets.tcp(server, 443, TestPackets.DEVICE_ADDRESS, port, TCPHeader.SYN | TCPHeader.ACK, 7000, 1001, new byte[0]));
+                writeRecord(output, timestamp++, TestPackets.tcp(TestPackets.DEVICE_ADDRESS, port, server, 443, TCPHeader.ACK, 1001, 7001, new byte[0]));
+                writeRecord(output, timestamp++, TestPackets.tcp(TestPackets.DEVICE_ADDRESS, port, server, 443, TCPHeader.ACK | TCPHeader.PSH, 1001, 7001, REQUEST));
+            }
+
+            for (int i = 0; i < UDP_FLOWS; i++)
+                writeRecord(output, timestamp++, TestPackets.udp(TestPackets.DEVICE_ADDRESS, 50000 + i, new byte[] {1, 1, 1, 1}, 53, new byte[40]));
+
+            // Opened before the capture started, nothing to replay it against
+            writeRecord(output, timestamp, TestPackets.tcp(TestPackets.DEVICE_ADDRESS, 39999, new byte[] {93, (byte) 184, 1, 1}, 443, TCPHeader.ACK, 5000, 9000, REQUEST));
+        }
+
+        finally {
+            output.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        capture.delete();
+    }
+
+    @Test
+    public void replaysThroughPipeline() throws Exception {
+        assertReplayed(new PcapReplay().replay(capture));
+    }
+
+    @Test
+    public void replaysThroughReactors() throws Exception {
+        final PcapReplay replay = new PcapReplay();
+        replay.reactorCount = 2;
+        assertReplayed(replay.replay(capture));
+    }
+
+    private static void assertReplayed(PcapReplay.Report report) {
+        assertEquals(TCP_FLOWS, report.tcpFlows);
+        assertEquals(TCP_FLOWS, report.connectedTcpFlows);
+        assertEquals(UDP_FLOWS, report.udpFlows);
+        assertEquals(1, report.skippedPackets);
+        assertEquals(TCP_FLOWS * 3 + UDP_FLOWS, report.packetsWritten);
+        assertEquals(report.packetsWritten, report.pipeline.packetsFromDevice);
+
+        // Every request echoed back by the loopback servers
+        assertEquals(TCP_FLOWS, report.connectLatency.count);
+        assertEquals(TCP_FLOWS + UDP_FLOWS, report.firstByteLatency.count);
+        assertEquals(0, report.unansweredFlows);
+        assertTrue(report.getPacketsPerSecond() > 0);
+    }
+
+    // Little-endian, microsecond timestamps, raw IP like a capture of the tun interface
+    private static void writeHeader(DataOutputStream output) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0xa1b2c3d4).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0).putInt(65535).putInt(101);
+        output.write(header.array());
+    }
+
+    private static void writeRecord(DataOutputStream output, long timestampMicros, ByteBuffer packet) throws IOException {
+        final int length = packet.remaining();
+        final ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt((int) (timestampMicros / 1000000)).putInt((int) (timestampMicros % 1000000)).putInt(length).putInt(length);
+        output.write(header.array());
+
+        final byte[] bytes = new byte[length];
+        packet.get(bytes);
+        output.write(bytes);
+        ByteBufferPool.release(packet);
+    }
+}
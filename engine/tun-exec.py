@@ -0,0 +1,26 @@
+#!/usr/bin/env python3
+# Attaches a Linux tun interface and runs a command with it as standard input and output, for
+# StandaloneTunnel --tun. Create the interface and route a test network into it first, e.g.
+#   sudo ip tuntap add dev tun0 mode tun user $USER
+#   sudo ip addr add 10.1.10.1/24 dev tun0 && sudo ip link set tun0 up
+#   sudo ip route add 198.51.100.0/24 dev tun0
+#   ./tun-exec.py tun0 java -jar build/libs/engine.jar --tun --reactors 2
+# Keep the engine's own traffic off the tunnel's routes, it doesn't protect its sockets.
+import fcntl
+import os
+import struct
+import sys
+
+TUNSETIFF = 0x400454ca
+IFF_TUN = 0x0001
+IFF_NO_PI = 0x1000
+
+if len(sys.argv) < 3:
+    sys.exit('Usage: tun-exec.py <interface> <command> [args...]')
+
+tun = os.open('/dev/net/tun', os.O_RDWR)
+fcntl.ioctl(tun, TUNSETIFF, struct.pack('16sH', sys.argv[1].encode(), IFF_TUN | IFF_NO_PI))
+os.dup2(tun, 0)
+os.dup2(tun, 1)
+os.close(tun)
+os.execvp(sys.argv[2], sys.argv[2:])